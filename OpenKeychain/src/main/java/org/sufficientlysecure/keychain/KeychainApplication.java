@@ -22,7 +22,6 @@ import android.accounts.AccountManager;
 import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -30,19 +29,23 @@ import android.os.Environment;
 import android.widget.Toast;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.operations.BenchmarkOperation;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.DataCipherFactory;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
+import org.sufficientlysecure.keychain.ui.util.QrCodeUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 
 import java.security.Security;
-import java.util.HashMap;
 
 
 public class KeychainApplication extends Application {
@@ -71,6 +74,27 @@ public class KeychainApplication extends Application {
         PRNGFixes.apply();
         Log.d(Constants.TAG, "Bouncy Castle set and PRNG Fixes applied!");
 
+        // use the fastest provider for bulk encryption. it is found once by the main process,
+        // bouncy castle is used until then
+        final Preferences prefs = Preferences.getPreferences(this);
+        String dataCipherProvider = prefs.getDataCipherProvider();
+        if (dataCipherProvider != null && Security.getProvider(dataCipherProvider) != null) {
+            DataCipherFactory.setDataCipherProvider(dataCipherProvider);
+        } else if ("main".equals(MetricsRegistry.getProcessLabel(this))) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    String fastestProvider =
+                            BenchmarkOperation.benchmarkDataCipherProviders(new OperationLog(), 0);
+                    DataCipherFactory.setDataCipherProvider(fastestProvider);
+                    prefs.setDataCipherProvider(fastestProvider);
+                }
+            }, "data-cipher-benchmark").start();
+        }
+
+        // this is called in each process, all of them keep their own metrics
+        MetricsRegistry.getInstance().startSnapshots(this);
+
         /*
         if (Constants.DEBUG) {
             Provider[] providers = Security.getProviders();
@@ -133,15 +157,11 @@ public class KeychainApplication extends Application {
         }
     }
 
-    public static HashMap<String,Bitmap> qrCodeCache = new HashMap<>();
-
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
 
-        if (level >= TRIM_MEMORY_UI_HIDDEN) {
-            qrCodeCache.clear();
-        }
+        QrCodeUtils.trimCache(level);
     }
 
     /**
@@ -33,6 +33,9 @@ import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Counter;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Histogram;
 
 import java.io.IOException;
 import java.net.Proxy;
@@ -54,6 +57,11 @@ public class FacebookKeyserver extends Keyserver {
 
     public static final String ORIGIN = FB_URL;
 
+    private static final Histogram QUERY_LATENCY =
+            MetricsRegistry.getInstance().histogram("keyserver.facebook.query");
+    private static final Counter QUERY_ERRORS =
+            MetricsRegistry.getInstance().counter("keyserver.facebook.query.error");
+
     private final Proxy mProxy;
 
     public FacebookKeyserver(Proxy proxy) {
@@ -100,6 +108,7 @@ public class FacebookKeyserver extends Keyserver {
     }
 
     private String query(String fbUsername) throws QueryFailedException {
+        long startNanos = System.nanoTime();
         try {
             String request = String.format(FB_KEY_URL_FORMAT, fbUsername);
             Log.d(Constants.TAG, "fetching from Facebook with: " + request + " proxy: " + mProxy);
@@ -122,10 +131,13 @@ public class FacebookKeyserver extends Keyserver {
             }
 
         } catch (IOException e) {
+            QUERY_ERRORS.increment();
             Log.e(Constants.TAG, "IOException at Facebook key download", e);
             throw new QueryFailedException("Cannot connect to Facebook. "
                     + "Check your Internet connection!"
                     + (mProxy == Proxy.NO_PROXY ? "" : " Using proxy " + mProxy));
+        } finally {
+            QUERY_LATENCY.recordSince(startNanos);
         }
     }
 
@@ -28,6 +28,9 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Counter;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Histogram;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 
 import java.io.IOException;
@@ -147,6 +150,11 @@ public class HkpKeyserver extends Keyserver {
     private static final short PORT_DEFAULT = 11371;
     private static final short PORT_DEFAULT_HKPS = 443;
 
+    private static final Histogram QUERY_LATENCY = MetricsRegistry.getInstance().histogram("keyserver.hkp.query");
+    private static final Counter QUERY_ERRORS = MetricsRegistry.getInstance().counter("keyserver.hkp.query.error");
+    private static final Histogram ADD_LATENCY = MetricsRegistry.getInstance().histogram("keyserver.hkp.add");
+    private static final Counter ADD_ERRORS = MetricsRegistry.getInstance().counter("keyserver.hkp.add.error");
+
     /**
      * @param hostAndPort may be just
      *                    "<code>hostname</code>" (eg. "<code>pool.sks-keyservers.net</code>"), then it will
@@ -232,6 +240,7 @@ public class HkpKeyserver extends Keyserver {
     }
 
     private String query(String request, @NonNull Proxy proxy) throws QueryFailedException, HttpError {
+        long startNanos = System.nanoTime();
         try {
             URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
             Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
@@ -246,9 +255,13 @@ public class HkpKeyserver extends Keyserver {
                 throw new HttpError(response.code(), responseBody);
             }
         } catch (IOException e) {
+            // http errors are not counted, keyservers answer 404 if nothing was found
+            QUERY_ERRORS.increment();
             Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
             throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
                     (proxy == Proxy.NO_PROXY ? "" : " Using proxy " + proxy));
+        } finally {
+            QUERY_LATENCY.recordSince(startNanos);
         }
     }
 
@@ -400,6 +413,7 @@ public class HkpKeyserver extends Keyserver {
 
     @Override
     public void add(String armoredKey) throws AddKeyException {
+        long startNanos = System.nanoTime();
         try {
             String path = "/pks/add";
             String params;
@@ -428,12 +442,16 @@ public class HkpKeyserver extends Keyserver {
             Log.d(Constants.TAG, "answer: " + response.body().string());
 
             if (response.code() != 200) {
+                ADD_ERRORS.increment();
                 throw new AddKeyException();
             }
 
         } catch (IOException e) {
+            ADD_ERRORS.increment();
             Log.e(Constants.TAG, "IOException", e);
             throw new AddKeyException();
+        } finally {
+            ADD_LATENCY.recordSince(startNanos);
         }
     }
 
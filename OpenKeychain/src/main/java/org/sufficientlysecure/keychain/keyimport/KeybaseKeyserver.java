@@ -25,6 +25,9 @@ import com.textuality.keybase.lib.User;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Counter;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Histogram;
 import org.sufficientlysecure.keychain.util.OkHttpKeybaseClient;
 
 import java.net.Proxy;
@@ -34,6 +37,12 @@ import java.util.List;
 public class KeybaseKeyserver extends Keyserver {
     public static final String ORIGIN = "keybase:keybase.io";
 
+    private static final Histogram SEARCH_LATENCY =
+            MetricsRegistry.getInstance().histogram("keyserver.keybase.search");
+    private static final Histogram GET_LATENCY =
+            MetricsRegistry.getInstance().histogram("keyserver.keybase.get");
+    private static final Counter ERRORS = MetricsRegistry.getInstance().counter("keyserver.keybase.error");
+
     Proxy mProxy;
 
     public KeybaseKeyserver(Proxy proxy) {
@@ -53,6 +62,7 @@ public class KeybaseKeyserver extends Keyserver {
             throw new QueryTooShortException();
         }
 
+        long startNanos = System.nanoTime();
         try {
             KeybaseQuery keybaseQuery = new KeybaseQuery(new OkHttpKeybaseClient());
             keybaseQuery.setProxy(mProxy);
@@ -61,8 +71,11 @@ public class KeybaseKeyserver extends Keyserver {
                 results.add(makeEntry(match, query));
             }
         } catch (KeybaseException e) {
+            ERRORS.increment();
             Log.e(Constants.TAG, "keybase result parsing error", e);
             throw new QueryFailedException("Unexpected structure in keybase search result: " + e.getMessage());
+        } finally {
+            SEARCH_LATENCY.recordSince(startNanos);
         }
 
         return results;
@@ -108,12 +121,16 @@ public class KeybaseKeyserver extends Keyserver {
 
     @Override
     public String get(String id) throws QueryFailedException {
+        long startNanos = System.nanoTime();
         try {
             KeybaseQuery keybaseQuery = new KeybaseQuery(new OkHttpKeybaseClient());
             keybaseQuery.setProxy(mProxy);
             return User.keyForUsername(keybaseQuery, id);
         } catch (KeybaseException e) {
+            ERRORS.increment();
             throw new QueryFailedException(e.getMessage());
+        } finally {
+            GET_LATENCY.recordSince(startNanos);
         }
     }
 
@@ -18,16 +18,25 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 /** This class is a parcelable representation of either a keyring as raw data,
  * or a (unique) reference to one as a fingerprint, keyid, or keybase name.
+ *
+ * Instead of the raw data itself, it may also hold the location of the raw data
+ * in a file, which is read only when the keyring is actually imported.
  */
 public class ParcelableKeyRing implements Parcelable {
 
     public final byte[] mBytes;
 
+    // location of the raw data in a file, used instead of mBytes
+    public final Uri mSourceUri;
+    public final long mSourceOffset;
+    public final int mSourceLength;
+
     // dual role!
     public final String mExpectedFingerprint;
     public final String mKeyIdHex;
@@ -48,6 +57,9 @@ public class ParcelableKeyRing implements Parcelable {
         mKeyIdHex = null;
         mKeybaseName = null;
         mFbUsername = null;
+        mSourceUri = null;
+        mSourceOffset = 0;
+        mSourceLength = 0;
     }
 
     public ParcelableKeyRing(String expectedFingerprint, String keyIdHex) {
@@ -56,6 +68,9 @@ public class ParcelableKeyRing implements Parcelable {
         mKeyIdHex = keyIdHex;
         mKeybaseName = null;
         mFbUsername = null;
+        mSourceUri = null;
+        mSourceOffset = 0;
+        mSourceLength = 0;
     }
 
     public ParcelableKeyRing(String expectedFingerprint, String keyIdHex, String keybaseName,
@@ -65,6 +80,25 @@ public class ParcelableKeyRing implements Parcelable {
         mKeyIdHex = keyIdHex;
         mKeybaseName = keybaseName;
         mFbUsername = fbUsername;
+        mSourceUri = null;
+        mSourceOffset = 0;
+        mSourceLength = 0;
+    }
+
+    /**
+     * Refers to the raw data of a keyring, which is found at the given offset of a file. The
+     * expected fingerprint is the one of the keyring found there at preview time.
+     */
+    public ParcelableKeyRing(Uri sourceUri, long sourceOffset, int sourceLength,
+            String expectedFingerprint) {
+        mBytes = null;
+        mExpectedFingerprint = expectedFingerprint;
+        mKeyIdHex = null;
+        mKeybaseName = null;
+        mFbUsername = null;
+        mSourceUri = sourceUri;
+        mSourceOffset = sourceOffset;
+        mSourceLength = sourceLength;
     }
 
     private ParcelableKeyRing(Parcel source) {
@@ -74,6 +108,14 @@ public class ParcelableKeyRing implements Parcelable {
         mKeyIdHex = source.readString();
         mKeybaseName = source.readString();
         mFbUsername = source.readString();
+        mSourceUri = source.readParcelable(Uri.class.getClassLoader());
+        mSourceOffset = source.readLong();
+        mSourceLength = source.readInt();
+    }
+
+    /** Returns true if this object holds raw data, either directly or as a location in a file. */
+    public boolean hasKeyData() {
+        return mBytes != null || mSourceUri != null;
     }
 
     public void writeToParcel(Parcel dest, int flags) {
@@ -82,6 +124,9 @@ public class ParcelableKeyRing implements Parcelable {
         dest.writeString(mKeyIdHex);
         dest.writeString(mKeybaseName);
         dest.writeString(mFbUsername);
+        dest.writeParcelable(mSourceUri, flags);
+        dest.writeLong(mSourceOffset);
+        dest.writeInt(mSourceLength);
     }
 
     public static final Creator<ParcelableKeyRing> CREATOR = new Creator<ParcelableKeyRing>() {
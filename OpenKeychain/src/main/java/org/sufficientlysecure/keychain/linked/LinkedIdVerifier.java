@@ -0,0 +1,202 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.linked;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.linked.LinkedTokenResource.CacheLifetime;
+import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.provider.KeychainContract.LinkedIdVerifications;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Verifies linked identities concurrently, and caches the results in the database for as long
+ * as the fetched resources may be cached.
+ * <p/>
+ * Each resource is fetched on its own thread, so verifying all linked identities of a key
+ * takes about as long as the slowest one instead of the sum of all. A request for a resource
+ * which is already being verified shares the running verification. Results are only cached
+ * if the resource could be fetched, so network errors are retried the next time.
+ */
+public class LinkedIdVerifier {
+
+    private static final int THREAD_COUNT = 4;
+
+    private static LinkedIdVerifier sInstance;
+
+    private final Context mContext;
+    private final ThreadPoolExecutor mExecutor;
+    private final HashMap<String, Future<LinkedVerifyResult>> mRunning = new HashMap<>();
+
+    public static synchronized LinkedIdVerifier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LinkedIdVerifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    LinkedIdVerifier(Context context) {
+        mContext = context;
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "linked-id-verifier");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // don't keep idle threads around between verifications
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts verifying a linked identity in the background.
+     *
+     * @param useCache false to fetch the resource again even if there is a cached result,
+     *                 e.g. when the user retries
+     */
+    public Future<LinkedVerifyResult> submit(final long masterKeyId, final byte[] fingerprint,
+            final LinkedTokenResource resource, final boolean useCache) {
+        final String key = masterKeyId + " " + resource.toUri() + " " + useCache;
+
+        synchronized (mRunning) {
+            Future<LinkedVerifyResult> running = mRunning.get(key);
+            if (running != null) {
+                return running;
+            }
+
+            FutureTask<LinkedVerifyResult> task = new FutureTask<>(new Callable<LinkedVerifyResult>() {
+                @Override
+                public LinkedVerifyResult call() {
+                    try {
+                        if (useCache) {
+                            LinkedVerifyResult cached = getCachedResult(masterKeyId, resource);
+                            if (cached != null) {
+                                return cached;
+                            }
+                        }
+                        return verifyAndCache(masterKeyId, fingerprint, resource);
+                    } finally {
+                        synchronized (mRunning) {
+                            mRunning.remove(key);
+                        }
+                    }
+                }
+            });
+            mRunning.put(key, task);
+            mExecutor.execute(task);
+            return task;
+        }
+    }
+
+    /**
+     * Verifies all given linked identities of a key concurrently, and waits for the results.
+     * Must not be called on the ui thread.
+     *
+     * @return results in the order of the resources
+     */
+    public List<LinkedVerifyResult> verifyAll(long masterKeyId, byte[] fingerprint,
+            List<LinkedTokenResource> resources, boolean useCache) throws InterruptedException {
+        ArrayList<Future<LinkedVerifyResult>> futures = new ArrayList<>(resources.size());
+        for (LinkedTokenResource resource : resources) {
+            futures.add(submit(masterKeyId, fingerprint, resource, useCache));
+        }
+
+        ArrayList<LinkedVerifyResult> results = new ArrayList<>(resources.size());
+        for (Future<LinkedVerifyResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // verify() handles all expected errors itself
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the cached result for a linked identity, or null if there is none which is
+     * still valid. This queries the database, so it must not be called on the ui thread.
+     */
+    public LinkedVerifyResult getCachedResult(long masterKeyId, LinkedTokenResource resource) {
+        Cursor cursor = mContext.getContentResolver().query(
+                LinkedIdVerifications.buildByMasterKeyIdUri(masterKeyId),
+                new String[] { LinkedIdVerifications.VERIFIED },
+                LinkedIdVerifications.URI + " = ? AND " + LinkedIdVerifications.EXPIRY + " > ?",
+                new String[] { resource.toUri().toString(), Long.toString(System.currentTimeMillis()) },
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_LV, 0);
+            if (cursor.getInt(0) != 0) {
+                log.add(LogType.MSG_LV_CACHED_OK, 1);
+                return new LinkedVerifyResult(LinkedVerifyResult.RESULT_OK, log);
+            } else {
+                log.add(LogType.MSG_LV_CACHED_ERROR, 1);
+                return new LinkedVerifyResult(LinkedVerifyResult.RESULT_ERROR, log);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private LinkedVerifyResult verifyAndCache(long masterKeyId, byte[] fingerprint,
+            LinkedTokenResource resource) {
+        CacheLifetime lifetime = new CacheLifetime();
+        LinkedVerifyResult result = resource.verify(mContext, fingerprint, lifetime);
+
+        long lifetimeMillis = lifetime.getMillis();
+        Log.d(Constants.TAG, "LinkedIdVerifier: " + resource.toUri() + " verified: " + result.success()
+                + ", cached for " + lifetimeMillis + "ms");
+        if (lifetimeMillis > 0) {
+            ContentValues values = new ContentValues();
+            values.put(LinkedIdVerifications.MASTER_KEY_ID, masterKeyId);
+            values.put(LinkedIdVerifications.URI, resource.toUri().toString());
+            values.put(LinkedIdVerifications.VERIFIED, result.success() ? 1 : 0);
+            values.put(LinkedIdVerifications.EXPIRY, System.currentTimeMillis() + lifetimeMillis);
+            mContext.getContentResolver().insert(LinkedIdVerifications.CONTENT_URI, values);
+        }
+
+        return result;
+    }
+
+}
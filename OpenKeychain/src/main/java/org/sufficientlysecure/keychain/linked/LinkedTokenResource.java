@@ -2,6 +2,7 @@ package org.sufficientlysecure.keychain.linked;
 
 import android.content.Context;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -26,10 +27,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -170,6 +175,14 @@ public abstract class LinkedTokenResource extends LinkedResource {
     }
 
     public LinkedVerifyResult verify(Context context, byte[] fingerprint) {
+        return verify(context, fingerprint, new CacheLifetime());
+    }
+
+    /**
+     * Verifies this resource, and limits the lifetime to how long the fetched data may be
+     * cached. If the resource could not be fetched, the lifetime is limited to zero.
+     */
+    public LinkedVerifyResult verify(Context context, byte[] fingerprint, CacheLifetime lifetime) {
 
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_LV, 0);
@@ -177,7 +190,7 @@ public abstract class LinkedTokenResource extends LinkedResource {
         // Try to fetch resource. Logs for itself
         String res = null;
         try {
-            res = fetchResource(context, log, 1);
+            res = fetchResource(context, log, 1, lifetime);
         } catch (HttpStatusException e) {
             // log verbose output to logcat
             Log.e(Constants.TAG, "http error (" + e.getStatus() + "): " + e.getReason());
@@ -194,6 +207,7 @@ public abstract class LinkedTokenResource extends LinkedResource {
 
         if (res == null) {
             // if this is null, an error was recorded in fetchResource above
+            lifetime.limit(0);
             return new LinkedVerifyResult(LinkedVerifyResult.RESULT_ERROR, log);
         }
 
@@ -203,8 +217,8 @@ public abstract class LinkedTokenResource extends LinkedResource {
 
     }
 
-    protected abstract String fetchResource (Context context, OperationLog log, int indent)
-            throws HttpStatusException, IOException, JSONException;
+    protected abstract String fetchResource (Context context, OperationLog log, int indent,
+            CacheLifetime lifetime) throws HttpStatusException, IOException, JSONException;
 
     protected Matcher matchResource (OperationLog log, int indent, String res) {
         return magicPattern.matcher(res);
@@ -241,7 +255,14 @@ public abstract class LinkedTokenResource extends LinkedResource {
 
     @SuppressWarnings("deprecation") // HttpRequestBase is deprecated
     public static String getResponseBody(Context context, HttpRequestBase request, String[] pins)
-        throws IOException, HttpStatusException {
+            throws IOException, HttpStatusException {
+        return getResponseBody(context, request, pins, null);
+    }
+
+    /** Like the above, and limits the lifetime by the cache headers of the response. */
+    @SuppressWarnings("deprecation") // HttpRequestBase is deprecated
+    public static String getResponseBody(Context context, HttpRequestBase request, String[] pins,
+            CacheLifetime lifetime) throws IOException, HttpStatusException {
         StringBuilder sb = new StringBuilder();
 
         request.setHeader("User-Agent", "Open Keychain");
@@ -262,6 +283,12 @@ public abstract class LinkedTokenResource extends LinkedResource {
             throw new HttpStatusException(statusCode, reason);
         }
 
+        if (lifetime != null) {
+            lifetime.limit(getHttpCacheLifetime(getHeaderValue(response, "Cache-Control"),
+                    getHeaderValue(response, "Expires"), getHeaderValue(response, "Date"),
+                    System.currentTimeMillis()));
+        }
+
         HttpEntity entity = response.getEntity();
         InputStream inputStream = entity.getContent();
 
@@ -275,6 +302,85 @@ public abstract class LinkedTokenResource extends LinkedResource {
         return sb.toString();
     }
 
+    @SuppressWarnings("deprecation") // HttpResponse is deprecated
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Returns how long an http response may be cached in milliseconds, from its Cache-Control
+     * header, or else from its Expires and Date headers. Returns -1 if there are none of these.
+     */
+    static long getHttpCacheLifetime(String cacheControl, String expires, String date, long now) {
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+                directive = directive.trim();
+                if ("no-store".equals(directive) || "no-cache".equals(directive)) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        long seconds = Long.parseLong(directive.substring("max-age=".length()).trim());
+                        maxAge = Math.max(0, Math.min(seconds, CacheLifetime.MAX_MILLIS / 1000)) * 1000;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+            if (maxAge >= 0) {
+                return maxAge;
+            }
+        }
+
+        if (expires != null) {
+            Long expiresTime = parseHttpDate(expires);
+            if (expiresTime == null) {
+                // invalid dates, such as "0", mean already expired
+                return 0;
+            }
+            Long dateTime = date != null ? parseHttpDate(date) : null;
+            return Math.max(0, expiresTime - (dateTime != null ? dateTime : now));
+        }
+
+        return -1;
+    }
+
+    private static Long parseHttpDate(String value) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Collects how long fetched data may be cached, from the cache headers of http responses or
+     * the ttl of dns records. The shortest of all limits applies.
+     */
+    public static class CacheLifetime {
+        /** used if no response says anything about caching */
+        public static final long DEFAULT_MILLIS = 60 * 60 * 1000;
+        /** resources are fetched again after a day, whatever the responses say */
+        public static final long MAX_MILLIS = 24 * 60 * 60 * 1000;
+
+        private long mMillis = -1;
+
+        /** Limits the lifetime. Negative values mean nothing is known, and are ignored. */
+        public void limit(long millis) {
+            if (millis >= 0) {
+                mMillis = mMillis < 0 ? millis : Math.min(mMillis, millis);
+            }
+        }
+
+        public long getMillis() {
+            return mMillis < 0 ? DEFAULT_MILLIS : Math.min(mMillis, MAX_MILLIS);
+        }
+    }
+
     public static class HttpStatusException extends Throwable {
 
         private final int mStatusCode;
@@ -92,11 +92,13 @@ public class DnsResource extends LinkedTokenResource {
     }
 
     @Override
-    protected String fetchResource (Context context, OperationLog log, int indent) {
+    protected String fetchResource (Context context, OperationLog log, int indent,
+            CacheLifetime lifetime) {
 
         Client c = new Client();
         DNSMessage msg = c.query(new Question(mFqdn, mType, mClass));
         Record aw = msg.getAnswers()[0];
+        lifetime.limit(aw.getTtl() * 1000);
         TXT txt = (TXT) aw.getPayload();
         return txt.getText().toLowerCase();
 
@@ -49,14 +49,14 @@ public class GithubResource extends LinkedTokenResource {
 
     @SuppressWarnings("deprecation") // HttpGet is deprecated
     @Override
-    protected String fetchResource (Context context, OperationLog log, int indent)
-            throws HttpStatusException, IOException, JSONException {
+    protected String fetchResource (Context context, OperationLog log, int indent,
+            CacheLifetime lifetime) throws HttpStatusException, IOException, JSONException {
 
         log.add(LogType.MSG_LV_FETCH, indent, mSubUri.toString());
         indent += 1;
 
         HttpGet httpGet = new HttpGet("https://api.github.com/gists/" + mGistId);
-        String response = getResponseBody(context, httpGet);
+        String response = getResponseBody(context, httpGet, null, lifetime);
 
         JSONObject obj = new JSONObject(response);
 
@@ -73,8 +73,8 @@ public class TwitterResource extends LinkedTokenResource {
 
     @SuppressWarnings("deprecation")
     @Override
-    protected String fetchResource(Context context, OperationLog log, int indent)
-            throws IOException, HttpStatusException, JSONException {
+    protected String fetchResource(Context context, OperationLog log, int indent,
+            CacheLifetime lifetime) throws IOException, HttpStatusException, JSONException {
 
         String authToken;
         try {
@@ -95,7 +95,7 @@ public class TwitterResource extends LinkedTokenResource {
         httpGet.setHeader("Content-Type", "application/json");
 
         try {
-            String response = getResponseBody(context, httpGet, CERT_PINS);
+            String response = getResponseBody(context, httpGet, CERT_PINS, lifetime);
             JSONObject obj = new JSONObject(response);
             JSONObject user = obj.getJSONObject("user");
             if (!mHandle.equalsIgnoreCase(user.getString("screen_name"))) {
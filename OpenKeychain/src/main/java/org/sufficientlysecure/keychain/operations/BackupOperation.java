@@ -60,6 +60,8 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 
 
 /**
@@ -120,8 +122,14 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                 DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
                         mContext.getContentResolver().openOutputStream(backupOutputUri)));
 
-                boolean backupSuccess = exportKeysToStream(
-                        log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
+                boolean backupSuccess;
+                Span span = beginSpan(Category.DB_READ, "exportKeysToStream");
+                try {
+                    backupSuccess = exportKeysToStream(
+                            log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
+                } finally {
+                    span.end();
+                }
 
                 exportedDataSize = outStream.size();
 
@@ -159,7 +167,13 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             OutputStream outStream = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
             outStream = new BufferedOutputStream(outStream);
 
-            PgpSignEncryptResult encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
+            PgpSignEncryptResult encryptResult;
+            Span span = beginSpan(Category.CRYPTO, "encryptBackup");
+            try {
+                encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
+            } finally {
+                span.end();
+            }
             if (!encryptResult.success()) {
                 log.addByMerge(encryptResult, 1);
                 // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
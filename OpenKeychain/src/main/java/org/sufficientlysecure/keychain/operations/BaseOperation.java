@@ -30,6 +30,9 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.OperationTrace;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -42,6 +45,9 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
 
     final public ProviderHelper mProviderHelper;
 
+    /** Shared with the ProviderHelper, and with operations nested into this one through it. */
+    final public OperationTrace mTrace;
+
     /** An abstract base class for all *Operation classes. It provides a number
      * of common methods for progress, cancellation and passphrase cache handling.
      *
@@ -69,6 +75,7 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
         this.mProgressable = progressable;
         this.mProviderHelper = providerHelper;
         mCancelled = null;
+        mTrace = getOrCreateTrace(providerHelper);
     }
 
     public BaseOperation(Context context, ProviderHelper providerHelper,
@@ -77,6 +84,23 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
         mProgressable = progressable;
         mProviderHelper = providerHelper;
         mCancelled = cancelled;
+        mTrace = getOrCreateTrace(providerHelper);
+    }
+
+    /**
+     * Returns the trace of the ProviderHelper, so nested operations add to the same trace. This
+     * requires a ProviderHelper per operation, as created in KeychainService and OpenPgpService.
+     */
+    private static OperationTrace getOrCreateTrace(ProviderHelper providerHelper) {
+        if (providerHelper == null) {
+            return new OperationTrace();
+        }
+        OperationTrace trace = providerHelper.getTrace();
+        if (trace == null) {
+            trace = new OperationTrace();
+            providerHelper.setTrace(trace);
+        }
+        return trace;
     }
 
     @NonNull
@@ -100,6 +124,11 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
         }
     }
 
+    /** Starts a span in the trace of this operation, which must be ended in a finally block. */
+    protected Span beginSpan(Category category, String name) {
+        return mTrace.begin(category, name);
+    }
+
     protected boolean checkCancelled() {
         return mCancelled != null && mCancelled.get();
     }
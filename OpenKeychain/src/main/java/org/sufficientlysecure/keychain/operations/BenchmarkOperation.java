@@ -20,14 +20,38 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import android.content.Context;
+import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.bcpg.S2K;
 import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
@@ -35,87 +59,334 @@ import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBu
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
-import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult.Measurement;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult.Step;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
-import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.DataCipherFactory;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
-import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.KeyType;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.Workload;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
-import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.Preferences;
 
 
+/**
+ * Measures the combinations of key type, workload, compression, payload size and thread count
+ * given in a BenchmarkInputParcel.
+ * <p/>
+ * Keys for asymmetric measurements are created without passphrase at the start, so unlocking
+ * them is not part of the measurement. They are only kept in memory, and never saved to the
+ * database, so they don't show up in the key list and nothing is left over if the benchmark
+ * is killed. For each combination,
+ * both steps of the workload are warmed up and then measured separately, with all threads
+ * running the same step concurrently. Payloads are random, so compression only shows its
+ * cost here, not its gain.
+ */
 public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
+    /** Size of the data encrypted in each round of the data cipher benchmark */
+    private static final int CIPHER_BENCH_SIZE = 256 * 1024;
+    private static final int CIPHER_BENCH_ROUNDS = 5;
+
+    private static final String SYMMETRIC_PASSPHRASE = "a";
+    private static final String BENCHMARK_USER_ID = "OpenKeychain Benchmark <benchmark@openkeychain.invalid>";
+
+    /** Benchmark keys of the current run, by master key id */
+    private final ConcurrentHashMap<Long, CanonicalizedSecretKeyRing> mSecretRings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CanonicalizedPublicKeyRing> mPublicRings = new ConcurrentHashMap<>();
+
     public BenchmarkOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
     }
 
+    public BenchmarkOperation(Context context, ProviderHelper providerHelper, Progressable
+            progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
     @NonNull
     @Override
-    public BenchmarkResult execute(BenchmarkInputParcel consolidateInputParcel,
-                                     CryptoInputParcel cryptoInputParcel) {
+    public BenchmarkResult execute(BenchmarkInputParcel input, CryptoInputParcel cryptoInputParcel) {
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_BENCH, 0);
 
-        // random data
-        byte[] buf = new byte[1024*1024*10];
-        new Random().nextBytes(buf);
-
-        Passphrase passphrase = new Passphrase("a");
-
-        int numRepeats = 5;
-        long totalTime = 0;
-
-        // encrypt
-        SignEncryptResult encryptResult;
-        int i = 0;
-        do {
-            SignEncryptOperation op =
-                    new SignEncryptOperation(mContext, mProviderHelper,
-                            new ProgressScaler(mProgressable, i*(50/numRepeats), (i+1)*(50/numRepeats), 100), mCancelled);
-            SignEncryptParcel input = new SignEncryptParcel();
-            input.setSymmetricPassphrase(passphrase);
-            input.setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
-            input.setBytes(buf);
-            encryptResult = op.execute(input, new CryptoInputParcel());
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BENCH_ENC_TIME, 2,
-                    String.format("%.2f", encryptResult.getResults().get(0).mOperationTime / 1000.0));
-            totalTime += encryptResult.getResults().get(0).mOperationTime;
-        } while (++i < numRepeats);
-
-        long encryptionTime = totalTime / numRepeats;
-        totalTime = 0;
-
-        // decrypt
-        i = 0;
-        do {
-            DecryptVerifyResult decryptResult;
-            PgpDecryptVerifyOperation op =
-                    new PgpDecryptVerifyOperation(mContext, mProviderHelper,
-                            new ProgressScaler(mProgressable, 50 +i*(50/numRepeats), 50 +(i+1)*(50/numRepeats), 100));
-            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel(encryptResult.getResultBytes());
-            input.setAllowSymmetricDecryption(true);
-            decryptResult = op.execute(input, new CryptoInputParcel(passphrase));
-            log.add(decryptResult, 1);
-            log.add(LogType.MSG_BENCH_DEC_TIME, 2, String.format("%.2f", decryptResult.mOperationTime / 1000.0));
-            totalTime += decryptResult.mOperationTime;
-        } while (++i < numRepeats);
-
-        long decryptionTime = totalTime / numRepeats;
-        totalTime = 0;
-
-        int iterationsFor100ms;
+        // use the fastest data cipher for the following measurements, and from now on
+        String dataCipherProvider = benchmarkDataCipherProviders(log, 1);
+        DataCipherFactory.setDataCipherProvider(dataCipherProvider);
+        Preferences.getPreferences(mContext).setDataCipherProvider(dataCipherProvider);
+
+        ArrayList<Measurement> measurements = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(input.getMaxThreadCount());
+        try {
+            int cellCount = input.getCellCount();
+            int cellIndex = 0;
+            for (KeyType keyType : input.mKeyTypes) {
+                Long masterKeyId = null;
+                if (keyType != KeyType.SYMMETRIC) {
+                    masterKeyId = createBenchmarkKey(keyType, log);
+                    if (masterKeyId == null) {
+                        return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+                    }
+                }
+
+                for (Workload workload : input.mWorkloads) {
+                    // there are no signatures without a key
+                    if (keyType == KeyType.SYMMETRIC && workload == Workload.SIGN_VERIFY) {
+                        continue;
+                    }
+                    for (boolean compression : input.mCompression) {
+                        for (int payloadSize : input.mPayloadSizes) {
+                            Cell cell = new Cell(keyType, masterKeyId, workload, compression, payloadSize);
+                            for (int threads : input.mThreadCounts) {
+                                if (checkCancelled()) {
+                                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                                    return new BenchmarkResult(BenchmarkResult.RESULT_CANCELLED, log,
+                                            measurements, -1);
+                                }
+                                updateProgress(cellIndex++, cellCount);
+
+                                if (!measureCell(cell, threads, input, executor, measurements, log)) {
+                                    return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "interrupted during benchmark", e);
+            log.add(LogType.MSG_INTERNAL_ERROR, 0);
+            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        } finally {
+            executor.shutdownNow();
+            mSecretRings.clear();
+            mPublicRings.clear();
+        }
+
+        int s2kIterations = -1;
+        if (input.mBenchmarkS2k) {
+            s2kIterations = benchmarkS2k(log);
+            if (s2kIterations < 0) {
+                return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+            }
+        }
+
+        log.add(LogType.MSG_BENCH_SUCCESS, 0);
+        return new BenchmarkResult(BenchmarkResult.RESULT_OK, log, measurements, s2kIterations);
+    }
+
+    /** Creates a key without passphrase and keeps it in memory, and returns its master key id. */
+    private Long createBenchmarkKey(KeyType keyType, OperationLog log) {
+        log.add(LogType.MSG_BENCH_KEY_CREATE, 1, keyType.name());
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        switch (keyType) {
+            case RSA_2048:
+            case RSA_4096: {
+                int keySize = keyType == KeyType.RSA_2048 ? 2048 : 4096;
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.RSA, keySize, null,
+                        KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.RSA, keySize, null,
+                        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                break;
+            }
+            case ECC_P256: {
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256,
+                        KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256,
+                        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                break;
+            }
+            default:
+                throw new AssertionError("no key for " + keyType);
+        }
+        parcel.mAddUserIds.add(BENCHMARK_USER_ID);
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult createResult = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        if (!createResult.success()) {
+            log.add(createResult, 2);
+            log.add(LogType.MSG_BENCH_ERROR_KEY, 1);
+            return null;
+        }
+        UncachedKeyRing ring = createResult.getRing();
+        CanonicalizedSecretKeyRing secretRing = (CanonicalizedSecretKeyRing) ring.canonicalize(log, 2);
+        if (secretRing == null) {
+            log.add(LogType.MSG_BENCH_ERROR_KEY, 1);
+            return null;
+        }
+        try {
+            mPublicRings.put(ring.getMasterKeyId(),
+                    new CanonicalizedPublicKeyRing(ring.extractPublicKeyRing().getEncoded(), 0));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error extracting public benchmark key", e);
+            log.add(LogType.MSG_BENCH_ERROR_KEY, 1);
+            return null;
+        }
+        mSecretRings.put(ring.getMasterKeyId(), secretRing);
+        return ring.getMasterKeyId();
+    }
+
+    /**
+     * Measures both steps of a cell's workload with the given number of threads.
+     *
+     * @return false if a step failed, which is logged
+     */
+    private boolean measureCell(Cell cell, int threads, BenchmarkInputParcel input,
+            ExecutorService executor, ArrayList<Measurement> measurements, OperationLog log)
+            throws InterruptedException {
+        boolean encrypt = cell.mWorkload == Workload.ENCRYPT_DECRYPT;
+        Step[] steps = encrypt
+                ? new Step[] { Step.ENCRYPT, Step.DECRYPT }
+                : new Step[] { Step.SIGN, Step.VERIFY };
+
+        try {
+            // the second step works on the output of the first
+            byte[] output = runStep(cell, steps[0], cell.mPayload);
+            for (Step step : steps) {
+                byte[] stepInput = step == steps[0] ? cell.mPayload : output;
+
+                runConcurrently(executor, threads, cell, step, stepInput, input.mWarmupRounds);
+                long startNanos = System.nanoTime();
+                long[] samples = runConcurrently(executor, threads, cell, step, stepInput, input.mRounds);
+                long wallNanos = System.nanoTime() - startNanos;
+
+                Measurement measurement = new Measurement(step, cell.mKeyType, cell.mCompression,
+                        cell.mPayload.length, threads, samples, wallNanos);
+                measurements.add(measurement);
+                log.add(LogType.MSG_BENCH_RESULT, 1, measurement.toString(),
+                        String.format("%.2f", measurement.mP50Nanos / 1000000.0),
+                        String.format("%.2f", measurement.mP95Nanos / 1000000.0),
+                        String.format("%.2f", measurement.mP99Nanos / 1000000.0),
+                        String.format("%.2f", measurement.mMegabytesPerSecond));
+            }
+            return true;
+        } catch (StepFailedException e) {
+            log.add(e.mResult, 2);
+            log.add(LogType.MSG_BENCH_ERROR_STEP, 1, e.mStep.name().toLowerCase());
+            return false;
+        }
+    }
+
+    /**
+     * Runs a step the given number of rounds on each of the given number of threads at once.
+     *
+     * @return the time of each run, in nanoseconds
+     */
+    private long[] runConcurrently(ExecutorService executor, int threads, final Cell cell,
+            final Step step, final byte[] stepInput, final int rounds)
+            throws StepFailedException, InterruptedException {
+        ArrayList<Callable<long[]>> tasks = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            tasks.add(new Callable<long[]>() {
+                @Override
+                public long[] call() throws StepFailedException {
+                    long[] samples = new long[rounds];
+                    for (int round = 0; round < rounds; round++) {
+                        long startNanos = System.nanoTime();
+                        runStep(cell, step, stepInput);
+                        samples[round] = System.nanoTime() - startNanos;
+                    }
+                    return samples;
+                }
+            });
+        }
+
+        long[] samples = new long[threads * rounds];
+        int offset = 0;
+        for (Future<long[]> future : executor.invokeAll(tasks)) {
+            try {
+                System.arraycopy(future.get(), 0, samples, offset, rounds);
+                offset += rounds;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof StepFailedException) {
+                    throw (StepFailedException) e.getCause();
+                }
+                // runStep() handles all expected errors itself
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return samples;
+    }
+
+    /** Runs a step once on the given input, and returns its output. */
+    private byte[] runStep(Cell cell, Step step, byte[] stepInput) throws StepFailedException {
+        // ProviderHelper accumulates a log, so each run gets its own
+        ProviderHelper providerHelper = new BenchmarkProviderHelper(mContext, mSecretRings, mPublicRings);
+        InputData inputData = new InputData(new ByteArrayInputStream(stepInput), stepInput.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(stepInput.length + 4096);
+        boolean symmetric = cell.mMasterKeyId == null;
+
+        OperationResult result;
+        switch (step) {
+            case ENCRYPT:
+            case SIGN: {
+                PgpSignEncryptInputParcel signEncryptInput = new PgpSignEncryptInputParcel();
+                signEncryptInput.setCompressionAlgorithm(cell.mCompression
+                        ? PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM
+                        : CompressionAlgorithmTags.UNCOMPRESSED);
+                if (step == Step.SIGN) {
+                    signEncryptInput.setSignatureMasterKeyId(cell.mMasterKeyId);
+                    signEncryptInput.setSignatureSubKeyId(cell.mMasterKeyId);
+                } else {
+                    signEncryptInput.setSymmetricEncryptionAlgorithm(
+                            OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+                    if (symmetric) {
+                        signEncryptInput.setSymmetricPassphrase(new Passphrase(SYMMETRIC_PASSPHRASE));
+                    } else {
+                        signEncryptInput.setEncryptionMasterKeyIds(new long[] { cell.mMasterKeyId });
+                    }
+                }
+                result = new PgpSignEncryptOperation(mContext, providerHelper, null).execute(
+                        signEncryptInput, new CryptoInputParcel(new Passphrase()), inputData, out);
+                break;
+            }
+            case DECRYPT:
+            case VERIFY: {
+                PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel();
+                decryptInput.setAllowSymmetricDecryption(symmetric);
+                Passphrase passphrase = symmetric ? new Passphrase(SYMMETRIC_PASSPHRASE) : new Passphrase();
+                result = new PgpDecryptVerifyOperation(mContext, providerHelper, null).execute(
+                        decryptInput, new CryptoInputParcel(passphrase), inputData, out);
+                break;
+            }
+            default:
+                throw new AssertionError("unhandled step " + step);
+        }
+
+        if (!result.success()) {
+            throw new StepFailedException(step, result);
+        }
+        return out.toByteArray();
+    }
+
+    /** Finds the SHA1 S2K iteration count which takes 100ms, or returns -1 on error. */
+    private int benchmarkS2k(OperationLog log) {
         try {
             PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
@@ -124,34 +395,185 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
                     "".toCharArray());
 
             byte[] iv = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+            long time = 0;
             int iterations = 0;
-            while (iterations < 255 && totalTime < 100) {
+            while (iterations < 255 && time < 100) {
                 iterations += 1;
 
                 S2K s2k = new S2K(HashAlgorithmTags.SHA1, iv, iterations);
-                totalTime = System.currentTimeMillis();
+                time = System.currentTimeMillis();
                 decryptorFactory.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_128, s2k);
-                totalTime = System.currentTimeMillis() -totalTime;
+                time = System.currentTimeMillis() - time;
 
                 if ((iterations % 10) == 0) {
-                    log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(totalTime));
+                    log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(time));
                 }
 
             }
-            iterationsFor100ms = iterations;
+
+            log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterations));
+            return iterations;
 
         } catch (PGPException e) {
             Log.e(Constants.TAG, "internal error during benchmark", e);
             log.add(LogType.MSG_INTERNAL_ERROR, 0);
-            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+            return -1;
         }
+    }
 
-        log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterationsFor100ms));
-        log.add(LogType.MSG_BENCH_ENC_TIME_AVG, 1, String.format("%.2f", encryptionTime/1000.0));
-        log.add(LogType.MSG_BENCH_DEC_TIME_AVG, 1, String.format("%.2f", decryptionTime/1000.0));
+    /** One combination of the matrix, except for the thread count. */
+    private static class Cell {
+        final KeyType mKeyType;
+        // null for symmetric encryption
+        final Long mMasterKeyId;
+        final Workload mWorkload;
+        final boolean mCompression;
+        final byte[] mPayload;
 
-        log.add(LogType.MSG_BENCH_SUCCESS, 0);
-        return new BenchmarkResult(BenchmarkResult.RESULT_OK, log);
+        Cell(KeyType keyType, Long masterKeyId, Workload workload, boolean compression, int payloadSize) {
+            mKeyType = keyType;
+            mMasterKeyId = masterKeyId;
+            mWorkload = workload;
+            mCompression = compression;
+            mPayload = new byte[payloadSize];
+            new Random().nextBytes(mPayload);
+        }
+    }
+
+    /**
+     * Looks up the benchmark keys in memory instead of the database. Other keys are
+     * never found, so a benchmark can't pick up any of the user's keys.
+     */
+    private static class BenchmarkProviderHelper extends ProviderHelper {
+        private final Map<Long, CanonicalizedSecretKeyRing> mSecretRings;
+        private final Map<Long, CanonicalizedPublicKeyRing> mPublicRings;
+
+        BenchmarkProviderHelper(Context context, Map<Long, CanonicalizedSecretKeyRing> secretRings,
+                Map<Long, CanonicalizedPublicKeyRing> publicRings) {
+            super(context);
+            mSecretRings = secretRings;
+            mPublicRings = publicRings;
+        }
+
+        @Override
+        public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
+            return getRing(mPublicRings, id);
+        }
+
+        @Override
+        public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
+            return getRing(mPublicRings, getMasterKeyId(queryUri));
+        }
+
+        @Override
+        public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
+            return getRing(mSecretRings, id);
+        }
+
+        @Override
+        public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(Uri queryUri) throws NotFoundException {
+            return getRing(mSecretRings, getMasterKeyId(queryUri));
+        }
+
+        @Override
+        public long getMasterKeyId(long subKeyId) throws NotFoundException {
+            for (CanonicalizedPublicKeyRing ring : mPublicRings.values()) {
+                if (ring.getPublicKey(subKeyId) != null) {
+                    return ring.getMasterKeyId();
+                }
+            }
+            throw new NotFoundException("Key not found!");
+        }
+
+        /** Handles the unified key ring uri, by master key id or by subkey id. */
+        private long getMasterKeyId(Uri queryUri) throws NotFoundException {
+            List<String> segments = queryUri.getPathSegments();
+            if (segments.size() == 4 && KeychainContract.PATH_FIND.equals(segments.get(1))
+                    && KeychainContract.PATH_BY_SUBKEY.equals(segments.get(2))) {
+                return getMasterKeyId(Long.parseLong(segments.get(3)));
+            }
+            if (segments.size() == 3 && KeychainContract.PATH_UNIFIED.equals(segments.get(2))) {
+                return Long.parseLong(segments.get(1));
+            }
+            throw new NotFoundException("Key not found!");
+        }
+
+        private static <T> T getRing(Map<Long, T> rings, long masterKeyId) throws NotFoundException {
+            T ring = rings.get(masterKeyId);
+            if (ring == null) {
+                throw new NotFoundException("Key not found!");
+            }
+            return ring;
+        }
+    }
+
+    private static class StepFailedException extends Exception {
+        final Step mStep;
+        final OperationResult mResult;
+
+        StepFailedException(Step step, OperationResult result) {
+            mStep = step;
+            mResult = result;
+        }
+    }
+
+    /**
+     * Measures the data cipher of all installed providers which offer it, and returns the
+     * name of the fastest one. Providers which don't produce the same output as Bouncy
+     * Castle are ignored, so the result is always safe to use with DataCipherFactory.
+     */
+    public static String benchmarkDataCipherProviders(OperationLog log, int indent) {
+        byte[] data = new byte[CIPHER_BENCH_SIZE];
+        new Random().nextBytes(data);
+        SecretKeySpec key = new SecretKeySpec(Arrays.copyOf(data, 32), "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+
+        byte[] expected;
+        try {
+            Cipher cipher = Cipher.getInstance(DataCipherFactory.DATA_CIPHER_TRANSFORMATION,
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+            expected = cipher.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            Log.e(Constants.TAG, "data cipher not available from bouncy castle", e);
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+
+        String fastestProvider = Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        long fastestTime = Long.MAX_VALUE;
+        for (Provider provider : Security.getProviders()) {
+            long time;
+            try {
+                Cipher cipher = Cipher.getInstance(DataCipherFactory.DATA_CIPHER_TRANSFORMATION, provider);
+
+                // the first round warms up, and checks the result
+                cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+                if (!Arrays.equals(expected, cipher.doFinal(data))) {
+                    log.add(LogType.MSG_BENCH_PROVIDER_MISMATCH, indent, provider.getName());
+                    continue;
+                }
+
+                time = System.nanoTime();
+                for (int i = 0; i < CIPHER_BENCH_ROUNDS; i++) {
+                    cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+                    cipher.doFinal(data);
+                }
+                time = (System.nanoTime() - time) / CIPHER_BENCH_ROUNDS;
+            } catch (GeneralSecurityException e) {
+                // provider doesn't offer this cipher
+                continue;
+            }
+
+            log.add(LogType.MSG_BENCH_PROVIDER_TIME, indent + 1, provider.getName(),
+                    String.format("%.2f", time / 1000000.0));
+            if (time < fastestTime) {
+                fastestTime = time;
+                fastestProvider = provider.getName();
+            }
+        }
+
+        log.add(LogType.MSG_BENCH_PROVIDER_SELECTED, indent, fastestProvider);
+        return fastestProvider;
     }
 
 }
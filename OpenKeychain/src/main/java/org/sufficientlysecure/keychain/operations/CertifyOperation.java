@@ -48,6 +48,8 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.NfcSignOperationsBuilder;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 /**
@@ -166,8 +168,14 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
                         mProviderHelper.getCanonicalizedPublicKeyRing(action.mMasterKeyId);
 
                 PgpCertifyOperation op = new PgpCertifyOperation();
-                PgpCertifyResult result = op.certify(certificationKey, publicRing,
-                        log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                PgpCertifyResult result;
+                Span span = beginSpan(Category.CRYPTO, "certify");
+                try {
+                    result = op.certify(certificationKey, publicRing,
+                            log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                } finally {
+                    span.end();
+                }
 
                 if (!result.success()) {
                     certifyError += 1;
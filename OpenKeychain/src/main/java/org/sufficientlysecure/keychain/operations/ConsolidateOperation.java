@@ -27,6 +27,8 @@ import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ConsolidateInputParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 
 public class ConsolidateOperation extends BaseOperation<ConsolidateInputParcel> {
 
@@ -40,9 +42,19 @@ public class ConsolidateOperation extends BaseOperation<ConsolidateInputParcel>
     public ConsolidateResult execute(ConsolidateInputParcel consolidateInputParcel,
                                      CryptoInputParcel cryptoInputParcel) {
         if (consolidateInputParcel.mConsolidateRecovery) {
-            return mProviderHelper.consolidateDatabaseStep2(mProgressable);
+            Span span = beginSpan(Category.DB_WRITE, "consolidateDatabaseStep2");
+            try {
+                return mProviderHelper.consolidateDatabaseStep2(mProgressable);
+            } finally {
+                span.end();
+            }
         } else {
-            return mProviderHelper.consolidateDatabaseStep1(mProgressable);
+            Span span = beginSpan(Category.DB_READ, "consolidateDatabaseStep1");
+            try {
+                return mProviderHelper.consolidateDatabaseStep1(mProgressable);
+            } finally {
+                span.end();
+            }
         }
     }
 }
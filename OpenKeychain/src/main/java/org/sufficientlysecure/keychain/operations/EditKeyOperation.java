@@ -45,6 +45,8 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 
 /**
  * An operation which implements a high level key edit operation.
@@ -97,7 +99,12 @@ public class EditKeyOperation extends BaseOperation<SaveKeyringParcel> {
                     CanonicalizedSecretKeyRing secRing =
                             mProviderHelper.getCanonicalizedSecretKeyRing(saveParcel.mMasterKeyId);
 
-                    modifyResult = keyOperations.modifySecretKeyRing(secRing, cryptoInput, saveParcel);
+                    Span span = beginSpan(Category.CRYPTO, "modifySecretKeyRing");
+                    try {
+                        modifyResult = keyOperations.modifySecretKeyRing(secRing, cryptoInput, saveParcel);
+                    } finally {
+                        span.end();
+                    }
                     if (modifyResult.isPending()) {
                         log.add(modifyResult, 1);
                         return new EditKeyResult(log, modifyResult);
@@ -109,7 +116,12 @@ public class EditKeyOperation extends BaseOperation<SaveKeyringParcel> {
                 }
             } else {
                 // otherwise, create new one
-                modifyResult = keyOperations.createSecretKeyRing(saveParcel);
+                Span span = beginSpan(Category.CRYPTO, "createSecretKeyRing");
+                try {
+                    modifyResult = keyOperations.createSecretKeyRing(saveParcel);
+                } finally {
+                    span.end();
+                }
             }
         }
 
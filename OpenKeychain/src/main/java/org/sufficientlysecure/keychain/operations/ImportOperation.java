@@ -19,7 +19,10 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
@@ -57,7 +60,10 @@ import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -176,7 +182,19 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                 // If there is already byte data, use that
                 if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
+                    key = decodeKeyRing(entry.mBytes);
+                }
+                // or read it from the file it was found in
+                else if (entry.mSourceUri != null) {
+                    key = decodeKeyRing(readSourceBytes(entry));
+                    // the file may have changed since the keyring was previewed
+                    if (key != null && entry.mExpectedFingerprint != null
+                            && !entry.mExpectedFingerprint.equalsIgnoreCase(
+                                    KeyFormattingUtils.convertFingerprintToHex(key.getFingerprint()))) {
+                        log.add(LogType.MSG_IMPORT_ERROR_SOURCE_CHANGED, 2);
+                        badKeys += 1;
+                        continue;
+                    }
                 }
                 // Otherwise, we need to fetch the data from a server first
                 else {
@@ -201,12 +219,12 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                             if (entry.mExpectedFingerprint != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
                                         entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
+                                data = fetchKeyRing(keyServer, "0x" + entry.mExpectedFingerprint);
                             } else {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex).getBytes();
+                                data = fetchKeyRing(keyServer, entry.mKeyIdHex);
                             }
-                            key = UncachedKeyRing.decodeFromData(data);
+                            key = decodeKeyRing(data);
                             if (key != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
                             } else {
@@ -227,8 +245,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                         try {
                             log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
+                            byte[] data = fetchKeyRing(keybaseServer, entry.mKeybaseName);
+                            UncachedKeyRing keybaseKey = decodeKeyRing(data);
 
                             if (keybaseKey != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
@@ -265,8 +283,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                         try {
                             log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
-                            byte[] data = facebookServer.get(entry.mFbUsername).getBytes();
-                            UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
+                            byte[] data = fetchKeyRing(facebookServer, entry.mFbUsername);
+                            UncachedKeyRing facebookKey = decodeKeyRing(data);
 
                             if (facebookKey != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
@@ -302,7 +320,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 }
 
                 // never import secret keys from keyserver!
-                if (entry.mBytes == null && key.isSecret()) {
+                if (!entry.hasKeyData() && key.isSecret()) {
                     log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
                     badKeys += 1;
                     continue;
@@ -336,7 +354,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                         }
                         importedMasterKeyIds.add(key.getMasterKeyId());
                     }
-                    if (entry.mBytes == null) {
+                    if (!entry.hasKeyData()) {
                         // synonymous to isDownloadFromKeyserver.
                         // If no byte data was supplied, import from keyserver took place
                         // this prevents file imports being noted as keyserver imports
@@ -421,6 +439,49 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 importedMasterKeyIdsArray);
     }
 
+    /** Fetches the raw data of a keyring from a keyserver. */
+    private byte[] fetchKeyRing(Keyserver keyserver, String query) throws Keyserver.QueryFailedException {
+        Span span = beginSpan(Category.NETWORK, keyserver.getClass().getSimpleName());
+        try {
+            return keyserver.get(query).getBytes();
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Decodes the raw data of a keyring. */
+    private UncachedKeyRing decodeKeyRing(byte[] data) throws PgpGeneralException, IOException {
+        Span span = beginSpan(Category.PGP_PARSE, "decodeKeyRing");
+        try {
+            return UncachedKeyRing.decodeFromData(data);
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Reads the raw data of a keyring from its location in the file it was found in. */
+    private byte[] readSourceBytes(ParcelableKeyRing entry) throws IOException {
+        InputStream in = mContext.getContentResolver().openInputStream(entry.mSourceUri);
+        if (in == null) {
+            throw new IOException("could not open " + entry.mSourceUri);
+        }
+        try {
+            long toSkip = entry.mSourceOffset;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new EOFException("source file is shorter than expected");
+                }
+                toSkip -= skipped;
+            }
+            byte[] bytes = new byte[entry.mSourceLength];
+            new DataInputStream(in).readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
     @NonNull
     @Override
     public ImportKeyResult execute(ImportKeyringParcel importInput, CryptoInputParcel cryptoInput) {
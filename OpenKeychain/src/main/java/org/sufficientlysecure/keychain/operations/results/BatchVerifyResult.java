@@ -0,0 +1,68 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import java.util.ArrayList;
+
+import android.os.Parcel;
+
+import org.openintents.openpgp.OpenPgpSignatureResult;
+
+public class BatchVerifyResult extends OperationResult {
+
+    // one entry per input item, in the same order. null if the item could not be processed
+    ArrayList<OpenPgpSignatureResult> mSignatureResults;
+
+    public long mOperationTime;
+
+    public BatchVerifyResult(int result, OperationLog log) {
+        super(result, log);
+    }
+
+    public BatchVerifyResult(int result, OperationLog log,
+                             ArrayList<OpenPgpSignatureResult> signatureResults) {
+        super(result, log);
+        mSignatureResults = signatureResults;
+    }
+
+    public BatchVerifyResult(Parcel source) {
+        super(source);
+        mSignatureResults = source.createTypedArrayList(OpenPgpSignatureResult.CREATOR);
+        mOperationTime = source.readLong();
+    }
+
+    public ArrayList<OpenPgpSignatureResult> getSignatureResults() {
+        return mSignatureResults;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeTypedList(mSignatureResults);
+        dest.writeLong(mOperationTime);
+    }
+
+    public static final Creator<BatchVerifyResult> CREATOR = new Creator<BatchVerifyResult>() {
+        public BatchVerifyResult createFromParcel(final Parcel source) {
+            return new BatchVerifyResult(source);
+        }
+
+        public BatchVerifyResult[] newArray(final int size) {
+            return new BatchVerifyResult[size];
+        }
+    };
+
+}
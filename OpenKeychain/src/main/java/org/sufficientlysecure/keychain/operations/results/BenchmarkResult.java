@@ -18,23 +18,56 @@
 
 package org.sufficientlysecure.keychain.operations.results;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.KeyType;
 
 
 public class BenchmarkResult extends OperationResult {
 
+    public enum Step {
+        ENCRYPT, DECRYPT, SIGN, VERIFY
+    }
+
+    private final ArrayList<Measurement> mMeasurements;
+    /** S2K iteration count which takes 100ms, or -1 if it wasn't measured */
+    private final int mS2kIterationsFor100ms;
+
     public BenchmarkResult(int result, OperationLog log) {
+        this(result, log, new ArrayList<Measurement>(), -1);
+    }
+
+    public BenchmarkResult(int result, OperationLog log, ArrayList<Measurement> measurements,
+            int s2kIterationsFor100ms) {
         super(result, log);
+        mMeasurements = measurements;
+        mS2kIterationsFor100ms = s2kIterationsFor100ms;
     }
 
-    /** Construct from a parcel - trivial because we have no extra data. */
     public BenchmarkResult(Parcel source) {
         super(source);
+        mMeasurements = source.createTypedArrayList(Measurement.CREATOR);
+        mS2kIterationsFor100ms = source.readInt();
+    }
+
+    public List<Measurement> getMeasurements() {
+        return mMeasurements;
+    }
+
+    public int getS2kIterationsFor100ms() {
+        return mS2kIterationsFor100ms;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
+        dest.writeTypedList(mMeasurements);
+        dest.writeInt(mS2kIterationsFor100ms);
     }
 
     public static Creator<BenchmarkResult> CREATOR = new Creator<BenchmarkResult>() {
@@ -47,4 +80,94 @@ public class BenchmarkResult extends OperationResult {
         }
     };
 
+    /** Latency percentiles and throughput of one step of one combination of the benchmark matrix. */
+    public static class Measurement implements Parcelable {
+        public final Step mStep;
+        public final KeyType mKeyType;
+        public final boolean mCompression;
+        public final int mPayloadSize;
+        public final int mThreads;
+        public final int mSamples;
+        public final long mP50Nanos;
+        public final long mP95Nanos;
+        public final long mP99Nanos;
+        /** Payload bytes processed by all threads together per second, in MiB */
+        public final double mMegabytesPerSecond;
+
+        public Measurement(Step step, KeyType keyType, boolean compression, int payloadSize, int threads,
+                long[] sampleNanos, long wallNanos) {
+            mStep = step;
+            mKeyType = keyType;
+            mCompression = compression;
+            mPayloadSize = payloadSize;
+            mThreads = threads;
+            mSamples = sampleNanos.length;
+            long[] sorted = sampleNanos.clone();
+            Arrays.sort(sorted);
+            mP50Nanos = getPercentile(sorted, 50);
+            mP95Nanos = getPercentile(sorted, 95);
+            mP99Nanos = getPercentile(sorted, 99);
+            mMegabytesPerSecond = wallNanos > 0
+                    ? (double) payloadSize * mSamples / (1024 * 1024) / (wallNanos / 1000000000.0) : 0;
+        }
+
+        private Measurement(Parcel source) {
+            mStep = Step.values()[source.readInt()];
+            mKeyType = KeyType.values()[source.readInt()];
+            mCompression = source.readInt() != 0;
+            mPayloadSize = source.readInt();
+            mThreads = source.readInt();
+            mSamples = source.readInt();
+            mP50Nanos = source.readLong();
+            mP95Nanos = source.readLong();
+            mP99Nanos = source.readLong();
+            mMegabytesPerSecond = source.readDouble();
+        }
+
+        /** Nearest rank percentile of sorted samples. */
+        static long getPercentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return mKeyType.name().toLowerCase() + " " + mStep.name().toLowerCase() + ", "
+                    + (mPayloadSize / 1024) + "K, " + (mCompression ? "compressed" : "uncompressed") + ", "
+                    + mThreads + (mThreads == 1 ? " thread" : " threads");
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(mStep.ordinal());
+            dest.writeInt(mKeyType.ordinal());
+            dest.writeInt(mCompression ? 1 : 0);
+            dest.writeInt(mPayloadSize);
+            dest.writeInt(mThreads);
+            dest.writeInt(mSamples);
+            dest.writeLong(mP50Nanos);
+            dest.writeLong(mP95Nanos);
+            dest.writeLong(mP99Nanos);
+            dest.writeDouble(mMegabytesPerSecond);
+        }
+
+        public static final Creator<Measurement> CREATOR = new Creator<Measurement>() {
+            public Measurement createFromParcel(final Parcel source) {
+                return new Measurement(source);
+            }
+
+            public Measurement[] newArray(final int size) {
+                return new Measurement[size];
+            }
+        };
+    }
+
 }
@@ -35,6 +35,7 @@ import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
 
 import java.util.ArrayList;
@@ -81,6 +82,9 @@ public abstract class OperationResult implements Parcelable {
     /// A list of log entries tied to the operation result.
     protected OperationLog mLog;
 
+    /// Where the time of the operation went, see OperationTrace. May be null.
+    private OperationTrace.Summary mTraceSummary;
+
     public OperationResult(int result, OperationLog log) {
         mResult = result;
         mLog = log;
@@ -90,6 +94,7 @@ public abstract class OperationResult implements Parcelable {
         mResult = source.readInt();
         // get log out of cache based on UUID from source
         mLog = logCache.readFromParcelAndGetFromCache(source);
+        mTraceSummary = source.readParcelable(OperationTrace.Summary.class.getClassLoader());
     }
 
     public int getResult() {
@@ -104,6 +109,14 @@ public abstract class OperationResult implements Parcelable {
         return (mResult & RESULT_CANCELLED) == RESULT_CANCELLED;
     }
 
+    public OperationTrace.Summary getTraceSummary() {
+        return mTraceSummary;
+    }
+
+    public void setTraceSummary(OperationTrace.Summary traceSummary) {
+        mTraceSummary = traceSummary;
+    }
+
     public OperationLog getLog() {
         SubLogEntryParcel singleSubLog = mLog.getSubResultIfSingle();
         if (singleSubLog != null) {
@@ -348,6 +361,9 @@ public abstract class OperationResult implements Parcelable {
         MSG_IP_INSERT_KEYRING (LogLevel.DEBUG, R.string.msg_ip_insert_keyring),
         MSG_IP_INSERT_SUBKEYS (LogLevel.DEBUG, R.string.msg_ip_insert_keys),
         MSG_IP_PREPARE (LogLevel.DEBUG, R.string.msg_ip_prepare),
+        MSG_IP_PRUNE (LogLevel.INFO, R.string.msg_ip_prune),
+        MSG_IP_PRUNE_ERROR_IO (LogLevel.WARN, R.string.msg_ip_prune_error_io),
+        MSG_IP_PRUNE_SAVED (LogLevel.DEBUG, R.string.msg_ip_prune_saved),
         MSG_IP_REINSERT_SECRET (LogLevel.DEBUG, R.string.msg_ip_reinsert_secret),
         MSG_IP_MASTER (LogLevel.DEBUG, R.string.msg_ip_master),
         MSG_IP_MASTER_EXPIRED (LogLevel.DEBUG, R.string.msg_ip_master_expired),
@@ -535,6 +551,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_CR_ERROR_FLAGS_ELGAMAL (LogLevel.ERROR, R.string.msg_cr_error_flags_elgamal),
         MSG_CR_ERROR_FLAGS_ECDSA (LogLevel.ERROR, R.string.msg_cr_error_flags_ecdsa),
         MSG_CR_ERROR_FLAGS_ECDH (LogLevel.ERROR, R.string.msg_cr_error_flags_ecdh),
+        MSG_CR_KEYPAIR_RESERVOIR (LogLevel.DEBUG, R.string.msg_cr_keypair_reservoir),
 
         // secret key modify
         MSG_MF (LogLevel.START, R.string.msg_mr),
@@ -721,6 +738,8 @@ public abstract class OperationResult implements Parcelable {
         // pgpsignencrypt
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
+        MSG_PSE_COMPRESSION_SELECTED (LogLevel.DEBUG, R.string.msg_pse_compression_selected),
+        MSG_PSE_COMPRESSION_SKIPPED (LogLevel.INFO, R.string.msg_pse_compression_skipped),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_IO (LogLevel.ERROR, R.string.msg_pse_error_io),
@@ -777,6 +796,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
+        MSG_IMPORT_ERROR_SOURCE_CHANGED (LogLevel.ERROR, R.string.msg_import_error_source_changed),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
@@ -873,6 +893,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_LV_MATCH_ERROR (LogLevel.ERROR, R.string.msg_lv_match_error),
         MSG_LV_FP_OK (LogLevel.DEBUG, R.string.msg_lv_fp_ok),
         MSG_LV_FP_ERROR (LogLevel.ERROR, R.string.msg_lv_fp_error),
+        MSG_LV_CACHED_OK (LogLevel.DEBUG, R.string.msg_lv_cached_ok),
+        MSG_LV_CACHED_ERROR (LogLevel.ERROR, R.string.msg_lv_cached_error),
 
         MSG_LV_ERROR_TWITTER_AUTH (LogLevel.ERROR, R.string.msg_lv_error_twitter_auth),
         MSG_LV_ERROR_TWITTER_HANDLE (LogLevel.ERROR, R.string.msg_lv_error_twitter_handle),
@@ -890,14 +912,23 @@ public abstract class OperationResult implements Parcelable {
         MSG_LV_FETCH_ERROR_NOTHING (LogLevel.ERROR, R.string.msg_lv_fetch_error_nothing),
 
         MSG_BENCH (LogLevel.START, R.string.msg_bench),
-        MSG_BENCH_ENC_TIME (LogLevel.DEBUG, R.string.msg_bench_enc_time),
-        MSG_BENCH_ENC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
-        MSG_BENCH_DEC_TIME (LogLevel.DEBUG, R.string.msg_bench_dec_time),
-        MSG_BENCH_DEC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
+        MSG_BENCH_KEY_CREATE (LogLevel.DEBUG, R.string.msg_bench_key_create),
+        MSG_BENCH_RESULT (LogLevel.INFO, R.string.msg_bench_result),
+        MSG_BENCH_ERROR_KEY (LogLevel.ERROR, R.string.msg_bench_error_key),
+        MSG_BENCH_ERROR_STEP (LogLevel.ERROR, R.string.msg_bench_error_step),
         MSG_BENCH_S2K_FOR_IT (LogLevel.DEBUG, R.string.msg_bench_s2k_for_it),
         MSG_BENCH_S2K_100MS_ITS (LogLevel.INFO, R.string.msg_bench_s2k_100ms_its),
+        MSG_BENCH_PROVIDER_TIME (LogLevel.DEBUG, R.string.msg_bench_provider_time),
+        MSG_BENCH_PROVIDER_MISMATCH (LogLevel.WARN, R.string.msg_bench_provider_mismatch),
+        MSG_BENCH_PROVIDER_SELECTED (LogLevel.INFO, R.string.msg_bench_provider_selected),
         MSG_BENCH_SUCCESS (LogLevel.OK, R.string.msg_bench_success),
 
+        MSG_VB (LogLevel.START, R.string.msg_vb),
+        MSG_VB_KEYS (LogLevel.DEBUG, R.string.msg_vb_keys),
+        MSG_VB_ITEM (LogLevel.DEBUG, R.string.msg_vb_item),
+        MSG_VB_ITEM_ERROR (LogLevel.WARN, R.string.msg_vb_item_error),
+        MSG_VB_OK (LogLevel.OK, R.string.msg_vb_ok),
+
         ;
 
         public final int mMsgId;
@@ -936,6 +967,7 @@ public abstract class OperationResult implements Parcelable {
         dest.writeInt(mResult);
         // cache log and write UUID to dest
         logCache.cacheAndWriteToParcel(mLog, dest);
+        dest.writeParcelable(mTraceSummary, 0);
     }
 
     public static class OperationLog implements Iterable<LogEntryParcel> {
@@ -19,6 +19,7 @@ package org.sufficientlysecure.keychain.operations.results;
 
 import android.os.Parcel;
 
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 
@@ -27,6 +28,7 @@ public class PgpSignEncryptResult extends InputPendingResult {
 
     byte[] mDetachedSignature;
     public long mOperationTime;
+    int mCompressionAlgorithm = CompressionAlgorithmTags.UNCOMPRESSED;
     // this is the micalg parameter used in PGP/MIME, see RFC3156:
     // https://tools.ietf.org/html/rfc3156#section-5
     private String mMicAlgDigestName;
@@ -39,6 +41,15 @@ public class PgpSignEncryptResult extends InputPendingResult {
         return mDetachedSignature;
     }
 
+    public void setCompressionAlgorithm(int compressionAlgorithm) {
+        mCompressionAlgorithm = compressionAlgorithm;
+    }
+
+    /** Returns the compression algorithm which was actually used, see CompressionAlgorithmTags. */
+    public int getCompressionAlgorithm() {
+        return mCompressionAlgorithm;
+    }
+
     public PgpSignEncryptResult(int result, OperationLog log) {
         super(result, log);
     }
@@ -51,6 +62,7 @@ public class PgpSignEncryptResult extends InputPendingResult {
     public PgpSignEncryptResult(Parcel source) {
         super(source);
         mDetachedSignature = source.readInt() != 0 ? source.createByteArray() : null;
+        mCompressionAlgorithm = source.readInt();
     }
 
     public int describeContents() {
@@ -65,6 +77,7 @@ public class PgpSignEncryptResult extends InputPendingResult {
         } else {
             dest.writeInt(0);
         }
+        dest.writeInt(mCompressionAlgorithm);
     }
 
     public static final Creator<PgpSignEncryptResult> CREATOR = new Creator<PgpSignEncryptResult>() {
@@ -0,0 +1,163 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.SignatureException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+
+/** Feeds data into a PGPSignatureGenerator on a separate thread.
+ *
+ * While signing, the data is usually also compressed and encrypted, or at least read
+ * from a file. Hashing it on a separate thread lets both happen at the same time, so
+ * the whole operation takes about as long as the slower of the two instead of their
+ * sum. Data is handed over in chunks through a bounded queue, so a slow hash holds up
+ * the caller rather than piling up data in memory.
+ *
+ * Small inputs are hashed in the calling thread, where starting a thread isn't worth it.
+ *
+ */
+public class AsyncSignatureUpdater {
+
+    /** Inputs smaller than this are hashed in the calling thread */
+    public static final long MIN_ASYNC_SIZE = 1 << 20;
+    /** Number of chunks which may be waiting for the hashing thread */
+    private static final int QUEUE_SIZE = 4;
+
+    private static final Chunk END_OF_DATA = new Chunk(null, 0);
+
+    private final PGPSignatureGenerator mSignatureGenerator;
+    private final ArrayBlockingQueue<Chunk> mQueue;
+    private final ArrayBlockingQueue<byte[]> mFreeBuffers;
+    private final Thread mThread;
+    private volatile Exception mException;
+
+    private static class Chunk {
+        final byte[] mBuffer;
+        final int mLength;
+
+        Chunk(byte[] buffer, int length) {
+            mBuffer = buffer;
+            mLength = length;
+        }
+    }
+
+    /**
+     * @param dataSize size of the data which will be signed, or a value <= 0 if unknown
+     * @param chunkSize maximum size of the data passed in each call to update
+     */
+    public AsyncSignatureUpdater(PGPSignatureGenerator signatureGenerator, long dataSize, int chunkSize) {
+        mSignatureGenerator = signatureGenerator;
+
+        if (dataSize < MIN_ASYNC_SIZE) {
+            mQueue = null;
+            mFreeBuffers = null;
+            mThread = null;
+            return;
+        }
+
+        // one buffer more than the queue size, for the one being hashed. the queue itself
+        // has room for all buffers plus the end marker, so finish() never blocks on it
+        mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE + 2);
+        mFreeBuffers = new ArrayBlockingQueue<>(QUEUE_SIZE + 1);
+        for (int i = 0; i < QUEUE_SIZE + 1; i++) {
+            mFreeBuffers.add(new byte[chunkSize]);
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Chunk chunk;
+                    while ((chunk = mQueue.take()) != END_OF_DATA) {
+                        mSignatureGenerator.update(chunk.mBuffer, 0, chunk.mLength);
+                        mFreeBuffers.put(chunk.mBuffer);
+                    }
+                } catch (InterruptedException e) {
+                    // cancelled, just stop
+                } catch (Exception e) {
+                    mException = e;
+                    // make sure update doesn't block while waiting for a buffer
+                    mFreeBuffers.clear();
+                    mFreeBuffers.offer(new byte[0]);
+                }
+            }
+        }, "signature-hashing");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public void update(byte[] buffer, int offset, int length) throws IOException, SignatureException {
+        if (mThread == null) {
+            mSignatureGenerator.update(buffer, offset, length);
+            return;
+        }
+
+        try {
+            byte[] chunk = mFreeBuffers.take();
+            // stop feeding data once hashing failed, the error is reported by finish()
+            if (mException != null) {
+                mFreeBuffers.offer(chunk);
+                return;
+            }
+            System.arraycopy(buffer, offset, chunk, 0, length);
+            mQueue.put(new Chunk(chunk, length));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while signing");
+        }
+    }
+
+    /** Waits until all data is hashed. The signature generator may be used afterwards. */
+    public void finish() throws IOException, SignatureException {
+        if (mThread == null) {
+            return;
+        }
+
+        try {
+            mQueue.put(END_OF_DATA);
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while signing");
+        }
+
+        Exception e = mException;
+        if (e instanceof SignatureException) {
+            throw (SignatureException) e;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e != null) {
+            throw new SignatureException(e);
+        }
+    }
+
+    /** Stops the hashing thread, if finish() was not called because of an error. */
+    public void cancel() {
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.pgp;
 import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.util.IterableIterator;
@@ -184,6 +185,45 @@ public class CanonicalizedPublicKey extends UncachedPublicKey {
         return super.getKeyUsage();
     }
 
+    /**
+     * Returns true if the self certificates of all user ids list the given compression
+     * algorithm among their preferences. The key ring is canonicalized, so only the latest
+     * valid self certificate of each user id is left. Keys without any preferences don't
+     * list any algorithm.
+     */
+    public boolean hasPreferredCompressionAlgorithm(int algorithm) {
+        boolean found = false;
+        for (byte[] rawUserId : new IterableIterator<byte[]>(mPublicKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = mPublicKey.getSignaturesForID(rawUserId);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature sig : new IterableIterator<>(signaturesIt)) {
+                if (sig.getKeyID() != mPublicKey.getKeyID()
+                        || sig.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION) {
+                    continue;
+                }
+                PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
+                int[] preferred = hashed != null ? hashed.getPreferredCompressionAlgorithms() : null;
+                if (preferred == null || !contains(preferred, algorithm)) {
+                    return false;
+                }
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** Returns whether this key is valid, ie not expired or revoked. */
     public boolean isValid() {
         return !isRevoked() && !isExpired();
@@ -31,7 +31,6 @@ import org.spongycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.spongycastle.openpgp.operator.jcajce.NfcSyncPGPContentSignerBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -264,8 +263,7 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
                     cryptoInput.getCryptoData());
         } else {
             return new CachingDataDecryptorFactory(
-                    new JcePublicKeyDataDecryptorFactoryBuilder()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPrivateKey),
+                    DataCipherFactory.createPublicKeyDecryptorFactory(mPrivateKey),
                     cryptoInput.getCryptoData());
         }
     }
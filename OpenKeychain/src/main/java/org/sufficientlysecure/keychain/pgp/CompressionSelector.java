@@ -0,0 +1,132 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+
+/** Chooses a compression algorithm based on a sample from the start of the data.
+ *
+ * Data which is already compressed, such as images, videos or archives, does not
+ * get any smaller by compressing it again, so deflating it only costs time. Such
+ * data is recognized either by the magic bytes of a known compressed format, or
+ * by a byte entropy close to eight bits per byte.
+ *
+ * Of the remaining data, small and very redundant inputs are compressed with
+ * BZIP2, which yields the best ratio but is too slow for large inputs. BZIP2 is
+ * only chosen if all recipients list it in their preferences, since not every
+ * implementation supports it. Everything else uses the default algorithm. ZLIB
+ * is never chosen, see PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM.
+ *
+ */
+public class CompressionSelector {
+
+    /** Number of bytes at the start of the data which are sampled */
+    public static final int SAMPLE_SIZE = 1 << 16;
+
+    /** Samples with at least this many bits of entropy per byte are not compressed */
+    static final double ENTROPY_INCOMPRESSIBLE = 7.5;
+    /** Samples with at most this many bits of entropy per byte are very redundant */
+    static final double ENTROPY_REDUNDANT = 5.0;
+    /** BZIP2 is only used up to this input size */
+    static final long BZIP2_MAX_SIZE = 1 << 20;
+
+    /** Offsets and magic bytes of formats which are already compressed */
+    private static final Object[][] COMPRESSED_MAGIC = {
+            { 0, new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF } }, // jpeg
+            { 0, new byte[] { (byte) 0x89, 'P', 'N', 'G' } }, // png
+            { 0, new byte[] { 'G', 'I', 'F', '8' } }, // gif
+            { 8, new byte[] { 'W', 'E', 'B', 'P' } }, // webp
+            { 0, new byte[] { 'P', 'K', 0x03, 0x04 } }, // zip, also jar, apk, docx, odt, epub
+            { 0, new byte[] { 0x1F, (byte) 0x8B } }, // gzip
+            { 0, new byte[] { 'B', 'Z', 'h' } }, // bzip2
+            { 0, new byte[] { (byte) 0xFD, '7', 'z', 'X', 'Z', 0x00 } }, // xz
+            { 0, new byte[] { '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C } }, // 7z
+            { 0, new byte[] { 'R', 'a', 'r', '!' } }, // rar
+            { 4, new byte[] { 'f', 't', 'y', 'p' } }, // mp4, mov, m4a, 3gp
+            { 0, new byte[] { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 } }, // matroska, webm
+            { 0, new byte[] { 'O', 'g', 'g', 'S' } }, // ogg
+            { 0, new byte[] { 'I', 'D', '3' } }, // mp3
+            { 0, new byte[] { 'f', 'L', 'a', 'C' } }, // flac
+    };
+
+    /**
+     * Returns the compression algorithm to use for data starting with the given sample.
+     *
+     * @param sample the first bytes of the data
+     * @param length number of valid bytes in sample
+     * @param totalSize total size of the data, or a value <= 0 if unknown
+     * @param allowBzip2 true if all recipients prefer BZIP2 among other algorithms
+     * @return one of CompressionAlgorithmTags.UNCOMPRESSED, ZIP or BZIP2
+     */
+    public static int select(byte[] sample, int length, long totalSize, boolean allowBzip2) {
+        if (length <= 0) {
+            return PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+        }
+
+        if (hasCompressedMagic(sample, length)) {
+            return CompressionAlgorithmTags.UNCOMPRESSED;
+        }
+
+        double entropy = estimateEntropy(sample, length);
+        if (entropy >= ENTROPY_INCOMPRESSIBLE) {
+            return CompressionAlgorithmTags.UNCOMPRESSED;
+        }
+
+        boolean isSmall = totalSize > 0 ? totalSize <= BZIP2_MAX_SIZE : length < SAMPLE_SIZE;
+        if (allowBzip2 && entropy <= ENTROPY_REDUNDANT && isSmall) {
+            return CompressionAlgorithmTags.BZIP2;
+        }
+
+        return PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+    }
+
+    /** Returns true if the sample starts with the magic bytes of a compressed format. */
+    static boolean hasCompressedMagic(byte[] sample, int length) {
+        magic: for (Object[] entry : COMPRESSED_MAGIC) {
+            int offset = (Integer) entry[0];
+            byte[] magic = (byte[]) entry[1];
+            if (length < offset + magic.length) {
+                continue;
+            }
+            for (int i = 0; i < magic.length; i++) {
+                if (sample[offset + i] != magic[i]) {
+                    continue magic;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the Shannon entropy of the byte distribution in the sample, in bits per byte. */
+    static double estimateEntropy(byte[] sample, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xff] += 1;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) {
+                continue;
+            }
+            double p = (double) count / length;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(2);
+    }
+
+}
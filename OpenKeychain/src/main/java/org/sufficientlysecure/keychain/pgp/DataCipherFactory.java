@@ -0,0 +1,143 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.security.PrivateKey;
+
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.PGPDataDecryptor;
+import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.sufficientlysecure.keychain.Constants;
+
+/** Creates the encryptors and decryptors for the symmetrically encrypted data of messages.
+ *
+ * Keys are always handled by the Bouncy Castle provider. The bulk data cipher for
+ * integrity protected AES data, which is by far the most common case, is taken from
+ * the data cipher provider instead. This is the provider which BenchmarkOperation
+ * found to be fastest, usually the platform provider which uses the AES instructions
+ * of the cpu. Bouncy Castle is used for everything else, in particular the OpenPGP
+ * specific CFB mode of data without integrity protection is only available there.
+ *
+ */
+public class DataCipherFactory {
+
+    /** The cipher which is used for integrity protected AES data */
+    public static final String DATA_CIPHER_TRANSFORMATION = "AES/CFB/NoPadding";
+
+    private static volatile String sDataCipherProvider = Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+
+    public static String getDataCipherProvider() {
+        return sDataCipherProvider;
+    }
+
+    public static void setDataCipherProvider(String providerName) {
+        sDataCipherProvider = providerName;
+    }
+
+    static String getProviderFor(int algorithm, boolean withIntegrityPacket) {
+        if (!withIntegrityPacket) {
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+        switch (algorithm) {
+            case SymmetricKeyAlgorithmTags.AES_128:
+            case SymmetricKeyAlgorithmTags.AES_192:
+            case SymmetricKeyAlgorithmTags.AES_256:
+                return sDataCipherProvider;
+            default:
+                return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+    }
+
+    public static JcePGPDataEncryptorBuilder createEncryptorBuilder(int algorithm,
+            boolean withIntegrityPacket) {
+        return new JcePGPDataEncryptorBuilder(algorithm)
+                .setProvider(getProviderFor(algorithm, withIntegrityPacket))
+                .setWithIntegrityPacket(withIntegrityPacket);
+    }
+
+    public static PublicKeyDataDecryptorFactory createPublicKeyDecryptorFactory(PrivateKey privateKey) {
+        final PublicKeyDataDecryptorFactory keyFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
+
+        final String dataCipherProvider = sDataCipherProvider;
+        if (Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(dataCipherProvider)) {
+            return keyFactory;
+        }
+        final PublicKeyDataDecryptorFactory dataFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                .setContentProvider(dataCipherProvider).build(privateKey);
+
+        return new PublicKeyDataDecryptorFactory() {
+            @Override
+            public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData)
+                    throws PGPException {
+                return keyFactory.recoverSessionData(keyAlgorithm, secKeyData);
+            }
+
+            @Override
+            public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket,
+                    int encAlgorithm, byte[] key) throws PGPException {
+                if (Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(
+                        getProviderFor(encAlgorithm, withIntegrityPacket))) {
+                    return keyFactory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+                }
+                return dataFactory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+            }
+        };
+    }
+
+    public static PBEDataDecryptorFactory createPbeDecryptorFactory(char[] passphrase)
+            throws PGPException {
+        PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+        final PBEDataDecryptorFactory keyFactory = new JcePBEDataDecryptorFactoryBuilder(
+                digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase);
+
+        final String dataCipherProvider = sDataCipherProvider;
+        if (Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(dataCipherProvider)) {
+            return keyFactory;
+        }
+        final PBEDataDecryptorFactory dataFactory = new JcePBEDataDecryptorFactoryBuilder(
+                digestCalcProvider).setProvider(dataCipherProvider).build(passphrase);
+
+        // the key is derived from the passphrase by the digest calculator, which is Bouncy Castle's
+        return new PBEDataDecryptorFactory(passphrase, digestCalcProvider) {
+            @Override
+            public byte[] recoverSessionData(int keyAlgorithm, byte[] key, byte[] seckKeyData)
+                    throws PGPException {
+                return keyFactory.recoverSessionData(keyAlgorithm, key, seckKeyData);
+            }
+
+            @Override
+            public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket,
+                    int encAlgorithm, byte[] key) throws PGPException {
+                if (Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(
+                        getProviderFor(encAlgorithm, withIntegrityPacket))) {
+                    return keyFactory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+                }
+                return dataFactory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+            }
+        };
+    }
+
+}
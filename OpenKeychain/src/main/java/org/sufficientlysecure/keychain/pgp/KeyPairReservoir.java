@@ -0,0 +1,211 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * A reserve of key pairs which are generated in the background, before they are needed.
+ * <p/>
+ * Key generation, in particular for large RSA keys, takes several seconds on a phone. The
+ * create key wizard fills this reservoir while the user enters name, email and passphrase,
+ * so PgpKeyOperation can take a finished key pair once the key is actually created, and
+ * clears it when the wizard is closed. Only parcels with mUseKeyPairReservoir set take pairs.
+ * <p/>
+ * Key pairs are only ever held in memory of the current process and are never written to
+ * disk. Each pair is handed out at most once.
+ */
+public class KeyPairReservoir {
+
+    private static KeyPairReservoir sInstance;
+
+    public static synchronized KeyPairReservoir getInstance() {
+        if (sInstance == null) {
+            sInstance = new KeyPairReservoir();
+        }
+        return sInstance;
+    }
+
+    private final ConcurrentHashMap<KeyPairSpec, Queue<KeyPair>> mReserve = new ConcurrentHashMap<>();
+    // number of pairs per spec which are available or currently being generated
+    private final ConcurrentHashMap<KeyPairSpec, AtomicInteger> mScheduled = new ConcurrentHashMap<>();
+    private final ExecutorService mExecutor;
+    // incremented by clear(), pairs generated for an earlier generation are dropped
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private KeyPairReservoir() {
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "KeyPairReservoir");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /** Makes sure that count key pairs of the given type are, or will soon be, available. */
+    public void fill(Algorithm algorithm, Integer keySize, Curve curve, int count) {
+        final KeyPairSpec spec = new KeyPairSpec(algorithm, keySize, curve);
+
+        final int generation = mGeneration.get();
+        AtomicInteger scheduled = getScheduled(spec);
+        while (true) {
+            int current = scheduled.get();
+            if (current >= count) {
+                return;
+            }
+            if (!scheduled.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    generate(spec, generation);
+                }
+            });
+        }
+    }
+
+    /** Returns a pre-generated key pair of the given type, or null if none is available yet. */
+    public KeyPair take(Algorithm algorithm, Integer keySize, Curve curve) {
+        KeyPairSpec spec = new KeyPairSpec(algorithm, keySize, curve);
+
+        Queue<KeyPair> queue = mReserve.get(spec);
+        KeyPair keyPair = queue != null ? queue.poll() : null;
+        if (keyPair == null) {
+            mMisses.incrementAndGet();
+            Log.d(Constants.TAG, "key pair reservoir miss for " + spec + ", hit rate " + getHitRate());
+            return null;
+        }
+
+        getScheduled(spec).decrementAndGet();
+        mHits.incrementAndGet();
+        Log.d(Constants.TAG, "key pair reservoir hit for " + spec + ", hit rate " + getHitRate());
+        return keyPair;
+    }
+
+    /** Drops all pre-generated key pairs. Pairs currently being generated are dropped once finished. */
+    public void clear() {
+        mGeneration.incrementAndGet();
+        for (KeyPairSpec spec : mReserve.keySet()) {
+            Queue<KeyPair> queue = mReserve.get(spec);
+            while (queue.poll() != null) {
+                getScheduled(spec).decrementAndGet();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Returns the fraction of take() calls which could be served from the reservoir. */
+    public float getHitRate() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    private AtomicInteger getScheduled(KeyPairSpec spec) {
+        mScheduled.putIfAbsent(spec, new AtomicInteger());
+        return mScheduled.get(spec);
+    }
+
+    private void generate(KeyPairSpec spec, int generation) {
+        try {
+            long startTime = System.currentTimeMillis();
+            KeyPair keyPair = PgpKeyOperation.getKeyPairGenerator(
+                    spec.mAlgorithm, spec.mKeySize, spec.mCurve).generateKeyPair();
+
+            mReserve.putIfAbsent(spec, new ConcurrentLinkedQueue<KeyPair>());
+            Queue<KeyPair> queue = mReserve.get(spec);
+            queue.add(keyPair);
+            if (generation != mGeneration.get() && queue.remove(keyPair)) {
+                // cleared while this pair was generated, and not drained by clear() itself
+                getScheduled(spec).decrementAndGet();
+                return;
+            }
+
+            Log.d(Constants.TAG, "generated " + spec + " for reservoir in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (GeneralSecurityException | RuntimeException e) {
+            getScheduled(spec).decrementAndGet();
+            Log.e(Constants.TAG, "error generating key pair for reservoir", e);
+        }
+    }
+
+    private static class KeyPairSpec {
+        final Algorithm mAlgorithm;
+        final Integer mKeySize;
+        final Curve mCurve;
+
+        KeyPairSpec(Algorithm algorithm, Integer keySize, Curve curve) {
+            mAlgorithm = algorithm;
+            // only one of these is relevant for each algorithm
+            boolean isEcc = algorithm == Algorithm.ECDH || algorithm == Algorithm.ECDSA;
+            mKeySize = isEcc ? null : keySize;
+            mCurve = isEcc ? curve : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyPairSpec)) {
+                return false;
+            }
+            KeyPairSpec other = (KeyPairSpec) o;
+            return mAlgorithm == other.mAlgorithm && mCurve == other.mCurve
+                    && (mKeySize == null ? other.mKeySize == null : mKeySize.equals(other.mKeySize));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mAlgorithm != null ? mAlgorithm.hashCode() : 0;
+            result = 31 * result + (mKeySize != null ? mKeySize.hashCode() : 0);
+            result = 31 * result + (mCurve != null ? mCurve.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return mAlgorithm + (mCurve != null ? " " + mCurve : " " + mKeySize);
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.spongycastle.bcpg.PacketTags;
+
+/** Splits a binary (not armored) stream of OpenPGP packets into keyrings.
+ *
+ * Only the packet headers are parsed, packet bodies are copied without looking
+ * at them. Every public or secret key packet starts a new slice, all following
+ * packets up to the next key packet belong to it. Packets before the first key
+ * packet form a slice of their own.
+ *
+ * A slice usually contains exactly one keyring, but this is not guaranteed: it
+ * may contain none, or several if they are nested in a compressed data packet.
+ *
+ * Slices are held in memory, so their size is limited. Streams without key
+ * packets, or with an old format packet of indeterminate length which extends
+ * to the end of the stream, fail once they reach the limit instead of being
+ * read into memory as a whole.
+ *
+ */
+public class KeyRingSplitter {
+
+    /** Maximum size of a slice, far above that of any real keyring */
+    public static final int MAX_SLICE_SIZE = 16 * 1024 * 1024;
+
+    private final InputStream mStream;
+    private final int mMaxSliceSize;
+    private final byte[] mBuffer = new byte[8192];
+    private long mPosition = 0;
+    private int mPendingHeader = -1;
+
+    public static class Slice {
+        /** Offset of the first byte of this slice in the stream */
+        public final long mOffset;
+        public final byte[] mBytes;
+
+        Slice(long offset, byte[] bytes) {
+            mOffset = offset;
+            mBytes = bytes;
+        }
+    }
+
+    /** @param stream a binary packet stream, should be buffered */
+    public KeyRingSplitter(InputStream stream) {
+        this(stream, MAX_SLICE_SIZE);
+    }
+
+    KeyRingSplitter(InputStream stream, int maxSliceSize) {
+        mStream = stream;
+        mMaxSliceSize = maxSliceSize;
+    }
+
+    /** Returns the next slice, or null at the end of the stream. */
+    public Slice next() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long offset = -1;
+
+        while (true) {
+            int header = mPendingHeader;
+            mPendingHeader = -1;
+            if (header < 0) {
+                header = mStream.read();
+                if (header < 0) {
+                    break;
+                }
+                mPosition += 1;
+            }
+
+            if ((header & 0x80) == 0) {
+                throw new IOException("invalid packet header at offset " + (mPosition - 1));
+            }
+            boolean isNewFormat = (header & 0x40) != 0;
+            int tag = isNewFormat ? header & 0x3f : (header >> 2) & 0x0f;
+
+            if (offset >= 0 && (tag == PacketTags.PUBLIC_KEY || tag == PacketTags.SECRET_KEY)) {
+                // this packet starts the next keyring, keep its header for the next call
+                mPendingHeader = header;
+                break;
+            }
+
+            if (offset < 0) {
+                offset = mPosition - 1;
+            }
+            out.write(header);
+            if (isNewFormat) {
+                copyNewFormatBody(out);
+            } else {
+                copyOldFormatBody(header & 0x03, out);
+            }
+        }
+
+        return offset < 0 ? null : new Slice(offset, out.toByteArray());
+    }
+
+    private void copyOldFormatBody(int lengthType, ByteArrayOutputStream out) throws IOException {
+        if (lengthType == 3) {
+            // indeterminate length, the packet extends to the end of the stream
+            int read;
+            while ((read = mStream.read(mBuffer)) > 0) {
+                checkSliceSize(out, read);
+                out.write(mBuffer, 0, read);
+                mPosition += read;
+            }
+            return;
+        }
+
+        long bodyLength = 0;
+        for (int i = 0; i < 1 << lengthType; i++) {
+            int b = readByte();
+            out.write(b);
+            bodyLength = (bodyLength << 8) | b;
+        }
+        copy(bodyLength, out);
+    }
+
+    private void copyNewFormatBody(ByteArrayOutputStream out) throws IOException {
+        while (true) {
+            int l1 = readByte();
+            out.write(l1);
+            if (l1 < 192) {
+                copy(l1, out);
+                return;
+            }
+            if (l1 <= 223) {
+                int l2 = readByte();
+                out.write(l2);
+                copy(((l1 - 192) << 8) + l2 + 192, out);
+                return;
+            }
+            if (l1 == 255) {
+                long bodyLength = 0;
+                for (int i = 0; i < 4; i++) {
+                    int b = readByte();
+                    out.write(b);
+                    bodyLength = (bodyLength << 8) | b;
+                }
+                copy(bodyLength, out);
+                return;
+            }
+            // partial body length, another length header follows after this part
+            copy(1L << (l1 & 0x1f), out);
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = mStream.read();
+        if (b < 0) {
+            throw new EOFException("truncated packet at offset " + mPosition);
+        }
+        mPosition += 1;
+        return b;
+    }
+
+    private void checkSliceSize(ByteArrayOutputStream out, int length) throws IOException {
+        if (out.size() + length > mMaxSliceSize) {
+            throw new IOException("keyring exceeds " + mMaxSliceSize + " bytes at offset " + mPosition);
+        }
+    }
+
+    private void copy(long length, ByteArrayOutputStream out) throws IOException {
+        while (length > 0) {
+            int read = mStream.read(mBuffer, 0, (int) Math.min(mBuffer.length, length));
+            if (read < 0) {
+                throw new EOFException("truncated packet at offset " + mPosition);
+            }
+            checkSliceSize(out, read);
+            out.write(mBuffer, 0, read);
+            mPosition += read;
+            length -= read;
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRingSplitter.Slice;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+import org.sufficientlysecure.keychain.util.Log;
+
+/** Parses the slices of a KeyRingSplitter into keyrings on a pool of worker threads.
+ *
+ * Slices are read ahead and parsed in parallel, but returned in stream order. The
+ * number of slices which are read ahead is limited, so memory use is bounded no
+ * matter how large the stream is. A stream with only a single slice is parsed
+ * in the calling thread.
+ *
+ */
+public class ParallelKeyRingParser implements IteratorWithIOThrow<ParallelKeyRingParser.ParsedSlice> {
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    /** Maximum number of slices which are read ahead */
+    private static final int PIPELINE_SIZE = 4 * THREAD_COUNT;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final KeyRingSplitter mSplitter;
+    private final ArrayDeque<PendingSlice> mPending = new ArrayDeque<>();
+    private boolean mSplitterDone = false;
+    private IOException mSplitterException;
+
+    public static class ParsedSlice {
+        /** Location of this slice in the stream */
+        public final long mOffset;
+        public final int mLength;
+        /** Keyrings found in this slice, in stream order. Usually, but not always, exactly one */
+        public final List<UncachedKeyRing> mRings;
+
+        ParsedSlice(long offset, int length, List<UncachedKeyRing> rings) {
+            mOffset = offset;
+            mLength = length;
+            mRings = rings;
+        }
+    }
+
+    private static class PendingSlice {
+        final long mOffset;
+        final int mLength;
+        byte[] mBytes;
+        Future<List<UncachedKeyRing>> mFuture;
+
+        PendingSlice(Slice slice) {
+            mOffset = slice.mOffset;
+            mLength = slice.mBytes.length;
+            mBytes = slice.mBytes;
+        }
+
+        void submit() {
+            final byte[] bytes = mBytes;
+            mBytes = null;
+            mFuture = getExecutor().submit(new Callable<List<UncachedKeyRing>>() {
+                @Override
+                public List<UncachedKeyRing> call() throws IOException {
+                    return parse(bytes);
+                }
+            });
+        }
+    }
+
+    public ParallelKeyRingParser(KeyRingSplitter splitter) {
+        mSplitter = splitter;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        fillPipeline();
+        if (mPending.isEmpty() && mSplitterException != null) {
+            IOException e = mSplitterException;
+            mSplitterException = null;
+            throw e;
+        }
+        return !mPending.isEmpty();
+    }
+
+    @Override
+    public ParsedSlice next() throws IOException {
+        if (!hasNext()) {
+            return null;
+        }
+        PendingSlice pending = mPending.removeFirst();
+        if (pending.mFuture == null) {
+            return new ParsedSlice(pending.mOffset, pending.mLength, parse(pending.mBytes));
+        }
+
+        try {
+            return new ParsedSlice(pending.mOffset, pending.mLength, pending.mFuture.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing keyrings");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private void fillPipeline() {
+        while (mPending.size() < PIPELINE_SIZE && !mSplitterDone) {
+            Slice slice;
+            try {
+                slice = mSplitter.next();
+            } catch (IOException e) {
+                // keyrings before the broken part are still returned, the exception comes after
+                mSplitterException = e;
+                slice = null;
+            }
+            if (slice == null) {
+                mSplitterDone = true;
+                break;
+            }
+
+            PendingSlice pending = new PendingSlice(slice);
+            // the first slice is only handed to a worker once there is a second one
+            PendingSlice first = mPending.peekFirst();
+            if (first != null && first.mFuture == null) {
+                first.submit();
+            }
+            if (!mPending.isEmpty()) {
+                pending.submit();
+            }
+            mPending.addLast(pending);
+        }
+    }
+
+    static List<UncachedKeyRing> parse(byte[] bytes) throws IOException {
+        ArrayList<UncachedKeyRing> rings = new ArrayList<>(1);
+        try {
+            PGPObjectFactory factory = new PGPObjectFactory(bytes, new JcaKeyFingerprintCalculator());
+            Object obj;
+            while ((obj = factory.nextObject()) != null) {
+                if (!(obj instanceof PGPKeyRing)) {
+                    Log.i(Constants.TAG,
+                            "Skipping object of bad type " + obj.getClass().getName() + " in stream");
+                    continue;
+                }
+                rings.add(new UncachedKeyRing((PGPKeyRing) obj));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException(e);
+        }
+        return rings;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "keyring-parser");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            // don't keep idle threads around between imports
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+}
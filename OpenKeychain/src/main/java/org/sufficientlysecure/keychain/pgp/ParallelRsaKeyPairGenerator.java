@@ -0,0 +1,244 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * RSA KeyPairGenerator which searches for the primes p and q on several
+ * threads at once.
+ * <p/>
+ * Nearly all of the time spent generating an RSA key goes into testing random
+ * candidates for primality. Each prime is found by racing independent searches
+ * on all threads, the first thread to find a suitable prime wins and the others
+ * are cancelled. The checks on p, q, n and d follow those of BouncyCastle's
+ * RSAKeyPairGenerator, the resulting keys are created by the BouncyCastle provider.
+ * <p/>
+ * All generators share one pool of low priority threads, one per processor, so
+ * several keys generated at once, e.g. in the background by KeyPairReservoir,
+ * don't multiply the number of threads competing with the UI.
+ */
+public class ParallelRsaKeyPairGenerator extends KeyPairGenerator {
+
+    private static final BigInteger ONE = BigInteger.ONE;
+    private static final BigInteger PUBLIC_EXPONENT = RSAKeyGenParameterSpec.F4;
+
+    /** Same as the default of BouncyCastle's RSA KeyPairGeneratorSpi */
+    private static final int CERTAINTY = 112;
+
+    /** Product of all odd primes up to 47, for cheap trial division of candidates. */
+    private static final long SMALL_PRIMES_PRODUCT = 3L * 5 * 7 * 11 * 13 * 17 * 19 * 23 * 29 * 31 * 37
+            * 41 * 43 * 47;
+    private static final int[] SMALL_PRIMES = { 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47 };
+
+    private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ParallelRsaKeyPairGenerator");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final int mThreadCount;
+    private int mStrength = 2048;
+    private SecureRandom mRandom;
+
+    /** Creates a generator which searches on one thread per available processor. */
+    public ParallelRsaKeyPairGenerator() {
+        this(0);
+    }
+
+    public ParallelRsaKeyPairGenerator(int threadCount) {
+        super("RSA");
+        mThreadCount = threadCount > 0 ? Math.min(threadCount, MAX_THREADS) : MAX_THREADS;
+    }
+
+    /** Sets the key size, and the SecureRandom all threads draw their candidates from. */
+    @Override
+    public void initialize(int keySize, SecureRandom random) {
+        mStrength = keySize;
+        mRandom = random;
+    }
+
+    @Override
+    public KeyPair generateKeyPair() {
+        if (mRandom == null) {
+            mRandom = new SecureRandom();
+        }
+        try {
+            return generateKeyPair(sExecutor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted during rsa key generation", e);
+        } catch (ExecutionException | GeneralSecurityException e) {
+            throw new IllegalStateException("error during rsa key generation", e);
+        }
+    }
+
+    private KeyPair generateKeyPair(ExecutorService executor)
+            throws InterruptedException, ExecutionException, GeneralSecurityException {
+
+        int pBitLength = (mStrength + 1) / 2;
+        int qBitLength = mStrength - pBitLength;
+        int minDiffBits = mStrength / 3;
+        int minWeight = mStrength >> 2;
+
+        BigInteger p, q, n;
+
+        p = racePrime(executor, pBitLength, null, 0);
+
+        while (true) {
+            q = racePrime(executor, qBitLength, p, minDiffBits);
+            n = p.multiply(q);
+
+            if (n.bitLength() != mStrength) {
+                // n is too small, keep the larger prime and look for a new q
+                p = p.max(q);
+                continue;
+            }
+
+            // a modulus with low NAF weight may be vulnerable to special purpose factoring
+            if (getNafWeight(n) < minWeight) {
+                p = racePrime(executor, pBitLength, null, 0);
+                continue;
+            }
+
+            if (p.compareTo(q) < 0) {
+                BigInteger tmp = p;
+                p = q;
+                q = tmp;
+            }
+
+            BigInteger pSub1 = p.subtract(ONE);
+            BigInteger qSub1 = q.subtract(ONE);
+            BigInteger lcm = pSub1.divide(pSub1.gcd(qSub1)).multiply(qSub1);
+            BigInteger d = PUBLIC_EXPONENT.modInverse(lcm);
+
+            // a small private exponent is insecure, this is very unlikely though
+            if (d.bitLength() <= qBitLength) {
+                p = racePrime(executor, pBitLength, null, 0);
+                continue;
+            }
+
+            BigInteger dP = d.remainder(pSub1);
+            BigInteger dQ = d.remainder(qSub1);
+            BigInteger qInv = q.modInverse(p);
+
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            return new KeyPair(
+                    keyFactory.generatePublic(new RSAPublicKeySpec(n, PUBLIC_EXPONENT)),
+                    keyFactory.generatePrivate(new RSAPrivateCrtKeySpec(
+                            n, PUBLIC_EXPONENT, d, p, q, dP, dQ, qInv)));
+        }
+    }
+
+    /**
+     * Runs a prime search on all threads and returns the first result. If other is
+     * not null, the returned prime differs from it in at least minDiffBits bits.
+     */
+    private BigInteger racePrime(ExecutorService executor, final int bitLength,
+            final BigInteger other, final int minDiffBits)
+            throws InterruptedException, ExecutionException {
+
+        final SecureRandom random = mRandom;
+        ArrayList<Callable<BigInteger>> searches = new ArrayList<>(mThreadCount);
+        for (int i = 0; i < mThreadCount; i++) {
+            searches.add(new Callable<BigInteger>() {
+                @Override
+                public BigInteger call() throws InterruptedException {
+                    // SecureRandom is thread safe, and drawing candidates is cheap next to testing them
+                    return searchPrime(random, bitLength, other, minDiffBits);
+                }
+            });
+        }
+
+        // returns the first successful result, and cancels the remaining searches,
+        // including those still queued behind other generators
+        return executor.invokeAny(searches);
+    }
+
+    private static BigInteger searchPrime(SecureRandom random, int bitLength, BigInteger other,
+            int minDiffBits) throws InterruptedException {
+        // p * p must have at least the full bit length, so the top two bits are always set
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+
+            BigInteger candidate = new BigInteger(bitLength, random)
+                    .setBit(bitLength - 1).setBit(bitLength - 2).setBit(0);
+
+            if (hasSmallFactor(candidate)) {
+                continue;
+            }
+            if (candidate.mod(PUBLIC_EXPONENT).equals(ONE)) {
+                continue;
+            }
+            if (other != null && candidate.subtract(other).abs().bitLength() < minDiffBits) {
+                continue;
+            }
+            if (!candidate.isProbablePrime(CERTAINTY)) {
+                continue;
+            }
+            if (!PUBLIC_EXPONENT.gcd(candidate.subtract(ONE)).equals(ONE)) {
+                continue;
+            }
+            return candidate;
+        }
+    }
+
+    private static boolean hasSmallFactor(BigInteger candidate) {
+        long residue = candidate.mod(BigInteger.valueOf(SMALL_PRIMES_PRODUCT)).longValue();
+        for (int prime : SMALL_PRIMES) {
+            if (residue % prime == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Number of non-zero digits in the non-adjacent form of n. */
+    private static int getNafWeight(BigInteger n) {
+        return n.shiftLeft(1).add(n).xor(n).bitCount();
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/** Input for PgpBatchVerifyOperation: a list of (data, detached signature) pairs. */
+public class PgpBatchVerifyInputParcel implements Parcelable {
+
+    private ArrayList<VerifyItem> mItems = new ArrayList<>();
+    private int mThreadCount;
+
+    public PgpBatchVerifyInputParcel() {
+    }
+
+    PgpBatchVerifyInputParcel(Parcel source) {
+        mItems = source.createTypedArrayList(VerifyItem.CREATOR);
+        mThreadCount = source.readInt();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeTypedList(mItems);
+        dest.writeInt(mThreadCount);
+    }
+
+    public PgpBatchVerifyInputParcel addItem(Uri inputUri, byte[] detachedSignature) {
+        mItems.add(new VerifyItem(inputUri, null, detachedSignature));
+        return this;
+    }
+
+    public PgpBatchVerifyInputParcel addItem(byte[] inputBytes, byte[] detachedSignature) {
+        mItems.add(new VerifyItem(null, inputBytes, detachedSignature));
+        return this;
+    }
+
+    ArrayList<VerifyItem> getItems() {
+        return mItems;
+    }
+
+    /** Number of threads used for hashing, 0 to use one per available processor. */
+    public PgpBatchVerifyInputParcel setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+        return this;
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    static class VerifyItem implements Parcelable {
+        final Uri mInputUri;
+        final byte[] mInputBytes;
+        final byte[] mDetachedSignature;
+
+        VerifyItem(Uri inputUri, byte[] inputBytes, byte[] detachedSignature) {
+            mInputUri = inputUri;
+            mInputBytes = inputBytes;
+            mDetachedSignature = detachedSignature;
+        }
+
+        VerifyItem(Parcel source) {
+            mInputUri = source.readParcelable(getClass().getClassLoader());
+            mInputBytes = source.createByteArray();
+            mDetachedSignature = source.createByteArray();
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeParcelable(mInputUri, 0);
+            dest.writeByteArray(mInputBytes);
+            dest.writeByteArray(mDetachedSignature);
+        }
+
+        public static final Creator<VerifyItem> CREATOR = new Creator<VerifyItem>() {
+            public VerifyItem createFromParcel(final Parcel source) {
+                return new VerifyItem(source);
+            }
+
+            public VerifyItem[] newArray(final int size) {
+                return new VerifyItem[size];
+            }
+        };
+    }
+
+    public static final Creator<PgpBatchVerifyInputParcel> CREATOR = new Creator<PgpBatchVerifyInputParcel>() {
+        public PgpBatchVerifyInputParcel createFromParcel(final Parcel source) {
+            return new PgpBatchVerifyInputParcel(source);
+        }
+
+        public PgpBatchVerifyInputParcel[] newArray(final int size) {
+            return new PgpBatchVerifyInputParcel[size];
+        }
+    };
+
+}
@@ -0,0 +1,235 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPSignatureList;
+import org.spongycastle.openpgp.PGPUtil;
+import org.spongycastle.openpgp.jcajce.JcaSkipMarkerPGPObjectFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.operations.BaseOperation;
+import org.sufficientlysecure.keychain.operations.results.BatchVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.PgpBatchVerifyInputParcel.VerifyItem;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Log;
+
+/** Verifies a batch of detached signatures.
+ *
+ * In contrast to verifying each signature with PgpDecryptVerifyOperation, all
+ * signatures are parsed first, and each signing key is looked up in the
+ * database only once. The signed data is then hashed in parallel, with one
+ * PgpSignatureChecker per item which shares the resolved keys.
+ *
+ */
+public class PgpBatchVerifyOperation extends BaseOperation<PgpBatchVerifyInputParcel> {
+
+    public PgpBatchVerifyOperation(Context context, ProviderHelper providerHelper,
+            Progressable progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
+    @NonNull
+    @Override
+    public BatchVerifyResult execute(PgpBatchVerifyInputParcel input, CryptoInputParcel cryptoInput) {
+        long startTime = System.currentTimeMillis();
+
+        OperationLog log = new OperationLog();
+        ArrayList<VerifyItem> items = input.getItems();
+        log.add(LogType.MSG_VB, 0, Integer.toString(items.size()));
+
+        updateProgress(R.string.progress_processing_signature, 0, 100);
+
+        // parse all signatures first, so we know which keys are needed
+        ArrayList<PGPSignatureList> signatureLists = new ArrayList<>(items.size());
+        for (VerifyItem item : items) {
+            signatureLists.add(parseSignatureList(item.mDetachedSignature));
+        }
+
+        // look up each signing key exactly once
+        HashMap<Long, CanonicalizedPublicKey> resolvedKeys = new HashMap<>();
+        for (PGPSignatureList sigList : signatureLists) {
+            if (sigList == null) {
+                continue;
+            }
+            for (int i = 0; i < sigList.size(); i++) {
+                long sigKeyId = sigList.get(i).getKeyID();
+                if (!resolvedKeys.containsKey(sigKeyId)) {
+                    resolvedKeys.put(sigKeyId,
+                            PgpSignatureChecker.lookupSigningKey(mProviderHelper, sigKeyId));
+                }
+            }
+        }
+        log.add(LogType.MSG_VB_KEYS, 1, Integer.toString(resolvedKeys.size()));
+
+        final JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+        int threadCount = input.getThreadCount() > 0
+                ? input.getThreadCount() : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        ArrayList<Future<OpenPgpSignatureResult>> futures = new ArrayList<>(items.size());
+        ArrayList<OperationLog> itemLogs = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            OperationLog itemLog = new OperationLog();
+            itemLogs.add(itemLog);
+            futures.add(executor.submit(new VerifyTask(items.get(i), signatureLists.get(i),
+                    resolvedKeys, contentVerifierBuilderProvider, itemLog)));
+        }
+        executor.shutdown();
+
+        ArrayList<OpenPgpSignatureResult> signatureResults = new ArrayList<>(items.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                if (checkCancelled()) {
+                    executor.shutdownNow();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new BatchVerifyResult(BatchVerifyResult.RESULT_CANCELLED, log);
+                }
+
+                OpenPgpSignatureResult signatureResult;
+                try {
+                    signatureResult = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.d(Constants.TAG, "error verifying batch item", e.getCause());
+                    signatureResult = null;
+                }
+
+                log.add(LogType.MSG_VB_ITEM, 1, Integer.toString(i + 1));
+                log.addAll(itemLogs.get(i).toList());
+                if (signatureResult == null) {
+                    log.add(LogType.MSG_VB_ITEM_ERROR, 2);
+                }
+                signatureResults.add(signatureResult);
+
+                updateProgress(R.string.progress_verifying_signature, i + 1, futures.size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new BatchVerifyResult(BatchVerifyResult.RESULT_CANCELLED, log);
+        }
+
+        updateProgress(R.string.progress_done, 100, 100);
+        log.add(LogType.MSG_VB_OK, 0);
+
+        BatchVerifyResult result =
+                new BatchVerifyResult(BatchVerifyResult.RESULT_OK, log, signatureResults);
+        result.mOperationTime = System.currentTimeMillis() - startTime;
+        Log.d(Constants.TAG, "batch verification of " + items.size() + " items took "
+                + String.format("%.2f", result.mOperationTime / 1000.0) + "s");
+        return result;
+    }
+
+    /** Returns the signature list of a detached signature, or null if it can't be parsed. */
+    private static PGPSignatureList parseSignatureList(byte[] detachedSignature) {
+        if (detachedSignature == null) {
+            return null;
+        }
+        try {
+            InputStream detachedSigIn = PGPUtil.getDecoderStream(
+                    new ByteArrayInputStream(detachedSignature));
+            JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(detachedSigIn);
+
+            Object o = pgpFact.nextObject();
+            if (o instanceof PGPCompressedData) {
+                PGPCompressedData c1 = (PGPCompressedData) o;
+                pgpFact = new JcaSkipMarkerPGPObjectFactory(c1.getDataStream());
+                o = pgpFact.nextObject();
+            }
+            return o instanceof PGPSignatureList ? (PGPSignatureList) o : null;
+        } catch (IOException | PGPException e) {
+            Log.d(Constants.TAG, "could not parse detached signature", e);
+            return null;
+        }
+    }
+
+    private class VerifyTask implements Callable<OpenPgpSignatureResult> {
+
+        private final VerifyItem mItem;
+        private final PGPSignatureList mSignatureList;
+        private final HashMap<Long, CanonicalizedPublicKey> mResolvedKeys;
+        private final JcaPGPContentVerifierBuilderProvider mContentVerifierBuilderProvider;
+        private final OperationLog mLog;
+
+        VerifyTask(VerifyItem item, PGPSignatureList signatureList,
+                HashMap<Long, CanonicalizedPublicKey> resolvedKeys,
+                JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider, OperationLog log) {
+            mItem = item;
+            mSignatureList = signatureList;
+            mResolvedKeys = resolvedKeys;
+            mContentVerifierBuilderProvider = contentVerifierBuilderProvider;
+            mLog = log;
+        }
+
+        @Override
+        public OpenPgpSignatureResult call() throws Exception {
+            if (mSignatureList == null) {
+                mLog.add(LogType.MSG_DC_ERROR_INVALID_DATA, 2);
+                return null;
+            }
+
+            PgpSignatureChecker signatureChecker = new PgpSignatureChecker(
+                    mProviderHelper, mResolvedKeys, mContentVerifierBuilderProvider);
+            signatureChecker.initializeSignature(mSignatureList, mLog, 2);
+
+            if (signatureChecker.isInitialized()) {
+                InputStream in = mItem.mInputBytes != null
+                        ? new ByteArrayInputStream(mItem.mInputBytes)
+                        : mContext.getContentResolver().openInputStream(mItem.mInputUri);
+                try {
+                    byte[] buffer = new byte[1 << 16];
+                    int length;
+                    while ((length = in.read(buffer)) > 0) {
+                        signatureChecker.updateSignatureData(buffer, 0, length);
+                    }
+                } finally {
+                    in.close();
+                }
+
+                signatureChecker.verifySignature(mLog, 2);
+            }
+
+            return signatureChecker.getSignatureResult();
+        }
+
+    }
+
+}
@@ -75,6 +75,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -142,7 +143,7 @@ public class PgpKeyOperation {
         mProgress.peek().setProgress(message, current, 100);
     }
 
-    private ECGenParameterSpec getEccParameterSpec(Curve curve) {
+    private static ECGenParameterSpec getEccParameterSpec(Curve curve) {
         switch (curve) {
             case NIST_P256: return new ECGenParameterSpec("P-256");
             case NIST_P384: return new ECGenParameterSpec("P-384");
@@ -156,8 +157,58 @@ public class PgpKeyOperation {
         throw new RuntimeException("Invalid choice! (can't happen)");
     }
 
-    /** Creates new secret key. */
-    private PGPKeyPair createKey(SubkeyAdd add, Date creationTime, OperationLog log, int indent) {
+    /** Returns a KeyPairGenerator for the given algorithm, initialized with fresh randomness.
+     *
+     * For ECC algorithms, only the curve is relevant. For all others, only the key size is.
+     */
+    static KeyPairGenerator getKeyPairGenerator(Algorithm algorithm, Integer keySize, Curve curve)
+            throws NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException {
+        KeyPairGenerator keyGen;
+        switch (algorithm) {
+            case DSA: {
+                keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                keyGen.initialize(keySize, new SecureRandom());
+                return keyGen;
+            }
+
+            case ELGAMAL: {
+                keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                BigInteger p = Primes.getBestPrime(keySize);
+                BigInteger g = new BigInteger("2");
+
+                ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
+
+                keyGen.initialize(elParams);
+                return keyGen;
+            }
+
+            case RSA: {
+                // prime search dominates rsa key generation, do it on all cores
+                keyGen = new ParallelRsaKeyPairGenerator();
+                keyGen.initialize(keySize, new SecureRandom());
+                return keyGen;
+            }
+
+            case ECDSA: {
+                ECGenParameterSpec ecParamSpec = getEccParameterSpec(curve);
+                keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                keyGen.initialize(ecParamSpec, new SecureRandom());
+                return keyGen;
+            }
+
+            case ECDH: {
+                ECGenParameterSpec ecParamSpec = getEccParameterSpec(curve);
+                keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                keyGen.initialize(ecParamSpec, new SecureRandom());
+                return keyGen;
+            }
+        }
+        throw new NoSuchAlgorithmException("unknown algorithm " + algorithm);
+    }
+
+    /** Creates new secret key, from the KeyPairReservoir if useReservoir is set and one is available. */
+    private PGPKeyPair createKey(SubkeyAdd add, Date creationTime, boolean useReservoir,
+            OperationLog log, int indent) {
 
         try {
             // Some safety checks
@@ -178,7 +229,6 @@ public class PgpKeyOperation {
             }
 
             int algorithm;
-            KeyPairGenerator keyGen;
 
             switch (add.mAlgorithm) {
                 case DSA: {
@@ -187,8 +237,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_dsa, 30);
-                    keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(add.mKeySize, new SecureRandom());
                     algorithm = PGPPublicKey.DSA;
                     break;
                 }
@@ -199,22 +247,12 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_elgamal, 30);
-                    keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    BigInteger p = Primes.getBestPrime(add.mKeySize);
-                    BigInteger g = new BigInteger("2");
-
-                    ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
-
-                    keyGen.initialize(elParams);
                     algorithm = PGPPublicKey.ELGAMAL_ENCRYPT;
                     break;
                 }
 
                 case RSA: {
                     progress(R.string.progress_generating_rsa, 30);
-                    keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(add.mKeySize, new SecureRandom());
-
                     algorithm = PGPPublicKey.RSA_GENERAL;
                     break;
                 }
@@ -225,10 +263,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_ecdsa, 30);
-                    ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
-                    keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(ecParamSpec, new SecureRandom());
-
                     algorithm = PGPPublicKey.ECDSA;
                     break;
                 }
@@ -240,10 +274,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_ecdh, 30);
-                    ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
-                    keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(ecParamSpec, new SecureRandom());
-
                     algorithm = PGPPublicKey.ECDH;
                     break;
                 }
@@ -254,8 +284,18 @@ public class PgpKeyOperation {
                 }
             }
 
+            // use a pre-generated key pair if available, generate a new one otherwise
+            KeyPair keyPair = useReservoir
+                    ? KeyPairReservoir.getInstance().take(add.mAlgorithm, add.mKeySize, add.mCurve)
+                    : null;
+            if (keyPair != null) {
+                log.add(LogType.MSG_CR_KEYPAIR_RESERVOIR, indent);
+            } else {
+                keyPair = getKeyPairGenerator(add.mAlgorithm, add.mKeySize, add.mCurve).generateKeyPair();
+            }
+
             // build new key pair
-            return new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), creationTime);
+            return new JcaPGPKeyPair(algorithm, keyPair, creationTime);
 
         } catch(NoSuchProviderException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException(e);
@@ -304,7 +344,7 @@ public class PgpKeyOperation {
             Date creationTime = new Date();
 
             subProgressPush(10, 30);
-            PGPKeyPair keyPair = createKey(add, creationTime, log, indent);
+            PGPKeyPair keyPair = createKey(add, creationTime, saveParcel.mUseKeyPairReservoir, log, indent);
             subProgressPop();
 
             // return null if this failed (an error will already have been logged by createKey)
@@ -997,7 +1037,8 @@ public class PgpKeyOperation {
                     (i-1) * (100 / saveParcel.mAddSubKeys.size()),
                     i * (100 / saveParcel.mAddSubKeys.size())
                 );
-                PGPKeyPair keyPair = createKey(add, cryptoInput.getSignatureTime(), log, indent);
+                PGPKeyPair keyPair = createKey(add, cryptoInput.getSignatureTime(),
+                        saveParcel.mUseKeyPairReservoir, log, indent);
                 subProgressPop();
                 if (keyPair == null) {
                     log.add(LogType.MSG_MF_ERROR_PGP, indent +1);
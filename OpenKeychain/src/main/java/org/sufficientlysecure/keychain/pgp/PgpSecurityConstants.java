@@ -229,6 +229,11 @@ public class PgpSecurityConstants {
 
     public interface OpenKeychainCompressionAlgorithmTags extends CompressionAlgorithmTags {
         int USE_DEFAULT = -1;
+        /**
+         * Choose an algorithm based on a sample of the data, see CompressionSelector.
+         * This skips compression for data which is already compressed, like images or archives.
+         */
+        int USE_ADAPTIVE = -2;
     }
 
     /**
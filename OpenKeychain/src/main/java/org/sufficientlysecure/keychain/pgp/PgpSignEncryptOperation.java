@@ -110,6 +110,46 @@ public class PgpSignEncryptOperation extends BaseOperation {
         return null;
     }
 
+    /**
+     * Returns the compression algorithm to use. For adaptive compression, this
+     * samples the start of the input, which is rewound afterwards.
+     */
+    private static int getCompressionAlgorithm(int requestedAlgorithm, BufferedInputStream in,
+            long size, boolean allowBzip2, OperationLog log, int indent) throws IOException {
+
+        if (requestedAlgorithm == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
+            return PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+        }
+        if (requestedAlgorithm != PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_ADAPTIVE) {
+            return requestedAlgorithm;
+        }
+
+        byte[] sample = new byte[CompressionSelector.SAMPLE_SIZE];
+        int length = 0, read;
+        in.mark(sample.length);
+        while (length < sample.length && (read = in.read(sample, length, sample.length - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+
+        int algorithm = CompressionSelector.select(sample, length, size, allowBzip2);
+        switch (algorithm) {
+            case CompressionAlgorithmTags.UNCOMPRESSED:
+                log.add(LogType.MSG_PSE_COMPRESSION_SKIPPED, indent);
+                break;
+            case CompressionAlgorithmTags.BZIP2:
+                log.add(LogType.MSG_PSE_COMPRESSION_SELECTED, indent, "BZIP2");
+                break;
+            case CompressionAlgorithmTags.ZLIB:
+                log.add(LogType.MSG_PSE_COMPRESSION_SELECTED, indent, "ZLIB");
+                break;
+            default:
+                log.add(LogType.MSG_PSE_COMPRESSION_SELECTED, indent, "ZIP");
+                break;
+        }
+        return algorithm;
+    }
+
     /**
      * Signs and/or encrypts data based on parameters of class
      */
@@ -241,6 +281,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
         /* Initialize PGPEncryptedDataGenerator for later usage */
         PGPEncryptedDataGenerator cPk = null;
+        // adaptive compression may only choose bzip2 if all recipient keys prefer it
+        boolean recipientsPreferBzip2 = false;
         if (enableEncryption) {
 
             // Use requested encryption algo
@@ -249,9 +291,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 algo = PgpSecurityConstants.DEFAULT_SYMMETRIC_ALGORITHM;
             }
             JcePGPDataEncryptorBuilder encryptorBuilder =
-                    new JcePGPDataEncryptorBuilder(algo)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
-                            .setWithIntegrityPacket(input.isIntegrityProtected());
+                    DataCipherFactory.createEncryptorBuilder(algo, input.isIntegrityProtected());
 
             cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
 
@@ -266,10 +306,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
                 // Asymmetric encryption
+                recipientsPreferBzip2 = true;
                 for (long id : input.getEncryptionMasterKeyIds()) {
                     try {
                         CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
                                 KeyRings.buildUnifiedKeyRingUri(id));
+                        recipientsPreferBzip2 &= keyRing.getPublicKey()
+                                .hasPreferredCompressionAlgorithm(CompressionAlgorithmTags.BZIP2);
                         Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
                         for (Long subKeyId : encryptSubKeyIds) {
                             CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
@@ -314,6 +357,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
         ProgressScaler progressScaler =
                 new ProgressScaler(mProgressable, 8, 95, 100);
         PGPCompressedDataGenerator compressGen = null;
+        int compressionAlgorithm = CompressionAlgorithmTags.UNCOMPRESSED;
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
@@ -322,6 +366,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
         ArmoredOutputStream detachedArmorOut = null;
         BCPGOutputStream detachedBcpgOut = null;
 
+        AsyncSignatureUpdater signatureUpdater = null;
+
         long opTime, startTime = System.currentTimeMillis();
 
         try {
@@ -338,15 +384,15 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
                 encryptionOut = cPk.open(out, new byte[1 << 16]);
 
+                BufferedInputStream in = new BufferedInputStream(inputData.getInputStream());
+
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
-
-                    // Use preferred compression algo
-                    int algo = input.getCompressionAlgorithm();
-                    if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
-                        algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
-                    }
-                    compressGen = new PGPCompressedDataGenerator(algo);
+                    compressionAlgorithm = getCompressionAlgorithm(input.getCompressionAlgorithm(),
+                            in, inputData.getSize(), recipientsPreferBzip2, log, indent + 1);
+                }
+                if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
+                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
                     bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                 } else {
                     bcpgOut = new BCPGOutputStream(encryptionOut);
@@ -369,15 +415,19 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 long alreadyWritten = 0;
                 int length;
                 byte[] buffer = new byte[1 << 16];
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                if (enableSignature) {
+                    signatureUpdater = new AsyncSignatureUpdater(signatureGenerator,
+                            inputData.getSize(), buffer.length);
+                }
                 while ((length = in.read(buffer)) > 0) {
-                    pOut.write(buffer, 0, length);
-
-                    // update signature buffer if signature is requested
+                    // update signature buffer if signature is requested, hashing happens
+                    // in parallel to the encryption for large inputs
                     if (enableSignature) {
-                        signatureGenerator.update(buffer, 0, length);
+                        signatureUpdater.update(buffer, 0, length);
                     }
 
+                    pOut.write(buffer, 0, length);
+
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
                         long progress = 100 * alreadyWritten / inputData.getSize();
@@ -385,6 +435,9 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     }
                 }
 
+                if (enableSignature) {
+                    signatureUpdater.finish();
+                }
                 literalGen.close();
                 indent -= 1;
 
@@ -447,10 +500,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 long alreadyWritten = 0;
                 int length;
                 byte[] buffer = new byte[1 << 16];
+                signatureUpdater = new AsyncSignatureUpdater(signatureGenerator,
+                        inputData.getSize(), buffer.length);
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
-                    signatureGenerator.update(buffer, 0, length);
+                    // hashing happens in parallel to reading the input for large inputs
+                    signatureUpdater.update(buffer, 0, length);
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
@@ -458,6 +514,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                signatureUpdater.finish();
 
                 pOut = null;
             } else if (enableSignature && !input.isCleartextSignature() && !input.isDetachedSignature()) {
@@ -466,10 +523,16 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_signing, 8, 100);
                 log.add(LogType.MSG_PSE_SIGNING, indent);
 
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                BufferedInputStream in = new BufferedInputStream(inputData.getInputStream());
 
                 if (enableCompression) {
-                    compressGen = new PGPCompressedDataGenerator(input.getCompressionAlgorithm());
+                    log.add(LogType.MSG_PSE_COMPRESSING, indent);
+                    // signed data may be read by anyone, so there are no preferences to go by
+                    compressionAlgorithm = getCompressionAlgorithm(input.getCompressionAlgorithm(),
+                            in, inputData.getSize(), false, log, indent + 1);
+                }
+                if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
+                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
                     bcpgOut = new BCPGOutputStream(compressGen.open(out));
                 } else {
                     bcpgOut = new BCPGOutputStream(out);
@@ -485,10 +548,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 long alreadyWritten = 0;
                 int length;
                 byte[] buffer = new byte[1 << 16];
+                signatureUpdater = new AsyncSignatureUpdater(signatureGenerator,
+                        inputData.getSize(), buffer.length);
                 while ((length = in.read(buffer)) > 0) {
-                    pOut.write(buffer, 0, length);
+                    // hashing happens in parallel to the compression for large inputs
+                    signatureUpdater.update(buffer, 0, length);
 
-                    signatureGenerator.update(buffer, 0, length);
+                    pOut.write(buffer, 0, length);
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
@@ -496,6 +562,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                signatureUpdater.finish();
 
                 literalGen.close();
             } else {
@@ -525,11 +592,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             // closing outputs
             // NOTE: closing needs to be done in the correct order!
+            if (compressGen != null) {
+                compressGen.close();
+            }
             if (encryptionOut != null) {
-                if (compressGen != null) {
-                    compressGen.close();
-                }
-
                 encryptionOut.close();
             }
             // Note: Closing ArmoredOutputStream does not close the underlying stream
@@ -560,6 +626,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            if (signatureUpdater != null) {
+                signatureUpdater.cancel();
+            }
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -567,6 +637,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
         log.add(LogType.MSG_PSE_OK, indent);
         PgpSignEncryptResult result = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_OK, log);
         result.mOperationTime = opTime;
+        result.setCompressionAlgorithm(compressionAlgorithm);
         if (detachedByteOut != null) {
             try {
                 detachedByteOut.flush();
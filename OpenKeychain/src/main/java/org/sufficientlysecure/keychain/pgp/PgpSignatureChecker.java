@@ -7,6 +7,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SignatureException;
+import java.util.Map;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.openpgp.PGPException;
@@ -39,10 +40,53 @@ class PgpSignatureChecker {
 
     ProviderHelper mProviderHelper;
 
+    // signing keys which were already looked up, null values mark unknown keys
+    private Map<Long, CanonicalizedPublicKey> mResolvedKeys;
+    private JcaPGPContentVerifierBuilderProvider mContentVerifierBuilderProvider;
+
     PgpSignatureChecker(ProviderHelper providerHelper) {
         mProviderHelper = providerHelper;
     }
 
+    /** Creates a checker which looks up signing keys in resolvedKeys before asking the database.
+     *
+     * This allows checking many signatures by the same keys without repeated database queries,
+     * and, since no state is shared, to use one checker per thread.
+     */
+    PgpSignatureChecker(ProviderHelper providerHelper, Map<Long, CanonicalizedPublicKey> resolvedKeys,
+            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider) {
+        mProviderHelper = providerHelper;
+        mResolvedKeys = resolvedKeys;
+        mContentVerifierBuilderProvider = contentVerifierBuilderProvider;
+    }
+
+    private JcaPGPContentVerifierBuilderProvider getContentVerifierBuilderProvider() {
+        if (mContentVerifierBuilderProvider == null) {
+            mContentVerifierBuilderProvider = new JcaPGPContentVerifierBuilderProvider()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        }
+        return mContentVerifierBuilderProvider;
+    }
+
+    /** Looks up the key with the given id in the database, returns null if it is unknown. */
+    static CanonicalizedPublicKey lookupSigningKey(ProviderHelper providerHelper, long sigKeyId) {
+        try {
+            CanonicalizedPublicKeyRing signingRing = providerHelper.getCanonicalizedPublicKeyRing(
+                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
+            );
+            return signingRing.getPublicKey(sigKeyId);
+        } catch (ProviderHelper.NotFoundException e) {
+            return null;
+        }
+    }
+
+    private CanonicalizedPublicKey getSigningKey(long sigKeyId) {
+        if (mResolvedKeys != null && mResolvedKeys.containsKey(sigKeyId)) {
+            return mResolvedKeys.get(sigKeyId);
+        }
+        return lookupSigningKey(mProviderHelper, sigKeyId);
+    }
+
     boolean initializeSignature(Object dataChunk, OperationLog log, int indent) throws PGPException {
 
         if (!(dataChunk instanceof PGPSignatureList)) {
@@ -57,10 +101,7 @@ class PgpSignatureChecker {
             // key found in our database!
             signatureResultBuilder.initValid(signingKey);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
+            signature.init(getContentVerifierBuilderProvider(), signingKey.getPublicKey());
             checkKeySecurity(log, indent);
 
 
@@ -92,10 +133,7 @@ class PgpSignatureChecker {
             // key found in our database!
             signatureResultBuilder.initValid(signingKey);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            onePassSignature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
+            onePassSignature.init(getContentVerifierBuilderProvider(), signingKey.getPublicKey());
 
             checkKeySecurity(log, indent);
 
@@ -127,22 +165,19 @@ class PgpSignatureChecker {
         // go through all signatures (should be just one), make sure we have
         //  the key and it matches the one we’re looking for
         for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
-                    continue;
-                }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                onePassSignature = sigList.get(i);
-                return;
-            } catch (ProviderHelper.NotFoundException e) {
+            long sigKeyId = sigList.get(i).getKeyID();
+            CanonicalizedPublicKey keyCandidate = getSigningKey(sigKeyId);
+            if (keyCandidate == null) {
                 Log.d(Constants.TAG, "key not found, trying next signature...");
+                continue;
             }
+            if ( ! keyCandidate.canSign()) {
+                continue;
+            }
+            signatureIndex = i;
+            signingKey = keyCandidate;
+            onePassSignature = sigList.get(i);
+            return;
         }
     }
 
@@ -150,22 +185,19 @@ class PgpSignatureChecker {
         // go through all signatures (should be just one), make sure we have
         //  the key and it matches the one we’re looking for
         for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
-                    continue;
-                }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                signature = sigList.get(i);
-                return;
-            } catch (ProviderHelper.NotFoundException e) {
+            long sigKeyId = sigList.get(i).getKeyID();
+            CanonicalizedPublicKey keyCandidate = getSigningKey(sigKeyId);
+            if (keyCandidate == null) {
                 Log.d(Constants.TAG, "key not found, trying next signature...");
+                continue;
+            }
+            if ( ! keyCandidate.canSign()) {
+                continue;
             }
+            signatureIndex = i;
+            signingKey = keyCandidate;
+            signature = sigList.get(i);
+            return;
         }
     }
 
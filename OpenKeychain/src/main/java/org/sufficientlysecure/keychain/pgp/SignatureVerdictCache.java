@@ -0,0 +1,227 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spongycastle.bcpg.UserAttributeSubpacket;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Log;
+
+/** Remembers the outcome of signature verifications during canonicalization.
+ *
+ * Each verdict is stored under a SHA-256 digest of everything the verification
+ * depends on: the encoded signature, the signing key, the key it is made on,
+ * and the signed user id, user attribute or subkey. A verdict can therefore
+ * only ever be reused for the exact same verification.
+ *
+ * Keyrings stored in the database are canonicalized, so all self-certificates
+ * they contain have been verified before. These are added to the cache using
+ * addCanonicalized before a keyring is merged with new data, so that the
+ * following canonicalization only verifies the packets which actually changed.
+ *
+ */
+public class SignatureVerdictCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 8192;
+
+    private static final byte TARGET_KEY = 0;
+    private static final byte TARGET_USER_ID = 1;
+    private static final byte TARGET_USER_ATTRIBUTE = 2;
+    private static final byte TARGET_SUBKEY = 3;
+
+    private static SignatureVerdictCache sInstance;
+
+    public static synchronized SignatureVerdictCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SignatureVerdictCache(DEFAULT_MAX_ENTRIES);
+        }
+        return sInstance;
+    }
+
+    private final LinkedHashMap<ByteBuffer, Boolean> mVerdicts;
+    private long mHits, mMisses;
+
+    public SignatureVerdictCache(final int maxEntries) {
+        // access ordered, so the least recently used verdict is dropped first
+        mVerdicts = new LinkedHashMap<ByteBuffer, Boolean>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Returns the cached verdict for this digest, or null if it is unknown. */
+    synchronized Boolean get(byte[] digest) {
+        Boolean verdict = mVerdicts.get(ByteBuffer.wrap(digest));
+        if (verdict == null) {
+            mMisses += 1;
+        } else {
+            mHits += 1;
+        }
+        return verdict;
+    }
+
+    synchronized void put(byte[] digest, boolean verdict) {
+        mVerdicts.put(ByteBuffer.wrap(digest), verdict);
+    }
+
+    public synchronized void clear() {
+        mVerdicts.clear();
+    }
+
+    public synchronized int size() {
+        return mVerdicts.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** Marks all self-certificates of an already canonicalized keyring as valid.
+     *
+     * Embedded primary key binding signatures are not added, since canonicalization
+     * only verifies those for subkeys which are capable of signing.
+     *
+     */
+    public void addCanonicalized(CanonicalizedKeyRing keyRing) {
+        PGPKeyRing ring = keyRing.getRing();
+        PGPPublicKey masterKey = ring.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+        int count = 0;
+
+        try {
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+                put(digest(sig, masterKey), true);
+                count += 1;
+            }
+
+            for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+                @SuppressWarnings("unchecked")
+                Iterator<PGPSignature> it = masterKey.getSignaturesForID(rawUserId);
+                if (it == null) {
+                    continue;
+                }
+                for (PGPSignature sig : new IterableIterator<>(it)) {
+                    if (sig.getKeyID() == masterKeyId) {
+                        put(digest(sig, masterKey, rawUserId), true);
+                        count += 1;
+                    }
+                }
+            }
+
+            for (PGPUserAttributeSubpacketVector userAttribute :
+                    new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+                @SuppressWarnings("unchecked")
+                Iterator<PGPSignature> it = masterKey.getSignaturesForUserAttribute(userAttribute);
+                if (it == null) {
+                    continue;
+                }
+                for (PGPSignature sig : new IterableIterator<>(it)) {
+                    if (sig.getKeyID() == masterKeyId) {
+                        put(digest(sig, masterKey, userAttribute), true);
+                        count += 1;
+                    }
+                }
+            }
+
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+                if (key.isMasterKey()) {
+                    continue;
+                }
+                for (PGPSignature sig : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                    put(digest(sig, masterKey, masterKey, key), true);
+                    count += 1;
+                }
+            }
+        } catch (IOException e) {
+            // not a problem, these signatures will just be verified again
+            Log.e(Constants.TAG, "error adding keyring to verdict cache", e);
+        }
+
+        Log.d(Constants.TAG, "added " + count + " verified signatures to verdict cache");
+    }
+
+    /** Digest for a signature made by the master key on itself. */
+    static byte[] digest(PGPSignature sig, PGPPublicKey masterKey) throws IOException {
+        return digest(TARGET_KEY, sig, masterKey, masterKey, null);
+    }
+
+    /** Digest for a certification of a user id by the master key. */
+    static byte[] digest(PGPSignature sig, PGPPublicKey masterKey, byte[] rawUserId)
+            throws IOException {
+        return digest(TARGET_USER_ID, sig, masterKey, masterKey, rawUserId);
+    }
+
+    /** Digest for a certification of a user attribute by the master key. */
+    static byte[] digest(PGPSignature sig, PGPPublicKey masterKey,
+            PGPUserAttributeSubpacketVector userAttribute) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (UserAttributeSubpacket subpacket : userAttribute.toSubpacketArray()) {
+            subpacket.encode(out);
+        }
+        return digest(TARGET_USER_ATTRIBUTE, sig, masterKey, masterKey, out.toByteArray());
+    }
+
+    /** Digest for a subkey binding, or for a primary key binding if signer is the subkey. */
+    static byte[] digest(PGPSignature sig, PGPPublicKey signer, PGPPublicKey masterKey,
+            PGPPublicKey subKey) throws IOException {
+        return digest(TARGET_SUBKEY, sig, signer, masterKey,
+                subKey.getPublicKeyPacket().getEncodedContents());
+    }
+
+    private static byte[] digest(byte targetType, PGPSignature sig, PGPPublicKey signer,
+            PGPPublicKey masterKey, byte[] target) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+        md.update(targetType);
+        update(md, sig.getEncoded());
+        update(md, signer.getPublicKeyPacket().getEncodedContents());
+        update(md, masterKey.getPublicKeyPacket().getEncodedContents());
+        if (target != null) {
+            update(md, target);
+        }
+        return md.digest();
+    }
+
+    /** Length prefixed update, so different splits of the same bytes lead to different digests. */
+    private static void update(MessageDigest md, byte[] data) {
+        md.update(ByteBuffer.allocate(4).putInt(data.length).array());
+        md.update(data);
+    }
+
+}
@@ -27,21 +27,30 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.BCPGInputStream;
+import org.spongycastle.bcpg.Packet;
+import org.spongycastle.bcpg.PacketTags;
 import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyPacket;
+import org.spongycastle.bcpg.SecretKeyPacket;
+import org.spongycastle.bcpg.SignaturePacket;
 import org.spongycastle.bcpg.SignatureSubpacketTags;
 import org.spongycastle.bcpg.UserAttributeSubpacketTags;
 import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPKeyRing;
-import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
@@ -51,13 +60,11 @@ import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
 import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
-import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
-import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Utf8Util;
 
 /** Wrapper around PGPKeyRing class, to be constructed from bytes.
@@ -157,44 +164,162 @@ public class UncachedKeyRing {
 
     }
 
+    /** Writes an encoded key ring to a stream packet by packet, without decoding it.
+     *
+     * Only the packet headers are parsed, and packets are copied as they are, so this takes
+     * no memory beyond the encoded data itself. If stripThirdPartyCertifications is set,
+     * signatures on user ids and user attributes which are not issued by the master key
+     * itself are left out on the way, which only requires parsing those signature packets.
+     *
+     * The data must be a single key ring as stored in the database, i.e. it may not use
+     * partial or indeterminate packet lengths.
+     */
+    public static void encodeFromData(byte[] data, OutputStream out,
+            boolean stripThirdPartyCertifications) throws PgpGeneralException, IOException {
+
+        Long masterKeyId = null;
+        boolean inUserPacket = false;
+
+        int pos = 0;
+        try {
+            while (pos < data.length) {
+                int packetStart = pos;
+                int tagByte = data[pos++] & 0xff;
+                if ((tagByte & 0x80) == 0) {
+                    throw new PgpGeneralException("Invalid packet header in key ring");
+                }
+
+                int tag;
+                long bodyLength;
+                if ((tagByte & 0x40) != 0) {
+                    // new format packet header
+                    tag = tagByte & 0x3f;
+                    int first = data[pos++] & 0xff;
+                    if (first < 192) {
+                        bodyLength = first;
+                    } else if (first <= 223) {
+                        bodyLength = ((first - 192) << 8) + (data[pos++] & 0xff) + 192;
+                    } else if (first == 255) {
+                        bodyLength = readLength(data, pos, 4);
+                        pos += 4;
+                    } else {
+                        throw new PgpGeneralException("Partial body length in key ring");
+                    }
+                } else {
+                    // old format packet header
+                    tag = (tagByte & 0x3f) >> 2;
+                    int lengthType = tagByte & 0x03;
+                    if (lengthType == 3) {
+                        throw new PgpGeneralException("Indeterminate packet length in key ring");
+                    }
+                    int lengthBytes = 1 << lengthType;
+                    bodyLength = readLength(data, pos, lengthBytes);
+                    pos += lengthBytes;
+                }
+
+                long packetEnd = pos + bodyLength;
+                if (packetEnd > data.length) {
+                    throw new PgpGeneralException("Truncated packet in key ring");
+                }
+
+                boolean skip = false;
+                switch (tag) {
+                    case PacketTags.PUBLIC_KEY:
+                    case PacketTags.SECRET_KEY:
+                        if (masterKeyId == null) {
+                            masterKeyId = readKeyId(data, packetStart, (int) packetEnd);
+                        }
+                        inUserPacket = false;
+                        break;
+                    case PacketTags.PUBLIC_SUBKEY:
+                    case PacketTags.SECRET_SUBKEY:
+                        inUserPacket = false;
+                        break;
+                    case PacketTags.USER_ID:
+                    case PacketTags.USER_ATTRIBUTE:
+                        inUserPacket = true;
+                        break;
+                    case PacketTags.SIGNATURE:
+                        if (stripThirdPartyCertifications && inUserPacket) {
+                            if (masterKeyId == null) {
+                                throw new PgpGeneralException("Key ring does not start with a key");
+                            }
+                            Packet packet = new BCPGInputStream(new ByteArrayInputStream(
+                                    data, packetStart, (int) packetEnd - packetStart)).readPacket();
+                            skip = ((SignaturePacket) packet).getKeyID() != masterKeyId;
+                        }
+                        break;
+                }
+
+                if (!skip) {
+                    out.write(data, packetStart, (int) packetEnd - packetStart);
+                }
+                pos = (int) packetEnd;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new PgpGeneralException("Truncated packet header in key ring");
+        }
+
+        if (masterKeyId == null) {
+            throw new PgpGeneralException("Object not recognized as PGPKeyRing!");
+        }
+
+    }
+
+    private static long readLength(byte[] data, int pos, int bytes) {
+        long length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | (data[pos + i] & 0xff);
+        }
+        return length;
+    }
+
+    private static long readKeyId(byte[] data, int start, int end) throws IOException {
+        Packet packet = new BCPGInputStream(
+                new ByteArrayInputStream(data, start, end - start)).readPacket();
+        PublicKeyPacket keyPacket = packet instanceof SecretKeyPacket
+                ? ((SecretKeyPacket) packet).getPublicKeyPacket()
+                : (PublicKeyPacket) packet;
+        try {
+            return new PGPPublicKey(keyPacket, new JcaKeyFingerprintCalculator()).getKeyID();
+        } catch (PGPException e) {
+            throw new IOException("Invalid master key packet", e);
+        }
+    }
+
+    /** Returns an iterator over all keyrings in a stream of binary or armored data.
+     *
+     * Each (de-armored) block of the stream is split into keyrings by its packet headers,
+     * which are then parsed in parallel, see ParallelKeyRingParser.
+     */
     public static IteratorWithIOThrow<UncachedKeyRing> fromStream(final InputStream stream) {
 
         return new IteratorWithIOThrow<UncachedKeyRing>() {
 
             UncachedKeyRing mNext = null;
-            PGPObjectFactory mObjectFactory = null;
+            ParallelKeyRingParser mParser = null;
+            Iterator<UncachedKeyRing> mSliceRings = null;
 
             private void cacheNext() throws IOException {
                 if (mNext != null) {
                     return;
                 }
 
-                try {
-                    while (stream.available() > 0) {
-                        // if there are no objects left from the last factory, create a new one
-                        if (mObjectFactory == null) {
-                            InputStream in = PGPUtil.getDecoderStream(stream);
-                            mObjectFactory = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
-                        }
-
-                        // go through all objects in this block
-                        Object obj;
-                        while ((obj = mObjectFactory.nextObject()) != null) {
-                            Log.d(Constants.TAG, "Found class: " + obj.getClass());
-                            if (!(obj instanceof PGPKeyRing)) {
-                                Log.i(Constants.TAG,
-                                        "Skipping object of bad type " + obj.getClass().getName() + " in stream");
-                                // skip object
-                                continue;
-                            }
-                            mNext = new UncachedKeyRing((PGPKeyRing) obj);
-                            return;
-                        }
-                        // if we are past the while loop, that means the objectFactory had no next
-                        mObjectFactory = null;
+                while (true) {
+                    if (mSliceRings != null && mSliceRings.hasNext()) {
+                        mNext = mSliceRings.next();
+                        return;
+                    }
+                    if (mParser != null && mParser.hasNext()) {
+                        mSliceRings = mParser.next().mRings.iterator();
+                        continue;
+                    }
+                    // if there are no slices left from the last block, start a new one
+                    if (stream.available() <= 0) {
+                        return;
                     }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    throw new IOException(e);
+                    InputStream in = PGPUtil.getDecoderStream(stream);
+                    mParser = new ParallelKeyRingParser(new KeyRingSplitter(in));
                 }
             }
 
@@ -295,8 +420,19 @@ public class UncachedKeyRing {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, SignatureVerdictCache.getInstance());
+    }
+
+    /** "Canonicalizes" a public key, as above.
+     *
+     * Verdicts of signature verifications are looked up in and added to the given
+     * cache, so signatures which were verified before are not verified again.
+     *
+     */
+    @SuppressWarnings("ConstantConditions")
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            SignatureVerdictCache verdictCache) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -366,8 +502,7 @@ public class UncachedKeyRing {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!cert.verifySignature(masterKey, verdictCache)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
                         badCerts += 1;
@@ -523,8 +658,7 @@ public class UncachedKeyRing {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!cert.verifySignature(masterKey, rawUserId, verdictCache)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
@@ -688,8 +822,7 @@ public class UncachedKeyRing {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!cert.verifySignature(masterKey, userAttribute, verdictCache)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
@@ -878,8 +1011,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!cert.verifySignature(masterKey, masterKey, key, verdictCache)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -919,8 +1051,7 @@ public class UncachedKeyRing {
                             for (int i = 0; i < list.size(); i++) {
                                 WrappedSignature subsig = new WrappedSignature(list.get(i));
                                 if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
-                                    subsig.init(key);
-                                    if (subsig.verifySignature(masterKey, key)) {
+                                    if (subsig.verifySignature(key, masterKey, key, verdictCache)) {
                                         ok = true;
                                     } else {
                                         log.add(LogType.MSG_KC_SUB_PRIMARY_BAD, indent);
@@ -962,8 +1093,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!cert.verifySignature(masterKey, masterKey, key, verdictCache)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1042,6 +1172,189 @@ public class UncachedKeyRing {
                           : new CanonicalizedPublicKeyRing((PGPPublicKeyRing) ring, 0);
     }
 
+    /** Returns the ids of all keys other than the master key which certified a user id or
+     * user attribute of this keyring.
+     */
+    public Set<Long> getForeignCertificationIssuers() {
+        long masterKeyId = getMasterKeyId();
+        PGPPublicKey masterKey = mRing.getPublicKey();
+
+        Set<Long> issuers = new HashSet<>();
+        for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForID(rawUserId);
+            addForeignIssuers(issuers, signaturesIt, masterKeyId);
+        }
+        for (PGPUserAttributeSubpacketVector vector :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForUserAttribute(vector);
+            addForeignIssuers(issuers, signaturesIt, masterKeyId);
+        }
+        return issuers;
+    }
+
+    private static void addForeignIssuers(Set<Long> issuers, Iterator<PGPSignature> signaturesIt,
+            long masterKeyId) {
+        if (signaturesIt == null) {
+            return;
+        }
+        for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+            if (cert.getKeyID() != masterKeyId) {
+                issuers.add(cert.getKeyID());
+            }
+        }
+    }
+
+    /** This operation drops certifications by other keys from keyrings which carry too many
+     * of them, returning a pruned UncachedKeyRing.
+     *
+     * Certifications by the master key itself and by the given known keys are always kept. Of
+     * the remaining issuers, only the maxOtherIssuers ones with the most recent certifications
+     * are kept per user id and user attribute. All certifications of a kept issuer are kept,
+     * so revocations are never separated from the certifications they revoke.
+     *
+     * No signatures are verified here, so this is cheap compared to canonicalization, and
+     * should be done before merging and canonicalizing a keyring.
+     *
+     * @return A keyring without the dropped certifications, or this object if nothing was dropped.
+     *
+     */
+    public UncachedKeyRing pruneCertifications(Set<Long> knownIssuers, int maxOtherIssuers,
+            OperationLog log, int indent) {
+
+        long masterKeyId = getMasterKeyId();
+        PGPPublicKey masterKey = mRing.getPublicKey();
+        PGPPublicKey modified = masterKey;
+
+        int droppedCerts = 0;
+        long droppedBytes = 0;
+        Set<Long> droppedIssuers = new HashSet<>();
+
+        try {
+            // once a user id is re-added it moves to the end, so all following ones are re-added
+            // as well to keep them in their original order
+            boolean reorder = false;
+
+            for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+                @SuppressWarnings("unchecked")
+                Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForID(rawUserId);
+                if (signaturesIt == null) {
+                    continue;
+                }
+                List<PGPSignature> certs = new ArrayList<>();
+                for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                    certs.add(cert);
+                }
+
+                List<PGPSignature> kept = selectCertifications(
+                        certs, masterKeyId, knownIssuers, maxOtherIssuers, droppedIssuers);
+                if (kept.isEmpty() || (!reorder && kept.size() == certs.size())) {
+                    continue;
+                }
+
+                for (PGPSignature cert : certs) {
+                    if (!kept.contains(cert)) {
+                        droppedCerts += 1;
+                        droppedBytes += cert.getEncoded().length;
+                    }
+                }
+                modified = PGPPublicKey.removeCertification(modified, rawUserId);
+                for (PGPSignature cert : kept) {
+                    modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
+                }
+                reorder = true;
+            }
+
+            for (PGPUserAttributeSubpacketVector vector :
+                    new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+                @SuppressWarnings("unchecked")
+                Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForUserAttribute(vector);
+                if (signaturesIt == null) {
+                    continue;
+                }
+                List<PGPSignature> certs = new ArrayList<>();
+                for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                    certs.add(cert);
+                }
+
+                List<PGPSignature> kept = selectCertifications(
+                        certs, masterKeyId, knownIssuers, maxOtherIssuers, droppedIssuers);
+                if (kept.isEmpty() || (!reorder && kept.size() == certs.size())) {
+                    continue;
+                }
+
+                for (PGPSignature cert : certs) {
+                    if (!kept.contains(cert)) {
+                        droppedCerts += 1;
+                        droppedBytes += cert.getEncoded().length;
+                    }
+                }
+                modified = PGPPublicKey.removeCertification(modified, vector);
+                for (PGPSignature cert : kept) {
+                    modified = PGPPublicKey.addCertification(modified, vector, cert);
+                }
+                reorder = true;
+            }
+        } catch (IOException e) {
+            log.add(LogType.MSG_IP_PRUNE_ERROR_IO, indent);
+            return this;
+        }
+
+        if (droppedCerts == 0) {
+            return this;
+        }
+
+        log.add(LogType.MSG_IP_PRUNE, indent, Integer.toString(droppedCerts),
+                Long.toString(droppedBytes), Integer.toString(droppedIssuers.size()));
+        return new UncachedKeyRing(replacePublicKey(mRing, modified));
+
+    }
+
+    /** Selects the certifications of a single user id or user attribute which are kept by
+     * pruneCertifications, in their original order. Issuers which are dropped are added to
+     * droppedIssuers.
+     */
+    private static List<PGPSignature> selectCertifications(List<PGPSignature> certs,
+            long masterKeyId, Set<Long> knownIssuers, int maxOtherIssuers, Set<Long> droppedIssuers) {
+
+        // most recent certification of each other issuer
+        final HashMap<Long, Date> latest = new HashMap<>();
+        for (PGPSignature cert : certs) {
+            long issuer = cert.getKeyID();
+            if (issuer == masterKeyId || knownIssuers.contains(issuer)) {
+                continue;
+            }
+            Date creationTime = cert.getCreationTime();
+            Date previous = latest.get(issuer);
+            if (previous == null || creationTime.after(previous)) {
+                latest.put(issuer, creationTime);
+            }
+        }
+
+        if (latest.size() <= maxOtherIssuers) {
+            return certs;
+        }
+
+        List<Long> issuers = new ArrayList<>(latest.keySet());
+        Collections.sort(issuers, new Comparator<Long>() {
+            @Override
+            public int compare(Long left, Long right) {
+                return latest.get(right).compareTo(latest.get(left));
+            }
+        });
+        Set<Long> dropped = new HashSet<>(issuers.subList(maxOtherIssuers, issuers.size()));
+        droppedIssuers.addAll(dropped);
+
+        List<PGPSignature> kept = new ArrayList<>();
+        for (PGPSignature cert : certs) {
+            if (!dropped.contains(cert.getKeyID())) {
+                kept.add(cert);
+            }
+        }
+        return kept;
+    }
+
     /** This operation merges information from a different keyring, returning a combined
      * UncachedKeyRing.
      *
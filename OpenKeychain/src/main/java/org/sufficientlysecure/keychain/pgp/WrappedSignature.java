@@ -212,6 +212,96 @@ public class WrappedSignature {
         }
     }
 
+    /** Verifies a key signature, reusing the verdict of an identical earlier verification. */
+    boolean verifySignature(PGPPublicKey masterKey, SignatureVerdictCache cache)
+            throws PgpGeneralException {
+        byte[] digest = null;
+        try {
+            digest = SignatureVerdictCache.digest(mSig, masterKey);
+            Boolean verdict = cache.get(digest);
+            if (verdict != null) {
+                return verdict;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not compute signature digest", e);
+        }
+
+        init(masterKey);
+        boolean verdict = verifySignature(masterKey);
+        if (digest != null) {
+            cache.put(digest, verdict);
+        }
+        return verdict;
+    }
+
+    /** Verifies a user id certification, reusing the verdict of an identical earlier verification. */
+    boolean verifySignature(PGPPublicKey masterKey, byte[] rawUserId, SignatureVerdictCache cache)
+            throws PgpGeneralException {
+        byte[] digest = null;
+        try {
+            digest = SignatureVerdictCache.digest(mSig, masterKey, rawUserId);
+            Boolean verdict = cache.get(digest);
+            if (verdict != null) {
+                return verdict;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not compute signature digest", e);
+        }
+
+        init(masterKey);
+        boolean verdict = verifySignature(masterKey, rawUserId);
+        if (digest != null) {
+            cache.put(digest, verdict);
+        }
+        return verdict;
+    }
+
+    /** Verifies a user attribute certification, reusing the verdict of an identical earlier verification. */
+    boolean verifySignature(PGPPublicKey masterKey, PGPUserAttributeSubpacketVector attribute,
+            SignatureVerdictCache cache) throws PgpGeneralException {
+        byte[] digest = null;
+        try {
+            digest = SignatureVerdictCache.digest(mSig, masterKey, attribute);
+            Boolean verdict = cache.get(digest);
+            if (verdict != null) {
+                return verdict;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not compute signature digest", e);
+        }
+
+        init(masterKey);
+        boolean verdict = verifySignature(masterKey, attribute);
+        if (digest != null) {
+            cache.put(digest, verdict);
+        }
+        return verdict;
+    }
+
+    /** Verifies a subkey binding made by signer, which is either the master key or the
+     * subkey itself, reusing the verdict of an identical earlier verification.
+     */
+    boolean verifySignature(PGPPublicKey signer, PGPPublicKey masterKey, PGPPublicKey subKey,
+            SignatureVerdictCache cache) throws PgpGeneralException {
+        byte[] digest = null;
+        try {
+            digest = SignatureVerdictCache.digest(mSig, signer, masterKey, subKey);
+            Boolean verdict = cache.get(digest);
+            if (verdict != null) {
+                return verdict;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not compute signature digest", e);
+        }
+
+        init(signer);
+        boolean verdict = verifySignature(masterKey, subKey);
+        if (digest != null) {
+            cache.put(digest, verdict);
+        }
+        return verdict;
+    }
+
     public boolean verifySignature(UncachedPublicKey key, byte[] rawUserId) throws PgpGeneralException {
         return verifySignature(key.getPublicKey(), rawUserId);
     }
@@ -0,0 +1,448 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.spongycastle.openpgp.PGPSignature;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Trust;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * In-memory graph of certifications between the keys in the database, used to compute how
+ * far each key is from the user's own keys.
+ * <p/>
+ * Every key with a secret part is a trust root. A certification by a key on the user id of
+ * another key is an edge between the two, weighted by the certification type. The trust depth
+ * of a key is the length of its shortest certification path from a root, up to
+ * Trust.MAX_DEPTH, and its trust amount is the largest weight any such path has at its weakest
+ * edge. Revoked keys are never trusted, and don't pass trust on.
+ * <p/>
+ * The graph is built from the database on first use. After that, changed keys are only
+ * marked dirty, and the next refresh reloads them and recomputes them and the keys they
+ * certified, but nothing else.
+ */
+class KeyTrustGraph {
+
+    static final int UNREACHABLE = -1;
+
+    private static class Node {
+        final long mMasterKeyId;
+        boolean mIsRoot;
+        boolean mIsRevoked;
+        /** certifier master key id -> weight of its strongest certification on this key */
+        HashMap<Long, Integer> mCertifiers = new HashMap<>();
+
+        int mDepth = UNREACHABLE;
+        int mAmount = 0;
+
+        Node(long masterKeyId) {
+            mMasterKeyId = masterKeyId;
+        }
+    }
+
+    /** Queue entries keep their priority, the node's value may improve while it is queued */
+    private static final Comparator<long[]> QUEUE_ORDER = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] lhs, long[] rhs) {
+            return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+        }
+    };
+
+    private final HashMap<Long, Node> mNodes = new HashMap<>();
+    /** certifier master key id -> certified master key ids. kept even while the certifier is absent */
+    private final HashMap<Long, HashSet<Long>> mCertified = new HashMap<>();
+
+    /*
+     * Invalidation happens within the transactions of the provider, so it must not wait for the
+     * lock of the graph, which may be held by a refresh that waits for the database connection.
+     */
+    private volatile boolean mAllDirty = true;
+    private final Set<Long> mDirtyKeys = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /** Serializes refreshes, so an older read of a key is never applied after a newer one */
+    private final Object mRefreshLock = new Object();
+
+    /** The key ring with this master key id was saved or deleted */
+    void invalidate(long masterKeyId) {
+        mDirtyKeys.add(masterKeyId);
+    }
+
+    /** Any number of key rings changed, e.g. the whole database was cleared */
+    void invalidateAll() {
+        mAllDirty = true;
+    }
+
+    /**
+     * Brings the graph up to date with the database. The database is read without holding the
+     * lock of the graph, so this must not be called from within a transaction.
+     */
+    void refresh(SQLiteDatabase db) {
+        synchronized (mRefreshLock) {
+            if (mAllDirty) {
+                long start = System.currentTimeMillis();
+                // reset first, so invalidations during the read are not lost
+                mAllDirty = false;
+                mDirtyKeys.clear();
+                LoadedKeys loaded = load(db, null);
+                synchronized (this) {
+                    mNodes.clear();
+                    mCertified.clear();
+                    apply(loaded);
+                    recompute(mNodes.keySet());
+                }
+                Log.d(Constants.TAG, "Trust graph of " + loaded.mKeys.size() + " keys built in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                return;
+            }
+
+            if (mDirtyKeys.isEmpty()) {
+                return;
+            }
+            HashSet<Long> changedKeys = new HashSet<>();
+            LoadedKeys loaded = new LoadedKeys();
+            for (Iterator<Long> it = mDirtyKeys.iterator(); it.hasNext(); ) {
+                long masterKeyId = it.next();
+                it.remove();
+                changedKeys.add(masterKeyId);
+                loaded.addAll(load(db, masterKeyId));
+            }
+            synchronized (this) {
+                for (long masterKeyId : changedKeys) {
+                    removeNode(masterKeyId);
+                }
+                apply(loaded);
+                recompute(getCertifiedClosure(changedKeys));
+            }
+        }
+    }
+
+    /** Sets or replaces a key, and recomputes everything which depends on it. */
+    synchronized void setKey(long masterKeyId, boolean isRoot, boolean isRevoked,
+                             HashMap<Long, Integer> certifiers) {
+        removeNode(masterKeyId);
+        Node node = addNode(masterKeyId, isRoot, isRevoked);
+        for (HashMap.Entry<Long, Integer> certifier : certifiers.entrySet()) {
+            addCertification(node, certifier.getKey(), certifier.getValue());
+        }
+        recompute(getCertifiedClosure(Collections.singleton(masterKeyId)));
+    }
+
+    /** Removes a key, and recomputes everything which depends on it. */
+    synchronized void removeKey(long masterKeyId) {
+        removeNode(masterKeyId);
+        recompute(getCertifiedClosure(Collections.singleton(masterKeyId)));
+    }
+
+    synchronized boolean contains(long masterKeyId) {
+        return mNodes.containsKey(masterKeyId);
+    }
+
+    synchronized long[] getMasterKeyIds() {
+        long[] result = new long[mNodes.size()];
+        int i = 0;
+        for (long masterKeyId : mNodes.keySet()) {
+            result[i++] = masterKeyId;
+        }
+        return result;
+    }
+
+    /** @return trust depth of the key, or UNREACHABLE */
+    synchronized int getDepth(long masterKeyId) {
+        Node node = mNodes.get(masterKeyId);
+        return node == null ? UNREACHABLE : node.mDepth;
+    }
+
+    synchronized int getAmount(long masterKeyId) {
+        Node node = mNodes.get(masterKeyId);
+        return node == null ? 0 : node.mAmount;
+    }
+
+    /** Weight of a certification of this type, 0 if it carries no trust */
+    static int getCertificationWeight(int signatureType) {
+        switch (signatureType) {
+            case PGPSignature.DEFAULT_CERTIFICATION:
+            case PGPSignature.POSITIVE_CERTIFICATION:
+                return Trust.AMOUNT_FULL;
+            case PGPSignature.CASUAL_CERTIFICATION:
+                return Trust.AMOUNT_MARGINAL;
+            default:
+                // persona certifications explicitly make no statement about the key
+                return 0;
+        }
+    }
+
+    /** Keys and certifications as read from the database, before they are added to the graph */
+    private static class LoadedKeys {
+        /** entries are { master key id, is root, is revoked } */
+        final ArrayList<long[]> mKeys = new ArrayList<>();
+        /** entries are { master key id, certifier master key id, weight } */
+        final ArrayList<long[]> mCertifications = new ArrayList<>();
+
+        void addAll(LoadedKeys other) {
+            mKeys.addAll(other.mKeys);
+            mCertifications.addAll(other.mCertifications);
+        }
+    }
+
+    /** Reads one key, or all keys if masterKeyId is null, from the database */
+    private static LoadedKeys load(SQLiteDatabase db, Long masterKeyId) {
+        LoadedKeys result = new LoadedKeys();
+        String keySelection = masterKeyId == null ? null : KeyRings.MASTER_KEY_ID + " = " + masterKeyId;
+
+        Cursor cursor = db.query(Tables.KEY_SUMMARY, new String[] {
+                KeyRings.MASTER_KEY_ID, KeyRings.HAS_ANY_SECRET, KeyRings.IS_REVOKED
+        }, keySelection, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                result.mKeys.add(new long[] { cursor.getLong(0), cursor.getInt(1), cursor.getInt(2) });
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // self certifications are not part of the graph
+        String certSelection = Certs.KEY_ID_CERTIFIER + " != " + Certs.MASTER_KEY_ID
+                + " AND " + Certs.VERIFIED + " = " + Certs.VERIFIED_SECRET;
+        if (masterKeyId != null) {
+            certSelection += " AND " + Certs.MASTER_KEY_ID + " = " + masterKeyId;
+        }
+        cursor = db.query(Tables.CERTS, new String[] {
+                Certs.MASTER_KEY_ID, Certs.KEY_ID_CERTIFIER, Certs.TYPE
+        }, certSelection, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                result.mCertifications.add(new long[] {
+                        cursor.getLong(0), cursor.getLong(1), getCertificationWeight(cursor.getInt(2))
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private void apply(LoadedKeys loaded) {
+        for (long[] key : loaded.mKeys) {
+            addNode(key[0], key[1] != 0, key[2] != 0);
+        }
+        for (long[] certification : loaded.mCertifications) {
+            Node node = mNodes.get(certification[0]);
+            if (node != null) {
+                addCertification(node, certification[1], (int) certification[2]);
+            }
+        }
+    }
+
+    private Node addNode(long masterKeyId, boolean isRoot, boolean isRevoked) {
+        Node node = new Node(masterKeyId);
+        node.mIsRoot = isRoot;
+        node.mIsRevoked = isRevoked;
+        mNodes.put(masterKeyId, node);
+        return node;
+    }
+
+    private void addCertification(Node node, long certifierId, int weight) {
+        if (weight <= 0) {
+            return;
+        }
+        Integer previous = node.mCertifiers.get(certifierId);
+        if (previous == null || previous < weight) {
+            node.mCertifiers.put(certifierId, weight);
+        }
+
+        HashSet<Long> certified = mCertified.get(certifierId);
+        if (certified == null) {
+            certified = new HashSet<>();
+            mCertified.put(certifierId, certified);
+        }
+        certified.add(node.mMasterKeyId);
+    }
+
+    /** Removes a key and its incoming edges. Edges from it stay, for when it is added again */
+    private void removeNode(long masterKeyId) {
+        Node node = mNodes.remove(masterKeyId);
+        if (node == null) {
+            return;
+        }
+        for (long certifierId : node.mCertifiers.keySet()) {
+            HashSet<Long> certified = mCertified.get(certifierId);
+            if (certified != null) {
+                certified.remove(masterKeyId);
+                if (certified.isEmpty()) {
+                    mCertified.remove(certifierId);
+                }
+            }
+        }
+    }
+
+    /** All keys which are reachable from the given ones, including those that are present */
+    private Set<Long> getCertifiedClosure(Set<Long> masterKeyIds) {
+        HashSet<Long> visited = new HashSet<>(masterKeyIds);
+        ArrayDeque<Long> queue = new ArrayDeque<>(masterKeyIds);
+        HashSet<Long> result = new HashSet<>();
+        while (!queue.isEmpty()) {
+            long masterKeyId = queue.removeFirst();
+            if (mNodes.containsKey(masterKeyId)) {
+                result.add(masterKeyId);
+            }
+            HashSet<Long> certified = mCertified.get(masterKeyId);
+            if (certified == null) {
+                continue;
+            }
+            for (long certifiedId : certified) {
+                if (visited.add(certifiedId)) {
+                    queue.addLast(certifiedId);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Recomputes depth and amount of the given keys. Keys outside of this set are taken as
+     * they are, so it must contain all keys which are reachable from any key in it.
+     */
+    private void recompute(final Set<Long> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        // depth: shortest paths, starting from roots and from known keys outside of the set
+        // entries are { depth, master key id }, smallest depth first
+        PriorityQueue<long[]> queue = new PriorityQueue<>(keys.size(), QUEUE_ORDER);
+        for (long masterKeyId : keys) {
+            Node node = mNodes.get(masterKeyId);
+            node.mDepth = UNREACHABLE;
+            node.mAmount = 0;
+            if (node.mIsRevoked) {
+                continue;
+            }
+            if (node.mIsRoot) {
+                node.mDepth = 0;
+            } else {
+                for (long certifierId : node.mCertifiers.keySet()) {
+                    if (keys.contains(certifierId)) {
+                        continue;
+                    }
+                    Node certifier = mNodes.get(certifierId);
+                    if (passesTrust(certifier) && (node.mDepth == UNREACHABLE
+                            || certifier.mDepth + 1 < node.mDepth)) {
+                        node.mDepth = certifier.mDepth + 1;
+                    }
+                }
+            }
+            if (node.mDepth != UNREACHABLE) {
+                queue.add(new long[] { node.mDepth, masterKeyId });
+            }
+        }
+        HashSet<Long> done = new HashSet<>();
+        while (!queue.isEmpty()) {
+            Node node = mNodes.get(queue.poll()[1]);
+            if (!done.add(node.mMasterKeyId) || !passesTrust(node)) {
+                continue;
+            }
+            for (Node certified : getCertifiedIn(node, keys)) {
+                if (certified.mIsRevoked || done.contains(certified.mMasterKeyId)) {
+                    continue;
+                }
+                if (certified.mDepth == UNREACHABLE || node.mDepth + 1 < certified.mDepth) {
+                    certified.mDepth = node.mDepth + 1;
+                    queue.add(new long[] { certified.mDepth, certified.mMasterKeyId });
+                }
+            }
+        }
+
+        // amount: widest paths through keys within the depth limit
+        // entries are { -amount, master key id }, largest amount first
+        queue = new PriorityQueue<>(keys.size(), QUEUE_ORDER);
+        for (long masterKeyId : keys) {
+            Node node = mNodes.get(masterKeyId);
+            if (node.mDepth == UNREACHABLE) {
+                continue;
+            }
+            if (node.mIsRoot) {
+                node.mAmount = Trust.AMOUNT_FULL;
+            } else {
+                for (HashMap.Entry<Long, Integer> certification : node.mCertifiers.entrySet()) {
+                    if (keys.contains(certification.getKey())) {
+                        continue;
+                    }
+                    Node certifier = mNodes.get(certification.getKey());
+                    if (passesTrust(certifier)) {
+                        node.mAmount = Math.max(node.mAmount,
+                                Math.min(certifier.mAmount, certification.getValue()));
+                    }
+                }
+            }
+            queue.add(new long[] { -node.mAmount, masterKeyId });
+        }
+        done.clear();
+        while (!queue.isEmpty()) {
+            Node node = mNodes.get(queue.poll()[1]);
+            if (!done.add(node.mMasterKeyId) || !passesTrust(node)) {
+                continue;
+            }
+            for (Node certified : getCertifiedIn(node, keys)) {
+                if (certified.mDepth == UNREACHABLE || done.contains(certified.mMasterKeyId)) {
+                    continue;
+                }
+                int amount = Math.min(node.mAmount, certified.mCertifiers.get(node.mMasterKeyId));
+                if (amount > certified.mAmount) {
+                    certified.mAmount = amount;
+                    queue.add(new long[] { -amount, certified.mMasterKeyId });
+                }
+            }
+        }
+    }
+
+    /** Whether certifications by this key count */
+    private static boolean passesTrust(Node node) {
+        return node != null && !node.mIsRevoked && node.mDepth != UNREACHABLE
+                && node.mDepth < Trust.MAX_DEPTH;
+    }
+
+    private HashSet<Node> getCertifiedIn(Node node, Set<Long> keys) {
+        HashSet<Node> result = new HashSet<>();
+        HashSet<Long> certified = mCertified.get(node.mMasterKeyId);
+        if (certified != null) {
+            for (long certifiedId : certified) {
+                if (keys.contains(certifiedId)) {
+                    result.add(mNodes.get(certifiedId));
+                }
+            }
+        }
+        return result;
+    }
+
+}
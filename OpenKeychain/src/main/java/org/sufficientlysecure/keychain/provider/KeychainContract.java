@@ -56,6 +56,13 @@ public class KeychainContract {
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
     }
 
+    interface LinkedIdVerificationsColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String URI = "uri"; // uri of the linked identity
+        String VERIFIED = "verified"; // 1 if the resource contained the fingerprint
+        String EXPIRY = "expiry"; // time since epoch in milliseconds
+    }
+
     interface UserPacketsColumns {
         String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
         String TYPE = "type"; // not a database id
@@ -76,6 +83,45 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface KeySummaryColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String USER_ID = "user_id"; // primary user id
+        String FINGERPRINT = "fingerprint";
+        String CREATION = "creation";
+        String EXPIRY = "expiry";
+        String IS_REVOKED = "is_revoked";
+        String VERIFIED = "verified";
+        String HAS_ANY_SECRET = "has_any_secret";
+
+        // longest valid subkey with each capability, see KeychainDatabase
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_EXPIRY = "encrypt_expiry";
+        String SIGN_KEY_ID = "sign_key_id";
+        String SIGN_EXPIRY = "sign_expiry";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String CERTIFY_EXPIRY = "certify_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_EXPIRY = "authenticate_expiry";
+    }
+
+    interface TrustColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String TRUST_DEPTH = "trust_depth";
+        String TRUST_AMOUNT = "trust_amount";
+    }
+
+    interface MetricsColumns {
+        String PROCESS = "process";
+        String NAME = "name";
+        String TYPE = "type";
+        String COUNT = "count";
+        String MEAN = "mean";
+        String P50 = "p50";
+        String P95 = "p95";
+        String P99 = "p99";
+        String MAX = "max";
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_CERTIFICATE = "package_signature";
@@ -104,7 +150,12 @@ public class KeychainContract {
 
     public static final String BASE_UPDATED_KEYS = "updated_keys";
 
+    public static final String BASE_LINKED_ID_VERIFICATIONS = "linked_id_verifications";
+
+    public static final String BASE_METRICS = "metrics";
+
     public static final String PATH_UNIFIED = "unified";
+    public static final String PATH_SUMMARY = "summary";
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
@@ -116,11 +167,15 @@ public class KeychainContract {
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_TRUST = "trust";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
     public static final String PATH_ALLOWED_KEYS = "allowed_keys";
 
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_OFFSET = "offset";
+
     public static class KeyRings implements BaseColumns, KeysColumns, UserPacketsColumns {
         public static final String MASTER_KEY_ID = KeysColumns.MASTER_KEY_ID;
         public static final String IS_REVOKED = KeysColumns.IS_REVOKED;
@@ -147,6 +202,20 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_UNIFIED).build();
         }
 
+        /**
+         * Lists one row per key from the key summary table, which is much cheaper to query
+         * than the unified uri. Supports the PARAM_LIMIT and PARAM_OFFSET query parameters.
+         */
+        public static Uri buildKeySummaryUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+        }
+
+        /** Inserting into this uri updates the key summary row of the key ring. */
+        public static Uri buildKeySummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildGenericKeyRingUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
         }
@@ -232,6 +301,11 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.keychain.keys";
 
+        /** All keys of all key rings, including subkeys */
+        public static Uri buildKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_KEYS).build();
         }
@@ -252,6 +326,18 @@ public class KeychainContract {
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
     }
 
+    public static class LinkedIdVerifications implements LinkedIdVerificationsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_LINKED_ID_VERIFICATIONS).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.linked_id_verifications";
+
+        public static Uri buildByMasterKeyIdUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
+        }
+    }
+
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
         public static final String VERIFIED = "verified";
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
@@ -385,6 +471,49 @@ public class KeychainContract {
 
     }
 
+    /**
+     * Trust of keys, computed from the certifications between them. The trust depth is the
+     * number of certifications between the key and one of the user's own keys, which have
+     * depth 0, or NULL if there is no such path. The trust amount is the strongest trust along
+     * any path, AMOUNT_FULL or AMOUNT_MARGINAL, or 0 if the key is not trusted.
+     */
+    public static class Trust implements TrustColumns, BaseColumns {
+        public static final int AMOUNT_FULL = 120;
+        public static final int AMOUNT_MARGINAL = 60;
+
+        /** Keys further than this from the user's own keys are not trusted */
+        public static final int MAX_DEPTH = 5;
+
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.trust";
+        public static final String CONTENT_ITEM_TYPE
+                = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.trust";
+
+        public static Uri buildTrustUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_TRUST).build();
+        }
+
+        public static Uri buildTrustUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_TRUST).build();
+        }
+    }
+
+    /**
+     * Counters and latency histograms of all processes, see MetricsRegistry. Histogram values
+     * are in microseconds, counters only have a count.
+     */
+    public static class Metrics implements MetricsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_METRICS).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.metrics";
+    }
+
     private KeychainContract() {
     }
 }
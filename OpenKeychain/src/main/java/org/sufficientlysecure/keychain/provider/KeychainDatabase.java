@@ -33,7 +33,9 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedK
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.LinkedIdVerificationsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
@@ -54,7 +56,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 14;
+    private static final int DATABASE_VERSION = 17;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -68,6 +70,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
+        String KEY_SUMMARY = "key_summary";
+        String LINKED_ID_VERIFICATIONS = "linked_id_verifications";
     }
 
     private static final String CREATE_KEYRINGS_PUBLIC =
@@ -154,6 +158,19 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
 
+    // cached results of linked identity verifications, dropped whenever the key ring is saved
+    private static final String CREATE_LINKED_ID_VERIFICATIONS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.LINKED_ID_VERIFICATIONS + " ("
+                    + LinkedIdVerificationsColumns.MASTER_KEY_ID + " INTEGER, "
+                    + LinkedIdVerificationsColumns.URI + " TEXT, "
+                    + LinkedIdVerificationsColumns.VERIFIED + " INTEGER, "
+                    + LinkedIdVerificationsColumns.EXPIRY + " INTEGER, "
+                    + "PRIMARY KEY(" + LinkedIdVerificationsColumns.MASTER_KEY_ID + ", "
+                        + LinkedIdVerificationsColumns.URI + "), "
+                    + "FOREIGN KEY(" + LinkedIdVerificationsColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+                    + ")";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -189,6 +206,112 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + Tables.API_APPS + "(" + ApiAppsAllowedKeysColumns.PACKAGE_NAME + ") ON DELETE CASCADE"
                 + ")";
 
+    /**
+     * One row per key ring with everything the unified key rings uri returns apart from the
+     * master key's own columns, so queries don't have to join user_packets, certs,
+     * keyrings_secret and the keys table once per capability for every row. Rows are kept
+     * current by updateKeySummary, which is called whenever a key ring is saved.
+     * <p/>
+     * For each capability, the non-revoked subkey with the latest expiry is stored along
+     * with its expiry. If that subkey has expired, all others with the capability have as
+     * well, so validity can be checked at query time without another join.
+     */
+    private static final String CREATE_KEY_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeySummaryColumns.USER_ID + " TEXT, "
+                + KeySummaryColumns.FINGERPRINT + " BLOB, "
+                + KeySummaryColumns.CREATION + " INTEGER, "
+                + KeySummaryColumns.EXPIRY + " INTEGER, "
+                + KeySummaryColumns.IS_REVOKED + " INTEGER, "
+                + KeySummaryColumns.VERIFIED + " INTEGER, "
+                + KeySummaryColumns.HAS_ANY_SECRET + " INTEGER, "
+                + KeySummaryColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.ENCRYPT_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.SIGN_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.CERTIFY_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_EXPIRY + " INTEGER, "
+                + "FOREIGN KEY(" + KeySummaryColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    // matches the sort order of the key list, for keyset pagination
+    private static final String CREATE_KEY_SUMMARY_ORDER_INDEX =
+            "CREATE INDEX IF NOT EXISTS key_summary_order ON " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.HAS_ANY_SECRET + ", "
+                + KeySummaryColumns.USER_ID + " COLLATE NOCASE, "
+                + KeySummaryColumns.MASTER_KEY_ID + ");";
+
+    // for the has_duplicate_user_id subquery
+    private static final String CREATE_KEY_SUMMARY_USER_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS key_summary_user_id ON " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.USER_ID + ");";
+
+    private static final String REPLACE_KEY_SUMMARY =
+            "INSERT OR REPLACE INTO " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.MASTER_KEY_ID + ", "
+                + KeySummaryColumns.USER_ID + ", "
+                + KeySummaryColumns.FINGERPRINT + ", "
+                + KeySummaryColumns.CREATION + ", "
+                + KeySummaryColumns.EXPIRY + ", "
+                + KeySummaryColumns.IS_REVOKED + ", "
+                + KeySummaryColumns.VERIFIED + ", "
+                + KeySummaryColumns.HAS_ANY_SECRET + ", "
+                + KeySummaryColumns.ENCRYPT_KEY_ID + ", "
+                + KeySummaryColumns.ENCRYPT_EXPIRY + ", "
+                + KeySummaryColumns.SIGN_KEY_ID + ", "
+                + KeySummaryColumns.SIGN_EXPIRY + ", "
+                + KeySummaryColumns.CERTIFY_KEY_ID + ", "
+                + KeySummaryColumns.CERTIFY_EXPIRY + ", "
+                + KeySummaryColumns.AUTHENTICATE_KEY_ID + ", "
+                + KeySummaryColumns.AUTHENTICATE_EXPIRY
+            + ") SELECT "
+                + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID + ", "
+                + Tables.USER_PACKETS + "." + UserPacketsColumns.USER_ID + ", "
+                + Tables.KEYS + "." + KeysColumns.FINGERPRINT + ", "
+                + Tables.KEYS + "." + KeysColumns.CREATION + ", "
+                + Tables.KEYS + "." + KeysColumns.EXPIRY + ", "
+                + Tables.KEYS + "." + KeysColumns.IS_REVOKED + ", "
+                + "EXISTS (SELECT 1 FROM " + Tables.CERTS
+                    + " WHERE " + Tables.CERTS + "." + CertsColumns.MASTER_KEY_ID
+                        + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                    + " AND " + Tables.CERTS + "." + CertsColumns.VERIFIED
+                        + " = " + KeychainContract.Certs.VERIFIED_SECRET + "), "
+                + "EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_SECRET
+                    + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingsColumns.MASTER_KEY_ID
+                        + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID + "), "
+                + capableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_ENCRYPT, false) + ", "
+                + capableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_ENCRYPT, false) + ", "
+                + capableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_SIGN, true) + ", "
+                + capableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_SIGN, true) + ", "
+                + capableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_CERTIFY, true) + ", "
+                + capableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_CERTIFY, true) + ", "
+                + capableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_AUTHENTICATE, true) + ", "
+                + capableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_AUTHENTICATE, true)
+            + " FROM " + Tables.KEYS + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
+                + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                    + " = " + Tables.USER_PACKETS + "." + UserPacketsColumns.MASTER_KEY_ID
+                + " AND " + Tables.USER_PACKETS + "." + UserPacketsColumns.RANK + " = 0"
+            + ") WHERE " + Tables.KEYS + "." + KeysColumns.RANK + " = 0";
+
+    /**
+     * Subquery for a column of the non-revoked subkey with the given capability which
+     * expires last, where keys without expiry come first. Signing, certifying and
+     * authenticating additionally need the secret key to be available.
+     */
+    private static String capableSubkey(String column, String capability, boolean needsSecret) {
+        return "(SELECT c." + column + " FROM " + Tables.KEYS + " AS c"
+                + " WHERE c." + KeysColumns.MASTER_KEY_ID + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                + " AND c." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND c." + capability + " = 1"
+                + (needsSecret ? " AND c." + KeysColumns.HAS_SECRET + " > 1" : "")
+                + " ORDER BY c." + KeysColumns.EXPIRY + " IS NULL DESC, c." + KeysColumns.EXPIRY + " DESC"
+                + " LIMIT 1)";
+    }
+
     public KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
@@ -220,12 +343,16 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
+        db.execSQL(CREATE_KEY_SUMMARY);
+        db.execSQL(CREATE_LINKED_ID_VERIFICATIONS);
 
         db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
         db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL(CREATE_KEY_SUMMARY_ORDER_INDEX);
+        db.execSQL(CREATE_KEY_SUMMARY_USER_ID_INDEX);
 
     }
 
@@ -301,11 +428,23 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             case 13:
                 // do nothing here, just consolidate
             case 14:
-                db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
-                db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
+                // fresh installs of version 14 already have these
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_rank ON keys (" + KeysColumns.RANK + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                         + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
-                db.execSQL("CREATE INDEX verified_certs ON certs ("
+                db.execSQL("CREATE INDEX IF NOT EXISTS verified_certs ON certs ("
                         + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+            case 15:
+                // key summary table, recreated with more columns below
+            case 16:
+                // summary table for unified queries, filled from the existing data
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.KEY_SUMMARY);
+                db.execSQL(CREATE_KEY_SUMMARY);
+                db.execSQL(CREATE_KEY_SUMMARY_ORDER_INDEX);
+                db.execSQL(CREATE_KEY_SUMMARY_USER_ID_INDEX);
+                updateKeySummary(db, null);
+            case 17:
+                db.execSQL(CREATE_LINKED_ID_VERIFICATIONS);
 
         }
 
@@ -316,6 +455,24 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /**
+     * Recomputes the key summary row of a single key ring from the keys, user_packets, certs
+     * and keyrings_secret tables, or of all key rings if masterKeyId is null.
+     */
+    static void updateKeySummary(SQLiteDatabase db, Long masterKeyId) {
+        if (masterKeyId == null) {
+            db.execSQL("DELETE FROM " + Tables.KEY_SUMMARY);
+            db.execSQL(REPLACE_KEY_SUMMARY);
+            return;
+        }
+
+        Object[] args = new Object[] { masterKeyId };
+        db.execSQL("DELETE FROM " + Tables.KEY_SUMMARY
+                + " WHERE " + KeySummaryColumns.MASTER_KEY_ID + " = ?", args);
+        db.execSQL(REPLACE_KEY_SUMMARY
+                + " AND " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID + " = ?", args);
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
@@ -20,10 +20,14 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -38,17 +42,26 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.LinkedIdVerifications;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Metrics;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Trust;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Row;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -56,6 +69,9 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_SUMMARY = 105;
+    private static final int KEY_RINGS_TRUST = 106;
+    private static final int KEY_RINGS_KEYS = 107;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -66,6 +82,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_SUMMARY = 209;
+    private static final int KEY_RING_TRUST = 210;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -79,6 +97,11 @@ public class KeychainProvider extends ContentProvider {
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
 
+    private static final int LINKED_ID_VERIFICATIONS = 600;
+    private static final int LINKED_ID_VERIFICATIONS_BY_KEY = 601;
+
+    private static final int METRICS = 700;
+
     protected UriMatcher mUriMatcher;
 
     /**
@@ -98,6 +121,9 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/summary
+         * key_rings/trust
+         * key_rings/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -112,6 +138,15 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_SUMMARY,
+                KEY_RINGS_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_TRUST,
+                KEY_RINGS_TRUST);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_KEYS,
+                KEY_RINGS_KEYS);
 
         /**
          * find by criteria other than master key id
@@ -141,6 +176,8 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/summary
+         * key_rings/_/trust
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -171,6 +208,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_TRUST,
+                KEY_RING_TRUST);
 
         /**
          * API apps
@@ -202,11 +245,34 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS, UPDATED_KEYS);
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS + "/*", UPDATED_KEYS_SPECIFIC);
 
+        /**
+         * cached results of linked identity verifications
+         *
+         * <pre>
+         * linked_id_verifications
+         * linked_id_verifications/_ (master key id)
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_LINKED_ID_VERIFICATIONS, LINKED_ID_VERIFICATIONS);
+        matcher.addURI(authority, KeychainContract.BASE_LINKED_ID_VERIFICATIONS + "/*",
+                LINKED_ID_VERIFICATIONS_BY_KEY);
+
+        /**
+         * counters and latency histograms, computed in memory
+         *
+         * <pre>
+         * metrics
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_METRICS, METRICS);
+
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
 
+    private final KeyTrustGraph mTrustGraph = new KeyTrustGraph();
+
     /**
      * {@inheritDoc}
      */
@@ -232,6 +298,7 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_PUBLIC:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS:
                 return Keys.CONTENT_TYPE;
 
@@ -246,6 +313,10 @@ public class KeychainProvider extends ContentProvider {
             case UPDATED_KEYS_SPECIFIC:
                 return UpdatedKeys.CONTENT_ITEM_TYPE;
 
+            case LINKED_ID_VERIFICATIONS:
+            case LINKED_ID_VERIFICATIONS_BY_KEY:
+                return LinkedIdVerifications.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -261,6 +332,15 @@ public class KeychainProvider extends ContentProvider {
             case API_ALLOWED_KEYS:
                 return ApiAllowedKeys.CONTENT_TYPE;
 
+            case KEY_RINGS_TRUST:
+                return Trust.CONTENT_TYPE;
+
+            case KEY_RING_TRUST:
+                return Trust.CONTENT_ITEM_TYPE;
+
+            case METRICS:
+                return Metrics.CONTENT_TYPE;
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -279,38 +359,47 @@ public class KeychainProvider extends ContentProvider {
         int match = mUriMatcher.match(uri);
 
         // all query() parameters, for good measure
-        String groupBy = null, having = null;
+        String groupBy = null, having = null, limit = null;
 
         switch (match) {
+            case KEY_RINGS_TRUST:
+            case KEY_RING_TRUST: {
+                // computed in memory, not by a query
+                return queryTrust(uri, match, projection);
+            }
+
+            case METRICS: {
+                return queryMetrics(projection);
+            }
+
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
             case KEY_RINGS_FIND_BY_SUBKEY: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
-                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEY_SUMMARY + "." + KeyRings.MASTER_KEY_ID);
                 projectionMap.put(KeyRings.KEY_ID, Tables.KEYS + "." + Keys.KEY_ID);
                 projectionMap.put(KeyRings.KEY_SIZE, Tables.KEYS + "." + Keys.KEY_SIZE);
                 projectionMap.put(KeyRings.KEY_CURVE_OID, Tables.KEYS + "." + Keys.KEY_CURVE_OID);
-                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
+                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEY_SUMMARY + "." + KeyRings.IS_REVOKED);
                 projectionMap.put(KeyRings.CAN_CERTIFY, Tables.KEYS + "." + Keys.CAN_CERTIFY);
                 projectionMap.put(KeyRings.CAN_ENCRYPT, Tables.KEYS + "." + Keys.CAN_ENCRYPT);
                 projectionMap.put(KeyRings.CAN_SIGN, Tables.KEYS + "." + Keys.CAN_SIGN);
                 projectionMap.put(KeyRings.CAN_AUTHENTICATE, Tables.KEYS + "." + Keys.CAN_AUTHENTICATE);
-                projectionMap.put(KeyRings.CREATION, Tables.KEYS + "." + Keys.CREATION);
-                projectionMap.put(KeyRings.EXPIRY, Tables.KEYS + "." + Keys.EXPIRY);
+                projectionMap.put(KeyRings.CREATION, Tables.KEY_SUMMARY + "." + KeyRings.CREATION);
+                projectionMap.put(KeyRings.EXPIRY, Tables.KEY_SUMMARY + "." + KeyRings.EXPIRY);
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
-                projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
+                projectionMap.put(KeyRings.FINGERPRINT, Tables.KEY_SUMMARY + "." + KeyRings.FINGERPRINT);
+                projectionMap.put(KeyRings.USER_ID, Tables.KEY_SUMMARY + "." + KeyRings.USER_ID);
                 projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                        "(EXISTS (SELECT * FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.USER_ID
-                                    + " = "+ Tables.USER_PACKETS + "." + UserPackets.USER_ID
+                        "(EXISTS (SELECT * FROM " + Tables.KEY_SUMMARY + " AS dups"
+                                + " WHERE dups." + KeyRings.MASTER_KEY_ID
+                                    + " != " + Tables.KEY_SUMMARY + "." + KeyRings.MASTER_KEY_ID
+                                + " AND dups." + KeyRings.USER_ID
+                                    + " = " + Tables.KEY_SUMMARY + "." + KeyRings.USER_ID
                                 + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
+                projectionMap.put(KeyRings.VERIFIED, Tables.KEY_SUMMARY + "." + KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PUBKEY_DATA);
@@ -319,17 +408,20 @@ public class KeychainProvider extends ContentProvider {
                                 + " AS " + KeyRings.PRIVKEY_DATA);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
                 projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                        "(" + Tables.KEY_RINGS_SECRET + "." + KeyRings.MASTER_KEY_ID + " IS NOT NULL)" +
-                                " AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                        Tables.KEY_SUMMARY + "." + KeyRings.HAS_ANY_SECRET);
+                long now = new Date().getTime() / 1000;
+                projectionMap.put(KeyRings.HAS_ENCRYPT, validSubkey(KeySummaryColumns.ENCRYPT_KEY_ID,
+                        KeySummaryColumns.ENCRYPT_EXPIRY, now) + " AS " + KeyRings.HAS_ENCRYPT);
+                projectionMap.put(KeyRings.HAS_SIGN, validSubkey(KeySummaryColumns.SIGN_KEY_ID,
+                        KeySummaryColumns.SIGN_EXPIRY, now) + " AS " + KeyRings.HAS_SIGN);
+                projectionMap.put(KeyRings.HAS_CERTIFY, validSubkey(KeySummaryColumns.CERTIFY_KEY_ID,
+                        KeySummaryColumns.CERTIFY_EXPIRY, now) + " AS " + KeyRings.HAS_CERTIFY);
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, validSubkey(KeySummaryColumns.AUTHENTICATE_KEY_ID,
+                        KeySummaryColumns.AUTHENTICATE_EXPIRY, now) + " AS " + KeyRings.HAS_AUTHENTICATE);
                 projectionMap.put(KeyRings.IS_EXPIRED,
-                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                        "(" + Tables.KEY_SUMMARY + "." + KeyRings.EXPIRY + " IS NOT NULL AND "
+                                + Tables.KEY_SUMMARY + "." + KeyRings.EXPIRY
+                                + " < " + now + ") AS " + KeyRings.IS_EXPIRED);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -339,20 +431,14 @@ public class KeychainProvider extends ContentProvider {
                 // Need this as list so we can search in it
                 List<String> plist = Arrays.asList(projection);
 
+                // everything but the master key's own columns and the keyring blobs comes from
+                // the key summary, the keys table is only joined by its primary key
                 qb.setTables(
-                    Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
-                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                    Tables.KEY_SUMMARY
+                        + " INNER JOIN " + Tables.KEYS + " ON ("
+                                    + Tables.KEY_SUMMARY + "." + KeyRings.MASTER_KEY_ID
                                 + " = "
-                                    + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
-                            // we KNOW that the rank zero user packet is a user id!
-                            + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
+                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                         + ")"
                         // fairly expensive joins following, only do when requested
                         + (plist.contains(KeyRings.PUBKEY_DATA) ?
@@ -361,55 +447,14 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.PRIVKEY_DATA) || plist.contains(KeyRings.HAS_ANY_SECRET) ?
+                        + (plist.contains(KeyRings.PRIVKEY_DATA) ?
                             " LEFT JOIN " + Tables.KEY_RINGS_SECRET + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
@@ -466,7 +511,56 @@ public class KeychainProvider extends ContentProvider {
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                    sortOrder = Tables.KEY_SUMMARY + "." + KeyRings.USER_ID + " ASC";
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
+            case KEY_RINGS_SUMMARY: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                // master_key_id is the rowid of this table
+                projectionMap.put(KeyRings._ID, KeyRings.MASTER_KEY_ID + " AS _id");
+                projectionMap.put(KeyRings._COUNT, "COUNT(*) AS " + KeyRings._COUNT);
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEY_SUMMARY + "." + KeyRings.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.USER_ID, Tables.KEY_SUMMARY + "." + KeyRings.USER_ID);
+                projectionMap.put(KeyRings.FINGERPRINT, KeyRings.FINGERPRINT);
+                projectionMap.put(KeyRings.CREATION, KeyRings.CREATION);
+                projectionMap.put(KeyRings.EXPIRY, KeyRings.EXPIRY);
+                projectionMap.put(KeyRings.IS_REVOKED, KeyRings.IS_REVOKED);
+                projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, KeyRings.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.IS_EXPIRED,
+                        "(" + KeyRings.EXPIRY + " IS NOT NULL AND " + KeyRings.EXPIRY
+                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
+                        "(EXISTS (SELECT * FROM " + Tables.KEY_SUMMARY + " AS dups"
+                                + " WHERE dups." + KeyRings.MASTER_KEY_ID
+                                    + " != " + Tables.KEY_SUMMARY + "." + KeyRings.MASTER_KEY_ID
+                                + " AND dups." + KeyRings.USER_ID
+                                    + " = " + Tables.KEY_SUMMARY + "." + KeyRings.USER_ID
+                                + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
+                qb.setProjectionMap(projectionMap);
+                qb.setTables(Tables.KEY_SUMMARY);
+
+                String limitParam = uri.getQueryParameter(KeychainContract.PARAM_LIMIT);
+                String offsetParam = uri.getQueryParameter(KeychainContract.PARAM_OFFSET);
+                try {
+                    if (limitParam != null) {
+                        limit = Integer.toString(Integer.parseInt(limitParam));
+                        if (offsetParam != null) {
+                            limit = Integer.parseInt(offsetParam) + "," + limit;
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed limit or offset: " + uri);
+                }
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = KeyRings.USER_ID + " COLLATE NOCASE ASC";
                 }
 
                 // uri to watch is all /key_rings/
@@ -475,6 +569,7 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -496,8 +591,10 @@ public class KeychainProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -659,6 +756,13 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case LINKED_ID_VERIFICATIONS_BY_KEY: {
+                qb.setTables(Tables.LINKED_ID_VERIFICATIONS);
+                qb.appendWhere(LinkedIdVerifications.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                break;
+            }
+
             case API_APPS: {
                 qb.setTables(Tables.API_APPS);
 
@@ -711,14 +815,14 @@ public class KeychainProvider extends ContentProvider {
 
         SQLiteDatabase db = getDb().getReadableDatabase();
 
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy, limit);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
         }
 
         Log.d(Constants.TAG,
-                "Query: " + qb.buildQuery(projection, selection, null, null, orderBy, null));
+                "Query: " + qb.buildQuery(projection, selection, null, null, orderBy, limit));
 
         if (Constants.DEBUG && Constants.DEBUG_LOG_DB_QUERIES) {
             Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(cursor));
@@ -752,6 +856,129 @@ public class KeychainProvider extends ContentProvider {
         return cursor;
     }
 
+    private Cursor queryTrust(Uri uri, int match, String[] projection) {
+        if (projection == null) {
+            projection = new String[] {
+                    Trust._ID, Trust.MASTER_KEY_ID, Trust.TRUST_DEPTH, Trust.TRUST_AMOUNT
+            };
+        }
+
+        mTrustGraph.refresh(getDb().getReadableDatabase());
+
+        long[] masterKeyIds;
+        if (match == KEY_RING_TRUST) {
+            masterKeyIds = new long[] { Long.parseLong(uri.getPathSegments().get(1)) };
+        } else {
+            masterKeyIds = mTrustGraph.getMasterKeyIds();
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, masterKeyIds.length);
+        for (long masterKeyId : masterKeyIds) {
+            if (!mTrustGraph.contains(masterKeyId)) {
+                continue;
+            }
+            int depth = mTrustGraph.getDepth(masterKeyId);
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                switch (projection[i]) {
+                    case Trust._ID:
+                    case Trust.MASTER_KEY_ID:
+                        row[i] = masterKeyId;
+                        break;
+                    case Trust.TRUST_DEPTH:
+                        row[i] = depth == KeyTrustGraph.UNREACHABLE ? null : depth;
+                        break;
+                    case Trust.TRUST_AMOUNT:
+                        row[i] = mTrustGraph.getAmount(masterKeyId);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown column " + projection[i]);
+                }
+            }
+            cursor.addRow(row);
+        }
+
+        // trust of any key may change with any other key
+        cursor.setNotificationUri(getContext().getContentResolver(), KeyRings.CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Returns the live metrics of this process, followed by the last snapshots of the others,
+     * which are written by each process in the background.
+     */
+    private Cursor queryMetrics(String[] projection) {
+        if (projection == null) {
+            projection = new String[] {
+                    Metrics._ID, Metrics.PROCESS, Metrics.NAME, Metrics.TYPE, Metrics.COUNT,
+                    Metrics.MEAN, Metrics.P50, Metrics.P95, Metrics.P99, Metrics.MAX
+            };
+        }
+
+        String ownProcess = MetricsRegistry.getProcessLabel(getContext());
+        TreeMap<String, List<Row>> processes = new TreeMap<>();
+        processes.put(ownProcess, MetricsRegistry.getInstance().getRows());
+        processes.putAll(MetricsRegistry.readSnapshots(getContext(), ownProcess));
+
+        MatrixCursor cursor = new MatrixCursor(projection);
+        long id = 0;
+        for (Map.Entry<String, List<Row>> process : processes.entrySet()) {
+            for (Row metric : process.getValue()) {
+                boolean histogram = MetricsRegistry.TYPE_HISTOGRAM.equals(metric.mType);
+                Object[] row = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    switch (projection[i]) {
+                        case Metrics._ID:
+                            row[i] = id;
+                            break;
+                        case Metrics.PROCESS:
+                            row[i] = process.getKey();
+                            break;
+                        case Metrics.NAME:
+                            row[i] = metric.mName;
+                            break;
+                        case Metrics.TYPE:
+                            row[i] = metric.mType;
+                            break;
+                        case Metrics.COUNT:
+                            row[i] = metric.mCount;
+                            break;
+                        case Metrics.MEAN:
+                            row[i] = histogram ? metric.mMean : null;
+                            break;
+                        case Metrics.P50:
+                            row[i] = histogram ? metric.mP50 : null;
+                            break;
+                        case Metrics.P95:
+                            row[i] = histogram ? metric.mP95 : null;
+                            break;
+                        case Metrics.P99:
+                            row[i] = histogram ? metric.mP99 : null;
+                            break;
+                        case Metrics.MAX:
+                            row[i] = histogram ? metric.mMax : null;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown column " + projection[i]);
+                    }
+                }
+                cursor.addRow(row);
+                id += 1;
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the key id stored in the key summary for a capability, or NULL if that
+     * subkey has expired at the given time.
+     */
+    private static String validSubkey(String keyIdColumn, String expiryColumn, long now) {
+        return "(CASE WHEN " + Tables.KEY_SUMMARY + "." + expiryColumn + " IS NULL"
+                + " OR " + Tables.KEY_SUMMARY + "." + expiryColumn + " >= " + now
+                + " THEN " + Tables.KEY_SUMMARY + "." + keyIdColumn + " END)";
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -804,12 +1031,27 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SUMMARY: {
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    KeychainDatabase.updateKeySummary(db, keyId);
+                    // the summary is updated last when a key ring is saved, with all its certs
+                    mTrustGraph.invalidate(keyId);
+                    break;
+                }
                 case UPDATED_KEYS: {
                     long updatedKeyId = db.replace(Tables.UPDATED_KEYS, null, values);
                     rowUri = UpdatedKeys.CONTENT_URI.buildUpon().appendPath("" + updatedKeyId)
                             .build();
                     break;
                 }
+                case LINKED_ID_VERIFICATIONS: {
+                    // a new result replaces the previous one for the same linked identity
+                    db.replaceOrThrow(Tables.LINKED_ID_VERIFICATIONS, null, values);
+                    rowUri = LinkedIdVerifications.buildByMasterKeyIdUri(
+                            values.getAsLong(LinkedIdVerifications.MASTER_KEY_ID));
+                    uri = rowUri;
+                    break;
+                }
                 case API_APPS: {
                     db.insertOrThrow(Tables.API_APPS, null, values);
                     break;
@@ -868,6 +1110,7 @@ public class KeychainProvider extends ContentProvider {
             // dangerous
             case KEY_RINGS_UNIFIED: {
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                mTrustGraph.invalidateAll();
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -878,6 +1121,7 @@ public class KeychainProvider extends ContentProvider {
                 }
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                mTrustGraph.invalidate(Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -888,10 +1132,23 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                // has_any_secret of the summary changes with this
+                KeychainDatabase.updateKeySummary(db, Long.parseLong(uri.getPathSegments().get(1)));
+                mTrustGraph.invalidate(Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
 
+            case LINKED_ID_VERIFICATIONS_BY_KEY: {
+                String selection = LinkedIdVerifications.MASTER_KEY_ID + " = "
+                        + Long.parseLong(uri.getPathSegments().get(1));
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                count = db.delete(Tables.LINKED_ID_VERIFICATIONS, selection, selectionArgs);
+                break;
+            }
+
             case API_APPS_BY_PACKAGE_NAME: {
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
                         selectionArgs);
@@ -970,6 +1227,25 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in a single transaction. This way, a key ring and its key
+     * summary are always updated together, and a failing operation leaves no partial
+     * key ring behind.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
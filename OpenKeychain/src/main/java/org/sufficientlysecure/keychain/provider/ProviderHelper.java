@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -26,9 +27,11 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LongSparseArray;
 
+import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
@@ -44,6 +47,7 @@ import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
@@ -52,6 +56,7 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.SignatureVerdictCache;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
@@ -67,6 +72,11 @@ import org.sufficientlysecure.keychain.remote.AccountSettings;
 import org.sufficientlysecure.keychain.remote.AppSettings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Histogram;
+import org.sufficientlysecure.keychain.util.OperationTrace;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ProgressFixedScaler;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -74,6 +84,7 @@ import org.sufficientlysecure.keychain.util.Utf8Util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -96,10 +107,18 @@ import java.util.concurrent.TimeUnit;
  * method is called to start a new one specifically.
  */
 public class ProviderHelper {
+    private static final Histogram READ_KEY_RING_LATENCY =
+            MetricsRegistry.getInstance().histogram("provider.read_key_ring");
+    private static final Histogram SAVE_PUBLIC_KEY_RING_LATENCY =
+            MetricsRegistry.getInstance().histogram("provider.save_public_key_ring");
+    private static final Histogram SAVE_SECRET_KEY_RING_LATENCY =
+            MetricsRegistry.getInstance().histogram("provider.save_secret_key_ring");
+
     private final Context mContext;
     private final ContentResolver mContentResolver;
     private OperationLog mLog;
     private int mIndent;
+    private OperationTrace mTrace;
 
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
@@ -116,6 +135,19 @@ public class ProviderHelper {
         mIndent = indent;
     }
 
+    /** The trace which database and keyring operations of this object are recorded in, or null. */
+    public OperationTrace getTrace() {
+        return mTrace;
+    }
+
+    public void setTrace(OperationTrace trace) {
+        mTrace = trace;
+    }
+
+    private Span beginSpan(Category category, String name) {
+        return OperationTrace.begin(mTrace, category, name);
+    }
+
     public OperationLog getLog() {
         return mLog;
     }
@@ -279,6 +311,8 @@ public class ProviderHelper {
     }
 
     private KeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+        long startNanos = System.nanoTime();
+        Span span = beginSpan(Category.DB_READ, "getCanonicalizedKeyRing");
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{
                         // we pick from cache only information that is not easily available from keyrings
@@ -306,6 +340,8 @@ public class ProviderHelper {
             if (cursor != null) {
                 cursor.close();
             }
+            span.end();
+            READ_KEY_RING_LATENCY.recordSince(startNanos);
         }
     }
 
@@ -717,21 +753,29 @@ public class ProviderHelper {
         }
         lastUpdatedCursor.close();
 
+        // must come after all keys, user ids and certs, since it is computed from them
+        operations.add(ContentProviderOperation
+                .newInsert(KeyRings.buildKeySummaryUri(masterKeyId))
+                .withValues(new ContentValues()).build());
+
+        // delete old version of this keyRing, which also deletes all keys and userIds on cascade.
+        // this is part of the batch, so the key ring and its summary are replaced atomically
+        operations.add(0, ContentProviderOperation
+                .newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            if (results[0].count > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
             return result;
@@ -798,6 +842,9 @@ public class ProviderHelper {
             // IF this is successful, it's a secret key
             int result = SaveKeyringResult.SAVED_SECRET;
 
+            // all changes are applied in one batch, so the key summary is updated atomically
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
             // save secret keyring
             try {
                 ContentValues values = new ContentValues();
@@ -805,72 +852,86 @@ public class ProviderHelper {
                 values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
                 // insert new version of this keyRing
                 Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
-                if (mContentResolver.insert(uri, values) == null) {
-                    log(LogType.MSG_IS_DB_EXCEPTION);
-                    return SaveKeyringResult.RESULT_ERROR;
-                }
+                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
             } catch (IOException e) {
                 Log.e(Constants.TAG, "Failed to encode key!", e);
                 log(LogType.MSG_IS_ERROR_IO_EXC);
                 return SaveKeyringResult.RESULT_ERROR;
             }
 
-            {
-                Uri uri = Keys.buildKeysUri(masterKeyId);
+            Uri uri = Keys.buildKeysUri(masterKeyId);
+
+            // first, mark all keys as not available
+            operations.add(ContentProviderOperation.newUpdate(uri)
+                    .withValue(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum()).build());
+
+            // then, mark exactly the keys we have available
+            int firstSubkeyOperation = operations.size();
+            ArrayList<CanonicalizedSecretKey> subKeys = new ArrayList<>();
+            for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValue(Keys.HAS_SECRET, sub.getSecretKeyType().getNum())
+                        .withSelection(Keys.KEY_ID + " = ?", new String[]{Long.toString(sub.getKeyId())})
+                        .build());
+                subKeys.add(sub);
+            }
+            // this implicitly leaves all keys which were not in the secret key ring
+            // with has_secret = 1
 
-                // first, mark all keys as not available
-                ContentValues values = new ContentValues();
-                values.put(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum());
-                mContentResolver.update(uri, values, null, null);
+            // update has_any_secret and the capable subkeys in the key summary
+            operations.add(ContentProviderOperation.newInsert(KeyRings.buildKeySummaryUri(masterKeyId))
+                    .withValues(new ContentValues()).build());
 
-                // then, mark exactly the keys we have available
-                log(LogType.MSG_IS_IMPORTING_SUBKEYS);
-                mIndent += 1;
-                for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
-                    long id = sub.getKeyId();
-                    SecretKeyType mode = sub.getSecretKeyType();
-                    values.put(Keys.HAS_SECRET, mode.getNum());
-                    int upd = mContentResolver.update(uri, values, Keys.KEY_ID + " = ?",
-                            new String[]{Long.toString(id)});
-                    if (upd == 1) {
-                        switch (mode) {
-                            case PASSPHRASE:
-                                log(LogType.MSG_IS_SUBKEY_OK,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case PASSPHRASE_EMPTY:
-                                log(LogType.MSG_IS_SUBKEY_EMPTY,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case PIN:
-                                log(LogType.MSG_IS_SUBKEY_PIN,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case GNU_DUMMY:
-                                log(LogType.MSG_IS_SUBKEY_STRIPPED,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case DIVERT_TO_CARD:
-                                log(LogType.MSG_IS_SUBKEY_DIVERT,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                        }
-                    } else {
-                        log(LogType.MSG_IS_SUBKEY_NONEXISTENT,
-                                KeyFormattingUtils.convertKeyIdToHex(id)
-                        );
+            ContentProviderResult[] results;
+            try {
+                results = mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(Constants.TAG, "Failed to save secret key!", e);
+                log(LogType.MSG_IS_DB_EXCEPTION);
+                return SaveKeyringResult.RESULT_ERROR;
+            }
+
+            log(LogType.MSG_IS_IMPORTING_SUBKEYS);
+            mIndent += 1;
+            for (int i = 0; i < subKeys.size(); i++) {
+                CanonicalizedSecretKey sub = subKeys.get(i);
+                long id = sub.getKeyId();
+                SecretKeyType mode = sub.getSecretKeyType();
+                if (results[firstSubkeyOperation + i].count == 1) {
+                    switch (mode) {
+                        case PASSPHRASE:
+                            log(LogType.MSG_IS_SUBKEY_OK,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case PASSPHRASE_EMPTY:
+                            log(LogType.MSG_IS_SUBKEY_EMPTY,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case PIN:
+                            log(LogType.MSG_IS_SUBKEY_PIN,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case GNU_DUMMY:
+                            log(LogType.MSG_IS_SUBKEY_STRIPPED,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case DIVERT_TO_CARD:
+                            log(LogType.MSG_IS_SUBKEY_DIVERT,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
                     }
+                } else {
+                    log(LogType.MSG_IS_SUBKEY_NONEXISTENT,
+                            KeyFormattingUtils.convertKeyIdToHex(id)
+                    );
                 }
-                mIndent -= 1;
-
-                // this implicitly leaves all keys which were not in the secret key ring
-                // with has_secret = 1
             }
+            mIndent -= 1;
 
             log(LogType.MSG_IS_SUCCESS);
             return result;
@@ -893,6 +954,7 @@ public class ProviderHelper {
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress, String expectedFingerprint) {
 
+        long startNanos = System.nanoTime();
         try {
             long masterKeyId = publicRing.getMasterKeyId();
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
@@ -903,23 +965,42 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // Drop excess certifications first, merging and canonicalization process all of them
+            int certificationLimit = Preferences.getPreferences(mContext).getImportCertificationLimit();
+            int unprunedSize = 0;
+            if (certificationLimit > 0) {
+                UncachedKeyRing prunedRing = pruneCertifications(publicRing, certificationLimit);
+                if (prunedRing != publicRing) {
+                    unprunedSize = publicRing.getEncoded().length;
+                    publicRing = prunedRing;
+                }
+            }
+
             CanonicalizedPublicKeyRing canPublicRing;
 
             // If there is an old keyring, merge it
             try {
-                UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
+                CanonicalizedPublicKeyRing oldCanPublicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+                // The stored keyring is canonical, so only new packets need to be verified again
+                SignatureVerdictCache.getInstance().addCanonicalized(oldCanPublicRing);
+                UncachedKeyRing oldPublicRing = oldCanPublicRing.getUncachedKeyRing();
 
                 // Merge data from new public ring into the old one
                 log(LogType.MSG_IP_MERGE_PUBLIC);
-                publicRing = oldPublicRing.merge(publicRing, mLog, mIndent);
+                publicRing = merge(oldPublicRing, publicRing);
 
                 // If this is null, there is an error in the log so we can just return
                 if (publicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
+                // Merged certifications may exceed the limit again
+                if (certificationLimit > 0) {
+                    publicRing = pruneCertifications(publicRing, certificationLimit);
+                }
+
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = canonicalizePruned(publicRing, unprunedSize);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -934,7 +1015,7 @@ public class ProviderHelper {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = canonicalizePruned(publicRing, unprunedSize);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -944,17 +1025,19 @@ public class ProviderHelper {
             // If there is a secret key, merge new data (if any) and save the key for later
             CanonicalizedSecretKeyRing canSecretRing;
             try {
-                UncachedKeyRing secretRing = getCanonicalizedSecretKeyRing(publicRing.getMasterKeyId())
-                        .getUncachedKeyRing();
+                CanonicalizedSecretKeyRing oldCanSecretRing =
+                        getCanonicalizedSecretKeyRing(publicRing.getMasterKeyId());
+                SignatureVerdictCache.getInstance().addCanonicalized(oldCanSecretRing);
+                UncachedKeyRing secretRing = oldCanSecretRing.getUncachedKeyRing();
 
                 // Merge data from new public ring into secret one
                 log(LogType.MSG_IP_MERGE_SECRET);
-                secretRing = secretRing.merge(publicRing, mLog, mIndent);
+                secretRing = merge(secretRing, publicRing);
                 if (secretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 // This has always been a secret key ring, this is a safe cast
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) canonicalize(secretRing);
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -975,12 +1058,24 @@ public class ProviderHelper {
                 }
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+            int result;
+            Span span = beginSpan(Category.DB_WRITE, "saveCanonicalizedPublicKeyRing");
+            try {
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+            } finally {
+                span.end();
+            }
 
             // Save the saved keyring (if any)
             if (canSecretRing != null) {
                 progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+                int secretResult;
+                span = beginSpan(Category.DB_WRITE, "saveCanonicalizedSecretKeyRing");
+                try {
+                    secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+                } finally {
+                    span.end();
+                }
                 if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
                     result |= SaveKeyringResult.SAVED_SECRET;
                 }
@@ -993,12 +1088,108 @@ public class ProviderHelper {
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
             mIndent -= 1;
+            SAVE_PUBLIC_KEY_RING_LATENCY.recordSince(startNanos);
+        }
+
+    }
+
+    /**
+     * Drops certifications by keys which are not in the database, if there are more than
+     * limit of them on a user id. Certifications by subkeys of known keys count as known.
+     * See UncachedKeyRing.pruneCertifications.
+     */
+    private UncachedKeyRing pruneCertifications(UncachedKeyRing ring, int limit) {
+        Set<Long> issuers = ring.getForeignCertificationIssuers();
+        // no user id can have more than this
+        if (issuers.size() <= limit) {
+            return ring;
+        }
+        Set<Long> knownIssuers;
+        Span span = beginSpan(Category.DB_READ, "getKnownKeyIds");
+        try {
+            knownIssuers = getKnownKeyIds(issuers);
+        } finally {
+            span.end();
+        }
+        span = beginSpan(Category.PGP_PARSE, "pruneCertifications");
+        try {
+            return ring.pruneCertifications(knownIssuers, limit, mLog, mIndent);
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Returns those of the given key ids which are master keys or subkeys in the database. */
+    private Set<Long> getKnownKeyIds(Set<Long> keyIds) {
+        Set<Long> known = new HashSet<>();
+        List<Long> ids = new ArrayList<>(keyIds);
+        // stay well below the limit of 999 arguments per sqlite query
+        for (int start = 0; start < ids.size(); start += 500) {
+            List<Long> chunk = ids.subList(start, Math.min(start + 500, ids.size()));
+            StringBuilder selection = new StringBuilder(Keys.KEY_ID + " IN (");
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < selectionArgs.length; i++) {
+                selection.append(i == 0 ? "?" : ", ?");
+                selectionArgs[i] = Long.toString(chunk.get(i));
+            }
+            selection.append(")");
+
+            Cursor cursor = mContentResolver.query(Keys.buildKeysUri(),
+                    new String[] { Keys.KEY_ID }, selection.toString(), selectionArgs, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    known.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Canonicalizes a public keyring. If certifications were dropped from it, logs an estimate
+     * of the time this saved, assuming that verification time grows with the encoded size.
+     */
+    private CanonicalizedPublicKeyRing canonicalizePruned(UncachedKeyRing publicRing, int unprunedSize)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        CanonicalizedPublicKeyRing canPublicRing =
+                (CanonicalizedPublicKeyRing) canonicalize(publicRing);
+
+        if (canPublicRing != null && unprunedSize > 0) {
+            long millis = SystemClock.elapsedRealtime() - start;
+            int prunedSize = publicRing.getEncoded().length;
+            long savedMillis = millis * Math.max(0, unprunedSize - prunedSize) / Math.max(1, prunedSize);
+            log(LogType.MSG_IP_PRUNE_SAVED, Long.toString(millis), Long.toString(savedMillis));
+        }
+        return canPublicRing;
+    }
+
+    private CanonicalizedKeyRing canonicalize(UncachedKeyRing ring) {
+        Span span = beginSpan(Category.CRYPTO, "canonicalize");
+        try {
+            return ring.canonicalize(mLog, mIndent);
+        } finally {
+            span.end();
         }
+    }
 
+    private UncachedKeyRing merge(UncachedKeyRing ring, UncachedKeyRing other) {
+        Span span = beginSpan(Category.PGP_PARSE, "merge");
+        try {
+            return ring.merge(other, mLog, mIndent);
+        } finally {
+            span.end();
+        }
     }
 
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
 
+        long startNanos = System.nanoTime();
         try {
             long masterKeyId = secretRing.getMasterKeyId();
             log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
@@ -1013,11 +1204,14 @@ public class ProviderHelper {
 
             // If there is an old secret key, merge it.
             try {
-                UncachedKeyRing oldSecretRing = getCanonicalizedSecretKeyRing(masterKeyId).getUncachedKeyRing();
+                CanonicalizedSecretKeyRing oldCanSecretRing = getCanonicalizedSecretKeyRing(masterKeyId);
+                // The stored keyring is canonical, so only new packets need to be verified again
+                SignatureVerdictCache.getInstance().addCanonicalized(oldCanSecretRing);
+                UncachedKeyRing oldSecretRing = oldCanSecretRing.getUncachedKeyRing();
 
                 // Merge data from new secret ring into old one
                 log(LogType.MSG_IS_MERGE_SECRET);
-                secretRing = secretRing.merge(oldSecretRing, mLog, mIndent);
+                secretRing = merge(secretRing, oldSecretRing);
 
                 // If this is null, there is an error in the log so we can just return
                 if (secretRing == null) {
@@ -1026,7 +1220,7 @@ public class ProviderHelper {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) canonicalize(secretRing);
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -1043,7 +1237,7 @@ public class ProviderHelper {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) canonicalize(secretRing);
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -1051,8 +1245,8 @@ public class ProviderHelper {
                     try {
                         log(LogType.MSG_IS_MERGE_SPECIAL);
                         UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
-                        secretRing = secretRing.merge(oldPublicRing, mLog, mIndent);
-                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                        secretRing = merge(secretRing, oldPublicRing);
+                        canSecretRing = (CanonicalizedSecretKeyRing) canonicalize(secretRing);
                     } catch (NotFoundException e2) {
                         // nothing, this is handled right in the next line
                     }
@@ -1067,11 +1261,13 @@ public class ProviderHelper {
             // Merge new data into public keyring as well, if there is any
             UncachedKeyRing publicRing;
             try {
-                UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
+                CanonicalizedPublicKeyRing oldCanPublicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+                SignatureVerdictCache.getInstance().addCanonicalized(oldCanPublicRing);
+                UncachedKeyRing oldPublicRing = oldCanPublicRing.getUncachedKeyRing();
 
                 // Merge data from new secret ring into public one
                 log(LogType.MSG_IS_MERGE_PUBLIC);
-                publicRing = oldPublicRing.merge(secretRing, mLog, mIndent);
+                publicRing = merge(oldPublicRing, secretRing);
                 if (publicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -1081,21 +1277,30 @@ public class ProviderHelper {
                 publicRing = secretRing.extractPublicKeyRing();
             }
 
-            CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
-                    mIndent);
+            CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) canonicalize(publicRing);
             if (canPublicRing == null) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
             int result;
 
-            result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
+            Span span = beginSpan(Category.DB_WRITE, "saveCanonicalizedPublicKeyRing");
+            try {
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
+            } finally {
+                span.end();
+            }
             if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
             progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-            result = saveCanonicalizedSecretKeyRing(canSecretRing);
+            span = beginSpan(Category.DB_WRITE, "saveCanonicalizedSecretKeyRing");
+            try {
+                result = saveCanonicalizedSecretKeyRing(canSecretRing);
+            } finally {
+                span.end();
+            }
 
             return new SaveKeyringResult(result, mLog, canSecretRing);
 
@@ -1104,6 +1309,7 @@ public class ProviderHelper {
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
             mIndent -= 1;
+            SAVE_SECRET_KEY_RING_LATENCY.recordSince(startNanos);
         }
 
     }
@@ -1452,23 +1658,36 @@ public class ProviderHelper {
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
-    private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
-        UncachedKeyRing keyRing = UncachedKeyRing.decodeFromData(data);
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        keyRing.encodeArmored(bos, null);
-        String armoredKey = bos.toString("UTF-8");
-
-        Log.d(Constants.TAG, "armoredKey:" + armoredKey);
+    /**
+     * Writes a stored key ring to a stream, copying it packet by packet from its stored
+     * encoding instead of decoding and re-encoding it. The stream is not closed.
+     *
+     * @param stripThirdPartyCertifications leave out certifications of user ids by other keys
+     */
+    public void writeKeyRing(Uri uri, OutputStream out, boolean armor,
+            boolean stripThirdPartyCertifications)
+            throws NotFoundException, IOException, PgpGeneralException {
+        byte[] data = (byte[]) getGenericData(
+                uri, KeyRingData.KEY_RING_DATA, ProviderHelper.FIELD_TYPE_BLOB);
+        if (data == null) {
+            throw new NotFoundException();
+        }
 
-        return armoredKey;
+        if (armor) {
+            ArmoredOutputStream armoredOut = new ArmoredOutputStream(out);
+            UncachedKeyRing.encodeFromData(data, armoredOut, stripThirdPartyCertifications);
+            // writes the armor footer, leaves the underlying stream open
+            armoredOut.close();
+        } else {
+            UncachedKeyRing.encodeFromData(data, out, stripThirdPartyCertifications);
+        }
     }
 
     public String getKeyRingAsArmoredString(Uri uri)
             throws NotFoundException, IOException, PgpGeneralException {
-        byte[] data = (byte[]) getGenericData(
-                uri, KeyRingData.KEY_RING_DATA, ProviderHelper.FIELD_TYPE_BLOB);
-        return getKeyRingAsArmoredString(data);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeKeyRing(uri, bos, true, false);
+        return bos.toString("UTF-8");
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit) {
@@ -28,17 +28,36 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.MediaStore;
 
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.util.DatabaseUtil;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +79,13 @@ import java.util.regex.Pattern;
  * - http://stackoverflow.com/q/24467696
  * - http://stackoverflow.com/q/18249007
  * - Comments at http://www.blogc.at/2014/03/23/share-private-files-with-other-apps-fileprovider/
+ * <p/>
+ * Storage:
+ * - Metadata of all files is kept in memory, the database is only written in the background so
+ * files can still be opened and cleaned up after the process was restarted
+ * - Small files written and read by OpenKeychain itself are kept in memory and passed through
+ * pipes, they never touch the disk. Larger files, and all files opened by other apps, which
+ * may need to seek, are stored in the cache directory.
  */
 public class TemporaryFileProvider extends ContentProvider {
 
@@ -69,6 +95,13 @@ public class TemporaryFileProvider extends ContentProvider {
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
     private static final int DB_VERSION = 3;
 
+    /** files up to this size are kept in memory */
+    private static final int MEMORY_FILE_MAX_SIZE = 64 * 1024;
+    /** total size of all files kept in memory, further files are stored on disk */
+    private static final int MEMORY_TOTAL_MAX_SIZE = 1024 * 1024;
+    /** how long opening a file waits for it to be written, i.e. for the writer to close it */
+    private static final long WRITE_TIMEOUT_MILLIS = 10 * 1000;
+
     interface TemporaryFileColumns {
         String COLUMN_UUID = "id";
         String COLUMN_NAME = "name";
@@ -147,16 +180,149 @@ public class TemporaryFileProvider extends ContentProvider {
         }
     }
 
-    private static TemporaryStorageDatabase db;
+    /**
+     * A temporary file. Its content is either kept in memory, or stored on disk once it got too
+     * large or was opened by another app.
+     */
+    private class TemporaryFile {
+        final String mUuid;
+        final String mName;
+        final long mTime;
+        volatile String mMimeType;
+
+        /** content while kept in memory, null once stored on disk */
+        private byte[] mData = new byte[0];
+        private boolean mWriting;
+        /** the last write failed, readers fail instead of getting incomplete content */
+        private boolean mFailed;
+        private boolean mDeleted;
+
+        TemporaryFile(String uuid, String name, String mimeType, long time) {
+            mUuid = uuid;
+            mName = name;
+            mMimeType = mimeType;
+            mTime = time;
+        }
 
-    private File getFile(Uri uri) throws FileNotFoundException {
-        try {
-            return getFile(uri.getLastPathSegment());
-        } catch (NumberFormatException e) {
-            throw new FileNotFoundException();
+        private void awaitWritten() throws FileNotFoundException {
+            long deadline = System.currentTimeMillis() + mWriteTimeoutMillis;
+            try {
+                while (mWriting) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new FileNotFoundException("Temporary file is still being written!");
+                    }
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                throw new FileNotFoundException("Interrupted while waiting for temporary file!");
+            }
+        }
+
+        private void awaitReadable() throws FileNotFoundException {
+            awaitWritten();
+            if (mFailed) {
+                throw new FileNotFoundException("Writing temporary file failed!");
+            }
+        }
+
+        /** Returns the content if it is kept in memory, or null if it is stored on disk. */
+        synchronized byte[] getData() throws FileNotFoundException {
+            awaitReadable();
+            return mData;
+        }
+
+        synchronized long getSize() throws FileNotFoundException {
+            awaitReadable();
+            return mData != null ? mData.length : getFile(mUuid).length();
+        }
+
+        /** Starts writing to memory, returns false if the file is stored on disk already. */
+        synchronized boolean beginWrite() throws FileNotFoundException {
+            awaitWritten();
+            if (mDeleted) {
+                return false;
+            }
+            if (mFailed) {
+                // a failed write leaves nothing behind, start over in memory
+                mFailed = false;
+                mData = new byte[0];
+            }
+            if (mData == null) {
+                return false;
+            }
+            releaseMemory(mData.length);
+            mData = new byte[0];
+            mWriting = true;
+            return true;
+        }
+
+        /** Finishes writing, with the content if it was kept in memory, or null otherwise. */
+        synchronized void finishWrite(byte[] data) {
+            if (mDeleted) {
+                if (data != null) {
+                    releaseMemory(data.length);
+                } else {
+                    getFile(mUuid).delete();
+                }
+                data = null;
+            }
+            mData = data;
+            mWriting = false;
+            notifyAll();
+        }
+
+        /** Finishes a write which failed, discarding whatever was written. */
+        synchronized void failWrite() {
+            getFile(mUuid).delete();
+            mData = mDeleted ? null : new byte[0];
+            mFailed = !mDeleted;
+            mWriting = false;
+            notifyAll();
+        }
+
+        /** Moves the content to disk, so the file can be opened by path. */
+        synchronized void store() throws FileNotFoundException {
+            awaitReadable();
+            if (mData == null || mDeleted) {
+                return;
+            }
+            try {
+                writeFile(getFile(mUuid), mData);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Storing temporary file failed!", e);
+                throw new FileNotFoundException("Storing temporary file failed!");
+            }
+            releaseMemory(mData.length);
+            mData = null;
+        }
+
+        synchronized void delete() {
+            mDeleted = true;
+            if (mData != null) {
+                releaseMemory(mData.length);
+                mData = null;
+            }
+            // if it is still being written, finishing the write deletes what was written meanwhile
+            getFile(mUuid).delete();
         }
     }
 
+    private static TemporaryStorageDatabase db;
+
+    private final ConcurrentHashMap<String, TemporaryFile> mFiles = new ConcurrentHashMap<>();
+    /** counted down once the files stored before the process was started are known */
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private final Object mMemoryLock = new Object();
+    private int mMemoryUsed;
+    /** only changed by tests */
+    long mWriteTimeoutMillis = WRITE_TIMEOUT_MILLIS;
+
+    /** writes metadata to the database in order, so writes never wait for it */
+    private ThreadPoolExecutor mDatabaseExecutor;
+    /** feeds pipes, each pipe needs its own thread as long as the other side keeps it open */
+    private ThreadPoolExecutor mPipeExecutor;
+
     private File getFile(String id) {
         Matcher m = UUID_PATTERN.matcher(id);
         if (!m.matches()) {
@@ -166,66 +332,184 @@ public class TemporaryFileProvider extends ContentProvider {
         return new File(tempFilesDir, id);
     }
 
+    private TemporaryFile getTemporaryFile(Uri uri) {
+        String id = uri.getLastPathSegment();
+        if (id == null) {
+            return null;
+        }
+        // check for a valid uuid before looking it up
+        getFile(id);
+
+        TemporaryFile file = mFiles.get(id);
+        if (file == null && mLoaded.getCount() > 0) {
+            // may be a file from before the process was restarted
+            try {
+                mLoaded.await();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            file = mFiles.get(id);
+        }
+        return file;
+    }
+
+    private boolean reserveMemory(int size) {
+        synchronized (mMemoryLock) {
+            if (mMemoryUsed + size > MEMORY_TOTAL_MAX_SIZE) {
+                return false;
+            }
+            mMemoryUsed += size;
+            return true;
+        }
+    }
+
+    private void releaseMemory(int size) {
+        synchronized (mMemoryLock) {
+            mMemoryUsed -= size;
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int maxThreads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Override
     public boolean onCreate() {
         db = new TemporaryStorageDatabase(getContext());
         tempFilesDir = new File(getContext().getCacheDir(), TEMP_FILES_DIR);
+
+        mDatabaseExecutor = newExecutor(1, "temp-files-db");
+        mPipeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "temp-files-pipe");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mDatabaseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadFiles();
+            }
+        });
+
         return tempFilesDir.mkdirs();
     }
 
+    /**
+     * Loads the files stored before the process was started. Files which were only kept in
+     * memory are gone, their metadata is removed.
+     */
+    private void loadFiles() {
+        try {
+            SQLiteDatabase database = db.getWritableDatabase();
+            Cursor cursor = database.query(TABLE_FILES, new String[]{
+                    TemporaryFileColumns.COLUMN_UUID, TemporaryFileColumns.COLUMN_NAME,
+                    TemporaryFileColumns.COLUMN_TYPE, TemporaryFileColumns.COLUMN_TIME
+            }, null, null, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            ArrayList<String> lost = new ArrayList<>();
+            try {
+                while (cursor.moveToNext()) {
+                    String uuid = cursor.getString(0);
+                    if (!UUID_PATTERN.matcher(uuid).matches() || !getFile(uuid).exists()) {
+                        lost.add(uuid);
+                        continue;
+                    }
+                    TemporaryFile file = new TemporaryFile(uuid, cursor.getString(1),
+                            cursor.isNull(2) ? null : cursor.getString(2), cursor.getLong(3));
+                    file.mData = null;
+                    mFiles.putIfAbsent(uuid, file);
+                }
+            } finally {
+                cursor.close();
+            }
+            for (String uuid : lost) {
+                database.delete(TABLE_FILES, TemporaryFileColumns.COLUMN_UUID + " = ?", new String[]{uuid});
+            }
+            Log.d(Constants.TAG, "TemporaryFileProvider: loaded " + mFiles.size() + " files, "
+                    + lost.size() + " lost");
+        } finally {
+            mLoaded.countDown();
+        }
+    }
+
+    private void persist(final Runnable runnable) {
+        mDatabaseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    // metadata is only needed after a restart, don't take the process down for it
+                    Log.e(Constants.TAG, "Writing temporary file metadata failed!", e);
+                }
+            }
+        });
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         if (uri.getLastPathSegment() == null) {
             throw new SecurityException("Listing temporary files is not allowed, only querying single files.");
         }
 
-        File file;
-        try {
-            file = getFile(uri);
-        } catch (FileNotFoundException e) {
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file == null) {
             Log.e(Constants.TAG, "file not found!");
             return null;
         }
 
-        Cursor fileName = db.getReadableDatabase().query(TABLE_FILES,
-                new String[]{TemporaryFileColumns.COLUMN_NAME},
-                TemporaryFileColumns.COLUMN_UUID + "=?",
-                new String[]{uri.getLastPathSegment()}, null, null, null);
-        if (fileName != null) {
-            if (fileName.moveToNext()) {
-                MatrixCursor cursor = new MatrixCursor(new String[]{
-                        MediaStore.MediaColumns.DISPLAY_NAME,
-                        MediaStore.MediaColumns.SIZE,
-                        MediaStore.MediaColumns.DATA,
-                });
-                cursor.newRow()
-                        .add(fileName.getString(0))
-                        .add(file.length())
-                        .add(file.getAbsolutePath());
-                fileName.close();
-                return cursor;
-            }
-            fileName.close();
+        long size;
+        boolean inMemory;
+        try {
+            size = file.getSize();
+            inMemory = file.getData() != null;
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "file not available!");
+            return null;
         }
-        return null;
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                MediaStore.MediaColumns.DISPLAY_NAME,
+                MediaStore.MediaColumns.SIZE,
+                MediaStore.MediaColumns.DATA,
+        });
+        cursor.newRow()
+                .add(file.mName)
+                .add(size)
+                .add(inMemory ? null : getFile(file.mUuid).getAbsolutePath());
+        return cursor;
     }
 
     @Override
     public String getType(Uri uri) {
-        Cursor cursor = db.getReadableDatabase().query(TABLE_FILES,
-                new String[]{TemporaryFileColumns.COLUMN_TYPE},
-                TemporaryFileColumns.COLUMN_UUID + "=?",
-                new String[]{uri.getLastPathSegment()}, null, null, null);
-        if (cursor != null) {
-            try {
-                if (cursor.moveToNext()) {
-                    if (!cursor.isNull(0)) {
-                        return cursor.getString(0);
-                    }
-                }
-            } finally {
-                cursor.close();
-            }
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file != null && file.mMimeType != null) {
+            return file.mMimeType;
         }
         return "application/octet-stream";
     }
@@ -246,39 +530,109 @@ public class TemporaryFileProvider extends ContentProvider {
         }
         String uuid = UUID.randomUUID().toString();
         values.put(TemporaryFileColumns.COLUMN_UUID, uuid);
-        int insert = (int) db.getWritableDatabase().insert(TABLE_FILES, null, values);
-        if (insert == -1) {
-            Log.e(Constants.TAG, "Insert failed!");
-            return null;
-        }
-        try {
-            getFile(uuid).createNewFile();
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "File creation failed!");
-            return null;
-        }
+
+        mFiles.put(uuid, new TemporaryFile(uuid, values.getAsString(TemporaryFileColumns.COLUMN_NAME),
+                values.getAsString(TemporaryFileColumns.COLUMN_TYPE),
+                values.getAsLong(TemporaryFileColumns.COLUMN_TIME)));
+
+        final ContentValues persistedValues = new ContentValues(values);
+        persist(new Runnable() {
+            @Override
+            public void run() {
+                if (db.getWritableDatabase().insert(TABLE_FILES, null, persistedValues) == -1) {
+                    Log.e(Constants.TAG, "Insert failed!");
+                }
+            }
+        });
         return Uri.withAppendedPath(CONTENT_URI, uuid);
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        if (uri == null || uri.getLastPathSegment() == null) {
+        if (uri == null) {
+            return 0;
+        }
+        if (uri.getLastPathSegment() == null) {
+            return deleteStored(selection, selectionArgs);
+        }
+        if (selection != null || selectionArgs != null) {
+            throw new UnsupportedOperationException("Delete supported only for plain uri!");
+        }
+
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file == null || !mFiles.remove(file.mUuid, file)) {
+            return 0;
+        }
+        file.delete();
+        final String uuid = file.mUuid;
+        persist(new Runnable() {
+            @Override
+            public void run() {
+                db.getWritableDatabase().delete(TABLE_FILES,
+                        TemporaryFileColumns.COLUMN_UUID + " = ?", new String[]{uuid});
+            }
+        });
+        return 1;
+    }
+
+    /**
+     * Deletes all files whose stored metadata matches the selection, e.g. all files older than
+     * their time to live. Files on disk without metadata, which are left over if the process
+     * was killed before it was written, are deleted as well.
+     */
+    private int deleteStored(final String selection, final String[] selectionArgs) {
+        // query in order with the metadata writes, so files that were just created are seen
+        Future<ArrayList<String>> query = mDatabaseExecutor.submit(new Callable<ArrayList<String>>() {
+            @Override
+            public ArrayList<String> call() {
+                ArrayList<String> uuids = new ArrayList<>();
+                Cursor cursor = db.getReadableDatabase().query(TABLE_FILES,
+                        new String[]{TemporaryFileColumns.COLUMN_UUID}, selection, selectionArgs,
+                        null, null, null);
+                if (cursor != null) {
+                    try {
+                        while (cursor.moveToNext()) {
+                            uuids.add(cursor.getString(0));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                return uuids;
+            }
+        });
+        ArrayList<String> uuids;
+        try {
+            uuids = query.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "Querying temporary files failed!", e);
             return 0;
         }
 
-        selection = DatabaseUtil.concatenateWhere(selection, TemporaryFileColumns.COLUMN_UUID + "=?");
-        selectionArgs = DatabaseUtil.appendSelectionArgs(selectionArgs, new String[]{uri.getLastPathSegment()});
+        int count = 0;
+        for (String uuid : uuids) {
+            TemporaryFile file = mFiles.remove(uuid);
+            if (file != null) {
+                file.delete();
+                count++;
+            }
+        }
+        persist(new Runnable() {
+            @Override
+            public void run() {
+                db.getWritableDatabase().delete(TABLE_FILES, selection, selectionArgs);
+            }
+        });
 
-        Cursor files = db.getReadableDatabase().query(TABLE_FILES, new String[]{TemporaryFileColumns.COLUMN_UUID}, selection,
-                selectionArgs, null, null, null);
-        if (files != null) {
-            while (files.moveToNext()) {
-                getFile(files.getString(0)).delete();
+        String[] stored = tempFilesDir.list();
+        if (stored != null) {
+            for (String name : stored) {
+                if (!mFiles.containsKey(name) && new File(tempFilesDir, name).delete()) {
+                    count++;
+                }
             }
-            files.close();
-            return db.getWritableDatabase().delete(TABLE_FILES, selection, selectionArgs);
         }
-        return 0;
+        return count;
     }
 
     @Override
@@ -289,13 +643,163 @@ public class TemporaryFileProvider extends ContentProvider {
         if (selection != null || selectionArgs != null) {
             throw new UnsupportedOperationException("Update supported only for plain uri!");
         }
-        return db.getWritableDatabase().update(TABLE_FILES, values,
-                TemporaryFileColumns.COLUMN_UUID + " = ?", new String[]{uri.getLastPathSegment()});
+
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file == null) {
+            return 0;
+        }
+        file.mMimeType = values.getAsString(TemporaryFileColumns.COLUMN_TYPE);
+
+        final String uuid = file.mUuid;
+        final ContentValues persistedValues = new ContentValues(values);
+        persist(new Runnable() {
+            @Override
+            public void run() {
+                db.getWritableDatabase().update(TABLE_FILES, persistedValues,
+                        TemporaryFileColumns.COLUMN_UUID + " = ?", new String[]{uuid});
+            }
+        });
+        return 1;
     }
 
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file == null) {
+            throw new FileNotFoundException();
+        }
+
+        // other apps, including our own remote api processes, get a real file they can seek in
+        boolean ownProcess = Binder.getCallingPid() == Process.myPid();
+        if (ownProcess && "r".equals(mode)) {
+            byte[] data = file.getData();
+            if (data != null) {
+                return openPipeForReading(data);
+            }
+        } else if (ownProcess && ("w".equals(mode) || "wt".equals(mode))) {
+            if (file.beginWrite()) {
+                return openPipeForWriting(file);
+            }
+        } else {
+            file.store();
+        }
         return openFileHelper(uri, mode);
     }
 
+    private ParcelFileDescriptor openPipeForReading(final byte[] data) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createPipe();
+        mPipeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    out.write(data);
+                } catch (IOException e) {
+                    // reader closed the pipe before reading everything
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    private ParcelFileDescriptor openPipeForWriting(final TemporaryFile file) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = createPipe();
+        } catch (FileNotFoundException e) {
+            file.failWrite();
+            throw e;
+        }
+        mPipeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                receive(file, new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]));
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Writes the content of a file which was started with beginWrite(), in memory as long as it
+     * is small enough. If the write fails, the file fails to open until it is written again.
+     */
+    private void receive(TemporaryFile file, InputStream in) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = null;
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                if (out == null && buffer.size() + read > MEMORY_FILE_MAX_SIZE) {
+                    // too large to keep in memory, continue on disk
+                    out = new FileOutputStream(getFile(file.mUuid));
+                    buffer.writeTo(out);
+                    buffer = null;
+                }
+                if (out != null) {
+                    out.write(buf, 0, read);
+                } else {
+                    buffer.write(buf, 0, read);
+                }
+            }
+            byte[] data = null;
+            if (out != null) {
+                out.close();
+            } else {
+                data = buffer.toByteArray();
+                if (!reserveMemory(data.length)) {
+                    writeFile(getFile(file.mUuid), data);
+                    data = null;
+                }
+            }
+            file.finishWrite(data);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Writing temporary file failed!", e);
+            if (out != null) {
+                closeQuietly(out);
+            }
+            file.failWrite();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /** Writes a file which is kept in memory so far within this process, like a pipe from openFile. */
+    void write(Uri uri, InputStream in) throws FileNotFoundException {
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file == null || !file.beginWrite()) {
+            throw new FileNotFoundException();
+        }
+        receive(file, in);
+    }
+
+    /** Opens a file for reading within this process, like a pipe from openFile. */
+    InputStream read(Uri uri) throws FileNotFoundException {
+        TemporaryFile file = getTemporaryFile(uri);
+        if (file == null) {
+            throw new FileNotFoundException();
+        }
+        byte[] data = file.getData();
+        return data != null ? new ByteArrayInputStream(data) : new FileInputStream(getFile(file.mUuid));
+    }
+
+    private static ParcelFileDescriptor[] createPipe() throws FileNotFoundException {
+        try {
+            return ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Creating pipe failed!", e);
+            throw new FileNotFoundException("Creating pipe failed!");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
 }
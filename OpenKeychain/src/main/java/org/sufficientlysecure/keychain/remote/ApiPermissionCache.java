@@ -0,0 +1,171 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Caches the result of the permission check for each calling uid, so repeated calls by the
+ * same app don't query the package manager and the database every time.
+ * <p/>
+ * An entry is dropped when a package of its uid is installed, updated or removed, which is
+ * the only way its signing certificate can change. All entries are dropped when the registered
+ * apps change, e.g. when the user allows an app. The cache is shared by all services of a
+ * process and lives as long as the process.
+ * <p/>
+ * Only allowed callers are cached. The notification about registered apps comes from another
+ * process and may arrive late, so a denial is always checked again: an app the user has just
+ * allowed must not be denied from a stale entry when it retries right away. For the same
+ * reason, a cached permission is confirmed against the stored certificate of the app on every
+ * call, so an app the user has just revoked is denied right away. This is a single lookup,
+ * the package manager is only asked again when the entry is invalidated.
+ */
+class ApiPermissionCache {
+
+    enum Verdict {
+        ALLOWED, NOT_ALLOWED, WRONG_CERTIFICATE
+    }
+
+    static class Entry {
+        final String[] mPackages;
+        final Verdict mVerdict;
+        /** message of the WrongPackageCertificateException, for WRONG_CERTIFICATE */
+        final String mMessage;
+        /** the registered package and its stored certificate, for ALLOWED */
+        final String mAllowedPackage;
+        final byte[] mCertificate;
+
+        Entry(String[] packages, Verdict verdict, String message) {
+            mPackages = packages;
+            mVerdict = verdict;
+            mMessage = message;
+            mAllowedPackage = null;
+            mCertificate = null;
+        }
+
+        Entry(String[] packages, String allowedPackage, byte[] certificate) {
+            mPackages = packages;
+            mVerdict = Verdict.ALLOWED;
+            mMessage = null;
+            mAllowedPackage = allowedPackage;
+            mCertificate = certificate;
+        }
+    }
+
+    private static ApiPermissionCache sInstance;
+
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+    /** incremented on every invalidation, so results computed meanwhile are not stored */
+    private int mGeneration;
+
+    private int mHits;
+    private int mMisses;
+    private long mHitNanos;
+    private long mMissNanos;
+
+    static synchronized ApiPermissionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiPermissionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApiPermissionCache(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                Log.d(Constants.TAG, "ApiPermissionCache: " + intent.getAction() + " for uid " + uid);
+                if (uid == -1) {
+                    invalidateAll();
+                } else {
+                    invalidate(uid);
+                }
+            }
+        }, filter);
+
+        // the provider runs in another process, this is notified across processes
+        context.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        Log.d(Constants.TAG, "ApiPermissionCache: registered apps changed");
+                        invalidateAll();
+                    }
+                });
+    }
+
+    synchronized Entry get(int uid) {
+        return mEntries.get(uid);
+    }
+
+    /** To be read before computing an entry, and passed to put() with it. */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Stores an entry, if it is ALLOWED and nothing was invalidated since it was computed. */
+    synchronized void put(int uid, int generation, Entry entry) {
+        if (generation == mGeneration && entry.mVerdict == Verdict.ALLOWED) {
+            mEntries.put(uid, entry);
+        }
+    }
+
+    synchronized void invalidate(int uid) {
+        mGeneration++;
+        mEntries.remove(uid);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    /** Records the duration of a permission check, and logs the statistics so far in debug builds. */
+    synchronized void recordCall(boolean hit, long nanos) {
+        if (hit) {
+            mHits++;
+            mHitNanos += nanos;
+        } else {
+            mMisses++;
+            mMissNanos += nanos;
+        }
+        if (!Constants.DEBUG) {
+            return;
+        }
+        Log.d(Constants.TAG, "ApiPermissionCache: " + (hit ? "hit" : "miss") + " in " + nanos / 1000
+                + "us (hits: " + mHits + ", avg " + (mHits > 0 ? mHitNanos / mHits / 1000 : 0)
+                + "us; misses: " + mMisses + ", avg " + (mMisses > 0 ? mMissNanos / mMisses / 1000 : 0)
+                + "us)");
+    }
+
+}
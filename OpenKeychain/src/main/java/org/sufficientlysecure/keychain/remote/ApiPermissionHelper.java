@@ -51,12 +51,14 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ProviderHelper mProviderHelper;
+    private final ApiPermissionCache mPermissionCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mProviderHelper = new ProviderHelper(context);
+        mPermissionCache = ApiPermissionCache.getInstance(context);
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -160,7 +162,9 @@ public class ApiPermissionHelper {
      * @return package name
      */
     protected String getCurrentCallingPackage() {
-        String[] callingPackages = mPackageManager.getPackagesForUid(Binder.getCallingUid());
+        int uid = Binder.getCallingUid();
+        ApiPermissionCache.Entry entry = mPermissionCache.get(uid);
+        String[] callingPackages = entry != null ? entry.mPackages : mPackageManager.getPackagesForUid(uid);
 
         // NOTE: No support for sharedUserIds
         // callingPackages contains more than one entry when sharedUserId has been used
@@ -225,17 +229,53 @@ public class ApiPermissionHelper {
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
+        long startTime = System.nanoTime();
+        ApiPermissionCache.Entry entry = mPermissionCache.get(uid);
+        if (entry != null && !Arrays.equals(entry.mCertificate,
+                mProviderHelper.getApiAppCertificate(entry.mAllowedPackage))) {
+            // the app was revoked or registered again, and the notification has not arrived yet
+            mPermissionCache.invalidate(uid);
+            entry = null;
+        }
+        boolean hit = entry != null;
+        if (!hit) {
+            int generation = mPermissionCache.getGeneration();
+            entry = checkUid(uid);
+            mPermissionCache.put(uid, generation, entry);
+        }
+        mPermissionCache.recordCall(hit, System.nanoTime() - startTime);
+
+        switch (entry.mVerdict) {
+            case ALLOWED:
+                return true;
+            case WRONG_CERTIFICATE:
+                throw new WrongPackageCertificateException(entry.mMessage);
+            default:
+                Log.e(Constants.TAG, "Uid is NOT allowed!");
+                return false;
+        }
+    }
+
+    private ApiPermissionCache.Entry checkUid(int uid) {
         String[] callingPackages = mPackageManager.getPackagesForUid(uid);
+        ArrayList<String> allowedPkgs = mProviderHelper.getRegisteredApiApps();
+        Log.d(Constants.TAG, "allowed: " + allowedPkgs);
 
         // is calling package allowed to use this service?
-        for (String currentPkg : callingPackages) {
-            if (isPackageAllowed(currentPkg)) {
-                return true;
+        try {
+            for (String currentPkg : callingPackages) {
+                if (isPackageAllowed(currentPkg, allowedPkgs)) {
+                    return new ApiPermissionCache.Entry(callingPackages, currentPkg,
+                            mProviderHelper.getApiAppCertificate(currentPkg));
+                }
             }
+        } catch (WrongPackageCertificateException e) {
+            return new ApiPermissionCache.Entry(callingPackages,
+                    ApiPermissionCache.Verdict.WRONG_CERTIFICATE, e.getMessage());
         }
 
-        Log.e(Constants.TAG, "Uid is NOT allowed!");
-        return false;
+        return new ApiPermissionCache.Entry(callingPackages,
+                ApiPermissionCache.Verdict.NOT_ALLOWED, null);
     }
 
     /**
@@ -243,12 +283,10 @@ public class ApiPermissionHelper {
      *
      * @throws WrongPackageCertificateException
      */
-    private boolean isPackageAllowed(String packageName) throws WrongPackageCertificateException {
+    private boolean isPackageAllowed(String packageName, ArrayList<String> allowedPkgs)
+            throws WrongPackageCertificateException {
         Log.d(Constants.TAG, "isPackageAllowed packageName: " + packageName);
 
-        ArrayList<String> allowedPkgs = mProviderHelper.getRegisteredApiApps();
-        Log.d(Constants.TAG, "allowed: " + allowedPkgs);
-
         // check if package is allowed to use our service
         if (allowedPkgs.contains(packageName)) {
             Log.d(Constants.TAG, "Package is allowed! packageName: " + packageName);
@@ -36,12 +36,10 @@ import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.openintents.openpgp.util.OpenPgpApi;
-import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
@@ -50,6 +48,7 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -64,7 +63,10 @@ import org.sufficientlysecure.keychain.ui.PassphraseDialogActivity;
 import org.sufficientlysecure.keychain.ui.ViewKeyActivity;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ReadAheadInputStream;
+import org.sufficientlysecure.keychain.util.WriteBehindOutputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -74,6 +76,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 public class OpenPgpService extends Service {
 
@@ -88,6 +91,24 @@ public class OpenPgpService extends Service {
     static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
             + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
 
+    /**
+     * Starting with this API version, input and output are read and written on separate
+     * threads, so the client can stream its input while results are already returned.
+     */
+    static final int API_VERSION_PIPELINED = 11;
+
+    // chunk size and number of chunks buffered between pipeline stages
+    private static final int PIPELINE_CHUNK_SIZE = 1 << 16;
+    private static final int PIPELINE_MAX_CHUNKS = 16;
+
+    // actions which get their own metrics, all others are counted together
+    private static final HashSet<String> METRICS_ACTIONS = new HashSet<>(Arrays.asList(
+            OpenPgpApi.ACTION_CLEARTEXT_SIGN, OpenPgpApi.ACTION_SIGN, OpenPgpApi.ACTION_DETACHED_SIGN,
+            OpenPgpApi.ACTION_ENCRYPT, OpenPgpApi.ACTION_SIGN_AND_ENCRYPT,
+            OpenPgpApi.ACTION_DECRYPT_VERIFY, OpenPgpApi.ACTION_DECRYPT_METADATA,
+            OpenPgpApi.ACTION_GET_SIGN_KEY_ID, OpenPgpApi.ACTION_GET_KEY_IDS, OpenPgpApi.ACTION_GET_KEY
+    ));
+
     private ApiPermissionHelper mApiPermissionHelper;
     private ProviderHelper mProviderHelper;
 
@@ -443,7 +464,8 @@ public class OpenPgpService extends Service {
                         new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE));
             }
 
-            PgpSignEncryptOperation op = new PgpSignEncryptOperation(this, mProviderHelper, null);
+            // a ProviderHelper per call, like in KeychainService, so each call gets its own trace
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(this, new ProviderHelper(this), null);
 
             // execute PGP operation!
             PgpSignEncryptResult pgpResult = op.execute(pseInput, inputParcel, inputData, outputStream);
@@ -505,7 +527,8 @@ public class OpenPgpService extends Service {
 
             byte[] detachedSignature = data.getByteArrayExtra(OpenPgpApi.EXTRA_DETACHED_SIGNATURE);
 
-            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mProviderHelper, null);
+            // a ProviderHelper per call, like in KeychainService, so each call gets its own trace
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, new ProviderHelper(this), null);
 
             // TODO this is not correct!
             long inputLength = inputStream.available();
@@ -639,21 +662,15 @@ public class OpenPgpService extends Service {
 
             try {
                 // try to find key, throws NotFoundException if not in db!
-                CanonicalizedPublicKeyRing keyRing =
-                        mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
-
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+                Uri keyRingUri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
 
                 boolean requestedKeyData = outputStream != null;
                 if (requestedKeyData) {
                     boolean requestAsciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, false);
 
                     try {
-                        if (requestAsciiArmor) {
-                            outputStream = new ArmoredOutputStream(outputStream);
-                        }
-                        keyRing.encode(outputStream);
+                        // copied from the stored key ring as it is, without decoding it first
+                        mProviderHelper.writeKeyRing(keyRingUri, outputStream, requestAsciiArmor, false);
                     } finally {
                         try {
                             outputStream.close();
@@ -661,8 +678,14 @@ public class OpenPgpService extends Service {
                             Log.e(Constants.TAG, "IOException when closing OutputStream", e);
                         }
                     }
+                } else {
+                    mProviderHelper.getGenericData(keyRingUri, KeyRingData.MASTER_KEY_ID,
+                            ProviderHelper.FIELD_TYPE_INTEGER);
                 }
 
+                Intent result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+
                 // also return PendingIntent that opens the key view activity
                 result.putExtra(OpenPgpApi.RESULT_INTENT, getShowKeyPendingIntent(masterKeyId));
 
@@ -784,7 +807,7 @@ public class OpenPgpService extends Service {
 
         // version code is required and needs to correspond to version code of service!
         // History of versions in openpgp-api's CHANGELOG.md
-        List<Integer> supportedVersions = Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10);
+        List<Integer> supportedVersions = Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10, 11);
         if (!supportedVersions.contains(data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1))) {
             Intent result = new Intent();
             OpenPgpError error = new OpenPgpError
@@ -830,8 +853,39 @@ public class OpenPgpService extends Service {
         InputStream inputStream =
                 (input != null) ? new ParcelFileDescriptor.AutoCloseInputStream(input) : null;
 
+        // read input, run the operation and write output in parallel stages
+        boolean pipelined = data != null
+                && data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) >= API_VERSION_PIPELINED;
+        if (pipelined) {
+            if (inputStream != null) {
+                inputStream = new ReadAheadInputStream(
+                        inputStream, PIPELINE_CHUNK_SIZE, PIPELINE_MAX_CHUNKS);
+            }
+            if (outputStream != null) {
+                outputStream = new WriteBehindOutputStream(
+                        outputStream, PIPELINE_CHUNK_SIZE, PIPELINE_MAX_CHUNKS);
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        Intent result = null;
         try {
-            return executeInternalWithStreams(data, inputStream, outputStream);
+            result = executeInternalWithStreams(data, inputStream, outputStream);
+
+            // the writer thread reports errors only once all output is written, so this
+            // must be checked before the result is returned
+            if (outputStream instanceof WriteBehindOutputStream) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException when writing output", e);
+                    result = new Intent();
+                    result.putExtra(OpenPgpApi.RESULT_ERROR,
+                            new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                }
+            }
+            return result;
         } finally {
             // always close input and output file descriptors even in error cases
             if (inputStream != null) {
@@ -848,6 +902,26 @@ public class OpenPgpService extends Service {
                     Log.e(Constants.TAG, "IOException when closing output ParcelFileDescriptor", e);
                 }
             }
+            // including the time to write out the remaining output
+            recordApiCall(data, result, startNanos);
+        }
+    }
+
+    private static void recordApiCall(Intent data, Intent result, long startNanos) {
+        String action = data != null ? data.getAction() : null;
+        String name = "api." + (METRICS_ACTIONS.contains(action)
+                ? action.substring(action.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH)
+                : "other");
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.histogram(name).recordSince(startNanos);
+        int resultCode = result != null
+                ? result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
+                : OpenPgpApi.RESULT_CODE_ERROR;
+        if (resultCode == OpenPgpApi.RESULT_CODE_ERROR) {
+            metrics.counter(name + ".error").increment();
+        } else if (resultCode == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
+            metrics.counter(name + ".user_interaction").increment();
         }
     }
 
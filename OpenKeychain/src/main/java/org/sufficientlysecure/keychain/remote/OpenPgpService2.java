@@ -27,12 +27,13 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.util.Log;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class OpenPgpService2 extends OpenPgpService {
 
-    private Map<Long, ParcelFileDescriptor> mOutputPipeMap = new HashMap<Long, ParcelFileDescriptor>();
+    // accessed concurrently from binder threads
+    private Map<Long, ParcelFileDescriptor> mOutputPipeMap = new ConcurrentHashMap<>();
 
     private long createKey(int id) {
         int callingPid = Binder.getCallingPid();
@@ -57,8 +58,7 @@ public class OpenPgpService2 extends OpenPgpService {
         @Override
         public Intent execute(Intent data, ParcelFileDescriptor input, int outputPipeId) {
             long key = createKey(outputPipeId);
-            ParcelFileDescriptor output = mOutputPipeMap.get(key);
-            mOutputPipeMap.remove(key);
+            ParcelFileDescriptor output = mOutputPipeMap.remove(key);
             return executeInternal(data, input, output);
         }
 
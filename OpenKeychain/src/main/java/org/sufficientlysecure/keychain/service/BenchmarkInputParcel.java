@@ -19,16 +19,82 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
 
+/**
+ * Describes the matrix of measurements done by BenchmarkOperation. Each combination of key
+ * type, workload, compression, payload size and thread count is measured, except signing
+ * with a symmetric key, which doesn't exist.
+ * <p/>
+ * The default matrix is the classic benchmark of symmetric encryption and decryption of
+ * 10MB, plus the S2K iteration count.
+ */
 public class BenchmarkInputParcel implements Parcelable {
 
+    public enum KeyType {
+        SYMMETRIC, RSA_2048, RSA_4096, ECC_P256
+    }
+
+    public enum Workload {
+        ENCRYPT_DECRYPT, SIGN_VERIFY
+    }
+
+    public ArrayList<KeyType> mKeyTypes = new ArrayList<>(Arrays.asList(KeyType.SYMMETRIC));
+    public ArrayList<Workload> mWorkloads = new ArrayList<>(Arrays.asList(Workload.ENCRYPT_DECRYPT));
+    public boolean[] mCompression = new boolean[] { false };
+    public int[] mPayloadSizes = new int[] { 10 * 1024 * 1024 };
+    public int[] mThreadCounts = new int[] { 1 };
+
+    /** Rounds per thread which are run before measuring, and not counted */
+    public int mWarmupRounds = 1;
+    /** Measured rounds per thread */
+    public int mRounds = 5;
+
+    public boolean mBenchmarkS2k = true;
+
     public BenchmarkInputParcel() {
     }
 
     protected BenchmarkInputParcel(Parcel in) {
+        // just like parcelables, this is meant for ad-hoc IPC only and is NOT portable!
+        mKeyTypes = new ArrayList<>();
+        for (int ordinal : in.createIntArray()) {
+            mKeyTypes.add(KeyType.values()[ordinal]);
+        }
+        mWorkloads = new ArrayList<>();
+        for (int ordinal : in.createIntArray()) {
+            mWorkloads.add(Workload.values()[ordinal]);
+        }
+        mCompression = in.createBooleanArray();
+        mPayloadSizes = in.createIntArray();
+        mThreadCounts = in.createIntArray();
+        mWarmupRounds = in.readInt();
+        mRounds = in.readInt();
+        mBenchmarkS2k = in.readInt() != 0;
+    }
+
+    /** Returns the number of measured combinations, each of which has two steps. */
+    public int getCellCount() {
+        int keyTypes = mKeyTypes.size();
+        int workloads = mWorkloads.size();
+        int cells = keyTypes * workloads;
+        if (mKeyTypes.contains(KeyType.SYMMETRIC) && mWorkloads.contains(Workload.SIGN_VERIFY)) {
+            cells -= 1;
+        }
+        return cells * mCompression.length * mPayloadSizes.length * mThreadCounts.length;
+    }
+
+    public int getMaxThreadCount() {
+        int max = 1;
+        for (int threads : mThreadCounts) {
+            max = Math.max(max, threads);
+        }
+        return max;
     }
 
     @Override
@@ -38,6 +104,22 @@ public class BenchmarkInputParcel implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        int[] keyTypes = new int[mKeyTypes.size()];
+        for (int i = 0; i < keyTypes.length; i++) {
+            keyTypes[i] = mKeyTypes.get(i).ordinal();
+        }
+        dest.writeIntArray(keyTypes);
+        int[] workloads = new int[mWorkloads.size()];
+        for (int i = 0; i < workloads.length; i++) {
+            workloads[i] = mWorkloads.get(i).ordinal();
+        }
+        dest.writeIntArray(workloads);
+        dest.writeBooleanArray(mCompression);
+        dest.writeIntArray(mPayloadSizes);
+        dest.writeIntArray(mThreadCounts);
+        dest.writeInt(mWarmupRounds);
+        dest.writeInt(mRounds);
+        dest.writeInt(mBenchmarkS2k ? 1 : 0);
     }
 
     public static final Creator<BenchmarkInputParcel> CREATOR = new Creator<BenchmarkInputParcel>() {
@@ -51,4 +133,4 @@ public class BenchmarkInputParcel implements Parcelable {
             return new BenchmarkInputParcel[size];
         }
     };
-}
\ No newline at end of file
+}
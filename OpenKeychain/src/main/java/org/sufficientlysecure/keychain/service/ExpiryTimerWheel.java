@@ -0,0 +1,252 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel which keeps track of the expiry times of cached passphrases.
+ * <p/>
+ * Time is divided into ticks of TICK_MILLIS, and expiry times are rounded up to the next tick.
+ * All timers which expire in the same tick share one wakeup. The wheel has several levels of
+ * SLOT_COUNT slots each, every level covering SLOT_COUNT times the range of the one below it.
+ * Timers far in the future are kept in the coarse levels and moved down as their time
+ * approaches, so scheduling, cancelling and finding the next wakeup don't depend on the number
+ * of timers.
+ * <p/>
+ * The wheel does not set any alarms itself. The owner calls advance() when woken up, which
+ * returns all timers which are due by then, however late that is, e.g. after the device was
+ * in doze. Time is read from a Clock, so the wheel can be tested with a virtual one.
+ */
+public class ExpiryTimerWheel {
+
+    public static final long TICK_MILLIS = 5 * 1000;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 4;
+    /** Timers further ahead than this many ticks are kept in the last slot of the top level */
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVEL_COUNT);
+
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static class Timer {
+        final long mId;
+        final long mExpiryTick;
+        // position in the wheel, level -1 for timers which are already due
+        int mLevel;
+        int mSlot;
+
+        Timer(long id, long expiryTick) {
+            mId = id;
+            mExpiryTick = expiryTick;
+        }
+    }
+
+    private final Clock mClock;
+    private final HashMap<Long, Timer> mTimers = new HashMap<>();
+    private final ArrayList<HashSet<Timer>> mSlots = new ArrayList<>(LEVEL_COUNT * SLOT_COUNT);
+    private final HashSet<Timer> mDue = new HashSet<>();
+    /** The last tick which has been processed */
+    private long mCurrentTick;
+
+    public ExpiryTimerWheel(Clock clock) {
+        mClock = clock;
+        for (int i = 0; i < LEVEL_COUNT * SLOT_COUNT; i++) {
+            mSlots.add(null);
+        }
+        mCurrentTick = clock.currentTimeMillis() / TICK_MILLIS;
+    }
+
+    /**
+     * Schedules the timer with this id, replacing any previous one.
+     *
+     * @param expiryTime time in milliseconds, as returned by the clock
+     */
+    public void schedule(long id, long expiryTime) {
+        cancel(id);
+
+        Timer timer = new Timer(id, (expiryTime + TICK_MILLIS - 1) / TICK_MILLIS);
+        mTimers.put(id, timer);
+        place(timer);
+    }
+
+    /** @return true if a timer with this id was scheduled */
+    public boolean cancel(long id) {
+        Timer timer = mTimers.remove(id);
+        if (timer == null) {
+            return false;
+        }
+        if (timer.mLevel < 0) {
+            mDue.remove(timer);
+        } else {
+            mSlots.get(timer.mLevel * SLOT_COUNT + timer.mSlot).remove(timer);
+        }
+        return true;
+    }
+
+    public int size() {
+        return mTimers.size();
+    }
+
+    /**
+     * Processes all ticks up to the current time.
+     *
+     * @return ids of all timers which expired, these are no longer scheduled
+     */
+    public List<Long> advance() {
+        long nowTick = mClock.currentTimeMillis() / TICK_MILLIS;
+
+        if (nowTick < mCurrentTick) {
+            // the clock was set back, expiry times stay the same but their positions change
+            mCurrentTick = nowTick;
+            replaceAll();
+        }
+
+        while (mCurrentTick < nowTick) {
+            long nextTick = getNextTick();
+            if (nextTick - mCurrentTick > SLOT_COUNT) {
+                // nothing expires for a while, e.g. after a long sleep. skip ahead and recompute
+                // all positions, instead of stepping through every tick
+                mCurrentTick = Math.min(nowTick, nextTick - 1);
+                replaceAll();
+                continue;
+            }
+
+            mCurrentTick++;
+            // move timers down from higher levels whose slot starts at this tick
+            for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                if ((mCurrentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    cascade(level, (int) ((mCurrentTick >> (level * SLOT_BITS)) & SLOT_MASK));
+                }
+            }
+            HashSet<Timer> slot = mSlots.get((int) (mCurrentTick & SLOT_MASK));
+            if (slot != null && !slot.isEmpty()) {
+                for (Timer timer : slot) {
+                    timer.mLevel = -1;
+                    mDue.add(timer);
+                }
+                slot.clear();
+            }
+        }
+
+        ArrayList<Long> expired = new ArrayList<>(mDue.size());
+        for (Timer timer : mDue) {
+            mTimers.remove(timer.mId);
+            expired.add(timer.mId);
+        }
+        mDue.clear();
+        return expired;
+    }
+
+    /**
+     * @return time in milliseconds at which advance() should be called next, or Long.MAX_VALUE
+     * if no timers are scheduled
+     */
+    public long getNextWakeupTime() {
+        long nextTick = getNextTick();
+        return nextTick == Long.MAX_VALUE ? Long.MAX_VALUE : nextTick * TICK_MILLIS;
+    }
+
+    private long getNextTick() {
+        if (!mDue.isEmpty()) {
+            return mCurrentTick;
+        }
+
+        // slots of each level cover consecutive ranges of time, so the earliest timer of a level
+        // is in its first non-empty slot after the current one
+        long nextTick = Long.MAX_VALUE;
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            int currentSlot = (int) ((mCurrentTick >> (level * SLOT_BITS)) & SLOT_MASK);
+            for (int i = 1; i <= SLOT_COUNT; i++) {
+                HashSet<Timer> slot = mSlots.get(level * SLOT_COUNT + ((currentSlot + i) & SLOT_MASK));
+                if (slot == null || slot.isEmpty()) {
+                    continue;
+                }
+                for (Timer timer : slot) {
+                    nextTick = Math.min(nextTick, timer.mExpiryTick);
+                }
+                break;
+            }
+        }
+        return nextTick;
+    }
+
+    private void place(Timer timer) {
+        long delta = timer.mExpiryTick - mCurrentTick;
+        if (delta <= 0) {
+            timer.mLevel = -1;
+            mDue.add(timer);
+            return;
+        }
+
+        // the position is computed from a clamped tick, the real expiry is kept in the timer
+        long tick = delta < MAX_TICKS ? timer.mExpiryTick : mCurrentTick + MAX_TICKS - 1;
+        int level = 0;
+        while (level < LEVEL_COUNT - 1 && (tick - mCurrentTick) >= (1L << ((level + 1) * SLOT_BITS))) {
+            level++;
+        }
+        timer.mLevel = level;
+        timer.mSlot = (int) ((tick >> (level * SLOT_BITS)) & SLOT_MASK);
+
+        int index = level * SLOT_COUNT + timer.mSlot;
+        HashSet<Timer> slot = mSlots.get(index);
+        if (slot == null) {
+            slot = new HashSet<>();
+            mSlots.set(index, slot);
+        }
+        slot.add(timer);
+    }
+
+    private void cascade(int level, int slotIndex) {
+        HashSet<Timer> slot = mSlots.get(level * SLOT_COUNT + slotIndex);
+        if (slot == null || slot.isEmpty()) {
+            return;
+        }
+        ArrayList<Timer> timers = new ArrayList<>(slot);
+        slot.clear();
+        for (Timer timer : timers) {
+            place(timer);
+        }
+    }
+
+    private void replaceAll() {
+        for (HashSet<Timer> slot : mSlots) {
+            if (slot != null) {
+                slot.clear();
+            }
+        }
+        mDue.clear();
+        for (Timer timer : mTimers.values()) {
+            place(timer);
+        }
+    }
+
+}
@@ -43,6 +43,8 @@ import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.pgp.PgpBatchVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpBatchVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.Progressable;
@@ -51,7 +53,14 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
-
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -67,10 +76,14 @@ public class KeychainService extends Service implements Progressable {
     public static final String EXTRA_OPERATION_INPUT = "op_input";
     public static final String EXTRA_CRYPTO_INPUT = "crypto_input";
 
+    /**
+     * Cancels the operation whose EXTRA_MESSENGER is given in the intent, or all
+     * running operations if there is none.
+     */
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
+    /** cancellation flags of the running operations, by the binder of their messenger */
+    private final ConcurrentHashMap<IBinder, AtomicBoolean> mActionsCanceled = new ConcurrentHashMap<>();
 
     ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
 
@@ -86,20 +99,34 @@ public class KeychainService extends Service implements Progressable {
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+            if (messenger == null) {
+                for (AtomicBoolean canceled : mActionsCanceled.values()) {
+                    canceled.set(true);
+                }
+            } else {
+                AtomicBoolean canceled = mActionsCanceled.get(messenger.getBinder());
+                if (canceled != null) {
+                    canceled.set(true);
+                }
+            }
             return START_NOT_STICKY;
         }
 
         Runnable actionRunnable = new Runnable() {
             @Override
             public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
-
                 Bundle extras = intent.getExtras();
 
                 // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.<Messenger>getParcelable(EXTRA_MESSENGER));
+                Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
+                mMessenger.set(messenger);
+
+                // each operation has its own flag, so starting or cancelling one doesn't affect others
+                AtomicBoolean actionCanceled = new AtomicBoolean(false);
+                if (messenger != null) {
+                    mActionsCanceled.put(messenger.getBinder(), actionCanceled);
+                }
 
                 // Input
                 Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
@@ -111,25 +138,27 @@ public class KeychainService extends Service implements Progressable {
                 // just for brevity
                 KeychainService outerThis = KeychainService.this;
                 if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
                     op = new PgpDecryptVerifyOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+                } else if (inputParcel instanceof PgpBatchVerifyInputParcel) {
+                    op = new PgpBatchVerifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof RevokeKeyringParcel) {
                     op = new RevokeOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof DeleteKeyringParcel) {
                     op = new DeleteOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new BackupOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new UploadOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else if (inputParcel instanceof ConsolidateInputParcel) {
                     op = new ConsolidateOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof KeybaseVerificationParcel) {
@@ -137,13 +166,36 @@ public class KeychainService extends Service implements Progressable {
                 } else if (inputParcel instanceof InputDataParcel) {
                     op = new InputDataOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof BenchmarkInputParcel) {
-                    op = new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+                    op = new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis, actionCanceled);
                 } else {
                     throw new AssertionError("Unrecognized input parcel in KeychainService!");
                 }
 
-                @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
+                String opName = op.getClass().getSimpleName();
+                OperationResult result;
+                long startNanos = System.nanoTime();
+                Span span = op.mTrace.begin(Category.OPERATION, opName);
+                try {
+                    @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
+                    OperationResult opResult = op.execute(inputParcel, cryptoInput);
+                    result = opResult;
+                } finally {
+                    if (messenger != null) {
+                        mActionsCanceled.remove(messenger.getBinder());
+                    }
+                    span.end();
+                    MetricsRegistry.getInstance().histogram("operation." + opName).recordSince(startNanos);
+                }
+                if (!result.success()) {
+                    MetricsRegistry.getInstance().counter("operation." + opName + ".failed").increment();
+                }
+
+                result.setTraceSummary(op.mTrace.getSummary());
+                Log.d(Constants.TAG, opName + ": " + result.getTraceSummary());
+                if (Constants.DEBUG) {
+                    writeTraceFile(op);
+                }
+
                 sendMessageToHandler(MessageStatus.OKAY, result);
 
             }
@@ -155,6 +207,29 @@ public class KeychainService extends Service implements Progressable {
         return START_NOT_STICKY;
     }
 
+    /**
+     * Writes the trace of an operation to traces/<operation>.json in the cache dir, replacing
+     * the one of the previous operation of the same type. Can be pulled with adb and opened
+     * in chrome://tracing.
+     */
+    private void writeTraceFile(BaseOperation op) {
+        File dir = new File(getCacheDir(), "traces");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File file = new File(dir, op.getClass().getSimpleName() + ".json");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                op.mTrace.writeTraceFile(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Error writing trace file", e);
+        }
+    }
+
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
 
         Message msg = Message.obtain();
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.service;
 
 
+import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -27,6 +28,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -43,10 +45,13 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.MetricsRegistry;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Counter;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Histogram;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.Preferences;
 
-import java.util.Date;
+import java.util.List;
 
 /**
  * This service runs in its own process, but is available to all other processes as the main
@@ -73,6 +78,15 @@ import java.util.Date;
  * rare occurrence, and caching by keyring is what the user expects in the vast majority of
  * cases, this is not the default behavior.
  *
+ * Expiry times are kept in an ExpiryTimerWheel, and there is only ever one alarm set, for the
+ * earliest of them. Passphrases which expire within the same tick of the wheel are removed with
+ * a single wakeup. The alarm is allowed to go off during doze, but may still be delayed by the
+ * system, so passphrases which are due are also removed before any request is answered.
+ *
+ * On Android 6.0 and up, passphrases can additionally be kept in a PersistentPassphraseCache,
+ * if enabled in the settings. They are restored from there when the service process is
+ * restarted, until they expire.
+ *
  */
 public class PassphraseCacheService extends Service {
 
@@ -82,6 +96,8 @@ public class PassphraseCacheService extends Service {
             + "PASSPHRASE_CACHE_GET";
     public static final String ACTION_PASSPHRASE_CACHE_CLEAR = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_CLEAR";
+    public static final String ACTION_PASSPHRASE_CACHE_CLEAR_PERSISTENT = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_CLEAR_PERSISTENT";
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
@@ -98,10 +114,28 @@ public class PassphraseCacheService extends Service {
     private static final int MSG_PASSPHRASE_CACHE_GET_OKAY = 1;
     private static final int MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND = 2;
 
+    // counted in the service process
+    private static final Counter CACHE_HITS = MetricsRegistry.getInstance().counter("passphrase_cache.hit");
+    private static final Counter CACHE_MISSES = MetricsRegistry.getInstance().counter("passphrase_cache.miss");
+    private static final Counter RESTORED_HITS =
+            MetricsRegistry.getInstance().counter("passphrase_cache.restored_hit");
+    // recorded in the process asking for the passphrase
+    private static final Histogram GET_LATENCY = MetricsRegistry.getInstance().histogram("passphrase_cache.get");
+
     private BroadcastReceiver mIntentReceiver;
 
     private LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
 
+    // null if not supported on this device
+    private PersistentPassphraseCache mPersistentCache;
+
+    private ExpiryTimerWheel mTimerWheel;
+    private long mScheduledWakeupTime = Long.MAX_VALUE;
+
+    private int mCacheHits;
+    private int mCacheMisses;
+    private int mRestoredHits;
+
     Context mContext;
 
     public static class KeyNotFoundException extends Exception {
@@ -156,6 +190,19 @@ public class PassphraseCacheService extends Service {
         context.startService(intent);
     }
 
+    /**
+     * Removes all passphrases from the persistent cache, but keeps them in memory. Used when
+     * persisting is turned off in the settings.
+     */
+    public static void clearPersistedPassphrases(Context context) {
+        Log.d(Constants.TAG, "PassphraseCacheService.clearPersistedPassphrases()");
+
+        Intent intent = new Intent(context, PassphraseCacheService.class);
+        intent.setAction(ACTION_PASSPHRASE_CACHE_CLEAR_PERSISTENT);
+
+        context.startService(intent);
+    }
+
     /**
      * Gets a cached passphrase from memory by sending an intent to the service. This method is
      * designed to wait until the service returns the passphrase.
@@ -166,6 +213,7 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        long startNanos = System.nanoTime();
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -206,6 +254,7 @@ public class PassphraseCacheService extends Service {
                 // don't care
             }
         }
+        GET_LATENCY.recordSince(startNanos);
 
         switch (returnMessage.what) {
             case MSG_PASSPHRASE_CACHE_GET_OKAY:
@@ -234,10 +283,11 @@ public class PassphraseCacheService extends Service {
             Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphraseImpl() for symmetric encryption");
             CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
             if (cachedPassphrase == null) {
+                countCacheMiss();
                 return null;
             }
-            addCachedPassphrase(this, Constants.key.symmetric, Constants.key.symmetric,
-                    cachedPassphrase.getPassphrase(), getString(R.string.passp_cache_notif_pwd));
+            countCacheHit(cachedPassphrase);
+            refreshExpiryTime(Constants.key.symmetric, cachedPassphrase);
             return cachedPassphrase.getPassphrase();
         }
 
@@ -259,6 +309,7 @@ public class PassphraseCacheService extends Service {
         }
 
         // get cached passphrase
+        long referenceKeyId = subKeyId;
         CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
         if (cachedPassphrase == null) {
 
@@ -266,35 +317,85 @@ public class PassphraseCacheService extends Service {
             if (Preferences.getPreferences(mContext).getPassphraseCacheSubs()) {
                 Log.d(Constants.TAG, "PassphraseCacheService: specific subkey passphrase not (yet) cached, returning null");
                 // not really an error, just means the passphrase is not cached but not empty either
+                countCacheMiss();
                 return null;
             }
 
             if (subKeyId == masterKeyId) {
                 Log.d(Constants.TAG, "PassphraseCacheService: masterkey passphrase not (yet) cached, returning null");
                 // not really an error, just means the passphrase is not cached but not empty either
+                countCacheMiss();
                 return null;
             }
 
+            referenceKeyId = masterKeyId;
             cachedPassphrase = mPassphraseCache.get(masterKeyId);
             // If we cache strictly by subkey, exit early
             if (cachedPassphrase == null) {
                 Log.d(Constants.TAG, "PassphraseCacheService: keyring passphrase not (yet) cached, returning null");
                 // not really an error, just means the passphrase is not cached but not empty either
+                countCacheMiss();
                 return null;
             }
 
         }
 
-        // set it again to reset the cache life cycle
-        Log.d(Constants.TAG, "PassphraseCacheService: Cache passphrase again when getting it!");
-        addCachedPassphrase(this, masterKeyId, subKeyId, cachedPassphrase.getPassphrase(), cachedPassphrase.getPrimaryUserID());
+        countCacheHit(cachedPassphrase);
+
+        refreshExpiryTime(referenceKeyId, cachedPassphrase);
         return cachedPassphrase.getPassphrase();
     }
 
+    /**
+     * Resets the cache life cycle of a passphrase which was just used. Only the copy in memory
+     * is refreshed, the persisted copy keeps its expiry time, so it is not written again on
+     * each request.
+     */
+    private void refreshExpiryTime(long referenceKeyId, CachedPassphrase cachedPassphrase) {
+        long ttl = Preferences.getPreferences(mContext).getPassphraseCacheTtl();
+        long expiryTime = ttl > 0 ? System.currentTimeMillis() + (ttl * 1000) : Long.MAX_VALUE;
+        cachedPassphrase.setExpiryTime(expiryTime);
+        if (expiryTime != Long.MAX_VALUE) {
+            mTimerWheel.schedule(referenceKeyId, expiryTime);
+        } else {
+            mTimerWheel.cancel(referenceKeyId);
+        }
+        scheduleTimeout();
+    }
+
+    private void countCacheHit(CachedPassphrase cachedPassphrase) {
+        mCacheHits++;
+        CACHE_HITS.increment();
+        if (cachedPassphrase.isRestored()) {
+            mRestoredHits++;
+            RESTORED_HITS.increment();
+        }
+    }
+
+    private void countCacheMiss() {
+        mCacheMisses++;
+        CACHE_MISSES.increment();
+    }
+
+    /** Number of requests which were answered with a cached passphrase. */
+    public int getCacheHitCount() {
+        return mCacheHits;
+    }
+
+    /** Number of requests for which no passphrase was cached. */
+    public int getCacheMissCount() {
+        return mCacheMisses;
+    }
+
+    /** Number of cache hits for passphrases which were restored from the persistent cache. */
+    public int getRestoredHitCount() {
+        return mRestoredHits;
+    }
+
     /**
      * Register BroadcastReceiver that is unregistered when service is destroyed. This
      * BroadcastReceiver hears on intents with ACTION_PASSPHRASE_CACHE_SERVICE to then timeout
-     * specific passphrases in memory.
+     * all passphrases which are due.
      */
     private void registerReceiver() {
         if (mIntentReceiver == null) {
@@ -306,8 +407,8 @@ public class PassphraseCacheService extends Service {
                     Log.d(Constants.TAG, "PassphraseCacheService: Received broadcast...");
 
                     if (action.equals(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE)) {
-                        long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
-                        timeout(keyId);
+                        timeout();
+                        updateService();
                     }
                 }
             };
@@ -319,14 +420,37 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Build pending intent that is executed by alarm manager to time out a specific passphrase
+     * Build pending intent that is executed by alarm manager to time out passphrases
      */
-    private static PendingIntent buildIntent(Context context, long referenceKeyId) {
+    private static PendingIntent buildIntent(Context context) {
         Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
-        intent.putExtra(EXTRA_KEY_ID, referenceKeyId);
-        // request code should be unique for each PendingIntent, thus keyId is used
-        return PendingIntent.getBroadcast(context, (int) referenceKeyId, intent,
-                PendingIntent.FLAG_CANCEL_CURRENT);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Sets the alarm for the next wakeup of the timer wheel, or cancels it if no passphrases
+     * expire. The alarm manager is only called if the time changed.
+     */
+    private void scheduleTimeout() {
+        long wakeupTime = mTimerWheel.getNextWakeupTime();
+        if (wakeupTime == mScheduledWakeupTime) {
+            return;
+        }
+        mScheduledWakeupTime = wakeupTime;
+
+        AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+        if (wakeupTime == Long.MAX_VALUE) {
+            am.cancel(buildIntent(this));
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setAlarmAllowWhileIdle(am, wakeupTime);
+        } else {
+            am.set(AlarmManager.RTC_WAKEUP, wakeupTime, buildIntent(this));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setAlarmAllowWhileIdle(AlarmManager am, long wakeupTime) {
+        am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, wakeupTime, buildIntent(this));
     }
 
     /**
@@ -363,13 +487,16 @@ public class PassphraseCacheService extends Service {
                 // just add master key id to the cache, otherwise, add this specific subkey to the cache
                 long referenceKeyId =
                         Preferences.getPreferences(mContext).getPassphraseCacheSubs() ? subKeyId : masterKeyId;
-                mPassphraseCache.put(referenceKeyId, new CachedPassphrase(passphrase, primaryUserID));
-                if (ttl > 0) {
-                    // register new alarm with keyId for this passphrase
-                    long triggerTime = new Date().getTime() + (ttl * 1000);
-                    AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                    am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, referenceKeyId));
+                long now = System.currentTimeMillis();
+                long expiryTime = ttl > 0 ? now + (ttl * 1000) : Long.MAX_VALUE;
+                mPassphraseCache.put(referenceKeyId, new CachedPassphrase(passphrase, primaryUserID, expiryTime));
+                if (expiryTime != Long.MAX_VALUE) {
+                    mTimerWheel.schedule(referenceKeyId, expiryTime);
+                } else {
+                    mTimerWheel.cancel(referenceKeyId);
                 }
+                persistPassphrase(referenceKeyId, passphrase, primaryUserID, expiryTime, now);
+                scheduleTimeout();
                 break;
             }
             case ACTION_PASSPHRASE_CACHE_GET: {
@@ -377,6 +504,9 @@ public class PassphraseCacheService extends Service {
                 long subKeyId = intent.getLongExtra(EXTRA_SUBKEY_ID, Constants.key.symmetric);
                 Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
 
+                // don't hand out passphrases whose alarm was held back, e.g. by doze
+                timeout();
+
                 Message msg = Message.obtain();
                 try {
                     // If only one of these is symmetric, error out!
@@ -394,6 +524,8 @@ public class PassphraseCacheService extends Service {
                     Log.e(Constants.TAG, "PassphraseCacheService: Passphrase for unknown key was requested!");
                     msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                 }
+                Log.d(Constants.TAG, "PassphraseCacheService: " + mCacheHits + " hits (" + mRestoredHits
+                        + " restored), " + mCacheMisses + " misses");
 
                 try {
                     messenger.send(msg);
@@ -403,8 +535,6 @@ public class PassphraseCacheService extends Service {
                 break;
             }
             case ACTION_PASSPHRASE_CACHE_CLEAR: {
-                AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-
                 if (intent.hasExtra(EXTRA_SUBKEY_ID) && intent.hasExtra(EXTRA_KEY_ID)) {
 
                     long referenceKeyId;
@@ -413,19 +543,25 @@ public class PassphraseCacheService extends Service {
                     } else {
                         referenceKeyId = intent.getLongExtra(EXTRA_KEY_ID, 0L);
                     }
-                    // Stop specific ttl alarm and
-                    am.cancel(buildIntent(this, referenceKeyId));
-                    mPassphraseCache.delete(referenceKeyId);
+                    removePassphrase(referenceKeyId);
 
                 } else {
 
-                    // Stop all ttl alarms
-                    for (int i = 0; i < mPassphraseCache.size(); i++) {
-                        am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
+                    for (int i = mPassphraseCache.size() - 1; i >= 0; i--) {
+                        removePassphrase(mPassphraseCache.keyAt(i));
+                    }
+                    if (mPersistentCache != null) {
+                        mPersistentCache.clear();
                     }
-                    mPassphraseCache.clear();
 
                 }
+                scheduleTimeout();
+                break;
+            }
+            case ACTION_PASSPHRASE_CACHE_CLEAR_PERSISTENT: {
+                if (mPersistentCache != null) {
+                    mPersistentCache.clear();
+                }
                 break;
             }
             default: {
@@ -440,10 +576,20 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Called when one specific passphrase for keyId timed out
+     * Removes all passphrases which are due by now. Called when the alarm goes off, which may be
+     * late, and before answering requests.
      */
-    private void timeout(long keyId) {
+    private void timeout() {
+        List<Long> expiredKeyIds = mTimerWheel.advance();
+        for (long keyId : expiredKeyIds) {
+            removePassphrase(keyId);
+            Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
+        }
+
+        scheduleTimeout();
+    }
 
+    private void removePassphrase(long keyId) {
         CachedPassphrase cPass = mPassphraseCache.get(keyId);
         if (cPass != null) {
             if (cPass.getPassphrase() != null) {
@@ -453,10 +599,65 @@ public class PassphraseCacheService extends Service {
             // remove passphrase object
             mPassphraseCache.remove(keyId);
         }
+        mTimerWheel.cancel(keyId);
+        if (mPersistentCache != null) {
+            mPersistentCache.remove(keyId);
+        }
+    }
 
-        Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
+    /**
+     * Stores the passphrase in the persistent cache, if enabled. The persisted copy expires at the
+     * same time as the one in memory, or earlier if a shorter time is set for it. Passphrases for
+     * symmetric encryption are never persisted.
+     */
+    private void persistPassphrase(long keyId, Passphrase passphrase, String primaryUserID,
+                                   long expiryTime, long now) {
+        if (mPersistentCache == null || keyId == Constants.key.symmetric) {
+            return;
+        }
 
-        updateService();
+        long persistTtl = Preferences.getPreferences(mContext).getPassphraseCachePersistTtl();
+        if (persistTtl == 0) {
+            mPersistentCache.remove(keyId);
+            return;
+        }
+        if (persistTtl > 0) {
+            expiryTime = Math.min(expiryTime, now + (persistTtl * 1000));
+        }
+        mPersistentCache.put(keyId, passphrase, primaryUserID, expiryTime);
+    }
+
+    /**
+     * Restores passphrases from the persistent cache, after the service process was restarted.
+     */
+    private void restorePassphrases() {
+        if (Preferences.getPreferences(mContext).getPassphraseCachePersistTtl() == 0) {
+            mPersistentCache.clear();
+            return;
+        }
+
+        LongSparseArray<PersistentPassphraseCache.Entry> entries = mPersistentCache.restore();
+        for (int i = 0; i < entries.size(); i++) {
+            // may have been persisted by an older version
+            if (entries.keyAt(i) == Constants.key.symmetric) {
+                mPersistentCache.remove(Constants.key.symmetric);
+                continue;
+            }
+            PersistentPassphraseCache.Entry entry = entries.valueAt(i);
+            CachedPassphrase cachedPassphrase =
+                    new CachedPassphrase(entry.mPassphrase, entry.mPrimaryUserId, entry.mExpiryTime);
+            cachedPassphrase.setRestored(true);
+            mPassphraseCache.put(entries.keyAt(i), cachedPassphrase);
+            if (entry.mExpiryTime != Long.MAX_VALUE) {
+                mTimerWheel.schedule(entries.keyAt(i), entry.mExpiryTime);
+            }
+        }
+        Log.d(Constants.TAG, "PassphraseCacheService: restored " + entries.size() + " passphrases");
+
+        if (mPassphraseCache.size() > 0) {
+            registerReceiver();
+            scheduleTimeout();
+        }
     }
 
     private void updateService() {
@@ -516,6 +717,12 @@ public class PassphraseCacheService extends Service {
         super.onCreate();
         mContext = this;
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
+
+        mTimerWheel = new ExpiryTimerWheel(ExpiryTimerWheel.SYSTEM_CLOCK);
+        if (PersistentPassphraseCache.isSupported()) {
+            mPersistentCache = new PersistentPassphraseCache(this);
+            restorePassphrases();
+        }
     }
 
     @Override
@@ -542,10 +749,13 @@ public class PassphraseCacheService extends Service {
     public class CachedPassphrase {
         private String primaryUserID;
         private Passphrase passphrase;
+        private long expiryTime;
+        private boolean restored;
 
-        public CachedPassphrase(Passphrase passphrase, String primaryUserID) {
+        public CachedPassphrase(Passphrase passphrase, String primaryUserID, long expiryTime) {
             setPassphrase(passphrase);
             setPrimaryUserID(primaryUserID);
+            setExpiryTime(expiryTime);
         }
 
         public String getPrimaryUserID() {
@@ -563,5 +773,23 @@ public class PassphraseCacheService extends Service {
         public void setPassphrase(Passphrase passphrase) {
             this.passphrase = passphrase;
         }
+
+        /** Time in milliseconds at which the passphrase expires, Long.MAX_VALUE for never */
+        public long getExpiryTime() {
+            return expiryTime;
+        }
+
+        public void setExpiryTime(long expiryTime) {
+            this.expiryTime = expiryTime;
+        }
+
+        /** Whether the passphrase was restored from the persistent cache */
+        public boolean isRestored() {
+            return restored;
+        }
+
+        public void setRestored(boolean restored) {
+            this.restored = restored;
+        }
     }
 }
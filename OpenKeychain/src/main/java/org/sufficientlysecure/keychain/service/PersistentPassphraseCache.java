@@ -0,0 +1,215 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.v4.util.LongSparseArray;
+import android.util.Base64;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/**
+ * Second tier of the passphrase cache, which keeps cached passphrases on disk so they survive
+ * a restart of the PassphraseCacheService process.
+ * <p/>
+ * Passphrases are encrypted with an AES key from the Android Keystore, which is hardware backed
+ * on most devices and can't be extracted from it. The key id and expiry time of each entry are
+ * authenticated along with it, so entries can't be swapped or extended on disk. Entries are
+ * only returned by restore() until they expire. This requires Android 6.0, on older versions
+ * nothing is persisted.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class PersistentPassphraseCache {
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "passphrase_cache";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH = 128;
+
+    // package-private for tests
+    static final String PREF_FILE_NAME = "passphrase_cache";
+    static final String PREFIX_DATA = "data_";
+    static final String PREFIX_EXPIRY = "expiry_";
+    private static final String PREFIX_USER_ID = "user_";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SharedPreferences mSharedPreferences;
+
+    public static class Entry {
+        public final Passphrase mPassphrase;
+        public final String mPrimaryUserId;
+        public final long mExpiryTime;
+
+        Entry(Passphrase passphrase, String primaryUserId, long expiryTime) {
+            mPassphrase = passphrase;
+            mPrimaryUserId = primaryUserId;
+            mExpiryTime = expiryTime;
+        }
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    public PersistentPassphraseCache(Context context) {
+        mSharedPreferences = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Stores a passphrase, replacing any previous entry for this key id.
+     *
+     * @param expiryTime time in milliseconds after which the entry is no longer restored
+     */
+    public void put(long keyId, Passphrase passphrase, String primaryUserId, long expiryTime) {
+        byte[] plaintext = null;
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, getOrCreateKey());
+            cipher.updateAAD(getAssociatedData(keyId, expiryTime));
+
+            plaintext = encode(passphrase.getCharArray());
+            byte[] ciphertext = cipher.doFinal(plaintext);
+
+            mSharedPreferences.edit()
+                    .putString(PREFIX_DATA + keyId, Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP)
+                            + ":" + Base64.encodeToString(ciphertext, Base64.NO_WRAP))
+                    .putLong(PREFIX_EXPIRY + keyId, expiryTime)
+                    .putString(PREFIX_USER_ID + keyId, primaryUserId)
+                    .commit();
+        } catch (GeneralSecurityException | IOException e) {
+            // not fatal, the passphrase is still cached in memory
+            Log.e(Constants.TAG, "PersistentPassphraseCache: could not store passphrase", e);
+            remove(keyId);
+        } finally {
+            if (plaintext != null) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+    }
+
+    /** Returns all entries which have not yet expired, and removes all others. */
+    public LongSparseArray<Entry> restore() {
+        LongSparseArray<Entry> entries = new LongSparseArray<>();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, ?> pref : mSharedPreferences.getAll().entrySet()) {
+            if (!pref.getKey().startsWith(PREFIX_DATA)) {
+                continue;
+            }
+            long keyId = Long.parseLong(pref.getKey().substring(PREFIX_DATA.length()));
+            long expiryTime = mSharedPreferences.getLong(PREFIX_EXPIRY + keyId, 0);
+            if (expiryTime <= now) {
+                remove(keyId);
+                continue;
+            }
+
+            byte[] plaintext = null;
+            try {
+                String[] parts = ((String) pref.getValue()).split(":");
+                Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                cipher.init(Cipher.DECRYPT_MODE, getOrCreateKey(),
+                        new GCMParameterSpec(GCM_TAG_LENGTH, Base64.decode(parts[0], Base64.NO_WRAP)));
+                cipher.updateAAD(getAssociatedData(keyId, expiryTime));
+                plaintext = cipher.doFinal(Base64.decode(parts[1], Base64.NO_WRAP));
+
+                entries.put(keyId, new Entry(new Passphrase(decode(plaintext)),
+                        mSharedPreferences.getString(PREFIX_USER_ID + keyId, null), expiryTime));
+            } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                Log.e(Constants.TAG, "PersistentPassphraseCache: dropping unreadable entry", e);
+                remove(keyId);
+            } finally {
+                if (plaintext != null) {
+                    Arrays.fill(plaintext, (byte) 0);
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    public void remove(long keyId) {
+        mSharedPreferences.edit()
+                .remove(PREFIX_DATA + keyId)
+                .remove(PREFIX_EXPIRY + keyId)
+                .remove(PREFIX_USER_ID + keyId)
+                .commit();
+    }
+
+    public void clear() {
+        mSharedPreferences.edit().clear().commit();
+    }
+
+    /** Returns the key from the Android Keystore, overridden in tests. */
+    SecretKey getOrCreateKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keyStore.load(null);
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES,
+                KEYSTORE_PROVIDER);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    private static byte[] getAssociatedData(long keyId, long expiryTime) {
+        return ByteBuffer.allocate(16).putLong(keyId).putLong(expiryTime).array();
+    }
+
+    private static byte[] encode(char[] chars) {
+        ByteBuffer buffer = UTF8.encode(CharBuffer.wrap(chars));
+        byte[] bytes = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+        Arrays.fill(buffer.array(), (byte) 0);
+        return bytes;
+    }
+
+    private static char[] decode(byte[] bytes) {
+        CharBuffer buffer = UTF8.decode(ByteBuffer.wrap(bytes));
+        char[] chars = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+        Arrays.fill(buffer.array(), '\0');
+        return chars;
+    }
+
+}
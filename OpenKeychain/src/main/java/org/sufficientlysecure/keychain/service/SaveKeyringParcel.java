@@ -65,6 +65,9 @@ public class SaveKeyringParcel implements Parcelable {
     public Passphrase mCardPin;
     public Passphrase mCardAdminPin;
 
+    // if true, new keys are taken from the KeyPairReservoir if possible. only set by the create key wizard
+    public boolean mUseKeyPairReservoir;
+
     // private because they have to be set together with setUpdateOptions
     private boolean mUpload;
     private boolean mUploadAtomic;
@@ -91,6 +94,7 @@ public class SaveKeyringParcel implements Parcelable {
         mRevokeSubKeys = new ArrayList<>();
         mCardPin = null;
         mCardAdminPin = null;
+        mUseKeyPairReservoir = false;
         mUpload = false;
         mUploadAtomic = false;
         mKeyserver = null;
@@ -262,6 +266,7 @@ public class SaveKeyringParcel implements Parcelable {
         mCardPin = source.readParcelable(Passphrase.class.getClassLoader());
         mCardAdminPin  = source.readParcelable(Passphrase.class.getClassLoader());
 
+        mUseKeyPairReservoir = source.readByte() != 0;
         mUpload = source.readByte() != 0;
         mUploadAtomic = source.readByte() != 0;
         mKeyserver = source.readString();
@@ -291,6 +296,7 @@ public class SaveKeyringParcel implements Parcelable {
         destination.writeParcelable(mCardPin, flags);
         destination.writeParcelable(mCardAdminPin, flags);
 
+        destination.writeByte((byte) (mUseKeyPairReservoir ? 1 : 0));
         destination.writeByte((byte) (mUpload ? 1 : 0));
         destination.writeByte((byte) (mUploadAtomic ? 1 : 0));
         destination.writeString(mKeyserver);
@@ -22,6 +22,7 @@ import android.app.ProgressDialog;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Messenger;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 
@@ -79,10 +80,12 @@ public class ServiceProgressHandler extends Handler {
     public void showProgressDialog(
             String progressDialogMessage, int progressDialogStyle, boolean cancelable) {
 
+        // a messenger of this handler has the same binder as the one the operation was started with
         final ProgressDialogFragment frag = ProgressDialogFragment.newInstance(
                 progressDialogMessage,
                 progressDialogStyle,
-                cancelable);
+                cancelable,
+                new Messenger(this));
 
         // TODO: This is a hack!, see
         // http://stackoverflow.com/questions/10114324/show-dialogfragment-from-onactivityresult
@@ -24,10 +24,12 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentTransaction;
 
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.KeyPairReservoir;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.ui.base.BaseNfcActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -128,7 +130,12 @@ public class CreateKeyActivity extends BaseNfcActivity {
                 return;
             }
 
-            // normal key creation
+            // normal key creation, generate the default keys while the user enters their data
+            if (!mCreateYubiKey) {
+                KeyPairReservoir.getInstance().fill(Algorithm.RSA,
+                        CreateKeyFinalFragment.DEFAULT_RSA_KEY_SIZE, null,
+                        CreateKeyFinalFragment.DEFAULT_KEY_COUNT);
+            }
             CreateKeyStartFragment frag = CreateKeyStartFragment.newInstance();
             loadFragment(frag, FragAction.START);
         }
@@ -260,6 +267,16 @@ public class CreateKeyActivity extends BaseNfcActivity {
         void onNfcPostExecute();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // the wizard is done or abandoned, don't keep unused key pairs around
+        if (isFinishing()) {
+            KeyPairReservoir.getInstance().clear();
+        }
+    }
+
     @Override
     public void finish() {
         if (mFirstTime) {
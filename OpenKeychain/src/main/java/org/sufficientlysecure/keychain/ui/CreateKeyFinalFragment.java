@@ -59,6 +59,10 @@ public class CreateKeyFinalFragment extends Fragment {
 
     public static final int REQUEST_EDIT_KEY = 0x00008007;
 
+    // default keys consist of a certification, a signing and an encryption key
+    static final int DEFAULT_RSA_KEY_SIZE = 4096;
+    static final int DEFAULT_KEY_COUNT = 3;
+
     TextView mNameEdit;
     TextView mEmailEdit;
     CheckBox mUploadCheckbox;
@@ -202,11 +206,13 @@ public class CreateKeyFinalFragment extends Fragment {
                 mSaveKeyringParcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase(), null);
             } else {
                 mSaveKeyringParcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(Algorithm.RSA,
-                        4096, null, KeyFlags.CERTIFY_OTHER, 0L));
+                        DEFAULT_RSA_KEY_SIZE, null, KeyFlags.CERTIFY_OTHER, 0L));
                 mSaveKeyringParcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(Algorithm.RSA,
-                        4096, null, KeyFlags.SIGN_DATA, 0L));
+                        DEFAULT_RSA_KEY_SIZE, null, KeyFlags.SIGN_DATA, 0L));
                 mSaveKeyringParcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(Algorithm.RSA,
-                        4096, null, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                        DEFAULT_RSA_KEY_SIZE, null, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                // generated by CreateKeyActivity while the user entered their data
+                mSaveKeyringParcel.mUseKeyPairReservoir = true;
 
                 mSaveKeyringParcel.mNewUnlock = createKeyActivity.mPassphrase != null
                         ? new ChangeUnlockParcel(createKeyActivity.mPassphrase, null)
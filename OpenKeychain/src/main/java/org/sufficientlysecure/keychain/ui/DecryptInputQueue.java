@@ -0,0 +1,97 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.operations.results.InputPendingResult;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+
+/** Decrypt slots of a DecryptListFragment which wait for user input.
+ *
+ * The first slot in the queue prompts the user. Once it has its input, all
+ * other slots waiting for the passphrase of the same key are removed as well,
+ * to continue with the same input. The input itself is never kept here, inputs
+ * which ask for a key later go through the passphrase cache as usual.
+ */
+class DecryptInputQueue<T> {
+
+    private final ArrayList<T> mSlots = new ArrayList<>();
+    private final HashMap<T, InputPendingResult> mPendingResults = new HashMap<>();
+
+    /** Adds a slot which needs input. Returns true if it is first, and should prompt the user. */
+    boolean add(T slot, InputPendingResult result) {
+        mSlots.add(slot);
+        mPendingResults.put(slot, result);
+        return mSlots.size() == 1;
+    }
+
+    boolean contains(T slot) {
+        return mPendingResults.containsKey(slot);
+    }
+
+    /** Returns the slot which should prompt the user, or null if no slot waits for input. */
+    T getFirst() {
+        return mSlots.isEmpty() ? null : mSlots.get(0);
+    }
+
+    InputPendingResult getPendingResult(T slot) {
+        return mPendingResults.get(slot);
+    }
+
+    /**
+     * Removes a slot, along with all other slots waiting for the passphrase of
+     * the same key. Returns those other slots, in queue order.
+     */
+    List<T> removeWithSameInput(T slot) {
+        Long key = getSharedInputKey(mPendingResults.get(slot));
+        mSlots.remove(slot);
+        mPendingResults.remove(slot);
+
+        ArrayList<T> others = new ArrayList<>();
+        if (key == null) {
+            return others;
+        }
+        Iterator<T> it = mSlots.iterator();
+        while (it.hasNext()) {
+            T waiting = it.next();
+            if (key.equals(getSharedInputKey(mPendingResults.get(waiting)))) {
+                it.remove();
+                mPendingResults.remove(waiting);
+                others.add(waiting);
+            }
+        }
+        return others;
+    }
+
+    /** Returns the key whose passphrase is required, or null if the input can't be shared. */
+    static Long getSharedInputKey(InputPendingResult result) {
+        if (result == null) {
+            return null;
+        }
+        RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+        if (requiredInput.mType != RequiredInputType.PASSPHRASE) {
+            return null;
+        }
+        return requiredInput.getSubKeyId();
+    }
+
+}
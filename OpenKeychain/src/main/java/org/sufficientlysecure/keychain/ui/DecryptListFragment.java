@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.Manifest;
 import android.annotation.TargetApi;
@@ -45,6 +46,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.LinearLayoutManager;
@@ -76,12 +78,14 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.InputPendingResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
-import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
 import org.sufficientlysecure.keychain.ui.DecryptListFragment.ViewHolder.SubViewHolder;
@@ -101,21 +105,24 @@ import org.sufficientlysecure.keychain.util.Preferences;
  *
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, the input uri of one of mDecryptSlots, or a key in
+ * mInputDataResults.
  *
- * Processing of URIs happens using a looping approach:
- * - There is always exactly one method running which works on mCurrentInputUri
- * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- *   from the list of mPendingInputUris.
- * - Once a mCurrentInputUri is finished processing, it should be set to null and
- *   control handed back to cryptoOperation()
+ * Processing of URIs happens in up to MAX_CONCURRENT_DECRYPTS slots:
+ * - Each DecryptSlot works on one input uri at a time, with its own
+ *   CryptoOperationHelper, so results are displayed as soon as they finish
+ * - Processing starts in startDecrypts(), which pops new input uris from the
+ *   list of mPendingInputUris into all idle slots.
+ * - Once a slot is finished processing, it is set idle and control handed
+ *   back to startDecrypts()
+ * - Slots which need user input, e.g. a passphrase, wait in mInputQueue. Only
+ *   the first one prompts the user, once its input is there all slots which
+ *   wait for a passphrase of the same key continue with it.
  * - Control flow can move through asynchronous calls, and resume in callbacks
  *   like onActivityResult() or onPermissionRequestResult().
  *
  */
-public class DecryptListFragment
-        extends QueueingCryptoOperationFragment<InputDataParcel,InputDataResult>
-        implements OnMenuItemClickListener {
+public class DecryptListFragment extends Fragment implements OnMenuItemClickListener {
 
     public static final String ARG_INPUT_URIS = "input_uris";
     public static final String ARG_OUTPUT_URIS = "output_uris";
@@ -126,12 +133,21 @@ public class DecryptListFragment
     private static final int REQUEST_CODE_OUTPUT = 0x00007007;
     private static final int REQUEST_PERMISSION_READ_EXTERNAL_STORAGE = 12;
 
+    /** number of inputs decrypted at the same time */
+    private static final int MAX_CONCURRENT_DECRYPTS = 4;
+    /** helper ids of the decrypt slots, 2 is used by the key lookup */
+    private static final int FIRST_DECRYPT_HELPER_ID = 3;
+
     private ArrayList<Uri> mInputUris;
     private HashMap<Uri, InputDataResult> mInputDataResults;
     private ArrayList<Uri> mPendingInputUris;
     private ArrayList<Uri> mCancelledInputUris;
 
-    private Uri mCurrentInputUri;
+    private final ArrayList<DecryptSlot> mDecryptSlots = new ArrayList<>(MAX_CONCURRENT_DECRYPTS);
+    /** slots waiting for user input, the first one is prompting the user */
+    private final DecryptInputQueue<DecryptSlot> mInputQueue = new DecryptInputQueue<>();
+    /** file uri for which read permission was requested, if any */
+    private Uri mPermissionRequestUri;
     private boolean mCanDelete;
 
     private DecryptFilesAdapter mAdapter;
@@ -152,7 +168,9 @@ public class DecryptListFragment
     }
 
     public DecryptListFragment() {
-        super(null);
+        for (int i = 0; i < MAX_CONCURRENT_DECRYPTS; i++) {
+            mDecryptSlots.add(new DecryptSlot(FIRST_DECRYPT_HELPER_ID + i));
+        }
     }
 
     /**
@@ -199,9 +217,9 @@ public class DecryptListFragment
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
 
-        // this does not save mCurrentInputUri - if anything is being
-        // processed at fragment recreation time, the operation in
-        // progress will be lost!
+        // this does not save the input uris of the decrypt slots - if anything
+        // is being processed at fragment recreation time, the operation in
+        // progress will be restarted!
 
     }
 
@@ -228,7 +246,6 @@ public class DecryptListFragment
             HashMap<Uri,InputDataResult> results) {
 
         mInputUris = inputUris;
-        mCurrentInputUri = null;
         mInputDataResults = results != null ? results : new HashMap<Uri,InputDataResult>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -253,7 +270,7 @@ public class DecryptListFragment
         }
 
         // check if there are any pending input uris
-        cryptoOperation();
+        startDecrypts();
     }
 
     @Override
@@ -264,12 +281,16 @@ public class DecryptListFragment
                 if (resultCode == Activity.RESULT_OK && data != null) {
                     Uri saveUri = data.getData();
                     saveFile(saveUri);
-                    mCurrentInputUri = null;
                 }
                 return;
             }
 
             default: {
+                for (DecryptSlot slot : mDecryptSlots) {
+                    if (slot.mHelper.handleActivityResult(requestCode, resultCode, data)) {
+                        return;
+                    }
+                }
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
@@ -302,9 +323,6 @@ public class DecryptListFragment
         }
 
         Uri decryptedFileUri = mCurrentSaveFileUri;
-        mCurrentInputUri = null;
-
-        hideKeyboard();
 
         Activity activity = getActivity();
         if (activity == null) {
@@ -320,17 +338,55 @@ public class DecryptListFragment
         }
     }
 
-    @Override
-    public boolean onCryptoSetProgress(String msg, int progress, int max) {
-        mAdapter.setProgress(mCurrentInputUri, progress, max, msg);
-        return true;
+    /** Starts decrypting pending input uris in all idle slots. */
+    private void startDecrypts() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        Iterator<Uri> it = mPendingInputUris.iterator();
+        for (DecryptSlot slot : mDecryptSlots) {
+            if (slot.mInputUri != null) {
+                continue;
+            }
+
+            Uri uri = null;
+            while (it.hasNext()) {
+                Uri candidate = it.next();
+                if (hasReadPermission(activity, candidate)) {
+                    it.remove();
+                    uri = candidate;
+                    break;
+                }
+                // file uris wait for the permission, other uris go ahead meanwhile
+                if (mPermissionRequestUri == null) {
+                    mPermissionRequestUri = candidate;
+                    requestPermissions(
+                            new String[] { Manifest.permission.READ_EXTERNAL_STORAGE },
+                            REQUEST_PERMISSION_READ_EXTERNAL_STORAGE);
+                }
+            }
+            if (uri == null) {
+                // nothing left to do
+                return;
+            }
+
+            Log.d(Constants.TAG, "decrypting " + uri + " in slot " + mDecryptSlots.indexOf(slot));
+            slot.start(uri);
+        }
     }
 
-    @Override
-    public void onQueuedOperationError(InputDataResult result) {
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
+    private boolean isDecrypting(Uri uri) {
+        for (DecryptSlot slot : mDecryptSlots) {
+            if (slot.mInputUri != null && (uri == null || uri.equals(slot.mInputUri))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    private void onDecryptError(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
         if (activity != null && "com.fsck.k9.attachmentprovider".equals(uri.getHost())) {
             Toast.makeText(getActivity(), R.string.error_reading_k9, Toast.LENGTH_LONG).show();
@@ -338,18 +394,15 @@ public class DecryptListFragment
 
         mAdapter.addResult(uri, result);
 
-        cryptoOperation();
+        startDecrypts();
     }
 
-    @Override
-    public void onQueuedOperationSuccess(InputDataResult result) {
-        Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
+    private void onDecryptSuccess(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
 
-        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty();
-        if (isSingleInput) {
+        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty()
+                && !isDecrypting(null);
+        if (isSingleInput && activity != null) {
 
             // there is always at least one mMetadata object, so we know this is >= 1 already
             boolean isSingleMetadata = result.mMetadata.size() == 1;
@@ -372,33 +425,62 @@ public class DecryptListFragment
         mInputDataResults.put(uri, result);
         processResult(uri);
 
-        cryptoOperation();
+        startDecrypts();
     }
 
-    @Override
-    public void onCryptoOperationCancelled() {
-        super.onCryptoOperationCancelled();
-
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
+    private void onDecryptCancelled(Uri uri) {
         mCancelledInputUris.add(uri);
         mAdapter.setCancelled(uri, true);
 
-        cryptoOperation();
+        startDecrypts();
+    }
+
+    private void onInputRequired(DecryptSlot slot, InputPendingResult result) {
+        if (mInputQueue.add(slot, result)) {
+            promptNextInput();
+        }
+    }
+
+    private void onInputReceived(DecryptSlot slot, CryptoInputParcel cryptoInput) {
+        // continue all slots waiting for the same passphrase, the input isn't kept beyond that
+        for (DecryptSlot waiting : mInputQueue.removeWithSameInput(slot)) {
+            waiting.mHelper.cryptoOperation(cryptoInput);
+        }
+
+        promptNextInput();
+    }
+
+    private void onInputCancelled(DecryptSlot slot) {
+        // don't ask again for a passphrase the user just declined to enter
+        for (DecryptSlot waiting : mInputQueue.removeWithSameInput(slot)) {
+            Uri uri = waiting.finish();
+            mCancelledInputUris.add(uri);
+            mAdapter.setCancelled(uri, true);
+        }
+
+        promptNextInput();
+    }
 
+    private void promptNextInput() {
+        DecryptSlot next = mInputQueue.getFirst();
+        if (next == null || getActivity() == null) {
+            return;
+        }
+        next.mHelper.promptForInput(mInputQueue.getPendingResult(next));
     }
 
-    HashMap<Uri,Drawable> mIconCache = new HashMap<>();
+    // filled by concurrent icon tasks
+    ConcurrentHashMap<Uri,Drawable> mIconCache = new ConcurrentHashMap<>();
 
     private void processResult(final Uri uri) {
 
+        final InputDataResult result = mInputDataResults.get(uri);
+
+        // with concurrent decryption, don't make results wait for the icons of earlier ones
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
 
-                InputDataResult result = mInputDataResults.get(uri);
-
                 Context context = getActivity();
                 if (context == null) {
                     return null;
@@ -457,17 +539,16 @@ public class DecryptListFragment
 
             @Override
             protected void onPostExecute(Void v) {
-                InputDataResult result = mInputDataResults.get(uri);
                 mAdapter.addResult(uri, result);
             }
-        }.execute();
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
     }
 
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (isDecrypting(uri) || mPendingInputUris.contains(uri)) {
             return;
         }
 
@@ -478,7 +559,7 @@ public class DecryptListFragment
         mAdapter.resetItemData(uri);
 
         // check if there are any pending input uris
-        cryptoOperation();
+        startDecrypts();
     }
 
     public void displayBottomSheet(final InputDataResult result, final int index) {
@@ -596,45 +677,15 @@ public class DecryptListFragment
 
     }
 
-    @Override
-    public InputDataParcel createOperationInput() {
-
-        Activity activity = getActivity();
-        if (activity == null) {
-            return null;
-        }
-
-        if (mCurrentInputUri == null) {
-            if (mPendingInputUris.isEmpty()) {
-                // nothing left to do
-                return null;
-            }
-
-            mCurrentInputUri = mPendingInputUris.remove(0);
-        }
-
-        Log.d(Constants.TAG, "mCurrentInputUri=" + mCurrentInputUri);
-
-        if ( ! checkAndRequestReadPermission(activity, mCurrentInputUri)) {
-            return null;
-        }
-
-        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
-                .setAllowSymmetricDecryption(true);
-        return new InputDataParcel(mCurrentInputUri, decryptInput);
-
-    }
-
     /**
-     * Request READ_EXTERNAL_STORAGE permission on Android >= 6.0 to read content from "file" Uris.
+     * Checks for READ_EXTERNAL_STORAGE permission on Android >= 6.0 to read content from "file" Uris.
      *
      * This method returns true on Android < 6, or if permission is already granted. It
-     * requests the permission and returns false otherwise, taking over responsibility
-     * for mCurrentInputUri.
+     * returns false otherwise, the permission is then requested by startDecrypts().
      *
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
-    private boolean checkAndRequestReadPermission(Activity activity, final Uri uri) {
+    private boolean hasReadPermission(Activity activity, final Uri uri) {
         if ( ! ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
             return true;
         }
@@ -644,16 +695,8 @@ public class DecryptListFragment
             return true;
         }
 
-        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
-                == PackageManager.PERMISSION_GRANTED) {
-            return true;
-        }
-
-        requestPermissions(
-                new String[] { Manifest.permission.READ_EXTERNAL_STORAGE },
-                REQUEST_PERMISSION_READ_EXTERNAL_STORAGE);
-
-        return false;
+        return ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED;
 
     }
 
@@ -669,6 +712,7 @@ public class DecryptListFragment
 
         boolean permissionWasGranted = grantResults.length > 0
                 && grantResults[0] == PackageManager.PERMISSION_GRANTED;
+        mPermissionRequestUri = null;
 
         if (permissionWasGranted) {
 
@@ -686,11 +730,7 @@ public class DecryptListFragment
 
         } else {
 
-            // permission denied -> cancel current, and all pending file uris
-            mCancelledInputUris.add(mCurrentInputUri);
-            mAdapter.setCancelled(mCurrentInputUri, true);
-
-            mCurrentInputUri = null;
+            // permission denied -> cancel all pending file uris
             Iterator<Uri> it = mPendingInputUris.iterator();
             while (it.hasNext()) {
                 Uri uri = it.next();
@@ -705,7 +745,7 @@ public class DecryptListFragment
         }
 
         // hand control flow back
-        cryptoOperation();
+        startDecrypts();
 
     }
 
@@ -716,7 +756,7 @@ public class DecryptListFragment
         }
 
         // don't process menu items until all items are done!
-        if (!mPendingInputUris.isEmpty()) {
+        if (!mPendingInputUris.isEmpty() || isDecrypting(null)) {
             return true;
         }
 
@@ -813,6 +853,107 @@ public class DecryptListFragment
 
     }
 
+    /** Decrypts one input uri at a time, using its own CryptoOperationHelper. */
+    private class DecryptSlot implements CryptoOperationHelper.Callback<InputDataParcel, InputDataResult> {
+        final DecryptOperationHelper mHelper;
+        Uri mInputUri;
+
+        DecryptSlot(int helperId) {
+            mHelper = new DecryptOperationHelper(helperId, this);
+        }
+
+        void start(Uri inputUri) {
+            mInputUri = inputUri;
+            mHelper.cryptoOperation();
+        }
+
+        /** Sets this slot idle, and returns the uri it worked on. */
+        Uri finish() {
+            Uri uri = mInputUri;
+            mInputUri = null;
+            return uri;
+        }
+
+        @Override
+        public InputDataParcel createOperationInput() {
+            if (mInputUri == null) {
+                // slot of a previous instance of this fragment
+                return null;
+            }
+
+            PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
+                    .setAllowSymmetricDecryption(true);
+            return new InputDataParcel(mInputUri, decryptInput);
+        }
+
+        @Override
+        public void onCryptoOperationSuccess(InputDataResult result) {
+            Uri uri = finish();
+            if (uri != null) {
+                onDecryptSuccess(uri, result);
+            }
+        }
+
+        @Override
+        public void onCryptoOperationCancelled() {
+            if (mInputQueue.contains(this)) {
+                onInputCancelled(this);
+            }
+            Uri uri = finish();
+            if (uri != null) {
+                onDecryptCancelled(uri);
+            }
+        }
+
+        @Override
+        public void onCryptoOperationError(InputDataResult result) {
+            Uri uri = finish();
+            if (uri != null) {
+                onDecryptError(uri, result);
+            }
+        }
+
+        @Override
+        public boolean onCryptoSetProgress(String msg, int progress, int max) {
+            if (mInputUri != null) {
+                mAdapter.setProgress(mInputUri, progress, max, msg);
+            }
+            return true;
+        }
+    }
+
+    /** Lets the fragment decide when to prompt for user input, so prompts are not shown at once. */
+    private class DecryptOperationHelper extends CryptoOperationHelper<InputDataParcel, InputDataResult> {
+        private final DecryptSlot mSlot;
+
+        DecryptOperationHelper(int id, DecryptSlot slot) {
+            super(id, DecryptListFragment.this, slot, null);
+            mSlot = slot;
+        }
+
+        @Override
+        public void onHandleResult(OperationResult result) {
+            if (result instanceof InputPendingResult && ((InputPendingResult) result).isPending()) {
+                onInputRequired(mSlot, (InputPendingResult) result);
+                return;
+            }
+            super.onHandleResult(result);
+        }
+
+        void promptForInput(InputPendingResult result) {
+            super.onHandleResult(result);
+        }
+
+        @Override
+        public void cryptoOperation(CryptoInputParcel cryptoInput) {
+            if (mInputQueue.contains(mSlot)) {
+                // resumed with the input this slot prompted for
+                onInputReceived(mSlot, cryptoInput);
+            }
+            super.cryptoOperation(cryptoInput);
+        }
+    }
+
     public class DecryptFilesAdapter extends RecyclerView.Adapter<ViewHolder> {
         private ArrayList<ViewModel> mDataset;
         private ViewModel mMenuClickedModel;
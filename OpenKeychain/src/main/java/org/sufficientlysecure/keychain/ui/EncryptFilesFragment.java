@@ -626,7 +626,7 @@ public class EncryptFilesFragment
 
         if (mUseCompression) {
             data.setCompressionAlgorithm(
-                    PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT);
+                    PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_ADAPTIVE);
         } else {
             data.setCompressionAlgorithm(
                     PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
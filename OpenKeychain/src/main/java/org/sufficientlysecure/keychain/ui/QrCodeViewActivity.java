@@ -85,21 +85,20 @@ public class QrCodeViewActivity extends BaseActivity {
                 ActivityCompat.finishAfterTransition(QrCodeViewActivity.this);
             }
 
-            Uri uri = new Uri.Builder()
-                    .scheme(Constants.FINGERPRINT_SCHEME)
-                    .opaquePart(KeyFormattingUtils.convertFingerprintToHex(blob))
-                    .build();
-            // create a minimal size qr code, we can keep this in ram no problem
-            final Bitmap qrCode = QrCodeUtils.getQRCodeBitmap(uri, 0);
+            final String fingerprint = KeyFormattingUtils.convertFingerprintToHex(blob);
 
             mQrCode.getViewTreeObserver().addOnGlobalLayoutListener(
                     new OnGlobalLayoutListener() {
                         @Override
                         public void onGlobalLayout() {
-                            // create actual bitmap in display dimensions
-                            Bitmap scaled = Bitmap.createScaledBitmap(qrCode,
-                                    mQrCode.getWidth(), mQrCode.getWidth(), false);
-                            mQrCode.setImageBitmap(scaled);
+                            // render bitmap in display dimensions, in the background
+                            QrCodeUtils.loadFingerprintQrCode(fingerprint, mQrCode.getWidth(),
+                                    new QrCodeUtils.QrCodeCallback() {
+                                        @Override
+                                        public void onQrCodeRendered(Bitmap qrCode) {
+                                            mQrCode.setImageBitmap(qrCode);
+                                        }
+                                    });
                         }
                     });
         } catch (ProviderHelper.NotFoundException e) {
@@ -47,6 +47,7 @@ import android.widget.LinearLayout;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.AppCompatPreferenceActivity;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.ThemeChanger;
 import org.sufficientlysecure.keychain.ui.widget.IntegerListPreference;
@@ -156,6 +157,24 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
                             return false;
                         }
                     });
+
+            initializeImportCertificationLimit((IntegerListPreference) findPreference(
+                    Constants.Pref.IMPORT_CERTIFICATION_LIMIT));
+        }
+
+        private static void initializeImportCertificationLimit(
+                final IntegerListPreference certificationLimit) {
+            certificationLimit.setValue("" + sPreferences.getImportCertificationLimit());
+            certificationLimit.setSummary(certificationLimit.getEntry());
+            certificationLimit
+                    .setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                        public boolean onPreferenceChange(Preference preference, Object newValue) {
+                            certificationLimit.setValue(newValue.toString());
+                            certificationLimit.setSummary(certificationLimit.getEntry());
+                            sPreferences.setImportCertificationLimit(Integer.parseInt(newValue.toString()));
+                            return false;
+                        }
+                    });
         }
 
         @Override
@@ -197,6 +216,28 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
 
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
+            initializePassphraseCachePersistTtl((IntegerListPreference) findPreference(
+                    Constants.Pref.PASSPHRASE_CACHE_PERSIST_TTL));
+        }
+
+        private static void initializePassphraseCachePersistTtl(
+                final IntegerListPreference passphraseCachePersistTtl) {
+            passphraseCachePersistTtl.setValue("" + sPreferences.getPassphraseCachePersistTtl());
+            passphraseCachePersistTtl.setSummary(passphraseCachePersistTtl.getEntry());
+            passphraseCachePersistTtl
+                    .setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                        public boolean onPreferenceChange(Preference preference, Object newValue) {
+                            passphraseCachePersistTtl.setValue(newValue.toString());
+                            passphraseCachePersistTtl.setSummary(passphraseCachePersistTtl.getEntry());
+                            int persistTtl = Integer.parseInt(newValue.toString());
+                            sPreferences.setPassphraseCachePersistTtl(persistTtl);
+                            if (persistTtl == 0) {
+                                // don't leave passphrases on disk until the service restarts
+                                PassphraseCacheService.clearPersistedPassphrases(preference.getContext());
+                            }
+                            return false;
+                        }
+                    });
         }
 
         private static void initializePassphraseCacheTtl(
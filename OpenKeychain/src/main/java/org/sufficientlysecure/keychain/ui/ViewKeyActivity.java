@@ -716,34 +716,30 @@ public class ViewKeyActivity extends BaseNfcActivity implements
      * Load QR Code asynchronously and with a fade in animation
      */
     private void loadQrCode(final String fingerprint) {
-        AsyncTask<Void, Void, Bitmap> loadTask =
-                new AsyncTask<Void, Void, Bitmap>() {
-                    protected Bitmap doInBackground(Void... unused) {
-                        Uri uri = new Uri.Builder()
-                                .scheme(Constants.FINGERPRINT_SCHEME)
-                                .opaquePart(fingerprint)
-                                .build();
-                        // render with minimal size
-                        return QrCodeUtils.getQRCodeBitmap(uri, 0);
-                    }
-
-                    protected void onPostExecute(Bitmap qrCode) {
+        // render in our actual size if it is known yet, with minimal size otherwise
+        QrCodeUtils.loadFingerprintQrCode(fingerprint, mQrCode.getHeight(),
+                new QrCodeUtils.QrCodeCallback() {
+                    @Override
+                    public void onQrCodeRendered(Bitmap qrCode) {
+                        if (qrCode == null) {
+                            return;
+                        }
                         mQrCodeLoaded = fingerprint;
-                        // scale the image up to our actual size. we do this in code rather
-                        // than let the ImageView do this because we don't require filtering.
-                        Bitmap scaled = Bitmap.createScaledBitmap(qrCode,
-                                mQrCode.getHeight(), mQrCode.getHeight(),
-                                false);
-                        mQrCode.setImageBitmap(scaled);
+                        if (qrCode.getHeight() != mQrCode.getHeight()) {
+                            // scale the image up to our actual size. we do this in code rather
+                            // than let the ImageView do this because we don't require filtering.
+                            qrCode = Bitmap.createScaledBitmap(qrCode,
+                                    mQrCode.getHeight(), mQrCode.getHeight(),
+                                    false);
+                        }
+                        mQrCode.setImageBitmap(qrCode);
 
                         // simple fade-in animation
                         AlphaAnimation anim = new AlphaAnimation(0.0f, 1.0f);
                         anim.setDuration(200);
                         mQrCode.startAnimation(anim);
                     }
-                };
-
-        loadTask.execute();
+                });
     }
 
 
@@ -828,6 +824,8 @@ public class ViewKeyActivity extends BaseNfcActivity implements
 
                     mMasterKeyId = data.getLong(INDEX_MASTER_KEY_ID);
                     mFingerprint = KeyFormattingUtils.convertFingerprintToHex(data.getBlob(INDEX_FINGERPRINT));
+                    // the qr code is shown for own keys, and in the share tab and qr code view
+                    QrCodeUtils.prewarmFingerprintQrCode(mFingerprint);
 
                     // if it wasn't shown yet, display yubikey fragment
                     if (mShowYubikeyAfterCreation && getIntent().hasExtra(EXTRA_NFC_AID)) {
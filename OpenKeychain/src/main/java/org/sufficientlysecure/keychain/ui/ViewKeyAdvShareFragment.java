@@ -18,10 +18,10 @@
 package org.sufficientlysecure.keychain.ui;
 
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 
 import android.app.Activity;
 import android.app.ActivityOptions;
@@ -33,7 +33,6 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
@@ -189,10 +188,10 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
         ProviderHelper providerHelper = new ProviderHelper(activity);
 
         try {
-            String content = providerHelper.getKeyRingAsArmoredString(
-                    KeychainContract.KeyRingData.buildPublicKeyRingUri(mDataUri));
+            Uri keyRingUri = KeychainContract.KeyRingData.buildPublicKeyRingUri(mDataUri);
 
             if (toClipboard) {
+                String content = providerHelper.getKeyRingAsArmoredString(keyRingUri);
                 ClipboardManager clipMan = (ClipboardManager) activity.getSystemService(Context.CLIPBOARD_SERVICE);
                 if (clipMan == null) {
                     Notify.create(activity, R.string.error_clipboard_copy, Style.ERROR);
@@ -223,11 +222,15 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
                 }
                 Uri contentUri = TemporaryFileProvider.createFile(activity, filename + Constants.FILE_EXTENSION_ASC);
 
-                BufferedWriter contentWriter = new BufferedWriter(new OutputStreamWriter(
+                // stream the armored key straight into the file, without building a string
+                OutputStream contentStream = new BufferedOutputStream(
                         new ParcelFileDescriptor.AutoCloseOutputStream(
-                                shareFileProv.openFile(contentUri, "w"))));
-                contentWriter.write(content);
-                contentWriter.close();
+                                shareFileProv.openFile(contentUri, "w")));
+                try {
+                    providerHelper.writeKeyRing(keyRingUri, contentStream, true, false);
+                } finally {
+                    contentStream.close();
+                }
 
                 sendIntent.putExtra(Intent.EXTRA_STREAM, contentUri);
             } catch (FileNotFoundException e) {
@@ -390,27 +393,22 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
         final String fingerprint = KeyFormattingUtils.convertFingerprintToHex(fingerprintBlob);
         mFingerprintView.setText(KeyFormattingUtils.colorizeFingerprint(fingerprint));
 
-        AsyncTask<Void, Void, Bitmap> loadTask =
-                new AsyncTask<Void, Void, Bitmap>() {
-                    protected Bitmap doInBackground(Void... unused) {
-                        Uri uri = new Uri.Builder()
-                                .scheme(Constants.FINGERPRINT_SCHEME)
-                                .opaquePart(fingerprint)
-                                .build();
-                        // render with minimal size
-                        return QrCodeUtils.getQRCodeBitmap(uri, 0);
-                    }
-
-                    protected void onPostExecute(Bitmap qrCode) {
+        // render in our actual size if it is known yet, with minimal size otherwise
+        QrCodeUtils.loadFingerprintQrCode(fingerprint, mQrCode.getHeight(),
+                new QrCodeUtils.QrCodeCallback() {
+                    @Override
+                    public void onQrCodeRendered(Bitmap qrCode) {
                         // only change view, if fragment is attached to activity
-                        if (ViewKeyAdvShareFragment.this.isAdded()) {
+                        if (qrCode != null && ViewKeyAdvShareFragment.this.isAdded()) {
 
-                            // scale the image up to our actual size. we do this in code rather
-                            // than let the ImageView do this because we don't require filtering.
-                            Bitmap scaled = Bitmap.createScaledBitmap(qrCode,
-                                    mQrCode.getHeight(), mQrCode.getHeight(),
-                                    false);
-                            mQrCode.setImageBitmap(scaled);
+                            if (qrCode.getHeight() != mQrCode.getHeight()) {
+                                // scale the image up to our actual size. we do this in code rather
+                                // than let the ImageView do this because we don't require filtering.
+                                qrCode = Bitmap.createScaledBitmap(qrCode,
+                                        mQrCode.getHeight(), mQrCode.getHeight(),
+                                        false);
+                            }
+                            mQrCode.setImageBitmap(qrCode);
 
                             // simple fade-in animation
                             AlphaAnimation anim = new AlphaAnimation(0.0f, 1.0f);
@@ -418,9 +416,7 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
                             mQrCode.startAnimation(anim);
                         }
                     }
-                };
-
-        loadTask.execute();
+                });
     }
 
     private void uploadToKeyserver() {
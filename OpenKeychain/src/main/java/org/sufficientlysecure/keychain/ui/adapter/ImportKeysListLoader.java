@@ -24,8 +24,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.util.LongSparseArray;
 
@@ -34,24 +38,46 @@ import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.pgp.KeyRingSplitter;
+import org.sufficientlysecure.keychain.pgp.ParallelKeyRingParser;
+import org.sufficientlysecure.keychain.pgp.ParallelKeyRingParser.ParsedSlice;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.ui.ImportKeysListFragment.BytesLoaderState;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 
+/**
+ * Loads the keyrings of a file or byte array for preview.
+ * <p/>
+ * Entries are delivered in growing chunks while the input is still being parsed, so the
+ * first keys of a large file show up immediately. Keyrings of binary files are not kept
+ * in memory, only their location in the file is remembered and they are read again
+ * when they are actually imported.
+ */
 public class ImportKeysListLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
 
+    /** Number of entries after which the first partial result is delivered */
+    static final int FIRST_CHUNK_SIZE = 20;
+
     final Context mContext;
     final BytesLoaderState mLoaderState;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
 
     ArrayList<ImportKeysListEntry> mData = new ArrayList<>();
     LongSparseArray<ParcelableKeyRing> mParcelableRings = new LongSparseArray<>();
     AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    // copy of mParcelableRings which is safe to access from the ui thread
+    volatile LongSparseArray<ParcelableKeyRing> mPublishedRings = new LongSparseArray<>();
+    int mNextChunk = FIRST_CHUNK_SIZE;
+    // partial results posted under an older generation are dropped, see deliverPartialResult()
+    final AtomicInteger mGeneration = new AtomicInteger();
+
     public ImportKeysListLoader(Context context, BytesLoaderState inputData) {
         super(context);
         this.mContext = context;
@@ -75,13 +101,17 @@ public class ImportKeysListLoader
 
         InputData inputData = getInputData(getContext(), mLoaderState);
         generateListOfKeyrings(inputData);
+        mPublishedRings = mParcelableRings;
 
+        // the complete result replaces all partial ones, which must not be delivered after it
+        mGeneration.incrementAndGet();
         return mEntryListWrapper;
     }
 
     @Override
     protected void onReset() {
         super.onReset();
+        mGeneration.incrementAndGet();
 
         // Ensure the loader is stopped
         onStopLoading();
@@ -94,6 +124,7 @@ public class ImportKeysListLoader
 
     @Override
     protected void onStopLoading() {
+        mGeneration.incrementAndGet();
         super.cancelLoad();
     }
 
@@ -102,8 +133,9 @@ public class ImportKeysListLoader
         super.deliverResult(data);
     }
 
+    /** Returns the keyrings of all entries delivered so far, keyed by the entry's hashCode. */
     public LongSparseArray<ParcelableKeyRing> getParcelableRings() {
-        return mParcelableRings;
+        return mPublishedRings;
     }
 
     /** Reads all PGPKeyRing objects from the bytes of an InputData object. */
@@ -116,13 +148,17 @@ public class ImportKeysListLoader
         // armor blocks
         BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
         try {
+            // binary files are split up by packet headers, so we know where each keyring is
+            if (mLoaderState.mKeyBytes == null && isBinary(bufferedInput)) {
+                generateListOfKeyringSlices(bufferedInput, mLoaderState.mDataUri);
+                return;
+            }
+
             // parse all keyrings
             IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(bufferedInput);
             while (it.hasNext()) {
                 UncachedKeyRing ring = it.next();
-                ImportKeysListEntry item = new ImportKeysListEntry(getContext(), ring);
-                mData.add(item);
-                mParcelableRings.put(item.hashCode(), new ParcelableKeyRing(ring.getEncoded()));
+                addEntry(ring, new ParcelableKeyRing(ring.getEncoded()));
             }
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on parsing key file! Return NoValidKeysException!", e);
@@ -134,6 +170,66 @@ public class ImportKeysListLoader
         }
     }
 
+    /** Reads the keyrings of a binary file, remembering their location instead of their data. */
+    private void generateListOfKeyringSlices(BufferedInputStream bufferedInput, Uri sourceUri)
+            throws IOException {
+        ParallelKeyRingParser parser = new ParallelKeyRingParser(new KeyRingSplitter(bufferedInput));
+        while (parser.hasNext()) {
+            ParsedSlice slice = parser.next();
+            if (slice.mRings.size() == 1) {
+                UncachedKeyRing ring = slice.mRings.get(0);
+                addEntry(ring, new ParcelableKeyRing(sourceUri, slice.mOffset, slice.mLength,
+                        KeyFormattingUtils.convertFingerprintToHex(ring.getFingerprint())));
+                continue;
+            }
+            // several keyrings in one slice, e.g. in a compressed packet, these are kept in memory
+            for (UncachedKeyRing ring : slice.mRings) {
+                addEntry(ring, new ParcelableKeyRing(ring.getEncoded()));
+            }
+        }
+    }
+
+    private void addEntry(UncachedKeyRing ring, ParcelableKeyRing parcelableRing) {
+        ImportKeysListEntry item = new ImportKeysListEntry(getContext(), ring);
+        mData.add(item);
+        mParcelableRings.put(item.hashCode(), parcelableRing);
+
+        if (mData.size() >= mNextChunk) {
+            deliverPartialResult();
+            // chunks grow with the list, so copying it for each delivery stays cheap overall
+            mNextChunk = mData.size() * 2;
+        }
+    }
+
+    /**
+     * Delivers a snapshot of the entries parsed so far, while loading continues. The loader
+     * may be stopped or reset, or the load may complete, before the snapshot reaches the ui
+     * thread. Each of these starts a new generation, and snapshots of an older one are dropped.
+     */
+    private void deliverPartialResult() {
+        final ArrayList<ImportKeysListEntry> snapshot = new ArrayList<>(mData);
+        final int generation = mGeneration.get();
+        mPublishedRings = mParcelableRings.clone();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get() || !isStarted() || isAbandoned() || isReset()) {
+                    return;
+                }
+                deliverResult(new AsyncTaskResultWrapper<>(snapshot,
+                        new GetKeyResult(GetKeyResult.RESULT_OK, null)));
+            }
+        });
+    }
+
+    /** Checks if a stream starts with a binary packet header, i.e. is not armored. */
+    private static boolean isBinary(BufferedInputStream in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        return first >= 0 && (first & 0x80) != 0;
+    }
+
     private static InputData getInputData(Context context, BytesLoaderState loaderState) {
         InputData inputData = null;
         if (loaderState.mKeyBytes != null) {
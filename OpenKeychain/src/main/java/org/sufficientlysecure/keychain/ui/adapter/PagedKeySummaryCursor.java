@@ -0,0 +1,417 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.SparseArrayCompat;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Cursor over the key summary table which only loads the pages that are actually accessed.
+ * <p/>
+ * Only the row count is queried upfront. Pages are loaded on demand using keyset
+ * pagination: the query for a page continues after the sort key of the last row of the
+ * previous page, so SQLite can seek directly to it in the key_summary_order index. If the
+ * previous page was never loaded, e.g. after fast scrolling, the page is loaded by offset
+ * instead. A small number of recently used pages is kept in memory.
+ * <p/>
+ * The pages next to the one the cursor is positioned on are prefetched in the background,
+ * so scrolling doesn't wait for the database. A page is only loaded on the calling thread if
+ * it was not prefetched, e.g. after jumping to a far position. When the keys change, the
+ * count is queried again in the background, and the cached pages are dropped on the main
+ * thread along with notifying the observers of this cursor.
+ */
+public class PagedKeySummaryCursor extends AbstractCursor {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_CACHED_PAGES = 5;
+
+    /** Sort order of the key list, must match the sort key appended to each row. */
+    public static final String ORDER = KeyRings.HAS_ANY_SECRET + " DESC, "
+            + KeyRings.USER_ID + " COLLATE NOCASE ASC, " + KeyRings.MASTER_KEY_ID + " ASC";
+
+    private static final String KEYSET_SELECTION = KeyRings.HAS_ANY_SECRET + " < ? OR ("
+            + KeyRings.HAS_ANY_SECRET + " = ? AND (" + KeyRings.USER_ID + " COLLATE NOCASE > ? OR ("
+            + KeyRings.USER_ID + " COLLATE NOCASE = ? AND " + KeyRings.MASTER_KEY_ID + " > ?)))";
+
+    private final ContentResolver mContentResolver;
+    private final String[] mProjection;
+    private final String[] mQueryProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final int mPageSize;
+    private int mCount;
+
+    /** Pages in use, only accessed by the thread which moves the cursor */
+    private final LinkedHashMap<Integer, Cursor> mPages;
+    private Cursor mPage;
+
+    private static final ExecutorService sPrefetchExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PagedKeySummaryCursor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final DataSetObservable mCountObservable = new DataSetObservable();
+
+    private final Object mLock = new Object();
+    // guarded by mLock
+    /** Sort key of the last row of each loaded page, as has_any_secret, user_id, master_key_id */
+    private final SparseArrayCompat<String[]> mPageEnds = new SparseArrayCompat<>();
+    private final SparseArrayCompat<Cursor> mPrefetchedPages = new SparseArrayCompat<>();
+    private final HashSet<Integer> mPrefetching = new HashSet<>();
+    /** incremented when the keys changed, so pages loaded before are not used */
+    private int mGeneration;
+    private boolean mClosed;
+
+    public PagedKeySummaryCursor(ContentResolver contentResolver, String[] projection,
+            String selection, String[] selectionArgs, int pageSize) {
+        mContentResolver = contentResolver;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+
+        // the sort key is appended to the requested columns, but not exposed
+        ArrayList<String> queryProjection = new ArrayList<>(Arrays.asList(projection));
+        queryProjection.add(KeyRings.HAS_ANY_SECRET);
+        queryProjection.add(KeyRings.USER_ID);
+        queryProjection.add(KeyRings.MASTER_KEY_ID);
+        mQueryProjection = queryProjection.toArray(new String[queryProjection.size()]);
+
+        mPages = new LinkedHashMap<Integer, Cursor>(MAX_CACHED_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Cursor> eldest) {
+                if (size() <= MAX_CACHED_PAGES) {
+                    return false;
+                }
+                // never close the page the cursor is currently positioned on
+                if (eldest.getValue() != mPage) {
+                    eldest.getValue().close();
+                }
+                return true;
+            }
+        };
+
+        mCount = queryCount();
+        setNotificationUri(contentResolver, KeyRings.CONTENT_URI);
+    }
+
+    private int queryCount() {
+        Cursor cursor = mContentResolver.query(KeyRings.buildKeySummaryUri(),
+                new String[] { KeyRings._COUNT }, mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor getPage(int pageNumber) {
+        Cursor page = mPages.get(pageNumber);
+        if (page != null) {
+            return page;
+        }
+
+        synchronized (mLock) {
+            // wait for a prefetch of this page instead of loading it twice
+            while (mPrefetching.contains(pageNumber)) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            page = mPrefetchedPages.get(pageNumber);
+            mPrefetchedPages.remove(pageNumber);
+        }
+        if (page == null) {
+            page = loadPage(pageNumber);
+        }
+        if (page != null) {
+            mPages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    private void prefetch(final int pageNumber) {
+        if (pageNumber < 0 || pageNumber * mPageSize >= mCount || mPages.containsKey(pageNumber)) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mClosed || mPrefetching.contains(pageNumber) || mPrefetchedPages.get(pageNumber) != null) {
+                return;
+            }
+            mPrefetching.add(pageNumber);
+        }
+        sPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor page = null;
+                try {
+                    page = loadPage(pageNumber);
+                } finally {
+                    synchronized (mLock) {
+                        mPrefetching.remove(pageNumber);
+                        if (page != null) {
+                            if (mClosed) {
+                                page.close();
+                            } else {
+                                mPrefetchedPages.put(pageNumber, page);
+                            }
+                        }
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /** Queries a page, on any thread. Returns null if the keys changed meanwhile. */
+    private Cursor loadPage(int pageNumber) {
+        String[] previousEnd;
+        int generation;
+        synchronized (mLock) {
+            previousEnd = pageNumber > 0 ? mPageEnds.get(pageNumber - 1) : null;
+            generation = mGeneration;
+        }
+
+        String selection = mSelection;
+        String[] selectionArgs = mSelectionArgs;
+        Uri.Builder uri = KeyRings.buildKeySummaryUri().buildUpon()
+                .appendQueryParameter(KeychainContract.PARAM_LIMIT, Integer.toString(mPageSize));
+
+        if (previousEnd != null) {
+            selection = selection == null ? KEYSET_SELECTION
+                    : "(" + selection + ") AND (" + KEYSET_SELECTION + ")";
+            String[] keysetArgs = new String[] {
+                    previousEnd[0], previousEnd[0], previousEnd[1], previousEnd[1], previousEnd[2]
+            };
+            if (selectionArgs == null) {
+                selectionArgs = keysetArgs;
+            } else {
+                selectionArgs = Arrays.copyOf(selectionArgs, selectionArgs.length + keysetArgs.length);
+                System.arraycopy(keysetArgs, 0, selectionArgs, mSelectionArgs.length, keysetArgs.length);
+            }
+        } else if (pageNumber > 0) {
+            Log.d(Constants.TAG, "no keyset for page " + pageNumber + ", loading by offset");
+            uri.appendQueryParameter(KeychainContract.PARAM_OFFSET,
+                    Integer.toString(pageNumber * mPageSize));
+        }
+
+        Cursor page = mContentResolver.query(uri.build(), mQueryProjection, selection, selectionArgs, ORDER);
+        if (page == null) {
+            return null;
+        }
+
+        // moving to the last row also fills the window, on this thread
+        String[] end = null;
+        if (page.moveToLast()) {
+            int keyIndex = mProjection.length;
+            end = new String[] {
+                    page.getString(keyIndex), page.getString(keyIndex + 1), page.getString(keyIndex + 2)
+            };
+        }
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                page.close();
+                return null;
+            }
+            if (end != null) {
+                mPageEnds.put(pageNumber, end);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int pageNumber = newPosition / mPageSize;
+        Cursor page = getPage(pageNumber);
+        if (page == null) {
+            return false;
+        }
+        // close the previous page if it was evicted while we were positioned on it
+        if (mPage != null && mPage != page && !mPages.containsValue(mPage)) {
+            mPage.close();
+        }
+        mPage = page;
+
+        // stay ahead of the scroll position, in both directions
+        prefetch(pageNumber + 1);
+        prefetch(pageNumber - 1);
+        return mPage.moveToPosition(newPosition % mPageSize);
+    }
+
+    @Override
+    protected void onChange(boolean selfChange) {
+        super.onChange(selfChange);
+        sPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int count = queryCount();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyChange(count);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Drops all pages loaded before the keys changed, and notifies observers of the new count. */
+    private void applyChange(int count) {
+        if (isClosed()) {
+            return;
+        }
+        synchronized (mLock) {
+            mGeneration++;
+            mPageEnds.clear();
+            for (int i = 0; i < mPrefetchedPages.size(); i++) {
+                mPrefetchedPages.valueAt(i).close();
+            }
+            mPrefetchedPages.clear();
+        }
+        for (Cursor page : mPages.values()) {
+            if (page != mPage) {
+                page.close();
+            }
+        }
+        // the current page stays open until the cursor is moved, and is closed then
+        mPages.clear();
+        mCount = count;
+        mPos = -1;
+        mCountObservable.notifyChanged();
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        super.registerDataSetObserver(observer);
+        mCountObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        super.unregisterDataSetObserver(observer);
+        mCountObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mProjection;
+    }
+
+    @Override
+    public String getString(int column) {
+        return mPage.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mPage.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mPage.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mPage.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mLock) {
+            mClosed = true;
+            for (int i = 0; i < mPrefetchedPages.size(); i++) {
+                mPrefetchedPages.valueAt(i).close();
+            }
+            mPrefetchedPages.clear();
+        }
+        for (Cursor page : mPages.values()) {
+            page.close();
+        }
+        if (mPage != null) {
+            mPage.close();
+        }
+        mPages.clear();
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.CursorLoader;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+/**
+ * CursorLoader which returns a PagedKeySummaryCursor. Only the row count and the first
+ * page are loaded here, further pages are prefetched by the cursor as the list scrolls.
+ */
+public class PagedKeySummaryLoader extends CursorLoader {
+
+    private final ForceLoadContentObserver mPagedObserver = new ForceLoadContentObserver();
+
+    public PagedKeySummaryLoader(Context context, String[] projection, String selection,
+            String[] selectionArgs) {
+        super(context, KeyRings.buildKeySummaryUri(), projection, selection, selectionArgs,
+                PagedKeySummaryCursor.ORDER);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedKeySummaryCursor cursor = new PagedKeySummaryCursor(getContext().getContentResolver(),
+                getProjection(), getSelection(), getSelectionArgs(),
+                PagedKeySummaryCursor.DEFAULT_PAGE_SIZE);
+        // load the first page while we are still in the background
+        cursor.moveToFirst();
+        cursor.registerContentObserver(mPagedObserver);
+        return cursor;
+    }
+
+}
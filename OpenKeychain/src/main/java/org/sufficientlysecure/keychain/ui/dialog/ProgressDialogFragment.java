@@ -25,6 +25,7 @@ import android.content.DialogInterface.OnKeyListener;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Messenger;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.view.ContextThemeWrapper;
@@ -45,6 +46,7 @@ public class ProgressDialogFragment extends DialogFragment {
     private static final String ARG_STYLE = "style";
     private static final String ARG_CANCELABLE = "cancelable";
     private static final String ARG_SERVICE_TYPE = "service_class";
+    private static final String ARG_MESSENGER = "messenger";
 
     boolean mCanCancel = false, mPreventCancel = false, mIsCancelled = false;
 
@@ -56,11 +58,25 @@ public class ProgressDialogFragment extends DialogFragment {
      * @return
      */
     public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable) {
+        return newInstance(message, style, cancelable, null);
+    }
+
+    /**
+     * creates a new instance of this fragment
+     * @param message the message to be displayed initially above the progress bar
+     * @param style the progress bar style, as defined in ProgressDialog (horizontal or spinner)
+     * @param cancelable should we let the user cancel this operation
+     * @param messenger messenger of the operation, so only this operation is cancelled
+     * @return
+     */
+    public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable,
+            Messenger messenger) {
         ProgressDialogFragment frag = new ProgressDialogFragment();
         Bundle args = new Bundle();
         args.putString(ARG_MESSAGE, message);
         args.putInt(ARG_STYLE, style);
         args.putBoolean(ARG_CANCELABLE, cancelable);
+        args.putParcelable(ARG_MESSENGER, messenger);
 
         frag.setArguments(args);
 
@@ -182,6 +198,8 @@ public class ProgressDialogFragment extends DialogFragment {
                 Intent serviceIntent = new Intent(getActivity(), KeychainService.class);
 
                 serviceIntent.setAction(KeychainService.ACTION_CANCEL);
+                serviceIntent.putExtra(KeychainService.EXTRA_MESSENGER,
+                        getArguments().<Messenger>getParcelable(ARG_MESSENGER));
                 getActivity().startService(serviceIntent);
 
                 // Set the progress bar accordingly
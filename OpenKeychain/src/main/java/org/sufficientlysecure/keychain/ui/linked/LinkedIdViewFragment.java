@@ -2,6 +2,7 @@ package org.sufficientlysecure.keychain.ui.linked;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.concurrent.ExecutionException;
 
 import android.content.Context;
 import android.content.Intent;
@@ -32,11 +33,13 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Constants.key;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier;
 import org.sufficientlysecure.keychain.linked.LinkedTokenResource;
 import org.sufficientlysecure.keychain.linked.LinkedAttribute;
 import org.sufficientlysecure.keychain.linked.LinkedResource;
 import org.sufficientlysecure.keychain.linked.UriAttribute;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
@@ -242,6 +245,35 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
             mViewHolder.vButtonView.setVisibility(View.GONE);
         }
 
+        loadCachedResult();
+
+    }
+
+    /** Shows the result of an earlier verification right away, if it is still cached. */
+    private void loadCachedResult() {
+        final LinkedTokenResource resource = mLinkedResource;
+        new AsyncTask<Void,Void,LinkedVerifyResult>() {
+            @Override
+            protected LinkedVerifyResult doInBackground(Void... params) {
+                return LinkedIdVerifier.getInstance(mContext).getCachedResult(getMasterKeyId(), resource);
+            }
+
+            @Override
+            protected void onPostExecute(LinkedVerifyResult result) {
+                // don't interfere if the user started verifying meanwhile
+                if (result == null || mInProgress != null || mVerificationState
+                        || resource != mLinkedResource || !isAdded()) {
+                    return;
+                }
+                setShowVerifying(true);
+                mViewHolder.vKeySpinnerContainer.setVisibility(View.GONE);
+                showVerifyResult(result, false);
+            }
+        }.execute();
+    }
+
+    private long getMasterKeyId() {
+        return Long.parseLong(mDataUri.getPathSegments().get(1));
     }
 
     @Override
@@ -418,13 +450,14 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
         mViewHolder.vButtonVerify.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                verifyResource();
+                verifyResource(true);
             }
         });
         mViewHolder.vButtonRetry.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                verifyResource();
+                // fetch again, the cached result is what the user wants to retry
+                verifyResource(false);
             }
         });
         mViewHolder.vButtonConfirm.setOnClickListener(new OnClickListener() {
@@ -445,7 +478,7 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
         return root;
     }
 
-    void verifyResource() {
+    void verifyResource(final boolean useCache) {
 
         // only one at a time (no sync needed, mInProgress is only touched in ui thread)
         if (mInProgress != null) {
@@ -461,11 +494,28 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
             @Override
             protected LinkedVerifyResult doInBackground(Void... params) {
                 long timer = System.currentTimeMillis();
-                LinkedVerifyResult result = mLinkedResource.verify(getActivity(), mFingerprint);
+                LinkedIdVerifier verifier = LinkedIdVerifier.getInstance(mContext);
+
+                // verify the other linked identities of this key alongside, so their results
+                // are cached by the time they are opened
+                submitOtherResources(verifier);
+
+                LinkedVerifyResult result;
+                try {
+                    result = verifier.submit(getMasterKeyId(), mFingerprint, mLinkedResource, useCache).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(Constants.TAG, "error verifying linked identity", e);
+                    OperationResult.OperationLog log = new OperationResult.OperationLog();
+                    log.add(LogType.MSG_LV, 0);
+                    log.add(LogType.MSG_LV_FETCH_ERROR_IO, 1);
+                    return new LinkedVerifyResult(LinkedVerifyResult.RESULT_ERROR, log);
+                }
 
-                // ux flow: this operation should take at last a second
+                // ux flow: this operation should take at last a second, unless it was cached
+                boolean cached = result.getLog().containsType(LogType.MSG_LV_CACHED_OK)
+                        || result.getLog().containsType(LogType.MSG_LV_CACHED_ERROR);
                 timer = System.currentTimeMillis() -timer;
-                if (timer < 1000) try {
+                if (!cached && timer < 1000) try {
                     Thread.sleep(1000 -timer);
                 } catch (InterruptedException e) {
                     // never mind
@@ -479,23 +529,57 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
                 if (isCancelled()) {
                     return;
                 }
-                if (result.success()) {
-                    mViewHolder.vText.setText(getString(mLinkedResource.getVerifiedText(mIsSecret)));
-                    // hack to preserve bold text
-                    ((TextView) mViewHolder.vText.getCurrentView()).setText(
-                            mLinkedResource.getVerifiedText(mIsSecret));
-                    mViewHolder.setVerifyingState(mContext, VerifyState.VERIFY_OK, mIsSecret);
-                    mViewHolder.mLinkedIdHolder.seekAttention();
-                } else {
-                    mViewHolder.setVerifyingState(mContext, VerifyState.VERIFY_ERROR, mIsSecret);
-                    result.createNotify(getActivity()).show();
-                }
+                showVerifyResult(result, true);
                 mInProgress = null;
             }
         }.execute();
 
     }
 
+    private void submitOtherResources(LinkedIdVerifier verifier) {
+        Cursor cursor = mContext.getContentResolver().query(mDataUri,
+                UserIdsAdapter.USER_PACKETS_PROJECTION, LinkedIdsAdapter.LINKED_IDS_WHERE, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(UserIdsAdapter.INDEX_RANK) == mLidRank) {
+                    continue;
+                }
+                try {
+                    UriAttribute linkedId = LinkedAttribute.fromAttributeData(
+                            cursor.getBlob(UserIdsAdapter.INDEX_ATTRIBUTE_DATA));
+                    if (linkedId instanceof LinkedAttribute
+                            && ((LinkedAttribute) linkedId).mResource instanceof LinkedTokenResource) {
+                        verifier.submit(getMasterKeyId(), mFingerprint,
+                                (LinkedTokenResource) ((LinkedAttribute) linkedId).mResource, true);
+                    }
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error parsing identity", e);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void showVerifyResult(LinkedVerifyResult result, boolean notifyError) {
+        if (result.success()) {
+            mViewHolder.vText.setText(getString(mLinkedResource.getVerifiedText(mIsSecret)));
+            // hack to preserve bold text
+            ((TextView) mViewHolder.vText.getCurrentView()).setText(
+                    mLinkedResource.getVerifiedText(mIsSecret));
+            mViewHolder.setVerifyingState(mContext, VerifyState.VERIFY_OK, mIsSecret);
+            mViewHolder.mLinkedIdHolder.seekAttention();
+        } else {
+            mViewHolder.setVerifyingState(mContext, VerifyState.VERIFY_ERROR, mIsSecret);
+            if (notifyError) {
+                result.createNotify(getActivity()).show();
+            }
+        }
+    }
+
     private void initiateCertifying() {
 
         if (mIsSecret) {
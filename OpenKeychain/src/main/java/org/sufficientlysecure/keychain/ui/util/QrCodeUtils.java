@@ -18,9 +18,12 @@
 
 package org.sufficientlysecure.keychain.ui.util;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
@@ -30,23 +33,156 @@ import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Copied from Bitcoin Wallet
+ * <p/>
+ * QR codes are rendered as ALPHA_8 bitmaps, which take a quarter of the memory of ARGB_8888
+ * ones and are drawn in the paint color, black by default. Rendered QR codes are cached by
+ * content and size, until memory runs low.
  */
 public class QrCodeUtils {
 
+    public interface QrCodeCallback {
+        /** Called on the main thread, with null if the QR code could not be rendered. */
+        void onQrCodeRendered(Bitmap qrCode);
+    }
+
+    /** cache size in bytes, that is in pixels for ALPHA_8 */
+    private static final int CACHE_SIZE = 2 * 1024 * 1024;
+    /** number of recently requested sizes which are prewarmed */
+    private static final int PREWARM_SIZES = 3;
+
+    private static final LruCache<String, Bitmap> sCache = new LruCache<String, Bitmap>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    };
+    private static final ArrayList<Integer> sRecentSizes = new ArrayList<>();
+
+    private static ThreadPoolExecutor sExecutor;
+    private static Handler sMainHandler;
+
     public static Bitmap getQRCodeBitmap(final Uri uri, final int size) {
         // for URIs we want alphanumeric encoding to save space, thus make everything upper case!
         // zxing will then select Mode.ALPHANUMERIC internally
         return getQRCodeBitmap(uri.toString().toUpperCase(Locale.ENGLISH), size);
     }
 
+    private static Uri getFingerprintUri(String fingerprint) {
+        return new Uri.Builder()
+                .scheme(Constants.FINGERPRINT_SCHEME)
+                .opaquePart(fingerprint)
+                .build();
+    }
+
+    /**
+     * Renders the QR code of a fingerprint in the background, or returns it right away if it
+     * is cached.
+     *
+     * @param size width and height in pixels, or 0 for one pixel per module
+     */
+    public static void loadFingerprintQrCode(final String fingerprint, final int size,
+            final QrCodeCallback callback) {
+        rememberSize(size);
+
+        final String input = getFingerprintUri(fingerprint).toString().toUpperCase(Locale.ENGLISH);
+        Bitmap cached = sCache.get(getCacheKey(input, size));
+        if (cached != null) {
+            callback.onQrCodeRendered(cached);
+            return;
+        }
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap qrCode = getQRCodeBitmap(input, size);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onQrCodeRendered(qrCode);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Renders the QR code of a fingerprint in the background, in the sizes it was recently
+     * shown in, so it is cached once it is shown.
+     */
+    public static void prewarmFingerprintQrCode(String fingerprint) {
+        final String input = getFingerprintUri(fingerprint).toString().toUpperCase(Locale.ENGLISH);
+        final ArrayList<Integer> sizes;
+        synchronized (sRecentSizes) {
+            sizes = new ArrayList<>(sRecentSizes);
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(0);
+        }
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int size : sizes) {
+                    getQRCodeBitmap(input, size);
+                }
+            }
+        });
+    }
+
+    /** Drops cached QR codes according to a ComponentCallbacks2 trim level. */
+    public static void trimCache(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(CACHE_SIZE / 2);
+        }
+    }
+
+    private static void rememberSize(int size) {
+        synchronized (sRecentSizes) {
+            sRecentSizes.remove(Integer.valueOf(size));
+            sRecentSizes.add(0, size);
+            while (sRecentSizes.size() > PREWARM_SIZES) {
+                sRecentSizes.remove(sRecentSizes.size() - 1);
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            // a single thread, so requests for the same QR code are rendered only once
+            sExecutor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "qr-code-renderer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sExecutor;
+    }
+
+    private static String getCacheKey(String input, int size) {
+        return size + ":" + input;
+    }
+
     /**
      * Generate Bitmap with QR Code based on input.
      * @return QR Code as Bitmap
@@ -55,9 +191,9 @@ public class QrCodeUtils {
 
         try {
 
-            // the qrCodeCache is handled in KeychainApplication so we can
-            // properly react to onTrimMemory calls
-            Bitmap bitmap = KeychainApplication.qrCodeCache.get(input);
+            // trimmed in KeychainApplication, so we can properly react to onTrimMemory calls
+            String key = getCacheKey(input, size);
+            Bitmap bitmap = sCache.get(key);
             if (bitmap == null) {
 
                 Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
@@ -67,19 +203,20 @@ public class QrCodeUtils {
 
                 int width = result.getWidth();
                 int height = result.getHeight();
-                int[] pixels = new int[width * height];
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
 
+                // one byte of alpha per pixel, rows may be padded
+                int rowBytes = bitmap.getRowBytes();
+                byte[] pixels = new byte[rowBytes * height];
                 for (int y = 0; y < height; y++) {
-                    final int offset = y * width;
+                    final int offset = y * rowBytes;
                     for (int x = 0; x < width; x++) {
-                        pixels[offset + x] = result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
+                        pixels[offset + x] = result.get(x, y) ? (byte) 0xff : 0;
                     }
                 }
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
 
-                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-
-                KeychainApplication.qrCodeCache.put(input, bitmap);
+                sCache.put(key, bitmap);
             }
 
             return bitmap;
@@ -0,0 +1,415 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.Context;
+import android.os.Process;
+
+import org.sufficientlysecure.keychain.Constants;
+
+/**
+ * Counters and latency histograms of the current process, to compare builds under load.
+ * <p/>
+ * Recording a value only takes a few atomic increments and never locks, so metrics can be
+ * kept on hot paths, and in release builds. Metrics which are always recorded under the same
+ * name should be looked up once and kept in a static field.
+ * <p/>
+ * Histograms keep their values in buckets of logarithmically growing size, like HdrHistogram,
+ * so percentiles are accurate within 1/16 of the value with a fixed amount of memory. Latencies
+ * are recorded in microseconds.
+ * <p/>
+ * The app runs in several processes, each of which has its own registry. Once started, every
+ * process writes a snapshot of its metrics to metrics/&lt;process&gt;.tsv in the cache dir
+ * every few seconds while they change. KeychainContract.Metrics returns the live metrics of
+ * the main process together with the last snapshots of all others.
+ */
+public class MetricsRegistry {
+
+    public static final String TYPE_COUNTER = "counter";
+    public static final String TYPE_HISTOGRAM = "histogram";
+
+    public static final String SNAPSHOT_DIR = "metrics";
+    private static final String SNAPSHOT_SUFFIX = ".tsv";
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 10;
+
+    // not lazily created, so getInstance() doesn't need to synchronize
+    private static final MetricsRegistry sInstance = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    private ScheduledThreadPoolExecutor mSnapshotExecutor;
+    private long mLastSnapshotActivity;
+
+    public static MetricsRegistry getInstance() {
+        return sInstance;
+    }
+
+    MetricsRegistry() {
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /** Returns the current values of all metrics, sorted by name. */
+    public List<Row> getRows() {
+        TreeMap<String, Row> rows = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            rows.put(entry.getKey() + "\t" + TYPE_COUNTER, new Row(entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            rows.put(entry.getKey() + "\t" + TYPE_HISTOGRAM, new Row(entry.getKey(), entry.getValue()));
+        }
+        return new ArrayList<>(rows.values());
+    }
+
+    /** Sum of all counters and histogram counts, which changes whenever anything is recorded. */
+    private long getActivity() {
+        long activity = 0;
+        for (Counter counter : mCounters.values()) {
+            activity += counter.get();
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            activity += histogram.getCount();
+        }
+        return activity;
+    }
+
+    /**
+     * Starts writing snapshots of this process's metrics to the cache dir in the background.
+     * Called once per process, when the application is created.
+     */
+    public synchronized void startSnapshots(Context context) {
+        if (mSnapshotExecutor != null) {
+            return;
+        }
+
+        final File file = new File(new File(context.getCacheDir(), SNAPSHOT_DIR),
+                getProcessLabel(context) + SNAPSHOT_SUFFIX);
+        // the snapshot of an earlier run of this process is outdated
+        if (file.exists() && !file.delete()) {
+            Log.w(Constants.TAG, "Error deleting old metrics snapshot");
+        }
+        mSnapshotExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSnapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshotIfChanged(file);
+            }
+        }, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void writeSnapshotIfChanged(File file) {
+        long activity = getActivity();
+        if (activity == mLastSnapshotActivity) {
+            return;
+        }
+        mLastSnapshotActivity = activity;
+
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        // write to a temporary file first, so readers never see a partial snapshot
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            try {
+                writeRows(getRows(), writer);
+            } finally {
+                writer.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                Log.w(Constants.TAG, "Error renaming metrics snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Error writing metrics snapshot", e);
+        }
+    }
+
+    /**
+     * Reads the last snapshots written by all processes except the given one.
+     *
+     * @return rows by process label
+     */
+    public static Map<String, List<Row>> readSnapshots(Context context, String exceptProcess) {
+        TreeMap<String, List<Row>> snapshots = new TreeMap<>();
+        File[] files = new File(context.getCacheDir(), SNAPSHOT_DIR).listFiles();
+        if (files == null) {
+            return snapshots;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SNAPSHOT_SUFFIX)) {
+                continue;
+            }
+            String process = name.substring(0, name.length() - SNAPSHOT_SUFFIX.length());
+            if (process.equals(exceptProcess)) {
+                continue;
+            }
+            try {
+                Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+                try {
+                    snapshots.put(process, readRows(reader));
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.w(Constants.TAG, "Error reading metrics snapshot " + name, e);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Returns a short label for the current process: "main" for the main process, or the
+     * part after the colon for the others, e.g. "remote_api".
+     */
+    public static String getProcessLabel(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+        if (processes != null) {
+            int pid = Process.myPid();
+            for (RunningAppProcessInfo process : processes) {
+                if (process.pid == pid) {
+                    int colon = process.processName.indexOf(':');
+                    return colon < 0 ? "main" : process.processName.substring(colon + 1);
+                }
+            }
+        }
+        return "pid" + Process.myPid();
+    }
+
+    /** Writes rows as tab separated values, one metric per line. */
+    static void writeRows(List<Row> rows, Writer writer) throws IOException {
+        for (Row row : rows) {
+            writer.write(row.mName + "\t" + row.mType + "\t" + row.mCount + "\t" + row.mMean
+                    + "\t" + row.mP50 + "\t" + row.mP95 + "\t" + row.mP99 + "\t" + row.mMax + "\n");
+        }
+        writer.flush();
+    }
+
+    static List<Row> readRows(Reader reader) throws IOException {
+        ArrayList<Row> rows = new ArrayList<>();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields.length != 8) {
+                continue;
+            }
+            try {
+                rows.add(new Row(fields[0], fields[1], Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]),
+                        Long.parseLong(fields[6]), Long.parseLong(fields[7])));
+            } catch (NumberFormatException e) {
+                // skip, snapshots are only informational
+            }
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static class Histogram {
+        // each power of two range is split into this many buckets
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // about 19 hours in microseconds, larger values are counted as this
+        private static final int MAX_VALUE_BITS = 36;
+        static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+        static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            } else if (value > MAX_VALUE) {
+                value = MAX_VALUE;
+            }
+            mBuckets.incrementAndGet(getBucketIndex(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /** Records the microseconds since startNanos, as returned by System.nanoTime(). */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * Returns a value which the given percentage of recorded values are less than or equal
+         * to, e.g. 99 for the 99th percentile.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long max = mMax.get();
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(getHighestValueInBucket(i), max);
+                }
+            }
+            // values recorded concurrently may not be in the buckets yet
+            return max;
+        }
+
+        static int getBucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            // the top SUB_BUCKET_BITS + 1 bits of the value select the bucket
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        static long getHighestValueInBucket(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    /** Values of a single metric, as returned to readers. Counters only have a count. */
+    public static class Row {
+        public final String mName;
+        public final String mType;
+        public final long mCount;
+        public final long mMean;
+        public final long mP50;
+        public final long mP95;
+        public final long mP99;
+        public final long mMax;
+
+        Row(String name, String type, long count, long mean, long p50, long p95, long p99, long max) {
+            mName = name;
+            mType = type;
+            mCount = count;
+            mMean = mean;
+            mP50 = p50;
+            mP95 = p95;
+            mP99 = p99;
+            mMax = max;
+        }
+
+        Row(String name, Counter counter) {
+            this(name, TYPE_COUNTER, counter.get(), 0, 0, 0, 0, 0);
+        }
+
+        Row(String name, Histogram histogram) {
+            this(name, TYPE_HISTOGRAM, histogram.getCount(), histogram.getMean(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(95),
+                    histogram.getValueAtPercentile(99), histogram.getMax());
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records nested, timed spans of an operation, e.g. database reads, key parsing, crypto and
+ * network requests, to see where the time of an operation goes.
+ * <p/>
+ * A span is started with begin() and must be ended in a finally block. Spans started on the
+ * same thread while another one is open are nested into it. A span nested into one of another
+ * category counts for both categories, e.g. canonicalization while saving a key ring counts as
+ * crypto and as database write.
+ * <p/>
+ * Totals per category are always kept, but only the first MAX_SPANS spans are recorded
+ * individually, so long running operations like importing thousands of keys don't grow the
+ * trace without bounds.
+ * <p/>
+ * The totals are attached to the OperationResult as a Summary. The recorded spans can be
+ * written as a trace file in the Trace Event Format, which chrome://tracing can display.
+ */
+public class OperationTrace {
+
+    public enum Category {
+        OPERATION, DB_READ, DB_WRITE, PGP_PARSE, CRYPTO, NETWORK
+    }
+
+    public static final int MAX_SPANS = 2000;
+
+    private static final Span NO_SPAN = new Span(null, Category.OPERATION, null, null);
+
+    private final long mStartNanos = System.nanoTime();
+    private final long mStartMillis = System.currentTimeMillis();
+    private final ThreadLocal<Span> mCurrent = new ThreadLocal<>();
+
+    // guarded by this
+    private final ArrayList<Span> mSpans = new ArrayList<>();
+    private final long[] mNanos = new long[Category.values().length];
+    private final int[] mCounts = new int[Category.values().length];
+    private int mDroppedSpans;
+
+    /** Starts a span, which is nested into the span currently open on this thread, if any. */
+    public Span begin(Category category, String name) {
+        Span span = new Span(this, category, name, mCurrent.get());
+        mCurrent.set(span);
+        return span;
+    }
+
+    /** Starts a span on the given trace, or returns a span which records nothing if it is null. */
+    public static Span begin(@Nullable OperationTrace trace, Category category, String name) {
+        if (trace == null) {
+            return NO_SPAN;
+        }
+        return trace.begin(category, name);
+    }
+
+    private synchronized void finish(Span span) {
+        // nested spans of the same category are already contained in the outer one
+        if (!span.mNestedInSameCategory) {
+            mNanos[span.mCategory.ordinal()] += span.mEndNanos - span.mStartNanos;
+            mCounts[span.mCategory.ordinal()] += 1;
+        }
+        if (mSpans.size() < MAX_SPANS) {
+            mSpans.add(span);
+        } else {
+            mDroppedSpans += 1;
+        }
+    }
+
+    public synchronized Summary getSummary() {
+        return new Summary((System.nanoTime() - mStartNanos) / 1000000, mNanos.clone(), mCounts.clone());
+    }
+
+    /** Writes all recorded spans as a json trace file in the Trace Event Format. */
+    public void writeTraceFile(OutputStream out) throws IOException {
+        List<Span> spans;
+        int droppedSpans;
+        synchronized (this) {
+            spans = new ArrayList<>(mSpans);
+            droppedSpans = mDroppedSpans;
+        }
+
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            writer.write("{\"traceEvents\":[\n");
+            for (int i = 0; i < spans.size(); i++) {
+                Span span = spans.get(i);
+                JSONObject event = new JSONObject();
+                event.put("name", span.mName);
+                event.put("cat", span.mCategory.name());
+                event.put("ph", "X");
+                event.put("ts", (span.mStartNanos - mStartNanos) / 1000);
+                event.put("dur", (span.mEndNanos - span.mStartNanos) / 1000);
+                event.put("pid", android.os.Process.myPid());
+                event.put("tid", span.mThreadId);
+                writer.write(event.toString());
+                writer.write(i < spans.size() - 1 ? ",\n" : "\n");
+            }
+            JSONObject metadata = new JSONObject();
+            metadata.put("startTime", mStartMillis);
+            metadata.put("droppedSpans", droppedSpans);
+            writer.write("],\"metadata\":" + metadata + "}\n");
+        } catch (JSONException e) {
+            throw new IOException("Error writing trace", e);
+        }
+        writer.flush();
+    }
+
+    public static class Span {
+        private final OperationTrace mTrace;
+        private final Category mCategory;
+        private final String mName;
+        private final Span mParent;
+        private final boolean mNestedInSameCategory;
+        private final long mThreadId;
+        private final long mStartNanos;
+        private long mEndNanos;
+
+        private Span(OperationTrace trace, Category category, String name, Span parent) {
+            mTrace = trace;
+            mCategory = category;
+            mName = name;
+            mParent = parent;
+            boolean nested = false;
+            for (Span outer = parent; outer != null; outer = outer.mParent) {
+                if (outer.mCategory == category) {
+                    nested = true;
+                    break;
+                }
+            }
+            mNestedInSameCategory = nested;
+            mThreadId = Thread.currentThread().getId();
+            mStartNanos = System.nanoTime();
+        }
+
+        /** Ends this span. Must be called on the thread it was started on, only the first call counts. */
+        public void end() {
+            if (mTrace == null || mEndNanos != 0) {
+                return;
+            }
+            mEndNanos = System.nanoTime();
+            if (mTrace.mCurrent.get() == this) {
+                if (mParent != null) {
+                    mTrace.mCurrent.set(mParent);
+                } else {
+                    mTrace.mCurrent.remove();
+                }
+            }
+            mTrace.finish(this);
+        }
+    }
+
+    /** Total time and number of spans per category, as attached to an OperationResult. */
+    public static class Summary implements Parcelable {
+        public final long mTotalMillis;
+        private final long[] mNanos;
+        private final int[] mCounts;
+
+        Summary(long totalMillis, long[] nanos, int[] counts) {
+            mTotalMillis = totalMillis;
+            mNanos = nanos;
+            mCounts = counts;
+        }
+
+        public long getMillis(Category category) {
+            return mNanos[category.ordinal()] / 1000000;
+        }
+
+        public int getCount(Category category) {
+            return mCounts[category.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(mTotalMillis).append("ms total");
+            for (Category category : Category.values()) {
+                if (mCounts[category.ordinal()] > 0) {
+                    builder.append(", ").append(category.name().toLowerCase()).append(": ")
+                            .append(getMillis(category)).append("ms in ")
+                            .append(getCount(category));
+                }
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeLong(mTotalMillis);
+            dest.writeLongArray(mNanos);
+            dest.writeIntArray(mCounts);
+        }
+
+        public static final Creator<Summary> CREATOR = new Creator<Summary>() {
+            public Summary createFromParcel(final Parcel source) {
+                return new Summary(source.readLong(), source.createLongArray(), source.createIntArray());
+            }
+
+            public Summary[] newArray(final int size) {
+                return new Summary[size];
+            }
+        };
+    }
+
+}
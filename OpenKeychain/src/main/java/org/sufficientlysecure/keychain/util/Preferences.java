@@ -106,6 +106,21 @@ public class Preferences {
         editor.commit();
     }
 
+    /**
+     * Returns the maximum time in seconds for which cached passphrases are kept on disk, so they
+     * survive a restart of the cache service. 0 means they are only kept in memory, -1 that they
+     * are kept as long as they are cached.
+     */
+    public long getPassphraseCachePersistTtl() {
+        return (long) mSharedPreferences.getInt(Constants.Pref.PASSPHRASE_CACHE_PERSIST_TTL, 0);
+    }
+
+    public void setPassphraseCachePersistTtl(int value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Constants.Pref.PASSPHRASE_CACHE_PERSIST_TTL, value);
+        editor.commit();
+    }
+
     public boolean getPassphraseCacheSubs() {
         return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_SUBS, false);
     }
@@ -229,6 +244,31 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.ENCRYPT_FILENAMES, true);
     }
 
+    /**
+     * Maximum number of keys not in the database whose certifications are kept per user id
+     * when importing a key, 0 to keep all certifications.
+     */
+    public int getImportCertificationLimit() {
+        return mSharedPreferences.getInt(Pref.IMPORT_CERTIFICATION_LIMIT, 0);
+    }
+
+    public void setImportCertificationLimit(int limit) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.IMPORT_CERTIFICATION_LIMIT, limit);
+        editor.commit();
+    }
+
+    /** Returns the fastest provider for bulk encryption, or null if it wasn't benchmarked yet. */
+    public String getDataCipherProvider() {
+        return mSharedPreferences.getString(Pref.DATA_CIPHER_PROVIDER, null);
+    }
+
+    public void setDataCipherProvider(String providerName) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(Pref.DATA_CIPHER_PROVIDER, providerName);
+        editor.commit();
+    }
+
     // proxy preference functions start here
 
     public boolean getUseNormalProxy() {
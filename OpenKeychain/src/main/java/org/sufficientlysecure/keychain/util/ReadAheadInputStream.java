@@ -0,0 +1,150 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * InputStream which reads its underlying stream on a separate thread, up to
+ * a bounded number of chunks ahead of the consumer.
+ *
+ * This decouples a slow producer (e.g. a pipe filled by a remote client) from
+ * the consumer, so reading and processing of data can overlap.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final InputStream mStream;
+    private final BlockingQueue<byte[]> mQueue;
+    private final Thread mReaderThread;
+
+    private volatile IOException mException;
+    private volatile boolean mClosed;
+
+    private byte[] mCurrent;
+    private int mCurrentPos;
+    private boolean mEof;
+
+    public ReadAheadInputStream(InputStream in, final int chunkSize, int maxChunks) {
+        mStream = in;
+        mQueue = new ArrayBlockingQueue<>(maxChunks);
+
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!mClosed) {
+                        byte[] buffer = new byte[chunkSize];
+                        int read = mStream.read(buffer);
+                        if (read < 0) {
+                            break;
+                        }
+                        if (read == 0) {
+                            continue;
+                        }
+                        mQueue.put(read == chunkSize ? buffer : Arrays.copyOf(buffer, read));
+                    }
+                } catch (IOException e) {
+                    mException = e;
+                } catch (InterruptedException e) {
+                    // closed by consumer, nothing left to do
+                    return;
+                }
+                try {
+                    mQueue.put(EOF);
+                } catch (InterruptedException e) {
+                    // closed by consumer, nothing left to do
+                }
+            }
+        }, "ReadAheadInputStream");
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+    }
+
+    /** Returns false if the current chunk is exhausted and no more data will follow. */
+    private boolean nextChunk() throws IOException {
+        while (mCurrent == null || mCurrentPos >= mCurrent.length) {
+            if (mEof) {
+                return false;
+            }
+            try {
+                mCurrent = mQueue.take();
+                mCurrentPos = 0;
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while waiting for input", e);
+            }
+            if (mCurrent == EOF) {
+                mEof = true;
+                if (mException != null) {
+                    throw mException;
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return mCurrent[mCurrentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(length, mCurrent.length - mCurrentPos);
+        System.arraycopy(mCurrent, mCurrentPos, b, offset, count);
+        mCurrentPos += count;
+        return count;
+    }
+
+    /** Returns the number of bytes which have already been read ahead. */
+    @Override
+    public int available() throws IOException {
+        int available = mCurrent != null ? mCurrent.length - mCurrentPos : 0;
+        for (byte[] chunk : mQueue) {
+            available += chunk.length;
+        }
+        return available;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mReaderThread.interrupt();
+        mQueue.clear();
+        mStream.close();
+    }
+
+}
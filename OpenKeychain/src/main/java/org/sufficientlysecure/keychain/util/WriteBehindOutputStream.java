@@ -0,0 +1,172 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * OutputStream which hands written data off to a separate thread, which
+ * writes it to the underlying stream while the producer continues.
+ *
+ * At most a bounded number of chunks are queued, after which writes block.
+ * Errors of the underlying stream are reported on the next write, flush or
+ * close. Flushing and closing wait until all queued data has been written, so
+ * their callers always learn about errors of data written before.
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final OutputStream mStream;
+    private final BlockingQueue<byte[]> mQueue;
+    private final Thread mWriterThread;
+
+    private volatile IOException mException;
+
+    // number of chunks queued, and taken off the queue by the writer thread
+    private final Object mProgressLock = new Object();
+    private long mChunksQueued;
+    private long mChunksDone;
+
+    private final byte[] mBuffer;
+    private int mBufferPos;
+    private boolean mClosed;
+
+    public WriteBehindOutputStream(OutputStream out, int chunkSize, int maxChunks) {
+        mStream = out;
+        mQueue = new ArrayBlockingQueue<>(maxChunks);
+        mBuffer = new byte[chunkSize];
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] chunk;
+                    while ((chunk = mQueue.take()) != EOF) {
+                        // after an error, keep draining so the producer never blocks
+                        if (mException == null) {
+                            try {
+                                mStream.write(chunk);
+                            } catch (IOException e) {
+                                mException = e;
+                            }
+                        }
+                        synchronized (mProgressLock) {
+                            mChunksDone++;
+                            mProgressLock.notifyAll();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    mException = new IOException("interrupted while writing output", e);
+                }
+            }
+        }, "WriteBehindOutputStream");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    private void checkException() throws IOException {
+        if (mException != null) {
+            throw mException;
+        }
+    }
+
+    private void enqueue(byte[] chunk) throws IOException {
+        try {
+            if (chunk != EOF) {
+                synchronized (mProgressLock) {
+                    mChunksQueued++;
+                }
+            }
+            mQueue.put(chunk);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while queueing output", e);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferPos > 0) {
+            enqueue(Arrays.copyOf(mBuffer, mBufferPos));
+            mBufferPos = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkException();
+        if (mBufferPos == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mBufferPos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        checkException();
+        while (length > 0) {
+            if (mBufferPos == mBuffer.length) {
+                flushBuffer();
+            }
+            int count = Math.min(length, mBuffer.length - mBufferPos);
+            System.arraycopy(b, offset, mBuffer, mBufferPos, count);
+            mBufferPos += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /** Waits until all data written so far is written to the underlying stream, and flushes it. */
+    @Override
+    public void flush() throws IOException {
+        checkException();
+        flushBuffer();
+        try {
+            synchronized (mProgressLock) {
+                while (mChunksDone < mChunksQueued) {
+                    mProgressLock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while flushing output", e);
+        }
+        checkException();
+        // the writer thread is idle now
+        mStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            flushBuffer();
+            enqueue(EOF);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while closing output", e);
+        } finally {
+            mStream.close();
+        }
+        checkException();
+    }
+
+}
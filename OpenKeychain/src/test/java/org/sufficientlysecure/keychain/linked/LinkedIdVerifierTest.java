@@ -0,0 +1,298 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.linked;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class LinkedIdVerifierTest {
+
+    long masterKeyId;
+    byte[] fingerprint;
+    LinkedIdVerifier verifier;
+    LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        // cached results reference the key ring they belong to
+        UncachedKeyRing ring = UncachedKeyRing.fromStream(LinkedIdVerifierTest.class.getResourceAsStream(
+                "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc")).next();
+        Assert.assertTrue("key ring should be saved",
+                new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(ring).success());
+        masterKeyId = ring.getMasterKeyId();
+        fingerprint = ring.getFingerprint();
+
+        verifier = new LinkedIdVerifier(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+    }
+
+    @Test
+    public void testHttpCacheLifetime() throws Exception {
+        long now = 1450000000000L;
+        Assert.assertEquals("max-age should be used", 600 * 1000L,
+                LinkedTokenResource.getHttpCacheLifetime("public, max-age=600", null, null, now));
+        Assert.assertEquals("no-cache should win over max-age", 0L,
+                LinkedTokenResource.getHttpCacheLifetime("max-age=600, no-cache", null, null, now));
+        Assert.assertEquals("no-store should not be cached", 0L,
+                LinkedTokenResource.getHttpCacheLifetime("no-store", null, null, now));
+        Assert.assertEquals("max-age should win over expires", 60 * 1000L,
+                LinkedTokenResource.getHttpCacheLifetime("max-age=60",
+                        "Sun, 13 Dec 2015 10:00:00 GMT", "Sun, 13 Dec 2015 09:00:00 GMT", now));
+        Assert.assertEquals("expires should be relative to the date header", 3600 * 1000L,
+                LinkedTokenResource.getHttpCacheLifetime(null,
+                        "Sun, 13 Dec 2015 10:00:00 GMT", "Sun, 13 Dec 2015 09:00:00 GMT", now));
+        Assert.assertEquals("invalid expires should count as expired", 0L,
+                LinkedTokenResource.getHttpCacheLifetime(null, "0", null, now));
+        Assert.assertEquals("no headers should mean unknown", -1L,
+                LinkedTokenResource.getHttpCacheLifetime("private", null, null, now));
+
+        LinkedTokenResource.CacheLifetime lifetime = new LinkedTokenResource.CacheLifetime();
+        Assert.assertEquals("unknown lifetime should use the default",
+                LinkedTokenResource.CacheLifetime.DEFAULT_MILLIS, lifetime.getMillis());
+        lifetime.limit(-1);
+        lifetime.limit(5000);
+        lifetime.limit(10000);
+        Assert.assertEquals("shortest limit should apply", 5000L, lifetime.getMillis());
+    }
+
+    @Test
+    public void testConcurrentVerification() throws Exception {
+        // the server only answers once all three requests are waiting at the same time
+        server = new LocalHttpServer(200, "max-age=600", LinkedTokenResource.generate(fingerprint), 3);
+
+        List<LinkedVerifyResult> results = verifier.verifyAll(masterKeyId, fingerprint, Arrays.asList(
+                resource(1), resource(2), resource(3)), true);
+
+        Assert.assertEquals("all resources should be requested", 3, server.mRequests.get());
+        for (LinkedVerifyResult result : results) {
+            Assert.assertTrue("resources should be fetched concurrently and verify", result.success());
+        }
+    }
+
+    @Test
+    public void testCachedResult() throws Exception {
+        server = new LocalHttpServer(200, "max-age=600", LinkedTokenResource.generate(fingerprint), 1);
+        LinkedTokenResource resource = resource(1);
+        Assert.assertNull("nothing should be cached yet", verifier.getCachedResult(masterKeyId, resource));
+
+        LinkedVerifyResult result = verifier.submit(masterKeyId, fingerprint, resource, true).get();
+        Assert.assertTrue("resource should verify", result.success());
+        Assert.assertEquals("resource should be fetched", 1, server.mRequests.get());
+
+        result = verifier.submit(masterKeyId, fingerprint, resource, true).get();
+        Assert.assertTrue("cached result should verify", result.success());
+        Assert.assertTrue("result should come from the cache",
+                result.getLog().containsType(LogType.MSG_LV_CACHED_OK));
+        Assert.assertEquals("resource should not be fetched again", 1, server.mRequests.get());
+
+        result = verifier.submit(masterKeyId, fingerprint, resource, false).get();
+        Assert.assertTrue("fresh result should verify", result.success());
+        Assert.assertFalse("result should not come from the cache",
+                result.getLog().containsType(LogType.MSG_LV_CACHED_OK));
+        Assert.assertEquals("resource should be fetched without cache", 2, server.mRequests.get());
+    }
+
+    @Test
+    public void testCachedMismatch() throws Exception {
+        server = new LocalHttpServer(200, "max-age=600", "no token here", 1);
+        LinkedTokenResource resource = resource(1);
+
+        Assert.assertFalse("resource without token should not verify",
+                verifier.submit(masterKeyId, fingerprint, resource, true).get().success());
+        LinkedVerifyResult cached = verifier.getCachedResult(masterKeyId, resource);
+        Assert.assertNotNull("mismatch should be cached", cached);
+        Assert.assertFalse("cached mismatch should not verify", cached.success());
+        Assert.assertTrue("cached mismatch should say so",
+                cached.getLog().containsType(LogType.MSG_LV_CACHED_ERROR));
+    }
+
+    @Test
+    public void testNotCached() throws Exception {
+        server = new LocalHttpServer(200, "no-store", LinkedTokenResource.generate(fingerprint), 1);
+        LinkedTokenResource resource = resource(1);
+        Assert.assertTrue("resource should verify",
+                verifier.submit(masterKeyId, fingerprint, resource, true).get().success());
+        Assert.assertNull("no-store result should not be cached",
+                verifier.getCachedResult(masterKeyId, resource));
+
+        server.close();
+        server = new LocalHttpServer(404, "max-age=600", "not found", 1);
+        resource = resource(2);
+        Assert.assertFalse("missing resource should not verify",
+                verifier.submit(masterKeyId, fingerprint, resource, true).get().success());
+        Assert.assertNull("fetch errors should not be cached",
+                verifier.getCachedResult(masterKeyId, resource));
+    }
+
+    LinkedTokenResource resource(int n) {
+        return new LocalResource(URI.create("https://example.com/" + n),
+                "http://127.0.0.1:" + server.mSocket.getLocalPort() + "/" + n);
+    }
+
+    /** Resource which is fetched from the local server, instead of its uri. */
+    static class LocalResource extends LinkedTokenResource {
+        final String mLocalUrl;
+
+        LocalResource(URI uri, String localUrl) {
+            super(new HashSet<String>(), new HashMap<String, String>(), uri);
+            mLocalUrl = localUrl;
+        }
+
+        @SuppressWarnings("deprecation") // HttpGet is deprecated
+        @Override
+        protected String fetchResource(Context context, OperationLog log, int indent,
+                CacheLifetime lifetime) throws HttpStatusException, IOException, JSONException {
+            return getResponseBody(context, new HttpGet(mLocalUrl), null, lifetime);
+        }
+
+        @Override
+        public int getDisplayIcon() {
+            return 0;
+        }
+
+        @Override
+        public int getVerifiedText(boolean isSecret) {
+            return 0;
+        }
+
+        @Override
+        public String getDisplayTitle(Context context) {
+            return null;
+        }
+
+        @Override
+        public String getDisplayComment(Context context) {
+            return null;
+        }
+    }
+
+    /**
+     * Stand-in for a web server, which answers all requests with the same response. Requests
+     * are held until the given number of them are waiting, or answered with an error after a
+     * timeout.
+     */
+    static class LocalHttpServer extends Thread {
+        final ServerSocket mSocket;
+        final AtomicInteger mRequests = new AtomicInteger();
+        final int mStatus;
+        final String mCacheControl;
+        final String mBody;
+        final CountDownLatch mWaiting;
+
+        LocalHttpServer(int status, String cacheControl, String body, int concurrent) throws IOException {
+            mSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+            mStatus = status;
+            mCacheControl = cacheControl;
+            mBody = body;
+            mWaiting = new CountDownLatch(concurrent);
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mSocket.accept();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            answer(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void answer(Socket socket) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    // skip request headers
+                }
+                mRequests.incrementAndGet();
+                mWaiting.countDown();
+                boolean together = mWaiting.await(5, TimeUnit.SECONDS);
+
+                byte[] body = mBody.getBytes("UTF-8");
+                String head = together
+                        ? "HTTP/1.1 " + mStatus + " Stand-in\r\n" + "Cache-Control: " + mCacheControl + "\r\n"
+                        : "HTTP/1.1 503 Not concurrent\r\n";
+                OutputStream out = socket.getOutputStream();
+                out.write((head + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+                out.write(body);
+                out.flush();
+                socket.close();
+            } catch (IOException | InterruptedException e) {
+                // test will fail on the client side
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+}
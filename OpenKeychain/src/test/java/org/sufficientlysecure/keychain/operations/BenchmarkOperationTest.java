@@ -21,9 +21,13 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Random;
 
+import android.database.Cursor;
+import android.os.Parcel;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -36,6 +40,8 @@ import org.robolectric.shadows.ShadowLog;
 import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult.Measurement;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
@@ -44,8 +50,11 @@ import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.KeyType;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.Workload;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
@@ -78,4 +87,93 @@ public class BenchmarkOperationTest {
         op.execute(new BenchmarkInputParcel(), null);
     }
 
+    @Test
+    public void testBenchmarkMatrix() throws Exception {
+        BenchmarkOperation op = new BenchmarkOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        BenchmarkInputParcel input = new BenchmarkInputParcel();
+        input.mKeyTypes = new ArrayList<>(Arrays.asList(KeyType.SYMMETRIC, KeyType.ECC_P256));
+        input.mWorkloads = new ArrayList<>(Arrays.asList(Workload.ENCRYPT_DECRYPT, Workload.SIGN_VERIFY));
+        input.mCompression = new boolean[] { false, true };
+        input.mPayloadSizes = new int[] { 16 * 1024 };
+        input.mThreadCounts = new int[] { 1, 2 };
+        input.mWarmupRounds = 0;
+        input.mRounds = 3;
+        input.mBenchmarkS2k = false;
+        Assert.assertEquals("symmetric sign/verify should not be a cell", 6, input.getCellCount());
+
+        BenchmarkResult result = op.execute(input, null);
+        Assert.assertTrue("benchmark should succeed", result.success());
+        Assert.assertEquals("each cell should be measured in two steps",
+                12, result.getMeasurements().size());
+        Assert.assertEquals("s2k should not be measured", -1, result.getS2kIterationsFor100ms());
+        for (Measurement measurement : result.getMeasurements()) {
+            Assert.assertEquals("each thread should run all rounds",
+                    measurement.mThreads * 3, measurement.mSamples);
+            Assert.assertTrue("percentiles should be ordered",
+                    measurement.mP50Nanos <= measurement.mP95Nanos
+                            && measurement.mP95Nanos <= measurement.mP99Nanos);
+            Assert.assertTrue("throughput should be measured", measurement.mMegabytesPerSecond > 0);
+        }
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), null, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertEquals("benchmark keys should never be saved", 0, cursor.getCount());
+        cursor.close();
+
+        Parcel parcel = Parcel.obtain();
+        result.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        BenchmarkResult parceled = BenchmarkResult.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        Assert.assertEquals("measurements should survive parceling",
+                12, parceled.getMeasurements().size());
+        Assert.assertEquals(result.getMeasurements().get(5).mP99Nanos,
+                parceled.getMeasurements().get(5).mP99Nanos);
+        Assert.assertEquals(result.getMeasurements().get(5).mKeyType,
+                parceled.getMeasurements().get(5).mKeyType);
+    }
+
+    @Test
+    public void testKeysNotSaved() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        UncachedKeyRing own = createRing("own");
+        providerHelper.saveSecretKeyRing(own, new ProgressScaler());
+
+        BenchmarkInputParcel input = new BenchmarkInputParcel();
+        input.mKeyTypes = new ArrayList<>(Arrays.asList(KeyType.ECC_P256));
+        input.mWorkloads = new ArrayList<>(Arrays.asList(Workload.ENCRYPT_DECRYPT, Workload.SIGN_VERIFY));
+        input.mCompression = new boolean[] { false };
+        input.mPayloadSizes = new int[] { 1024 };
+        input.mThreadCounts = new int[] { 1 };
+        input.mWarmupRounds = 0;
+        input.mRounds = 1;
+        input.mBenchmarkS2k = false;
+        BenchmarkResult result = new BenchmarkOperation(RuntimeEnvironment.application,
+                providerHelper, null).execute(input, null);
+        Assert.assertTrue("benchmark should succeed", result.success());
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertEquals("benchmark keys should never be saved", 1, cursor.getCount());
+        cursor.moveToFirst();
+        Assert.assertEquals("the user's own key should be untouched", own.getMasterKeyId(), cursor.getLong(0));
+        cursor.close();
+    }
+
+    static UncachedKeyRing createRing(String userId) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
 }
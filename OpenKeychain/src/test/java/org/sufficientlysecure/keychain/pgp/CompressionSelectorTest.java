@@ -0,0 +1,174 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.openpgp.PGPCompressedDataGenerator;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CompressionSelectorTest {
+
+    static LinkedHashMap<String, byte[]> corpus = new LinkedHashMap<>();
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+
+        Random random = new Random(42);
+
+        StringBuilder text = new StringBuilder();
+        String[] words = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "\n" };
+        while (text.length() < 4 * 1024 * 1024) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        byte[] largeText = text.toString().getBytes();
+
+        byte[] randomData = new byte[4 * 1024 * 1024];
+        random.nextBytes(randomData);
+
+        // random data behind a jpeg header, standing in for a photo
+        byte[] jpeg = Arrays.copyOf(randomData, 2 * 1024 * 1024);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+
+        ByteArrayOutputStream zipOut = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(zipOut);
+        zip.putNextEntry(new ZipEntry("text.txt"));
+        zip.write(largeText);
+        zip.close();
+
+        corpus.put("small text", Arrays.copyOf(largeText, 100 * 1024));
+        corpus.put("large text", largeText);
+        corpus.put("random", randomData);
+        corpus.put("jpeg", jpeg);
+        corpus.put("zip", zipOut.toByteArray());
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        Assert.assertEquals("small redundant data should use bzip2", CompressionAlgorithmTags.BZIP2,
+                select(corpus.get("small text")));
+        Assert.assertEquals("bzip2 should only be used if the recipients prefer it",
+                PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM,
+                CompressionSelector.select(corpus.get("small text"), CompressionSelector.SAMPLE_SIZE,
+                        corpus.get("small text").length, false));
+        Assert.assertEquals("large redundant data should use default algorithm",
+                PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM, select(corpus.get("large text")));
+        Assert.assertEquals("random data should not be compressed", CompressionAlgorithmTags.UNCOMPRESSED,
+                select(corpus.get("random")));
+        Assert.assertEquals("jpeg should not be compressed", CompressionAlgorithmTags.UNCOMPRESSED,
+                select(corpus.get("jpeg")));
+        Assert.assertEquals("zip should not be compressed", CompressionAlgorithmTags.UNCOMPRESSED,
+                select(corpus.get("zip")));
+        Assert.assertEquals("empty data should use default algorithm",
+                PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM,
+                CompressionSelector.select(new byte[0], 0, 0, true));
+    }
+
+    @Test
+    public void testEntropy() throws Exception {
+        byte[] constant = new byte[1000];
+        Assert.assertEquals("constant data has no entropy",
+                0.0, CompressionSelector.estimateEntropy(constant, constant.length), 0.001);
+
+        byte[] allBytes = new byte[256 * 16];
+        for (int i = 0; i < allBytes.length; i++) {
+            allBytes[i] = (byte) i;
+        }
+        Assert.assertEquals("uniformly distributed bytes have eight bits of entropy",
+                8.0, CompressionSelector.estimateEntropy(allBytes, allBytes.length), 0.001);
+    }
+
+    @Test
+    public void testMagicNeedsEnoughData() throws Exception {
+        byte[] sample = new byte[] { 'P', 'K', 0x03 };
+        Assert.assertFalse("truncated magic must not match",
+                CompressionSelector.hasCompressedMagic(sample, sample.length));
+    }
+
+    /** Compares always compressing with the default algorithm against adaptive selection. */
+    @Test
+    @Ignore("manual benchmark")
+    public void testBenchmark() throws Exception {
+        long fixedTime = 0, fixedSize = 0, adaptiveTime = 0, adaptiveSize = 0;
+
+        for (Entry<String, byte[]> entry : corpus.entrySet()) {
+            byte[] data = entry.getValue();
+
+            long startTime = System.currentTimeMillis();
+            int size = compress(data, PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM);
+            long time = System.currentTimeMillis() - startTime;
+            fixedTime += time;
+            fixedSize += size;
+
+            startTime = System.currentTimeMillis();
+            int algorithm = select(data);
+            int adaptive = compress(data, algorithm);
+            long adaptiveItemTime = System.currentTimeMillis() - startTime;
+            adaptiveTime += adaptiveItemTime;
+            adaptiveSize += adaptive;
+
+            System.out.println(String.format("%s (%d bytes): default %d bytes in %dms, "
+                            + "adaptive (algorithm %d) %d bytes in %dms", entry.getKey(), data.length,
+                    size, time, algorithm, adaptive, adaptiveItemTime));
+        }
+
+        System.out.println(String.format("total: default %d bytes in %dms, adaptive %d bytes in %dms",
+                fixedSize, fixedTime, adaptiveSize, adaptiveTime));
+    }
+
+    private static int select(byte[] data) {
+        int length = Math.min(data.length, CompressionSelector.SAMPLE_SIZE);
+        return CompressionSelector.select(data, length, data.length, true);
+    }
+
+    private static int compress(byte[] data, int algorithm) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        OutputStream out = result;
+        PGPCompressedDataGenerator compressGen = null;
+        if (algorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
+            compressGen = new PGPCompressedDataGenerator(algorithm);
+            out = compressGen.open(result);
+        }
+        out.write(data);
+        if (compressGen != null) {
+            compressGen.close();
+        }
+        return result.size();
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.PacketTags;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.pgp.KeyRingSplitter.Slice;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRingSplitterTest {
+
+    static ArrayList<UncachedKeyRing> rings = new ArrayList<>();
+    static byte[] concatenated;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String name : new String[] {
+                "/test-keys/symantec_public.asc", "/test-keys/symantec_secret.asc",
+                "/test-keys/mailvelope_07_no_key_flags.asc" }) {
+            UncachedKeyRing ring = UncachedKeyRing.fromStream(
+                    KeyRingSplitterTest.class.getResourceAsStream(name)).next();
+            rings.add(ring);
+            out.write(ring.getEncoded());
+        }
+        concatenated = out.toByteArray();
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        KeyRingSplitter splitter = new KeyRingSplitter(new ByteArrayInputStream(concatenated));
+
+        long offset = 0;
+        for (UncachedKeyRing ring : rings) {
+            Slice slice = splitter.next();
+            Assert.assertNotNull("there should be a slice for each keyring", slice);
+            Assert.assertEquals("slices should be contiguous", offset, slice.mOffset);
+            Assert.assertArrayEquals("slice should contain exactly the encoded keyring",
+                    ring.getEncoded(), slice.mBytes);
+            Assert.assertArrayEquals("slice should be found at its offset", slice.mBytes,
+                    Arrays.copyOfRange(concatenated, (int) slice.mOffset,
+                            (int) slice.mOffset + slice.mBytes.length));
+            offset += slice.mBytes.length;
+        }
+        Assert.assertNull("there should be no more slices", splitter.next());
+    }
+
+    @Test
+    public void testParallelParseKeepsOrder() throws Exception {
+        // enough keyrings to fill the parser's pipeline several times
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            out.write(concatenated);
+        }
+
+        IteratorWithIOThrow<UncachedKeyRing> it =
+                UncachedKeyRing.fromStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 100 * rings.size(); i++) {
+            Assert.assertTrue("there should be a keyring for each one in the stream", it.hasNext());
+            Assert.assertEquals("keyrings should be returned in stream order",
+                    rings.get(i % rings.size()).getMasterKeyId(), it.next().getMasterKeyId());
+        }
+        Assert.assertFalse("there should be no more keyrings", it.hasNext());
+    }
+
+    @Test(expected = IOException.class)
+    public void testIndeterminateLengthBounded() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(rings.get(0).getEncoded());
+        // old format literal data packet of indeterminate length, which extends to the end
+        out.write(0x80 | (PacketTags.LITERAL_DATA << 2) | 3);
+        out.write(new byte[64 * 1024]);
+
+        KeyRingSplitter splitter = new KeyRingSplitter(
+                new ByteArrayInputStream(out.toByteArray()), 32 * 1024);
+        while (splitter.next() != null) {
+            // consume
+        }
+    }
+
+    @Test
+    public void testIndeterminateLengthWithinBound() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(rings.get(0).getEncoded());
+        out.write(0x80 | (PacketTags.LITERAL_DATA << 2) | 3);
+        out.write(new byte[1024]);
+        byte[] data = out.toByteArray();
+
+        KeyRingSplitter splitter = new KeyRingSplitter(new ByteArrayInputStream(data));
+        Slice slice = splitter.next();
+        Assert.assertNotNull(slice);
+        Assert.assertEquals("packet should extend to the end of the stream", data.length, slice.mBytes.length);
+        Assert.assertNull("there should be no more slices", splitter.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoKeyPacketsBounded() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // marker packets only, no key packet ever starts a new slice
+        for (int i = 0; i < 16 * 1024; i++) {
+            out.write(new byte[] { (byte) (0xC0 | PacketTags.MARKER), 3, 'P', 'G', 'P' });
+        }
+
+        KeyRingSplitter splitter = new KeyRingSplitter(
+                new ByteArrayInputStream(out.toByteArray()), 32 * 1024);
+        splitter.next();
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws Exception {
+        byte[] truncated = Arrays.copyOf(concatenated, concatenated.length - 10);
+        KeyRingSplitter splitter = new KeyRingSplitter(new ByteArrayInputStream(truncated));
+        while (splitter.next() != null) {
+            // consume
+        }
+    }
+
+}
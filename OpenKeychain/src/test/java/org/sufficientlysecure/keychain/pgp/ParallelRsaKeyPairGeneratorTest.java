@@ -0,0 +1,124 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ParallelRsaKeyPairGeneratorTest {
+
+    static final int BENCHMARK_ROUNDS = 3;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testKeyPairIsValid() throws Exception {
+        KeyPairGenerator keyGen = new ParallelRsaKeyPairGenerator(4);
+        keyGen.initialize(2048, new SecureRandom());
+        KeyPair keyPair = keyGen.generateKeyPair();
+
+        RSAPublicKey pub = (RSAPublicKey) keyPair.getPublic();
+        RSAPrivateCrtKey priv = (RSAPrivateCrtKey) keyPair.getPrivate();
+
+        Assert.assertEquals("modulus must have requested size", 2048, pub.getModulus().bitLength());
+        Assert.assertEquals("modulus must be product of primes",
+                pub.getModulus(), priv.getPrimeP().multiply(priv.getPrimeQ()));
+        Assert.assertTrue("p must be prime", priv.getPrimeP().isProbablePrime(64));
+        Assert.assertTrue("q must be prime", priv.getPrimeQ().isProbablePrime(64));
+        Assert.assertEquals("crt coefficient must be correct",
+                BigInteger.ONE, priv.getCrtCoefficient().multiply(priv.getPrimeQ()).mod(priv.getPrimeP()));
+
+        byte[] data = "dummy data".getBytes();
+        Signature signer = Signature.getInstance("SHA256withRSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        signer.initSign(priv);
+        signer.update(data);
+        byte[] sig = signer.sign();
+
+        Signature verifier = Signature.getInstance("SHA256withRSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        verifier.initVerify(pub);
+        verifier.update(data);
+        Assert.assertTrue("signature made with generated key must verify", verifier.verify(sig));
+    }
+
+    @Test
+    public void testKeysAreDistinct() throws Exception {
+        KeyPairGenerator keyGen = new ParallelRsaKeyPairGenerator(2);
+        keyGen.initialize(2048, new SecureRandom());
+
+        BigInteger n1 = ((RSAPublicKey) keyGen.generateKeyPair().getPublic()).getModulus();
+        BigInteger n2 = ((RSAPublicKey) keyGen.generateKeyPair().getPublic()).getModulus();
+        Assert.assertNotEquals("generated keys must differ", n1, n2);
+    }
+
+    /**
+     * Compares key generation time against BouncyCastle's single threaded generator.
+     * This takes minutes, it is only run manually.
+     */
+    @Ignore("manual benchmark")
+    @Test
+    public void testBenchmark() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("rsa key generation, " + cores + " cores, average of "
+                + BENCHMARK_ROUNDS + " rounds:");
+
+        for (int keySize : new int[] { 2048, 3072, 4096 }) {
+            KeyPairGenerator single = KeyPairGenerator.getInstance(
+                    "RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            single.initialize(keySize, new SecureRandom());
+            KeyPairGenerator parallel = new ParallelRsaKeyPairGenerator();
+            parallel.initialize(keySize, new SecureRandom());
+
+            long singleTime = averageTime(single);
+            long parallelTime = averageTime(parallel);
+
+            System.out.println(String.format("%d bits: single %dms, parallel %dms, speed-up %.2fx",
+                    keySize, singleTime, parallelTime, (double) singleTime / Math.max(1, parallelTime)));
+        }
+    }
+
+    private static long averageTime(KeyPairGenerator keyGen) {
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            keyGen.generateKeyPair();
+        }
+        return (System.currentTimeMillis() - startTime) / BENCHMARK_ROUNDS;
+    }
+
+}
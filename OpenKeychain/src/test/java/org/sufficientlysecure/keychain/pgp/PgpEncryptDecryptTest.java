@@ -23,9 +23,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.junit.Assert;
@@ -41,6 +43,7 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.spongycastle.bcpg.BCPGInputStream;
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.spongycastle.bcpg.Packet;
 import org.spongycastle.bcpg.PacketTags;
 import org.spongycastle.bcpg.PublicKeyEncSessionPacket;
@@ -48,8 +51,11 @@ import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.openpgp.PGPKeyFlags;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.BatchVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
@@ -458,6 +464,68 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testBatchVerifyDetached() {
+
+        int numItems = 10;
+        byte[][] plaintexts = new byte[numItems][];
+        byte[][] detachedSignatures = new byte[numItems][];
+
+        for (int i = 0; i < numItems; i++) { // sign each item, alternating between two keys
+            plaintexts[i] = ("dies ist ein plaintext ☭" + i + TestingUtils.genPassphrase(true)).getBytes();
+            UncachedKeyRing ring = i % 2 == 0 ? mStaticRing1 : mStaticRing2;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintexts[i]);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+            input.setSignatureMasterKeyId(ring.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(ring, 1));
+            input.setDetachedSignature(true);
+
+            PgpSignEncryptResult result = op.execute(input,
+                    new CryptoInputParcel(i % 2 == 0 ? mKeyPhrase1 : mKeyPhrase2), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            detachedSignatures[i] = result.getDetachedSignature();
+        }
+
+        PgpBatchVerifyInputParcel input = new PgpBatchVerifyInputParcel().setThreadCount(3);
+        for (int i = 0; i < numItems; i++) {
+            input.addItem(plaintexts[i], detachedSignatures[i]);
+        }
+        // a modified item, its signature must not verify
+        input.addItem("tampered".getBytes(), detachedSignatures[0]);
+        // garbage instead of a signature
+        input.addItem(plaintexts[0], new byte[] { 1, 2, 3 });
+
+        PgpBatchVerifyOperation op = new PgpBatchVerifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        BatchVerifyResult result = op.execute(input, new CryptoInputParcel());
+
+        Assert.assertTrue("batch verification must succeed", result.success());
+        ArrayList<OpenPgpSignatureResult> signatureResults = result.getSignatureResults();
+        Assert.assertEquals("there must be one result per item", numItems + 2, signatureResults.size());
+
+        for (int i = 0; i < numItems; i++) {
+            UncachedKeyRing ring = i % 2 == 0 ? mStaticRing1 : mStaticRing2;
+            Assert.assertEquals("signature #" + i + " must be valid",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, signatureResults.get(i).getResult());
+            Assert.assertEquals("signature #" + i + " must be made by correct key",
+                    ring.getMasterKeyId(), signatureResults.get(i).getKeyId());
+        }
+        Assert.assertEquals("signature over modified data must be invalid",
+                OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE,
+                signatureResults.get(numItems).getResult());
+        Assert.assertNull("unparseable signature must yield no result",
+                signatureResults.get(numItems + 1));
+
+    }
+
     @Test
     public void testAsymmetricEncryptDecrypt() {
 
@@ -555,6 +623,47 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAdaptiveCompressionFollowsPreferences() throws Exception {
+
+        CanonicalizedPublicKeyRing publicRing = (CanonicalizedPublicKeyRing)
+                mStaticRing1.extractPublicKeyRing().canonicalize(new OperationLog(), 0);
+        Assert.assertTrue("keys created by us should prefer zip",
+                publicRing.getPublicKey().hasPreferredCompressionAlgorithm(CompressionAlgorithmTags.ZIP));
+        Assert.assertFalse("keys created by us should not list bzip2",
+                publicRing.getPublicKey().hasPreferredCompressionAlgorithm(CompressionAlgorithmTags.BZIP2));
+
+        // small and very redundant, which would be compressed with bzip2 if the recipient allowed it
+        byte[] plaintext = new byte[16 * 1024];
+        Arrays.fill(plaintext, (byte) 'a');
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        InputData data = new InputData(in, in.available());
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+        input.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+        input.setCompressionAlgorithm(
+                PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_ADAPTIVE);
+        PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date()),
+                data, out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        boolean selected = false;
+        for (LogEntryParcel entry : result.getLog()) {
+            if (entry.mType == LogType.MSG_PSE_COMPRESSION_SELECTED) {
+                Assert.assertEquals("recipient doesn't list bzip2, so the default should be used",
+                        "ZIP", entry.mParameters[0]);
+                selected = true;
+            }
+        }
+        Assert.assertTrue("a compression algorithm should be selected", selected);
+    }
+
     @Test
     public void testMultiSubkeyEncryptSkipStripOrBadFlag() throws Exception {
 
@@ -914,6 +1023,54 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testLargeSignEncryptDecryptVerify() {
+
+        // large enough that the signature is hashed on a separate thread
+        byte[] plaintext = new byte[(int) AsyncSignatureUpdater.MIN_ASYNC_SIZE * 3 + 1234];
+        new Random().nextBytes(plaintext);
+        byte[] ciphertext;
+
+        { // sign and encrypt data
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+            b.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+
+            PgpSignEncryptResult result = op.execute(b,
+                    new CryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+            Assert.assertTrue("signing and encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decryption should succeed, with a valid signature
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, out.toByteArray());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
@@ -589,6 +589,55 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testVerdictCache() throws Exception {
+
+        SignatureVerdictCache cache = new SignatureVerdictCache(100);
+
+        long verified;
+        { // first canonicalization must verify all signatures
+            CanonicalizedKeyRing canonicalized = ring.canonicalize(log, 0, false, cache);
+            Assert.assertArrayEquals("keyring should be constant through canonicalization",
+                    ring.getEncoded(), canonicalized.getEncoded());
+            Assert.assertEquals("no verdicts should be reused on first run", 0, cache.getHitCount());
+            verified = cache.getMissCount();
+            Assert.assertTrue("signatures must be verified on first run", verified > 0);
+        }
+
+        { // second canonicalization must reuse all verdicts
+            CanonicalizedKeyRing canonicalized = ring.canonicalize(log, 0, false, cache);
+            Assert.assertArrayEquals("keyring should be constant through canonicalization",
+                    ring.getEncoded(), canonicalized.getEncoded());
+            Assert.assertEquals("all verdicts should be reused", verified, cache.getHitCount());
+            Assert.assertEquals("no signatures should be verified again", verified, cache.getMissCount());
+        }
+
+        { // a valid certificate for one user id must not be accepted for another
+            UncachedPublicKey masterKey = ring.getPublicKey();
+            WrappedSignature sig = masterKey.getSignaturesForRawId(Strings.toUTF8ByteArray("twi")).next();
+
+            // inject right after the "pink" user id
+            UncachedKeyRing modified = KeyringTestingHelper.injectPacket(ring, sig.getEncoded(), 4);
+            CanonicalizedKeyRing canonicalized = modified.canonicalize(log, 0, false, cache);
+
+            Assert.assertTrue("certificate moved to other user id must be stripped",
+                    !KeyringTestingHelper.diffKeyrings(
+                            ring.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB));
+        }
+
+        { // verdicts of a stored keyring are taken over without verification
+            SignatureVerdictCache seeded = new SignatureVerdictCache(100);
+            seeded.addCanonicalized(ring.canonicalize(new OperationLog(), 0));
+
+            CanonicalizedKeyRing canonicalized = ring.canonicalize(log, 0, false, seeded);
+            Assert.assertArrayEquals("keyring should be constant through canonicalization",
+                    ring.getEncoded(), canonicalized.getEncoded());
+            // the embedded primary key binding of the signing subkey is not taken over
+            Assert.assertEquals("only the primary key binding should be verified",
+                    1, seeded.getMissCount());
+        }
+
+    }
+
     private static final int[] sigtypes_direct = new int[] {
         PGPSignature.KEY_REVOCATION,
         PGPSignature.DIRECT_KEY,
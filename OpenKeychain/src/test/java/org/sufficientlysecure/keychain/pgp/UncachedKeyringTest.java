@@ -31,6 +31,8 @@ import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -43,8 +45,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.Security;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Set;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -157,6 +162,34 @@ public class UncachedKeyringTest {
         readRingFromResource("/test-keys/broken_cert_version.asc");
     }
 
+    @Test
+    public void testPruneCertifications() throws Throwable {
+        UncachedKeyRing key = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+        long knownIssuer = 0x3CD5CAC9AE9E8AE3L;
+
+        Set<Long> issuers = key.getForeignCertificationIssuers();
+        Assert.assertEquals("key should have three foreign issuers", 3, issuers.size());
+        Assert.assertTrue(issuers.contains(knownIssuer));
+
+        OperationLog log = new OperationLog();
+        Assert.assertSame("keyring below the limit should not be pruned",
+                key, key.pruneCertifications(new HashSet<Long>(), 3, log, 0));
+        Assert.assertFalse(log.containsType(LogType.MSG_IP_PRUNE));
+
+        UncachedKeyRing pruned = key.pruneCertifications(
+                Collections.singleton(knownIssuer), 0, log, 0);
+        Assert.assertTrue("dropped certifications should be logged", log.containsType(LogType.MSG_IP_PRUNE));
+        Assert.assertEquals("only certifications of the known issuer should be left",
+                Collections.singleton(knownIssuer), pruned.getForeignCertificationIssuers());
+        Assert.assertEquals("all user ids should be kept",
+                key.getPublicKey().getUnorderedRawUserIds().size(),
+                pruned.getPublicKey().getUnorderedRawUserIds().size());
+        Assert.assertTrue("pruned keyring should be smaller",
+                pruned.getEncoded().length < key.getEncoded().length);
+
+        Assert.assertNotNull("pruned keyring should canonicalize", pruned.canonicalize(log, 0));
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Throwable {
         return UncachedKeyRing.fromStream(UncachedKeyringTest.class.getResourceAsStream(name)).next();
     }
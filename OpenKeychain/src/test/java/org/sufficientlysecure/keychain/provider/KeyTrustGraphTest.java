@@ -0,0 +1,134 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Trust;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyTrustGraphTest {
+
+    KeyTrustGraph graph;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        graph = new KeyTrustGraph();
+    }
+
+    static HashMap<Long, Integer> certs(long... certifiersAndWeights) {
+        HashMap<Long, Integer> result = new HashMap<>();
+        for (int i = 0; i < certifiersAndWeights.length; i += 2) {
+            result.put(certifiersAndWeights[i], (int) certifiersAndWeights[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        // own key 1 certifies 2 fully, 2 certifies 3 casually, 3 certifies 4 fully
+        graph.setKey(1, true, false, certs());
+        graph.setKey(2, false, false, certs(1, Trust.AMOUNT_FULL));
+        graph.setKey(3, false, false, certs(2, Trust.AMOUNT_MARGINAL));
+        graph.setKey(4, false, false, certs(3, Trust.AMOUNT_FULL));
+        graph.setKey(5, false, false, certs());
+
+        Assert.assertEquals("own key should have depth 0", 0, graph.getDepth(1));
+        Assert.assertEquals("own key should be fully trusted", Trust.AMOUNT_FULL, graph.getAmount(1));
+        Assert.assertEquals("directly certified key should have depth 1", 1, graph.getDepth(2));
+        Assert.assertEquals("directly certified key should be fully trusted",
+                Trust.AMOUNT_FULL, graph.getAmount(2));
+        Assert.assertEquals("depth should count the hops", 3, graph.getDepth(4));
+        Assert.assertEquals("amount should be limited by the weakest certification",
+                Trust.AMOUNT_MARGINAL, graph.getAmount(4));
+        Assert.assertEquals("uncertified key should be unreachable",
+                KeyTrustGraph.UNREACHABLE, graph.getDepth(5));
+        Assert.assertEquals("uncertified key should not be trusted", 0, graph.getAmount(5));
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        graph.setKey(1, true, false, certs());
+        graph.setKey(3, false, false, certs(2, Trust.AMOUNT_FULL));
+        graph.setKey(4, false, false, certs(3, Trust.AMOUNT_FULL));
+        Assert.assertEquals("chain without its start should be unreachable",
+                KeyTrustGraph.UNREACHABLE, graph.getDepth(4));
+
+        // key 2 is imported later, with a certification by the own key
+        graph.setKey(2, false, false, certs(1, Trust.AMOUNT_FULL));
+        Assert.assertEquals("keys certified by the new key should become reachable", 2, graph.getDepth(3));
+        Assert.assertEquals("and keys certified by those", 3, graph.getDepth(4));
+        Assert.assertEquals("with full trust", Trust.AMOUNT_FULL, graph.getAmount(4));
+
+        // a shorter path appears
+        graph.setKey(4, false, false, certs(3, Trust.AMOUNT_FULL, 1, Trust.AMOUNT_MARGINAL));
+        Assert.assertEquals("depth should follow the shortest path", 1, graph.getDepth(4));
+        Assert.assertEquals("amount should follow the strongest path", Trust.AMOUNT_FULL, graph.getAmount(4));
+
+        // key 2 is revoked, only the direct certification on 4 is left
+        graph.setKey(2, false, true, certs(1, Trust.AMOUNT_FULL));
+        Assert.assertEquals("revoked key should be unreachable", KeyTrustGraph.UNREACHABLE, graph.getDepth(2));
+        Assert.assertEquals("revoked key should not pass trust on",
+                KeyTrustGraph.UNREACHABLE, graph.getDepth(3));
+        Assert.assertEquals("other paths should remain", 1, graph.getDepth(4));
+        Assert.assertEquals("with their own amount", Trust.AMOUNT_MARGINAL, graph.getAmount(4));
+
+        // and deleted
+        graph.removeKey(2);
+        Assert.assertFalse("removed key should be gone", graph.contains(2));
+        graph.setKey(2, false, false, certs(1, Trust.AMOUNT_FULL));
+        Assert.assertEquals("certifications by a key should come back with it", 2, graph.getDepth(3));
+    }
+
+    @Test
+    public void testDepthLimit() throws Exception {
+        graph.setKey(0, true, false, certs());
+        for (long i = 1; i <= Trust.MAX_DEPTH + 1; i++) {
+            graph.setKey(i, false, false, certs(i - 1, Trust.AMOUNT_FULL));
+        }
+        Assert.assertEquals("key at the limit should be reachable",
+                Trust.MAX_DEPTH, graph.getDepth(Trust.MAX_DEPTH));
+        Assert.assertEquals("key beyond the limit should be unreachable",
+                KeyTrustGraph.UNREACHABLE, graph.getDepth(Trust.MAX_DEPTH + 1));
+        Assert.assertEquals("key beyond the limit should not be trusted",
+                0, graph.getAmount(Trust.MAX_DEPTH + 1));
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        // 2 and 3 certify each other, and neither is reachable
+        graph.setKey(1, true, false, certs());
+        graph.setKey(2, false, false, certs(3, Trust.AMOUNT_FULL));
+        graph.setKey(3, false, false, certs(2, Trust.AMOUNT_FULL));
+        Assert.assertEquals("cycle should not make keys reachable",
+                KeyTrustGraph.UNREACHABLE, graph.getDepth(2));
+
+        graph.setKey(2, false, false, certs(3, Trust.AMOUNT_FULL, 1, Trust.AMOUNT_FULL));
+        Assert.assertEquals("cycle entered from own key", 1, graph.getDepth(2));
+        Assert.assertEquals("cycle entered from own key", 2, graph.getDepth(3));
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.security.Security;
+import java.util.Date;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Trust;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+/** Trust as queried through the provider, which keeps its KeyTrustGraph up to date. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainProviderTrustTest {
+
+    static UncachedKeyRing mOwnRing, mOtherRing;
+    static Passphrase mOwnPhrase = TestingUtils.genPassphrase(true);
+
+    /** depth of a key which is known, but not reachable */
+    static final int NO_DEPTH = -1;
+    /** depth of a key which is not in the database */
+    static final int NO_ROW = -2;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        mOwnRing = createRing("own", mOwnPhrase);
+        mOtherRing = createRing("other", new Passphrase());
+    }
+
+    static UncachedKeyRing createRing(String userId, Passphrase passphrase) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.saveSecretKeyRing(mOwnRing, new ProgressScaler());
+    }
+
+    @Test
+    public void testRefreshOnInsertAndDelete() throws Exception {
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        // first query builds the graph from the database
+        Assert.assertEquals("own key should be a root", 0, queryDepth(mOwnRing.getMasterKeyId()));
+        Assert.assertEquals("unknown key should have no trust row",
+                NO_ROW, queryDepth(mOtherRing.getMasterKeyId()));
+
+        // saving a key invalidates it
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                mOtherRing.extractPublicKeyRing(), new ProgressScaler(), null);
+        Assert.assertEquals("new uncertified key should be unreachable",
+                NO_DEPTH, queryDepth(mOtherRing.getMasterKeyId()));
+
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        CertifyActionsParcel actions = new CertifyActionsParcel(mOwnRing.getMasterKeyId());
+        actions.add(new CertifyAction(mOtherRing.getMasterKeyId(),
+                mOtherRing.getPublicKey().getUnorderedUserIds(), null));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), mOwnPhrase));
+        Assert.assertTrue("certification must succeed", result.success());
+        Assert.assertEquals("certified key should be reachable from the own key",
+                1, queryDepth(mOtherRing.getMasterKeyId()));
+
+        // deleting the secret part makes the own key an ordinary key
+        resolver.delete(KeyRingData.buildSecretKeyRingUri(mOwnRing.getMasterKeyId()), null, null);
+        Assert.assertEquals("key without secret should not be a root",
+                NO_DEPTH, queryDepth(mOwnRing.getMasterKeyId()));
+        Assert.assertEquals("trust should not pass through a key that is no root anymore",
+                NO_DEPTH, queryDepth(mOtherRing.getMasterKeyId()));
+
+        resolver.delete(KeyRingData.buildPublicKeyRingUri(mOtherRing.getMasterKeyId()), null, null);
+        Assert.assertEquals("deleted key should have no trust row",
+                NO_ROW, queryDepth(mOtherRing.getMasterKeyId()));
+    }
+
+    static int queryDepth(long masterKeyId) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                Trust.buildTrustUri(masterKeyId), new String[] { Trust.TRUST_DEPTH }, null, null, null);
+        Assert.assertNotNull(cursor);
+        try {
+            if (!cursor.moveToFirst()) {
+                return NO_ROW;
+            }
+            return cursor.isNull(0) ? NO_DEPTH : cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
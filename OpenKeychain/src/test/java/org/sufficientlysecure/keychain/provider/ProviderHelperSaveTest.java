@@ -18,6 +18,9 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+import android.net.Uri;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -37,11 +40,16 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.ui.adapter.PagedKeySummaryCursor;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -217,6 +225,41 @@ public class ProviderHelperSaveTest {
         Assert.assertTrue("import of the badly encoded user id should succeed", found);
     }
 
+    @Test public void testExportKeyRing() throws Exception {
+
+        UncachedKeyRing key = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+        long keyId = key.getMasterKeyId();
+        Assert.assertTrue("import of keyring should succeed",
+                mProviderHelper.savePublicKeyRing(key, new ProgressScaler(), null).success());
+
+        Uri uri = KeyRingData.buildPublicKeyRingUri(keyId);
+        byte[] stored = mProviderHelper.getCanonicalizedPublicKeyRing(keyId).getEncoded();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mProviderHelper.writeKeyRing(uri, out, false, false);
+        Assert.assertArrayEquals("binary export should be the stored key ring", stored, out.toByteArray());
+
+        UncachedKeyRing armored = UncachedKeyRing.decodeFromData(
+                mProviderHelper.getKeyRingAsArmoredString(uri).getBytes("UTF-8"));
+        Assert.assertArrayEquals("armored export should be the stored key ring", stored, armored.getEncoded());
+
+        out = new ByteArrayOutputStream();
+        mProviderHelper.writeKeyRing(uri, out, true, true);
+        UncachedKeyRing stripped = UncachedKeyRing.decodeFromData(out.toByteArray());
+        Assert.assertEquals("stripped key ring should keep its master key", keyId, stripped.getMasterKeyId());
+        Assert.assertEquals("stripped key ring should keep all user ids",
+                key.getPublicKey().getUnorderedRawUserIds().size(),
+                stripped.getPublicKey().getUnorderedRawUserIds().size());
+
+        boolean foundSelfCert = false;
+        Iterator<WrappedSignature> it = stripped.getPublicKey().getSignatures();
+        while (it.hasNext()) {
+            Assert.assertEquals("only self certifications should be left", keyId, it.next().getKeyId());
+            foundSelfCert = true;
+        }
+        Assert.assertTrue("self certifications should be kept", foundSelfCert);
+    }
+
     @Test
     /** Tests a master key which may sign, but is stripped. In this case, if there is a different
      * subkey available which can sign, that one should be selected.
@@ -249,6 +292,56 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test
+    public void testKeySummary() throws Exception {
+
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing other = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        mProviderHelper.savePublicKeyRing(pubkey);
+        mProviderHelper.savePublicKeyRing(other);
+        Assert.assertEquals("summary should exist for public key",
+                0L, getSummaryHasAnySecret(masterKeyId));
+
+        mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+        Assert.assertEquals("summary should be updated for secret key",
+                1L, getSummaryHasAnySecret(masterKeyId));
+
+        // a page size of one makes every row after the first one use keyset pagination
+        String[] projection = new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID };
+        Cursor cursor = new PagedKeySummaryCursor(
+                RuntimeEnvironment.application.getContentResolver(), projection, null, null, 1);
+        Assert.assertEquals("paged cursor should contain both keys", 2, cursor.getCount());
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals("secret key should be listed first", masterKeyId, cursor.getLong(0));
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("public key should be listed second",
+                other.getMasterKeyId(), cursor.getLong(0));
+        Assert.assertFalse("there should be no third row", cursor.moveToNext());
+        cursor.close();
+
+        mProviderHelper.getContentResolver().delete(KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertEquals("summary should be deleted with key ring",
+                -1L, getSummaryHasAnySecret(masterKeyId));
+
+    }
+
+    private long getSummaryHasAnySecret(long masterKeyId) {
+        Cursor cursor = mProviderHelper.getContentResolver().query(KeyRings.buildKeySummaryUri(),
+                new String[] { KeyRings.HAS_ANY_SECRET }, KeyRings.MASTER_KEY_ID + " = ?",
+                new String[] { Long.toString(masterKeyId) }, null);
+        Assert.assertNotNull(cursor);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1L;
+        } finally {
+            cursor.close();
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
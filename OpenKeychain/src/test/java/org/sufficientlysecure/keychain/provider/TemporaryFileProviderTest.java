@@ -0,0 +1,260 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider.TemporaryFileColumns;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class TemporaryFileProviderTest {
+
+    TemporaryFileProvider mProvider;
+    File mTempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        mProvider = new TemporaryFileProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+        mTempDir = new File(RuntimeEnvironment.application.getCacheDir(), "temp");
+    }
+
+    @Test
+    public void testMemoryRoundTrip() throws Exception {
+        Uri uri = createFile(System.currentTimeMillis());
+        byte[] data = randomBytes(1000);
+
+        mProvider.write(uri, new ByteArrayInputStream(data));
+
+        Assert.assertArrayEquals("content should be read back", data, readFully(mProvider.read(uri)));
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals(data.length, cursor.getLong(cursor.getColumnIndex(MediaStore.MediaColumns.SIZE)));
+        Assert.assertTrue("small file should have no path, it is kept in memory",
+                cursor.isNull(cursor.getColumnIndex(MediaStore.MediaColumns.DATA)));
+        cursor.close();
+        Assert.assertFalse("small file should not be on disk", new File(mTempDir, uri.getLastPathSegment()).exists());
+    }
+
+    @Test
+    public void testLargeWriteOnDisk() throws Exception {
+        Uri uri = createFile(System.currentTimeMillis());
+        byte[] data = randomBytes(300 * 1024);
+
+        mProvider.write(uri, new ByteArrayInputStream(data));
+
+        Assert.assertArrayEquals("content should be read back", data, readFully(mProvider.read(uri)));
+        File file = new File(mTempDir, uri.getLastPathSegment());
+        Assert.assertTrue("large file should be on disk", file.exists());
+        Assert.assertEquals(data.length, file.length());
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception {
+        Uri uri = createFile(System.currentTimeMillis());
+        mProvider.write(uri, new FailingInputStream(1000));
+        try {
+            mProvider.read(uri);
+            Assert.fail("reading a failed small write should fail, not return partial content");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        Uri largeUri = createFile(System.currentTimeMillis());
+        mProvider.write(largeUri, new FailingInputStream(200 * 1024));
+        try {
+            mProvider.read(largeUri);
+            Assert.fail("reading a failed large write should fail, not return partial content");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        Assert.assertFalse("partial content should be removed from disk",
+                new File(mTempDir, largeUri.getLastPathSegment()).exists());
+
+        // writing again succeeds
+        byte[] data = randomBytes(100);
+        mProvider.write(uri, new ByteArrayInputStream(data));
+        Assert.assertArrayEquals(data, readFully(mProvider.read(uri)));
+    }
+
+    @Test
+    public void testDeleteWhileWriting() throws Exception {
+        final Uri uri = createFile(System.currentTimeMillis());
+        PipedOutputStream writer = new PipedOutputStream();
+        final PipedInputStream in = new PipedInputStream(writer);
+        Thread writeThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mProvider.write(uri, in);
+                } catch (FileNotFoundException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        writeThread.start();
+
+        // large enough to be on disk already
+        writer.write(randomBytes(200 * 1024));
+        Assert.assertEquals("file should be deleted while it is written",
+                1, mProvider.delete(uri, null, null));
+        writer.write(randomBytes(1024));
+        writer.close();
+        writeThread.join();
+
+        Assert.assertFalse("content written after the delete should not be left on disk",
+                new File(mTempDir, uri.getLastPathSegment()).exists());
+        try {
+            mProvider.read(uri);
+            Assert.fail("deleted file should not be readable");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCleanUp() throws Exception {
+        Uri expiredUri = createFile(1);
+        mProvider.write(expiredUri, new ByteArrayInputStream(randomBytes(200 * 1024)));
+        Uri currentUri = createFile(System.currentTimeMillis());
+        byte[] data = randomBytes(200 * 1024);
+        mProvider.write(currentUri, new ByteArrayInputStream(data));
+        // left over by a process that was killed before its metadata was written
+        File stray = new File(mTempDir, UUID.randomUUID().toString());
+        Assert.assertTrue(stray.createNewFile());
+
+        int count = mProvider.delete(TemporaryFileProvider.CONTENT_URI,
+                TemporaryFileColumns.COLUMN_TIME + "< ?",
+                new String[]{Long.toString(System.currentTimeMillis() - Constants.TEMPFILE_TTL)});
+
+        Assert.assertEquals("expired and stray file should be deleted", 2, count);
+        Assert.assertFalse(stray.exists());
+        Assert.assertFalse(new File(mTempDir, expiredUri.getLastPathSegment()).exists());
+        Assert.assertArrayEquals("current file should be kept", data, readFully(mProvider.read(currentUri)));
+    }
+
+    @Test
+    public void testWriteTimeout() throws Exception {
+        mProvider.mWriteTimeoutMillis = 200;
+        final Uri uri = createFile(System.currentTimeMillis());
+        PipedOutputStream writer = new PipedOutputStream();
+        final PipedInputStream in = new PipedInputStream(writer);
+        Thread writeThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mProvider.write(uri, in);
+                } catch (FileNotFoundException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        writeThread.start();
+        writer.write(randomBytes(100));
+
+        long start = System.currentTimeMillis();
+        try {
+            mProvider.read(uri);
+            Assert.fail("reading a file which is still written should time out");
+        } catch (FileNotFoundException e) {
+            Assert.assertTrue("read should wait for the writer", System.currentTimeMillis() - start >= 200);
+        }
+
+        writer.close();
+        writeThread.join();
+        Assert.assertEquals("file should be readable once written", 100, readFully(mProvider.read(uri)).length);
+    }
+
+    Uri createFile(long time) {
+        ContentValues values = new ContentValues();
+        values.put(TemporaryFileColumns.COLUMN_TIME, time);
+        return mProvider.insert(TemporaryFileProvider.CONTENT_URI, values);
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /** Returns random data, then fails */
+    static class FailingInputStream extends InputStream {
+        int mLeft;
+
+        FailingInputStream(int size) {
+            mLeft = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mLeft-- <= 0) {
+                throw new IOException("broken input");
+            }
+            return 42;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mLeft <= 0) {
+                throw new IOException("broken input");
+            }
+            int read = Math.min(count, mLeft);
+            Arrays.fill(buffer, offset, offset + read, (byte) 42);
+            mLeft -= read;
+            return read;
+        }
+    }
+
+}
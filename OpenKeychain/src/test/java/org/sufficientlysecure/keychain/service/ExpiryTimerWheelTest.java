@@ -0,0 +1,230 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.service.ExpiryTimerWheel.Clock;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ExpiryTimerWheelTest {
+
+    static final long TICK = ExpiryTimerWheel.TICK_MILLIS;
+
+    static class VirtualClock implements Clock {
+        long mTime;
+
+        VirtualClock(long time) {
+            mTime = time;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mTime;
+        }
+    }
+
+    VirtualClock clock;
+    ExpiryTimerWheel wheel;
+
+    /** Expiry times are rounded up to the end of their tick */
+    static long roundUp(long time) {
+        return ((time + TICK - 1) / TICK) * TICK;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        // start at an odd time, not aligned to any tick or slot
+        clock = new VirtualClock(1450000000123L);
+        wheel = new ExpiryTimerWheel(clock);
+    }
+
+    @Test
+    public void testVirtualClock() throws Exception {
+        Assert.assertEquals("virtual clock should return the set time", 1450000000123L,
+                clock.currentTimeMillis());
+        clock.mTime += 1000;
+        Assert.assertEquals("virtual clock should only move when moved", 1450000001123L,
+                clock.currentTimeMillis());
+        Assert.assertTrue("nothing should expire without timers", wheel.advance().isEmpty());
+        Assert.assertEquals("without timers there should be no wakeup", Long.MAX_VALUE,
+                wheel.getNextWakeupTime());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        long start = clock.mTime;
+        // three expiry times within the same tick, one in the next
+        long tickEnd = (start / TICK + 3) * TICK;
+        wheel.schedule(1, tickEnd - TICK + 1);
+        wheel.schedule(2, tickEnd - 1);
+        wheel.schedule(3, tickEnd);
+        wheel.schedule(4, tickEnd + 1);
+
+        Assert.assertEquals("first wakeup should be at the end of the shared tick", tickEnd,
+                wheel.getNextWakeupTime());
+
+        clock.mTime = tickEnd - 1;
+        Assert.assertTrue("nothing should expire before the wakeup", wheel.advance().isEmpty());
+
+        clock.mTime = tickEnd;
+        Assert.assertEquals("all timers of the tick should expire in one wakeup",
+                new HashSet<>(Arrays.asList(1L, 2L, 3L)), new HashSet<>(wheel.advance()));
+        Assert.assertEquals("next wakeup should be one tick later", tickEnd + TICK,
+                wheel.getNextWakeupTime());
+    }
+
+    @Test
+    public void testLongTimersExpireOnTime() throws Exception {
+        long start = clock.mTime;
+        // far enough to go through every level, including the clamped top one
+        long[] delays = { 15 * 1000L, 60 * 60 * 1000L, 2 * 24 * 60 * 60 * 1000L,
+                100L * 24 * 60 * 60 * 1000L, 5L * 365 * 24 * 60 * 60 * 1000L };
+        for (int i = 0; i < delays.length; i++) {
+            wheel.schedule(i, start + delays[i]);
+        }
+
+        for (int i = 0; i < delays.length; i++) {
+            long expected = roundUp(start + delays[i]);
+            Assert.assertEquals("wakeup should be at the next expiry time", expected,
+                    wheel.getNextWakeupTime());
+
+            clock.mTime = expected - 1;
+            Assert.assertTrue("timer #" + i + " should not expire early", wheel.advance().isEmpty());
+            Assert.assertEquals("wakeup should not change", expected, wheel.getNextWakeupTime());
+
+            clock.mTime = expected;
+            Assert.assertEquals("timer #" + i + " should expire at its time",
+                    Collections.singletonList((long) i), wheel.advance());
+        }
+        Assert.assertEquals("all timers should be gone", 0, wheel.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule() throws Exception {
+        long start = clock.mTime;
+        wheel.schedule(1, start + 60 * 1000);
+        wheel.schedule(2, start + 120 * 1000);
+        Assert.assertTrue("cancel should find the timer", wheel.cancel(1));
+        Assert.assertFalse("cancel should not find it again", wheel.cancel(1));
+
+        // rescheduling replaces the old expiry time, as when a cached passphrase is used
+        wheel.schedule(2, start + 600 * 1000);
+
+        clock.mTime = roundUp(start + 600 * 1000) - 1;
+        Assert.assertTrue("nothing should expire before the rescheduled time", wheel.advance().isEmpty());
+        clock.mTime = roundUp(start + 600 * 1000);
+        Assert.assertEquals("rescheduled timer should expire",
+                Collections.singletonList(2L), wheel.advance());
+    }
+
+    @Test
+    public void testLateWakeup() throws Exception {
+        long start = clock.mTime;
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i, start + (i + 1) * 60 * 1000L);
+        }
+        wheel.schedule(100, start + 7L * 24 * 60 * 60 * 1000);
+
+        // the device slept through all alarms but the last one, e.g. in doze
+        clock.mTime = start + 24 * 60 * 60 * 1000;
+        Assert.assertEquals("all overdue timers should expire in one wakeup", 100, wheel.advance().size());
+        Assert.assertEquals("later timer should still be scheduled", 1, wheel.size());
+        long expected = roundUp(start + 7L * 24 * 60 * 60 * 1000);
+        Assert.assertEquals("wakeup should be at the remaining timer", expected, wheel.getNextWakeupTime());
+    }
+
+    @Test
+    public void testClockSetBack() throws Exception {
+        long start = clock.mTime;
+        wheel.schedule(1, start + 3600 * 1000);
+
+        clock.mTime = start - 24 * 60 * 60 * 1000;
+        Assert.assertTrue("nothing should expire", wheel.advance().isEmpty());
+
+        clock.mTime = roundUp(start + 3600 * 1000) - 1;
+        Assert.assertTrue("timer should not expire early", wheel.advance().isEmpty());
+        clock.mTime = roundUp(start + 3600 * 1000);
+        Assert.assertEquals("timer should expire at its original time",
+                Collections.singletonList(1L), wheel.advance());
+    }
+
+    @Test
+    public void testRandomAgainstReference() throws Exception {
+        Random random = new Random(42);
+        HashMap<Long, Long> reference = new HashMap<>();
+
+        for (int round = 0; round < 2000; round++) {
+            long id = random.nextInt(200);
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1: {
+                    // mostly short times, some up to a month
+                    long delay = random.nextBoolean()
+                            ? random.nextInt(20 * 60 * 1000) : (long) random.nextInt(30 * 24 * 60) * 60 * 1000;
+                    long expiryTime = clock.mTime + delay;
+                    wheel.schedule(id, expiryTime);
+                    reference.put(id, roundUp(expiryTime));
+                    break;
+                }
+                case 2: {
+                    Assert.assertEquals("cancel should match reference", reference.remove(id) != null,
+                            wheel.cancel(id));
+                    break;
+                }
+                case 3: {
+                    long next = Long.MAX_VALUE;
+                    for (long time : reference.values()) {
+                        next = Math.min(next, time);
+                    }
+                    Assert.assertEquals("next wakeup should match reference", next, wheel.getNextWakeupTime());
+
+                    // either wake up exactly on time, or late
+                    clock.mTime = next != Long.MAX_VALUE && random.nextBoolean()
+                            ? next : clock.mTime + random.nextInt(6 * 60 * 60 * 1000);
+
+                    HashSet<Long> expected = new HashSet<>();
+                    for (Map.Entry<Long, Long> entry : reference.entrySet()) {
+                        if (entry.getValue() <= clock.mTime) {
+                            expected.add(entry.getKey());
+                        }
+                    }
+                    reference.keySet().removeAll(expected);
+                    Assert.assertEquals("expired timers should match reference", expected,
+                            new HashSet<>(wheel.advance()));
+                    break;
+                }
+            }
+            Assert.assertEquals("size should match reference", reference.size(), wheel.size());
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.v4.util.LongSparseArray;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.service.PersistentPassphraseCache.Entry;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PersistentPassphraseCacheTest {
+
+    /** There is no Android Keystore in tests, so this uses a software key instead. */
+    static class SoftwareKeyCache extends PersistentPassphraseCache {
+        final SecretKey mKey;
+
+        SoftwareKeyCache(Context context, SecretKey key) {
+            super(context);
+            mKey = key;
+        }
+
+        @Override
+        SecretKey getOrCreateKey() {
+            return mKey;
+        }
+    }
+
+    SecretKey key;
+    PersistentPassphraseCache cache;
+    SharedPreferences prefs;
+    long later;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        key = keyGenerator.generateKey();
+        cache = new SoftwareKeyCache(RuntimeEnvironment.application, key);
+        prefs = RuntimeEnvironment.application.getSharedPreferences(
+                PersistentPassphraseCache.PREF_FILE_NAME, Context.MODE_PRIVATE);
+        later = System.currentTimeMillis() + 60 * 1000;
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        cache.put(1L, new Passphrase("one"), "uid one", later);
+        cache.put(2L, new Passphrase("two"), "uid two", Long.MAX_VALUE);
+
+        LongSparseArray<Entry> entries =
+                new SoftwareKeyCache(RuntimeEnvironment.application, key).restore();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("one", new String(entries.get(1L).mPassphrase.getCharArray()));
+        Assert.assertEquals("uid one", entries.get(1L).mPrimaryUserId);
+        Assert.assertEquals(later, entries.get(1L).mExpiryTime);
+        Assert.assertEquals("two", new String(entries.get(2L).mPassphrase.getCharArray()));
+        Assert.assertEquals(Long.MAX_VALUE, entries.get(2L).mExpiryTime);
+
+        Assert.assertFalse("passphrase must not be stored in plain text",
+                prefs.getString(PersistentPassphraseCache.PREFIX_DATA + 1L, "").contains("one"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        cache.put(1L, new Passphrase("one"), "uid one", System.currentTimeMillis() - 1);
+        cache.put(2L, new Passphrase("two"), "uid two", later);
+
+        LongSparseArray<Entry> entries = cache.restore();
+        Assert.assertEquals("expired entry should not be restored", 1, entries.size());
+        Assert.assertNotNull(entries.get(2L));
+        Assert.assertFalse("expired entry should be removed",
+                prefs.contains(PersistentPassphraseCache.PREFIX_DATA + 1L));
+    }
+
+    @Test
+    public void testExtendedExpiryRejected() throws Exception {
+        cache.put(1L, new Passphrase("one"), "uid one", later);
+        prefs.edit().putLong(PersistentPassphraseCache.PREFIX_EXPIRY + 1L, Long.MAX_VALUE).commit();
+
+        Assert.assertEquals("entry with modified expiry should be dropped", 0, cache.restore().size());
+        Assert.assertFalse(prefs.contains(PersistentPassphraseCache.PREFIX_DATA + 1L));
+    }
+
+    @Test
+    public void testSwappedEntriesRejected() throws Exception {
+        cache.put(1L, new Passphrase("one"), "uid one", later);
+        cache.put(2L, new Passphrase("two"), "uid two", later);
+        String data1 = prefs.getString(PersistentPassphraseCache.PREFIX_DATA + 1L, null);
+        String data2 = prefs.getString(PersistentPassphraseCache.PREFIX_DATA + 2L, null);
+        prefs.edit()
+                .putString(PersistentPassphraseCache.PREFIX_DATA + 1L, data2)
+                .putString(PersistentPassphraseCache.PREFIX_DATA + 2L, data1)
+                .commit();
+
+        Assert.assertEquals("entries moved to another key id should be dropped", 0, cache.restore().size());
+    }
+
+    @Test
+    public void testOtherKeyRejected() throws Exception {
+        cache.put(1L, new Passphrase("one"), "uid one", later);
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        PersistentPassphraseCache otherCache =
+                new SoftwareKeyCache(RuntimeEnvironment.application, keyGenerator.generateKey());
+        Assert.assertEquals("entry encrypted with another key should be dropped",
+                0, otherCache.restore().size());
+    }
+
+    @Test
+    public void testRemoveAndClear() throws Exception {
+        cache.put(1L, new Passphrase("one"), "uid one", later);
+        cache.put(2L, new Passphrase("two"), "uid two", later);
+        cache.put(3L, new Passphrase("three"), "uid three", later);
+
+        cache.remove(2L);
+        LongSparseArray<Entry> entries = cache.restore();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertNull("removed entry should not be restored", entries.get(2L));
+
+        cache.clear();
+        Assert.assertEquals("no entry should be restored after clear", 0, cache.restore().size());
+        Assert.assertTrue("nothing should be left on disk", prefs.getAll().isEmpty());
+    }
+
+}
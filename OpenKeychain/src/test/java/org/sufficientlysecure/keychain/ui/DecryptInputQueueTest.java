@@ -0,0 +1,109 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.InputPendingResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class DecryptInputQueueTest {
+
+    DecryptInputQueue<String> mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new DecryptInputQueue<>();
+    }
+
+    @Test
+    public void testFirstSlotPrompts() {
+        Assert.assertNull("empty queue should have no slot to prompt", mQueue.getFirst());
+
+        InputPendingResult first = decryptPassphrase(1L);
+        Assert.assertTrue("first slot should prompt", mQueue.add("a", first));
+        Assert.assertFalse("second slot should wait", mQueue.add("b", decryptPassphrase(2L)));
+
+        Assert.assertEquals("a", mQueue.getFirst());
+        Assert.assertSame(first, mQueue.getPendingResult("a"));
+        Assert.assertTrue(mQueue.contains("b"));
+        Assert.assertFalse(mQueue.contains("c"));
+    }
+
+    @Test
+    public void testSameKeyRemovedTogether() {
+        mQueue.add("a", decryptPassphrase(1L));
+        mQueue.add("b", decryptPassphrase(2L));
+        mQueue.add("c", decryptPassphrase(1L));
+        mQueue.add("d", decryptPassphrase(1L));
+
+        Assert.assertEquals("slots waiting for the same key should continue, in order",
+                Arrays.asList("c", "d"), mQueue.removeWithSameInput("a"));
+        Assert.assertFalse(mQueue.contains("a"));
+        Assert.assertFalse(mQueue.contains("c"));
+        Assert.assertFalse(mQueue.contains("d"));
+        Assert.assertEquals("slot for another key should prompt next", "b", mQueue.getFirst());
+
+        Assert.assertEquals(Collections.<String>emptyList(), mQueue.removeWithSameInput("b"));
+        Assert.assertNull(mQueue.getFirst());
+    }
+
+    @Test
+    public void testOtherInputNotShared() {
+        mQueue.add("a", symmetricPassphrase());
+        mQueue.add("b", symmetricPassphrase());
+
+        Assert.assertEquals("symmetric passphrases may differ between inputs",
+                Collections.<String>emptyList(), mQueue.removeWithSameInput("a"));
+        Assert.assertEquals("b", mQueue.getFirst());
+    }
+
+    @Test
+    public void testSlotWaitsAgainAfterRemove() {
+        mQueue.add("a", decryptPassphrase(1L));
+        mQueue.add("b", decryptPassphrase(1L));
+        mQueue.removeWithSameInput("a");
+
+        // the input didn't do, so the slot asks again and prompts on its own
+        Assert.assertTrue(mQueue.add("b", decryptPassphrase(1L)));
+        Assert.assertEquals("b", mQueue.getFirst());
+    }
+
+    static InputPendingResult decryptPassphrase(long keyId) {
+        return new InputPendingResult(new OperationLog(),
+                RequiredInputParcel.createRequiredDecryptPassphrase(keyId, keyId),
+                new CryptoInputParcel());
+    }
+
+    static InputPendingResult symmetricPassphrase() {
+        return new InputPendingResult(new OperationLog(),
+                RequiredInputParcel.createRequiredSymmetricPassphrase(),
+                new CryptoInputParcel());
+    }
+
+}
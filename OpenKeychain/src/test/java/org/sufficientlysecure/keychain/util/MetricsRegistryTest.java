@@ -0,0 +1,132 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Histogram;
+import org.sufficientlysecure.keychain.util.MetricsRegistry.Row;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class MetricsRegistryTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        long previousHighest = -1;
+        for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+            long highest = Histogram.getHighestValueInBucket(i);
+            Assert.assertEquals("lowest value should be in this bucket",
+                    i, Histogram.getBucketIndex(previousHighest + 1));
+            Assert.assertEquals("highest value should be in this bucket", i, Histogram.getBucketIndex(highest));
+            Assert.assertTrue("bucket should not be wider than 1/16 of its values",
+                    highest - previousHighest <= Math.max(1, (previousHighest + 1) / 16));
+            previousHighest = highest;
+        }
+        Assert.assertEquals("last bucket should end at the max value", Histogram.MAX_VALUE, previousHighest);
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        Histogram histogram = new MetricsRegistry().histogram("test");
+        Assert.assertEquals("empty histogram should have no percentiles", 0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500500, histogram.getMean());
+        Assert.assertEquals(1000000, histogram.getMax());
+        assertWithinBucket(500000, histogram.getValueAtPercentile(50));
+        assertWithinBucket(950000, histogram.getValueAtPercentile(95));
+        assertWithinBucket(990000, histogram.getValueAtPercentile(99));
+        Assert.assertEquals("100th percentile should be the max", 1000000, histogram.getValueAtPercentile(100));
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals("values out of range should be clamped", Histogram.MAX_VALUE, histogram.getMax());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(0.01));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final MetricsRegistry registry = new MetricsRegistry();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        registry.counter("count").increment();
+                        registry.histogram("latency").record(i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals("no increments should be lost", 40000, registry.counter("count").get());
+        Assert.assertEquals("no values should be lost", 40000, registry.histogram("latency").getCount());
+    }
+
+    @Test
+    public void testRows() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("b.count").add(3);
+        registry.histogram("a.latency").record(100);
+        registry.histogram("a.latency").record(300);
+
+        List<Row> rows = registry.getRows();
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals("rows should be sorted by name", "a.latency", rows.get(0).mName);
+        Assert.assertEquals(MetricsRegistry.TYPE_HISTOGRAM, rows.get(0).mType);
+        Assert.assertEquals(200, rows.get(0).mMean);
+        Assert.assertEquals(MetricsRegistry.TYPE_COUNTER, rows.get(1).mType);
+        Assert.assertEquals(3, rows.get(1).mCount);
+
+        StringWriter writer = new StringWriter();
+        MetricsRegistry.writeRows(rows, writer);
+        List<Row> read = MetricsRegistry.readRows(new StringReader(writer.toString() + "broken line\n"));
+        Assert.assertEquals("snapshot should be read back, skipping broken lines", 2, read.size());
+        Assert.assertEquals("a.latency", read.get(0).mName);
+        Assert.assertEquals(rows.get(0).mP99, read.get(0).mP99);
+        Assert.assertEquals(rows.get(0).mMax, read.get(0).mMax);
+        Assert.assertEquals(3, read.get(1).mCount);
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        Assert.assertTrue("percentile " + actual + " should be within 1/16 of " + expected,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+
+}
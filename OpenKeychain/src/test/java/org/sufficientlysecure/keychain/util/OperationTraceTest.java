@@ -0,0 +1,110 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.ByteArrayOutputStream;
+
+import android.os.Parcel;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.OperationTrace.Category;
+import org.sufficientlysecure.keychain.util.OperationTrace.Span;
+import org.sufficientlysecure.keychain.util.OperationTrace.Summary;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationTraceTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testNestedSpans() throws Exception {
+        OperationTrace trace = new OperationTrace();
+
+        Span root = trace.begin(Category.OPERATION, "op");
+        Span write = trace.begin(Category.DB_WRITE, "save");
+        Span nestedWrite = trace.begin(Category.DB_WRITE, "insert");
+        nestedWrite.end();
+        Span crypto = trace.begin(Category.CRYPTO, "canonicalize");
+        crypto.end();
+        write.end();
+        // ending twice is harmless
+        write.end();
+        Span read = trace.begin(Category.DB_READ, "load");
+        read.end();
+        root.end();
+
+        Summary summary = trace.getSummary();
+        Assert.assertEquals("nested span of the same category should not be counted twice",
+                1, summary.getCount(Category.DB_WRITE));
+        Assert.assertEquals(1, summary.getCount(Category.CRYPTO));
+        Assert.assertEquals(1, summary.getCount(Category.DB_READ));
+        Assert.assertEquals(1, summary.getCount(Category.OPERATION));
+        Assert.assertEquals(0, summary.getCount(Category.NETWORK));
+
+        Parcel parcel = Parcel.obtain();
+        summary.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        Summary parceled = Summary.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        Assert.assertEquals("summary should survive parceling",
+                summary.getCount(Category.DB_WRITE), parceled.getCount(Category.DB_WRITE));
+        Assert.assertEquals(summary.mTotalMillis, parceled.mTotalMillis);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTraceFile(out);
+        JSONArray events = new JSONObject(out.toString("UTF-8")).getJSONArray("traceEvents");
+        Assert.assertEquals("all spans should be in the trace file", 5, events.length());
+        Assert.assertEquals("spans should be in order of their end", "insert", events.getJSONObject(0).getString("name"));
+        Assert.assertEquals("X", events.getJSONObject(0).getString("ph"));
+    }
+
+    @Test
+    public void testSpanLimit() throws Exception {
+        OperationTrace trace = new OperationTrace();
+        for (int i = 0; i < OperationTrace.MAX_SPANS + 10; i++) {
+            trace.begin(Category.PGP_PARSE, "parse").end();
+        }
+        Assert.assertEquals("all spans should be counted",
+                OperationTrace.MAX_SPANS + 10, trace.getSummary().getCount(Category.PGP_PARSE));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTraceFile(out);
+        JSONObject file = new JSONObject(out.toString("UTF-8"));
+        Assert.assertEquals("only MAX_SPANS spans should be recorded",
+                OperationTrace.MAX_SPANS, file.getJSONArray("traceEvents").length());
+        Assert.assertEquals(10, file.getJSONObject("metadata").getInt("droppedSpans"));
+    }
+
+    @Test
+    public void testNoTrace() throws Exception {
+        // spans on a missing trace record nothing, and don't fail
+        OperationTrace.begin(null, Category.DB_READ, "load").end();
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PipelinedStreamsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = new byte[1000003];
+        new Random(42).nextBytes(data);
+
+        InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 4096, 4);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new WriteBehindOutputStream(sink, 1000, 3);
+
+        // odd buffer size, so chunk boundaries never line up
+        byte[] buffer = new byte[777];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        out.write(0x42);
+        in.close();
+        out.close();
+
+        byte[] expected = Arrays.copyOf(data, data.length + 1);
+        expected[data.length] = 0x42;
+        Assert.assertArrayEquals("data must pass through pipeline unchanged",
+                expected, sink.toByteArray());
+    }
+
+    @Test
+    public void testReadErrorIsPropagated() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+
+        InputStream in = new ReadAheadInputStream(failing, 4096, 4);
+        try {
+            in.read();
+            Assert.fail("read error must be propagated to consumer");
+        } catch (IOException e) {
+            Assert.assertEquals("broken pipe", e.getMessage());
+        }
+        in.close();
+    }
+
+    @Test
+    public void testWriteErrorIsPropagated() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+
+        OutputStream out = new WriteBehindOutputStream(failing, 16, 2);
+        // more than the queue can hold, must not block after the writer failed
+        for (int i = 0; i < 100; i++) {
+            try {
+                out.write(new byte[16]);
+            } catch (IOException e) {
+                // expected at some point
+            }
+        }
+        try {
+            out.close();
+            Assert.fail("write error must be propagated on close");
+        } catch (IOException e) {
+            Assert.assertEquals("broken pipe", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testErrorOnLastChunk() throws Exception {
+        final int chunkSize = 1000;
+        final int chunks = 10;
+        // accepts all but the last chunk
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                if (received.size() + length > (chunks - 1) * chunkSize) {
+                    throw new IOException("disk full");
+                }
+                received.write(b, offset, length);
+            }
+        };
+
+        OutputStream out = new WriteBehindOutputStream(failing, chunkSize, 16);
+        // all of this fits in the queue, so no write sees the error
+        out.write(new byte[chunks * chunkSize]);
+        try {
+            out.close();
+            Assert.fail("error on the last chunk must be propagated on close");
+        } catch (IOException e) {
+            Assert.assertEquals("disk full", e.getMessage());
+        }
+        Assert.assertEquals((chunks - 1) * chunkSize, received.size());
+    }
+
+    @Test
+    public void testFlushWaitsForWriter() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new WriteBehindOutputStream(sink, 1000, 16);
+        out.write(new byte[10500]);
+        out.flush();
+        Assert.assertEquals("flush must wait until everything is written", 10500, sink.size());
+
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+        out = new WriteBehindOutputStream(failing, 16, 16);
+        out.write(new byte[16]);
+        try {
+            out.flush();
+            Assert.fail("flush must raise errors of data written before");
+        } catch (IOException e) {
+            Assert.assertEquals("broken pipe", e.getMessage());
+        }
+    }
+
+}